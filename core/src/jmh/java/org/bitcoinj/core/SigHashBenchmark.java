@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures computing the forkid signature hash of every input of a large consolidation transaction, as done when
+ * signing or verifying it. With precomputed hashPrevouts/hashSequence/hashOutputs this scales linearly with the number
+ * of inputs, {@link #allInputsRecomputed(Blackhole)} shows the previous quadratic behaviour for comparison.
+ * {@link #verifyAllInputs()} goes through the script interpreter, the way wallets and the full chain verify inputs.
+ *
+ * <p>Run with <code>gradle bitcoinj-core:jmh</code>.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SigHashBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Param({"1000", "10000", "50000"})
+    public int numInputs;
+
+    private Transaction tx;
+    private Transaction signedTx;
+    private Script scriptCode;
+
+    @Setup
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        ECKey key = new ECKey();
+        Address address = LegacyAddress.fromKey(PARAMS, key);
+        scriptCode = ScriptBuilder.createOutputScript(address);
+        tx = new Transaction(PARAMS);
+        for (int i = 0; i < numInputs; i++)
+            tx.addInput(Sha256Hash.of(Utils.HEX.decode(String.format("%08x", i))), i % 3, new Script(new byte[0]));
+        tx.addOutput(Coin.COIN, address);
+
+        // Signing an input doesn't change the precomputed data, so this is linear as well.
+        signedTx = PARAMS.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+        for (int i = 0; i < numInputs; i++) {
+            Sha256Hash hash = signedTx.hashForSignatureWitness(i, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false);
+            TransactionSignature signature = new TransactionSignature(key.sign(hash), Transaction.SigHash.ALL, false,
+                    true);
+            signedTx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signature, key));
+        }
+    }
+
+    @Benchmark
+    public void allInputsPrecomputed(Blackhole bh) {
+        tx.invalidateSigHashPrecomputedData();
+        for (int i = 0; i < numInputs; i++)
+            bh.consume(tx.hashForSignatureWitness(i, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false));
+    }
+
+    @Benchmark
+    public void verifyAllInputs() {
+        signedTx.invalidateSigHashPrecomputedData();
+        for (int i = 0; i < numInputs; i++)
+            signedTx.getInput(i).getScriptSig().correctlySpends(signedTx, i, scriptCode, Coin.COIN,
+                    Script.ALL_VERIFY_FLAGS);
+    }
+
+    @Benchmark
+    public void allInputsRecomputed(Blackhole bh) {
+        for (int i = 0; i < numInputs; i++) {
+            tx.invalidateSigHashPrecomputedData();
+            bh.consume(tx.hashForSignatureWitness(i, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false));
+        }
+    }
+}
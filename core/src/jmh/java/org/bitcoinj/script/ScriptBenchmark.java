@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.script.ScriptOpCodes.*;
+
+/**
+ * Measures the throughput of the script interpreter through {@link Script#correctlySpends(Transaction, long, Script,
+ * Coin, java.util.Set)}, for the common P2PKH and P2SH multisig spends, and for a script that pushes and drops large
+ * data elements, like those of OP_RETURN outputs. The last one does no signature checks, so it shows the cost of the
+ * interpreter itself.
+ *
+ * <p>Run with <code>gradle bitcoinj-core:jmh</code>. The benchmark only uses public API, so it can be run against
+ * older versions of the interpreter for comparison.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScriptBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final Coin VALUE = Coin.COIN;
+    private static final int DATA_PUSHES = 18;
+    private static final int DATA_SIZE = (int) Script.MAX_SCRIPT_ELEMENT_SIZE;
+
+    private Spend p2pkh, p2shMultisig, largeData;
+
+    private static class Spend {
+        final Transaction tx;
+        final Script scriptSig, scriptPubKey;
+
+        Spend(Transaction tx, Script scriptSig, Script scriptPubKey) {
+            this.tx = tx;
+            this.scriptSig = scriptSig;
+            this.scriptPubKey = scriptPubKey;
+        }
+
+        void verify() {
+            scriptSig.correctlySpends(tx, 0, scriptPubKey, VALUE, Script.ALL_VERIFY_FLAGS);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        // Without the signature cache, as the signatures would otherwise only be verified once, and then found in it.
+        Context.propagate(new Context(PARAMS, Context.DEFAULT_EVENT_HORIZON, Transaction.DEFAULT_TX_FEE, true, 0));
+
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createP2PKHOutputScript(key);
+        Transaction tx = spendingTransaction();
+        TransactionSignature sig = tx.calculateWitnessSignature(0, key, scriptPubKey.getProgram(), VALUE,
+                Transaction.SigHash.ALL, false);
+        p2pkh = spend(tx, ScriptBuilder.createInputScript(sig, key), scriptPubKey);
+
+        List<ECKey> keys = Arrays.asList(new ECKey(), new ECKey(), new ECKey());
+        Script redeemScript = ScriptBuilder.createRedeemScript(2, keys);
+        tx = spendingTransaction();
+        TransactionSignature sig1 = tx.calculateWitnessSignature(0, keys.get(0), redeemScript.getProgram(), VALUE,
+                Transaction.SigHash.ALL, false);
+        TransactionSignature sig2 = tx.calculateWitnessSignature(0, keys.get(2), redeemScript.getProgram(), VALUE,
+                Transaction.SigHash.ALL, false);
+        p2shMultisig = spend(tx, ScriptBuilder.createP2SHMultiSigInputScript(Arrays.asList(sig1, sig2), redeemScript),
+                ScriptBuilder.createP2SHOutputScript(redeemScript));
+
+        ScriptBuilder pushes = new ScriptBuilder();
+        ScriptBuilder drops = new ScriptBuilder();
+        for (int i = 0; i < DATA_PUSHES; i++) {
+            byte[] data = new byte[DATA_SIZE];
+            Arrays.fill(data, (byte) i);
+            pushes.data(data);
+            drops.op(i % 2 == 0 ? OP_DUP : OP_SIZE).op(OP_DROP).op(OP_DROP);
+        }
+        drops.op(OP_DEPTH).op(OP_NOT);
+        largeData = spend(spendingTransaction(), pushes.build(), drops.build());
+    }
+
+    private static Transaction spendingTransaction() {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(Sha256Hash.of(new byte[] { 1 }), 0, new Script(new byte[0]));
+        tx.addOutput(VALUE, new ECKey());
+        return tx;
+    }
+
+    private static Spend spend(Transaction tx, Script scriptSig, Script scriptPubKey) {
+        tx.getInput(0).setScriptSig(scriptSig);
+        Spend spend = new Spend(tx, scriptSig, scriptPubKey);
+        spend.verify();
+        return spend;
+    }
+
+    @Benchmark
+    public void p2pkh() {
+        p2pkh.verify();
+    }
+
+    @Benchmark
+    public void p2shMultisig() {
+        p2shMultisig.verify();
+    }
+
+    @Benchmark
+    public void largeDataPushes() {
+        largeData.verify();
+    }
+}
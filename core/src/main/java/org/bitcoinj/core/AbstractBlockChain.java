@@ -138,6 +138,7 @@ public abstract class AbstractBlockChain {
     private double previousFalsePositiveRate;
 
     private final VersionTally versionTally;
+    private final HeaderWindow headerWindow;
 
     /** See {@link #AbstractBlockChain(Context, List, BlockStore)} */
     public AbstractBlockChain(NetworkParameters params, List<? extends Wallet> transactionReceivedListeners,
@@ -165,6 +166,8 @@ public abstract class AbstractBlockChain {
 
         this.versionTally = new VersionTally(context.getParams());
         this.versionTally.initialize(blockStore, chainHead);
+        this.headerWindow = new HeaderWindow(context.getParams());
+        this.headerWindow.initialize(blockStore, chainHead);
     }
 
     /**
@@ -524,7 +527,7 @@ public abstract class AbstractBlockChain {
                         block.getHashAsString(), filteredTxHashList.size(), filteredTxn.size());
                 for (Sha256Hash hash : filteredTxHashList) log.debug("  matched tx {}", hash);
             }
-            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(head, blockStore))
+            if (expensiveChecks && block.getTimeSeconds() <= headerWindow.getMedianTimestampOfRecentBlocks(head, blockStore))
                 throw new VerificationException("Block's timestamp is too early");
 
             // BIP 66 & 65: Enforce block version 3/4 once they are a supermajority of blocks
@@ -761,7 +764,7 @@ public abstract class AbstractBlockChain {
             for (Iterator<StoredBlock> it = newBlocks.descendingIterator(); it.hasNext();) {
                 cursor = it.next();
                 Block cursorBlock = cursor.getHeader();
-                if (expensiveChecks && cursorBlock.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(cursor.getPrev(blockStore), blockStore))
+                if (expensiveChecks && cursorBlock.getTimeSeconds() <= headerWindow.getMedianTimestampOfRecentBlocks(headerWindow.getPrev(cursor, blockStore), blockStore))
                     throw new VerificationException("Block's timestamp is too early during reorg");
                 TransactionOutputChanges txOutChanges;
                 if (cursor != newChainHead || block == null)
@@ -881,6 +884,8 @@ public abstract class AbstractBlockChain {
         synchronized (chainHeadLock) {
             this.chainHead = chainHead;
         }
+        if (!headerWindow.setHead(chainHead))
+            headerWindow.initialize(blockStore, chainHead);
     }
 
     /**
@@ -1063,4 +1068,12 @@ public abstract class AbstractBlockChain {
     protected VersionTally getVersionTally() {
         return versionTally;
     }
+
+    /**
+     * Returns the window of recent headers of the best chain, which the difficulty rules use to look up previous
+     * blocks. Must only be used while holding the chain lock, e.g. from within rule checks.
+     */
+    public HeaderWindow getHeaderWindow() {
+        return headerWindow;
+    }
 }
@@ -116,6 +116,39 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
+        byte[] header = serializeHeader(name, message, Sha256Hash.hashTwice(message));
+        out.write(header);
+        out.write(message);
+    }
+
+    /**
+     * Writes message to to the output stream.
+     */
+    @Override
+    public void serialize(Message message, OutputStream out) throws IOException {
+        String name = getName(message);
+        byte[] payload = message.unsafeBitcoinSerialize();
+        out.write(serializeHeader(name, payload, message.getChecksum(payload)));
+        out.write(payload);
+    }
+
+    /**
+     * Returns the header of the given message, whose payload is given. The checksum is cached by the message.
+     */
+    @Override
+    public byte[] serializeHeader(Message message, byte[] payload) {
+        return serializeHeader(getName(message), payload, message.getChecksum(payload));
+    }
+
+    private static String getName(Message message) {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        return name;
+    }
+
+    private byte[] serializeHeader(String name, byte[] message, byte[] checksum) {
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
         uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
 
@@ -127,25 +160,11 @@ public class BitcoinSerializer extends MessageSerializer {
 
         Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
 
-        byte[] hash = Sha256Hash.hashTwice(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
+        System.arraycopy(checksum, 0, header, 4 + COMMAND_LEN + 4, 4);
 
         if (log.isDebugEnabled())
             log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
-    }
-
-    /**
-     * Writes message to to the output stream.
-     */
-    @Override
-    public void serialize(Message message, OutputStream out) throws IOException {
-        String name = names.get(message.getClass());
-        if (name == null) {
-            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
-        }
-        serialize(name, message.bitcoinSerialize(), out);
+        return header;
     }
 
     /**
@@ -188,8 +207,19 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
+        if (header.size > Message.MAX_SIZE)
+            throw new ProtocolException("Message size too large: " + header.size);
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes);
+    }
+
+    @Override
+    Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes) throws ProtocolException {
+        if (payloadBytes.length != header.size)
+            throw new ProtocolException("Payload of " + payloadBytes.length + " bytes, header says " + header.size);
 
         // Verify the checksum.
         byte[] hash;
@@ -303,6 +333,15 @@ public class BitcoinSerializer extends MessageSerializer {
         return new Block(params, payloadBytes, offset, this, length);
     }
 
+    /**
+     * Make a parser which reads the payload of the given block message incrementally. Extension point for
+     * alternative serialization format support.
+     */
+    @Override
+    public StreamingBlockParser makeStreamingBlockParser(BitcoinPacketHeader header, StreamingBlockParser.Listener listener) {
+        return new StreamingBlockParser(this, header, listener);
+    }
+
     /**
      * Make an filter message from the payload. Extension point for alternative
      * serialization format support.
@@ -397,7 +436,9 @@ public class BitcoinSerializer extends MessageSerializer {
             size = (int) readUint32(header, cursor);
             cursor += 4;
 
-            if (size > Message.MAX_SIZE || size < 0)
+            // Blocks may exceed the message size limit, they can only be read with a StreamingBlockParser though.
+            int maxSize = command.equals("block") ? Block.MAX_BLOCK_SIZE : Message.MAX_SIZE;
+            if (size > maxSize || size < 0)
                 throw new ProtocolException("Message size too large: " + size);
 
             // Old clients don't send the checksum.
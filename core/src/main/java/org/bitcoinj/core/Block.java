@@ -238,15 +238,13 @@ public class Block extends Message {
 
         int numTransactions = (int) readVarInt();
         optimalEncodingMessageSize += VarInt.sizeOf(numTransactions);
-        transactions = new ArrayList<>(Math.min(numTransactions, Utils.MAX_INITIAL_ARRAY_LENGTH));
-        for (int i = 0; i < numTransactions; i++) {
-            Transaction tx = new Transaction(params, payload, cursor, this, serializer, UNKNOWN_LENGTH, null);
-            // Label the transaction as coming from the P2P network, so code that cares where we first saw it knows.
-            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
-            transactions.add(tx);
-            cursor += tx.getMessageSize();
-            optimalEncodingMessageSize += tx.getOptimalEncodingMessageSize();
-        }
+        if (numTransactions < 0 || numTransactions > payload.length - cursor)
+            throw new ProtocolException("Too many transactions: " + numTransactions);
+        // The transactions are only parsed when they're asked for, most of them never are when filtering blocks.
+        LazyTransactionList lazyTransactions = new LazyTransactionList(this, payload, cursor, numTransactions);
+        transactions = lazyTransactions;
+        cursor = lazyTransactions.getEnd();
+        optimalEncodingMessageSize += lazyTransactions.getOptimalEncodingSize();
         transactionBytesValid = serializer.isParseRetainMode();
     }
 
@@ -305,6 +303,12 @@ public class Block extends Message {
         }
 
         stream.write(new VarInt(transactions.size()).encode());
+        if (transactions instanceof LazyTransactionList) {
+            LazyTransactionList lazyTransactions = (LazyTransactionList) transactions;
+            for (int i = 0; i < lazyTransactions.size(); i++)
+                lazyTransactions.bitcoinSerialize(i, stream);
+            return;
+        }
         for (Transaction tx : transactions) {
             tx.bitcoinSerialize(stream);
         }
@@ -341,6 +345,14 @@ public class Block extends Message {
         return stream.toByteArray();
     }
 
+    /**
+     * Same as {@link #bitcoinSerialize()}, which already hands out the cached bytes of the block if they're valid.
+     */
+    @Override
+    public byte[] unsafeBitcoinSerialize() {
+        return bitcoinSerialize();
+    }
+
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         writeHeader(stream);
@@ -362,6 +374,12 @@ public class Block extends Message {
         if (transactions == null)
             return 0;
         int len = VarInt.sizeOf(transactions.size());
+        if (transactions instanceof LazyTransactionList) {
+            LazyTransactionList lazyTransactions = (LazyTransactionList) transactions;
+            for (int i = 0; i < lazyTransactions.size(); i++)
+                len += lazyTransactions.getMessageSize(i);
+            return len;
+        }
         for (Transaction tx : transactions) {
             // 255 is just a guess at an average tx length
             len += tx.length == UNKNOWN_LENGTH ? 255 : tx.length;
@@ -581,11 +599,6 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree(false);
-        return Sha256Hash.wrap(tree.get(tree.size() - 1));
-    }
-
-    private List<byte[]> buildMerkleTree(boolean useWTxId) {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -594,9 +607,6 @@ public class Block extends Message {
         //  / \    / \
         // t1 t2 t3 t4
         //
-        // The tree is represented as a list: t1,t2,t3,t4,A,B,root where each
-        // entry is a hash.
-        //
         // The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the transaction.
         // The interior nodes are hashes of the concatenation of the two child hashes.
         //
@@ -616,28 +626,14 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
-        ArrayList<byte[]> tree = new ArrayList<>(transactions.size());
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction tx : transactions) {
-            final Sha256Hash id = tx.getTxId();
-            tree.add(id.getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(hashTwice(leftBytes, rightBytes)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
-        }
-        return tree;
+        //
+        // Only the root is needed here, so MerkleTree just keeps the level it's hashing from and the one it's hashing
+        // into. The leaves are the transaction ids in their internal byte order, one after the other.
+        int count = transactions.size();
+        byte[] leaves = new byte[count * Sha256Hash.LENGTH];
+        for (int i = 0; i < count; i++)
+            MerkleTree.putReversed(getTransactionId(i), leaves, i * Sha256Hash.LENGTH);
+        return MerkleTree.calculateRoot(leaves, count);
     }
 
     /**
@@ -852,6 +848,16 @@ public class Block extends Message {
         return transactions == null ? null : ImmutableList.copyOf(transactions);
     }
 
+    /**
+     * Returns the id of the transaction at the given index, without parsing the transaction if it hasn't been parsed
+     * yet, which is the case for most transactions of a block read from the network.
+     */
+    Sha256Hash getTransactionId(int index) {
+        if (transactions instanceof LazyTransactionList)
+            return ((LazyTransactionList) transactions).getTxId(index);
+        return transactions.get(index).getTxId();
+    }
+
     // ///////////////////////////////////////////////////////////////////////////////////////////////
     // Unit testing related methods.
 
@@ -19,6 +19,8 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptChunk;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.script.ScriptOpCodes;
 import org.bitcoinj.script.ScriptPattern;
 
 import com.google.common.base.MoreObjects;
@@ -55,7 +57,9 @@ public class BloomFilter extends Message {
         UPDATE_P2PUBKEY_ONLY //2
     }
     
-    private byte[] data;
+    // Only written with the filter locked, and written again after its bits were changed, so that reading it is
+    // enough to see the bits set by the inserts done by then. This lets contains() go without the lock.
+    private volatile byte[] data;
     private long hashFuncs;
     private long nTweak;
     private byte nFlags;
@@ -172,17 +176,27 @@ public class BloomFilter extends Message {
      * See this <a href="https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp">C++ code for the original.</a>
      */
     public static int murmurHash3(byte[] data, long nTweak, int hashNum, byte[] object) {
+        return bitPosition(data, murmurHash3(nTweak, hashNum, object));
+    }
+
+    // The hash, before it is reduced to a bit position of a particular filter.
+    private static int murmurHash3(long nTweak, int hashNum, byte[] object) {
+        return murmurHash3(nTweak, hashNum, object, 0, object.length);
+    }
+
+    // The hash of the given slice of bytes.
+    private static int murmurHash3(long nTweak, int hashNum, byte[] bytes, int offset, int length) {
         int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
         final int c1 = 0xcc9e2d51;
         final int c2 = 0x1b873593;
 
-        int numBlocks = (object.length / 4) * 4;
+        int numBlocks = (length / 4) * 4;
         // body
-        for(int i = 0; i < numBlocks; i += 4) {
-            int k1 = (object[i] & 0xFF) |
-                  ((object[i+1] & 0xFF) << 8) |
-                  ((object[i+2] & 0xFF) << 16) |
-                  ((object[i+3] & 0xFF) << 24);
+        for(int i = offset; i < offset + numBlocks; i += 4) {
+            int k1 = (bytes[i] & 0xFF) |
+                  ((bytes[i+1] & 0xFF) << 8) |
+                  ((bytes[i+2] & 0xFF) << 16) |
+                  ((bytes[i+3] & 0xFF) << 24);
             
             k1 *= c1;
             k1 = rotateLeft32(k1, 15);
@@ -194,16 +208,17 @@ public class BloomFilter extends Message {
         }
         
         int k1 = 0;
-        switch(object.length & 3)
+        int tail = offset + numBlocks;
+        switch(length & 3)
         {
             case 3:
-                k1 ^= (object[numBlocks + 2] & 0xff) << 16;
+                k1 ^= (bytes[tail + 2] & 0xff) << 16;
                 // Fall through.
             case 2:
-                k1 ^= (object[numBlocks + 1] & 0xff) << 8;
+                k1 ^= (bytes[tail + 1] & 0xff) << 8;
                 // Fall through.
             case 1:
-                k1 ^= (object[numBlocks] & 0xff);
+                k1 ^= (bytes[tail] & 0xff);
                 k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2; h1 ^= k1;
                 // Fall through.
             default:
@@ -212,21 +227,48 @@ public class BloomFilter extends Message {
         }
 
         // finalization
-        h1 ^= object.length;
+        h1 ^= length;
         h1 ^= h1 >>> 16;
         h1 *= 0x85ebca6b;
         h1 ^= h1 >>> 13;
         h1 *= 0xc2b2ae35;
         h1 ^= h1 >>> 16;
         
-        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+        return h1;
     }
-    
+
+    private static int bitPosition(byte[] data, int hash) {
+        return (int)((hash&0xFFFFFFFFL) % (data.length * 8));
+    }
+
+    /**
+     * Returns the hashes of the given object for the first {@code hashFuncs} hash functions of filters with the given
+     * tweak, for {@link #insertHashes(int[])}. They don't depend on the size of the filter, so callers building filters
+     * of the same objects over and over can keep them instead of hashing the objects again.
+     */
+    public static int[] getHashes(byte[] object, long nTweak, int hashFuncs) {
+        int[] hashes = new int[hashFuncs];
+        for (int i = 0; i < hashFuncs; i++)
+            hashes[i] = murmurHash3(nTweak, i, object);
+        return hashes;
+    }
+
+    /** Returns the number of hash functions of this filter. */
+    public int getHashFuncs() {
+        return (int) hashFuncs;
+    }
+
+    /** Returns the tweak of the hash functions of this filter. */
+    public long getTweak() {
+        return nTweak;
+    }
+
     /**
      * Returns true if the given object matches the filter either because it was inserted, or because we have a
-     * false-positive.
+     * false-positive. Doesn't lock the filter, so it can run alongside other threads applying it.
      */
-    public synchronized boolean contains(byte[] object) {
+    public boolean contains(byte[] object) {
+        byte[] data = this.data;
         for (int i = 0; i < hashFuncs; i++) {
             if (!Utils.checkBitLE(data, murmurHash3(data, nTweak, i, object)))
                 return false;
@@ -234,10 +276,34 @@ public class BloomFilter extends Message {
         return true;
     }
     
+    /** Same as {@link #contains(byte[])}, for the given slice of an array, which doesn't have to be copied out first. */
+    public boolean contains(byte[] bytes, int offset, int length) {
+        byte[] data = this.data;
+        for (int i = 0; i < hashFuncs; i++) {
+            if (!Utils.checkBitLE(data, bitPosition(data, murmurHash3(nTweak, i, bytes, offset, length))))
+                return false;
+        }
+        return true;
+    }
+
     /** Insert the given arbitrary data into the filter */
     public synchronized void insert(byte[] object) {
+        byte[] data = this.data;
         for (int i = 0; i < hashFuncs; i++)
             Utils.setBitLE(data, murmurHash3(data, nTweak, i, object));
+        this.data = data;
+    }
+
+    /**
+     * Inserts the object the given hashes were calculated for with {@link #getHashes(byte[], long, int)}, using
+     * this filter's tweak and at least as many hash functions as this filter has.
+     */
+    public synchronized void insertHashes(int[] hashes) {
+        checkArgument(hashes.length >= hashFuncs, "Too few hashes: %s < %s", hashes.length, hashFuncs);
+        byte[] data = this.data;
+        for (int i = 0; i < hashFuncs; i++)
+            Utils.setBitLE(data, bitPosition(data, hashes[i]));
+        this.data = data;
     }
 
     /** Inserts the given key and equivalent hashed form (for the address). */
@@ -268,11 +334,14 @@ public class BloomFilter extends Message {
      */
     public synchronized void merge(BloomFilter filter) {
         if (!this.matchesAll() && !filter.matchesAll()) {
-            checkArgument(filter.data.length == this.data.length &&
+            byte[] data = this.data;
+            byte[] other = filter.data;
+            checkArgument(other.length == data.length &&
                           filter.hashFuncs == this.hashFuncs &&
                           filter.nTweak == this.nTweak);
             for (int i = 0; i < data.length; i++)
-                this.data[i] |= filter.data[i];
+                data[i] |= other[i];
+            this.data = data;
         } else {
             this.data = new byte[] {(byte) 0xff};
         }
@@ -309,18 +378,33 @@ public class BloomFilter extends Message {
      * filter to be updated with the matched element, this ensures that when a filter is applied to a block, spends of
      * matched transactions are also matched. However it means this filter can be mutated by the operation. The returned
      * filtered block already has the matched transactions associated with it.
+     *
+     * Only matches that update the filter lock it, so several threads can apply the same filter at once.
      */
-    public synchronized FilteredBlock applyAndUpdate(Block block) {
-        List<Transaction> txns = block.getTransactions();
+    public FilteredBlock applyAndUpdate(Block block) {
+        // The transactions of a block read from the network are checked straight from its bytes, and only those that
+        // match are parsed.
+        LazyTransactionList lazyTxns = block.transactions instanceof LazyTransactionList ?
+                (LazyTransactionList) block.transactions : null;
+        List<Transaction> txns = lazyTxns != null ? lazyTxns : block.getTransactions();
         List<Sha256Hash> txHashes = new ArrayList<>(txns.size());
         List<Transaction> matched = new ArrayList<>();
         byte[] bits = new byte[(int) Math.ceil(txns.size() / 8.0)];
         for (int i = 0; i < txns.size(); i++) {
-            Transaction tx = txns.get(i);
-            txHashes.add(tx.getTxId());
-            if (applyAndUpdate(tx)) {
+            byte[] bytes = lazyTxns != null ? lazyTxns.getPayload(i) : null;
+            boolean matches;
+            if (bytes != null) {
+                Sha256Hash txId = lazyTxns.getTxId(i);
+                txHashes.add(txId);
+                matches = applyAndUpdate(bytes, lazyTxns.getOffset(i), txId);
+            } else {
+                Transaction tx = txns.get(i);
+                txHashes.add(tx.getTxId());
+                matches = applyAndUpdate(tx);
+            }
+            if (matches) {
                 Utils.setBitLE(bits, i);
-                matched.add(tx);
+                matched.add(txns.get(i));
             }
         }
         PartialMerkleTree pmt = PartialMerkleTree.buildFromLeaves(block.getParams(), bits, txHashes);
@@ -330,7 +414,7 @@ public class BloomFilter extends Message {
         return filteredBlock;
     }
 
-    public synchronized boolean applyAndUpdate(Transaction tx) {
+    public boolean applyAndUpdate(Transaction tx) {
         if (contains(tx.getTxId().getBytes()))
             return true;
         boolean found = false;
@@ -361,6 +445,93 @@ public class BloomFilter extends Message {
         return false;
     }
     
+    // Same as applyAndUpdate(Transaction), for the transaction serialized at the given offset, which was checked to be
+    // well formed already. A script that ends in the middle of a push is matched up to there, as Bitcoin Core does.
+    private boolean applyAndUpdate(byte[] tx, int offset, Sha256Hash txId) {
+        if (contains(txId.getBytes()))
+            return true;
+        int cursor = offset + 4; // version
+        VarInt numInputs = new VarInt(tx, cursor);
+        cursor += numInputs.getOriginalSizeInBytes();
+        int inputs = cursor;
+        for (long i = 0; i < numInputs.value; i++) {
+            VarInt scriptLen = new VarInt(tx, cursor + TransactionOutPoint.MESSAGE_LENGTH);
+            cursor += TransactionOutPoint.MESSAGE_LENGTH + scriptLen.getOriginalSizeInBytes() + (int) scriptLen.value + 4;
+        }
+        boolean found = false;
+        BloomUpdate flag = getUpdateFlag();
+        VarInt numOutputs = new VarInt(tx, cursor);
+        cursor += numOutputs.getOriginalSizeInBytes();
+        for (long i = 0; i < numOutputs.value; i++) {
+            VarInt scriptLen = new VarInt(tx, cursor + 8);
+            int script = cursor + 8 + scriptLen.getOriginalSizeInBytes();
+            cursor = script + (int) scriptLen.value;
+            if (containsPushData(tx, script, cursor)) {
+                if (flag == BloomUpdate.UPDATE_ALL ||
+                        (flag == BloomUpdate.UPDATE_P2PUBKEY_ONLY && isSendingToPubKeys(tx, script, cursor))) {
+                    byte[] outpoint = new byte[TransactionOutPoint.MESSAGE_LENGTH];
+                    System.arraycopy(txId.getReversedBytes(), 0, outpoint, 0, Sha256Hash.LENGTH);
+                    Utils.uint32ToByteArrayLE(i, outpoint, Sha256Hash.LENGTH);
+                    insert(outpoint);
+                }
+                found = true;
+            }
+        }
+        if (found) return true;
+        cursor = inputs;
+        for (long i = 0; i < numInputs.value; i++) {
+            if (contains(tx, cursor, TransactionOutPoint.MESSAGE_LENGTH))
+                return true;
+            VarInt scriptLen = new VarInt(tx, cursor + TransactionOutPoint.MESSAGE_LENGTH);
+            int script = cursor + TransactionOutPoint.MESSAGE_LENGTH + scriptLen.getOriginalSizeInBytes();
+            cursor = script + (int) scriptLen.value;
+            if (containsPushData(tx, script, cursor))
+                return true;
+            cursor += 4; // sequence number
+        }
+        return false;
+    }
+
+    // Returns true if any data pushed by the script between the given offsets matches the filter.
+    private boolean containsPushData(byte[] bytes, int start, int end) {
+        int cursor = start;
+        while (cursor < end) {
+            int opcode = bytes[cursor++] & 0xff;
+            long length;
+            if (opcode < ScriptOpCodes.OP_PUSHDATA1) {
+                length = opcode;
+            } else if (opcode == ScriptOpCodes.OP_PUSHDATA1 && end - cursor >= 1) {
+                length = bytes[cursor] & 0xff;
+                cursor += 1;
+            } else if (opcode == ScriptOpCodes.OP_PUSHDATA2 && end - cursor >= 2) {
+                length = Utils.readUint16(bytes, cursor);
+                cursor += 2;
+            } else if (opcode == ScriptOpCodes.OP_PUSHDATA4 && end - cursor >= 4) {
+                length = Utils.readUint32(bytes, cursor);
+                cursor += 4;
+            } else if (opcode <= ScriptOpCodes.OP_PUSHDATA4) {
+                return false; // Cut short.
+            } else {
+                continue; // Not a push.
+            }
+            if (length > end - cursor)
+                return false;
+            if (contains(bytes, cursor, (int) length))
+                return true;
+            cursor += length;
+        }
+        return false;
+    }
+
+    private static boolean isSendingToPubKeys(byte[] bytes, int start, int end) {
+        try {
+            Script script = new Script(Arrays.copyOfRange(bytes, start, end));
+            return ScriptPattern.isP2PK(script) || ScriptPattern.isSentToMultisig(script);
+        } catch (ScriptException e) {
+            return false;
+        }
+    }
+
     @Override
     public synchronized boolean equals(Object o) {
         if (this == o) return true;
@@ -16,6 +16,8 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.SignatureCache;
 import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.bitcoinj.wallet.SendRequest;
 import org.slf4j.*;
@@ -51,6 +53,7 @@ public class Context {
     final private int eventHorizon;
     final private boolean ensureMinRequiredFee;
     final private Coin feePerKb;
+    final private long signatureCacheSize;
 
     /**
      * Creates a new context object. For now, this will be done for you by the framework. Eventually you will be
@@ -71,16 +74,45 @@ public class Context {
      * @param ensureMinRequiredFee Whether to ensure the minimum required fee by default when completing transactions. For details, see {@link SendRequest#ensureMinRequiredFee}.
      */
     public Context(NetworkParameters params, int eventHorizon, Coin feePerKb, boolean ensureMinRequiredFee) {
+        this(params, eventHorizon, feePerKb, ensureMinRequiredFee, currentSignatureCacheSize(), false);
+    }
+
+    /**
+     * Creates a new custom context object. This is mainly meant for unit tests for now.
+     *
+     * @param params The network parameters that will be associated with this context.
+     * @param eventHorizon Number of blocks after which the library will delete data and be unable to always process reorgs. See {@link #getEventHorizon()}.
+     * @param feePerKb The default fee per 1000 virtual bytes of transaction data to pay when completing transactions. For details, see {@link SendRequest#feePerKb}.
+     * @param ensureMinRequiredFee Whether to ensure the minimum required fee by default when completing transactions. For details, see {@link SendRequest#ensureMinRequiredFee}.
+     * @param signatureCacheSize Size in bytes of the cache of valid signatures, or 0 to verify every signature. See {@link #getSignatureCacheSize()}.
+     */
+    public Context(NetworkParameters params, int eventHorizon, Coin feePerKb, boolean ensureMinRequiredFee,
+                   long signatureCacheSize) {
+        this(params, eventHorizon, feePerKb, ensureMinRequiredFee, signatureCacheSize, true);
+    }
+
+    private Context(NetworkParameters params, int eventHorizon, Coin feePerKb, boolean ensureMinRequiredFee,
+                    long signatureCacheSize, boolean configureSignatureCache) {
+        checkArgument(signatureCacheSize >= 0, "Negative signature cache size: %s", signatureCacheSize);
         log.info("Creating bitcoinj {} context.", VersionMessage.BITCOINJ_VERSION);
         this.confidenceTable = new TxConfidenceTable();
         this.params = params;
         this.eventHorizon = eventHorizon;
         this.ensureMinRequiredFee = ensureMinRequiredFee;
         this.feePerKb = feePerKb;
+        this.signatureCacheSize = signatureCacheSize;
+        // The cache is shared by all scripts, so it is only replaced if this context asks for a different one.
+        if (configureSignatureCache && currentSignatureCacheSize() != signatureCacheSize)
+            Script.setSignatureCache(signatureCacheSize > 0 ? new SignatureCache(signatureCacheSize) : null);
         lastConstructed = this;
         slot.set(this);
     }
 
+    private static long currentSignatureCacheSize() {
+        SignatureCache cache = Script.getSignatureCache();
+        return cache != null ? cache.getMaxSize() : 0;
+    }
+
     private static volatile Context lastConstructed;
     private static boolean isStrictMode;
     private static final ThreadLocal<Context> slot = new ThreadLocal<>();
@@ -193,4 +225,14 @@ public class Context {
     public boolean isEnsureMinRequiredFee() {
         return ensureMinRequiredFee;
     }
+
+    /**
+     * The size in bytes of the cache of signatures which are known to be valid, or 0 if every signature is verified.
+     * The cache is on by default. It is global rather than part of the context: it is shared by all scripts, and the
+     * last context created with an explicit size decides its size. Other contexts leave it as it is. For details, see
+     * {@link SignatureCache}.
+     */
+    public long getSignatureCacheSize() {
+        return signatureCacheSize;
+    }
 }
@@ -78,6 +78,11 @@ class DummySerializer extends MessageSerializer {
         throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
     }
 
+    @Override
+    public StreamingBlockParser makeStreamingBlockParser(BitcoinSerializer.BitcoinPacketHeader header, StreamingBlockParser.Listener listener) throws UnsupportedOperationException {
+        throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
+    }
+
     @Override
     public Message makeBloomFilter(byte[] payloadBytes) throws UnsupportedOperationException {
         throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
@@ -112,5 +117,10 @@ class DummySerializer extends MessageSerializer {
     public void serialize(Message message, OutputStream out) throws IOException {
         throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
     }
+
+    @Override
+    public byte[] serializeHeader(Message message, byte[] payload) {
+        throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
+    }
     
 }
@@ -703,8 +703,37 @@ public class ECKey implements EncryptableItem {
             }
         }
 
+        return verify(data, signature, CURVE.getCurve().decodePoint(pub));
+    }
+
+    /**
+     * <p>Verifies the given ECDSA signature against the message bytes using the public key, like
+     * {@link #verify(byte[], ECDSASignature, byte[])}. The point is only decoded if it has to be, and then only once,
+     * so this is cheaper when the same key is used for many signatures.</p>
+     *
+     * @param data      Hash of the data to verify.
+     * @param signature ASN.1 encoded signature.
+     * @param pub       The public key to use.
+     */
+    public static boolean verify(byte[] data, ECDSASignature signature, LazyECPoint pub) {
+        if (FAKE_SIGNATURES)
+            return true;
+
+        if (Secp256k1Context.isEnabled()) {
+            try {
+                return NativeSecp256k1.verify(data, signature.encodeToDER(), pub.getEncoded());
+            } catch (NativeSecp256k1Util.AssertFailException e) {
+                log.error("Caught AssertFailException inside secp256k1", e);
+                return false;
+            }
+        }
+
+        return verify(data, signature, pub.get());
+    }
+
+    private static boolean verify(byte[] data, ECDSASignature signature, ECPoint pub) {
         ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
+        ECPublicKeyParameters params = new ECPublicKeyParameters(pub, CURVE);
         signer.init(false, params);
         try {
             return signer.verifySignature(data, signature.r, signature.s);
@@ -57,4 +57,9 @@ public abstract class EmptyMessage extends Message {
     public byte[] bitcoinSerialize() {
         return new byte[0];
     }
+
+    @Override
+    public byte[] unsafeBitcoinSerialize() {
+        return new byte[0];
+    }
 }
@@ -20,6 +20,7 @@ package org.bitcoinj.core;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.Script.VerifyFlag;
 import org.bitcoinj.script.ScriptPattern;
+import org.bitcoinj.script.SignatureBatchVerifier;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.utils.*;
@@ -31,9 +32,13 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
 
@@ -146,12 +151,15 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
 
-    // TODO: Remove lots of duplicated code in the two connectTransactions
+    // Transactions of a block are checked in parallel in ranges of this many, to keep the overhead per job low.
+    private static final int CHECK_BATCH_SIZE = 256;
 
     // TODO: execute in order of largest transaction (by input count) first
     ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
             Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
 
+    private final SignatureBatchVerifier signatureVerifier = new SignatureBatchVerifier();
+
     /**
      * A job submitted to the executor which verifies signatures.
      */
@@ -159,11 +167,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         final Transaction tx;
         final List<Script> prevOutScripts;
         final Set<VerifyFlag> verifyFlags;
+        final SignatureBatchVerifier.Result verifiedSignatures;
 
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
+        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags,
+                        final SignatureBatchVerifier.Result verifiedSignatures) {
             this.tx = tx;
             this.prevOutScripts = prevOutScripts;
             this.verifyFlags = verifyFlags;
+            this.verifiedSignatures = verifiedSignatures;
         }
 
         @Nullable
@@ -171,10 +182,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         public VerificationException call() throws Exception {
             try {
                 ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    Coin value = tx.getInput(index).getConnectedOutput() != null ? tx.getInput(index).getConnectedOutput().getValue() : Coin.ZERO;
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), value, verifyFlags);
-                }
+                for (int index = 0; index < tx.getInputs().size(); index++)
+                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(),
+                            connectedValue(tx, index), verifyFlags, verifiedSignatures);
             } catch (VerificationException e) {
                 return e;
             }
@@ -182,32 +192,84 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         }
     }
 
+    private static Coin connectedValue(Transaction tx, int index) {
+        TransactionOutput connectedOutput = tx.getInput(index).getConnectedOutput();
+        return connectedOutput != null ? connectedOutput.getValue() : Coin.ZERO;
+    }
+
     /**
-     * Get the {@link Script} from the script bytes or return Script of empty byte array.
+     * A job submitted to the executor which checks a range of the transactions of a block against the outputs they
+     * spend: values, coinbase maturity and P2SH sigops. The totals are combined once all ranges are done.
      */
-    private Script getScript(byte[] scriptBytes) {
-        try {
-            return new Script(scriptBytes);
-        } catch (Exception e) {
-            return new Script(new byte[0]);
+    private class TransactionChecker implements Callable<Void> {
+        final int height;
+        final List<Transaction> transactions;
+        final List<Set<VerifyFlag>> verifyFlags;
+        final UTXO[][] prevOuts;
+        final int from, to;
+
+        Coin fees = Coin.ZERO;
+        @Nullable Coin coinbaseValue;
+        long sigOps;
+
+        TransactionChecker(int height, List<Transaction> transactions, List<Set<VerifyFlag>> verifyFlags,
+                           UTXO[][] prevOuts, int from, int to) {
+            this.height = height;
+            this.transactions = transactions;
+            this.verifyFlags = verifyFlags;
+            this.prevOuts = prevOuts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Void call() throws VerificationException {
+            for (int i = from; i < to; i++) {
+                Transaction tx = transactions.get(i);
+                boolean isCoinBase = tx.isCoinBase();
+                Coin valueIn = Coin.ZERO;
+                Coin valueOut = Coin.ZERO;
+                if (!isCoinBase) {
+                    for (int index = 0; index < prevOuts[i].length; index++) {
+                        UTXO prevOut = prevOuts[i][index];
+                        // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
+                        // chains. The assumption is there will ~never be re-orgs deeper than the spendable coinbase
+                        // chain depth.
+                        if (prevOut.isCoinbase() && height - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
+                            throw new VerificationException("Tried to spend coinbase at depth " + (height - prevOut.getHeight()));
+                        // TODO: Check we're not spending the genesis transaction here. Bitcoin Core won't allow it.
+                        valueIn = valueIn.add(prevOut.getValue());
+                        if (verifyFlags.get(i).contains(VerifyFlag.P2SH) && ScriptPattern.isP2SH(prevOut.getScript()))
+                            sigOps += Script.getP2SHSigOpCount(tx.getInput(index).getScriptBytes());
+                    }
+                }
+                for (TransactionOutput out : tx.getOutputs())
+                    valueOut = valueOut.add(out.getValue());
+                // All values were already checked for being non-negative (as it is verified in Transaction.verify())
+                // but we check again here just for defence in depth. Transactions with zero output value are OK.
+                if (valueOut.signum() < 0 || valueOut.compareTo(params.getMaxMoney()) > 0)
+                    throw new VerificationException("Transaction output value out of range");
+                if (isCoinBase) {
+                    coinbaseValue = valueOut;
+                } else {
+                    if (valueIn.compareTo(valueOut) < 0 || valueIn.compareTo(params.getMaxMoney()) > 0)
+                        throw new VerificationException("Transaction input value out of range");
+                    fees = fees.add(valueIn.subtract(valueOut));
+                }
+            }
+            return null;
         }
     }
 
     /**
-     * Get the address from the {@link Script} if it exists otherwise return empty string "".
-     *
-     * @param script The script.
-     * @return The address.
+     * Get the {@link Script} from the script bytes or return Script of empty byte array.
      */
-    private String getScriptAddress(@Nullable Script script) {
-        String address = "";
+    private Script getScript(byte[] scriptBytes) {
         try {
-            if (script != null) {
-                address = script.getToAddress(params, true).toString();
-            }
+            return new Script(scriptBytes);
         } catch (Exception e) {
+            return new Script(new byte[0]);
         }
-        return address;
     }
 
     @Override
@@ -221,117 +283,33 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
         blockStore.beginDatabaseBatchWrite();
 
-        LinkedList<UTXO> txOutsSpent = new LinkedList<>();
-        LinkedList<UTXO> txOutsCreated = new LinkedList<>();
         long sigOps = 0;
 
         if (scriptVerificationExecutor.isShutdown())
             scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(block.getTransactions().size());
         try {
+            List<Transaction> transactions = block.getTransactions();
+            List<Set<VerifyFlag>> verifyFlags = new ArrayList<>(transactions.size());
+            for (Transaction tx : transactions)
+                verifyFlags.add(params.getTransactionVerificationFlags(block, tx, getVersionTally(), height));
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
                 // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
                 // BIP30 document for more details on this: https://github.com/bitcoin/bips/blob/master/bip-0030.mediawiki
-                for (Transaction tx : block.getTransactions()) {
-                    final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx, getVersionTally(), height);
+                for (int i = 0; i < transactions.size(); i++) {
+                    Transaction tx = transactions.get(i);
                     Sha256Hash hash = tx.getTxId();
                     // If we already have unspent outputs for this hash, we saw the tx already. Either the block is
                     // being added twice (bug) or the block is a BIP30 violator.
                     if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
                         throw new VerificationException("Block failed BIP30 test!");
-                    if (verifyFlags.contains(VerifyFlag.P2SH)) // We already check non-BIP16 sigops in Block.verifyTransactions(true)
+                    if (verifyFlags.get(i).contains(VerifyFlag.P2SH)) // We already check non-BIP16 sigops in Block.verifyTransactions(true)
                         sigOps += tx.getSigOpCount();
                 }
             }
-            Coin totalFees = Coin.ZERO;
-            Coin coinbaseValue = null;
-            for (final Transaction tx : block.getTransactions()) {
-                boolean isCoinBase = tx.isCoinBase();
-                Coin valueIn = Coin.ZERO;
-                Coin valueOut = Coin.ZERO;
-                final List<Script> prevOutScripts = new LinkedList<>();
-                final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx, getVersionTally(), height);
-                if (!isCoinBase) {
-                    // For each input of the transaction remove the corresponding output from the set of unspent
-                    // outputs.
-                    for (int index = 0; index < tx.getInputs().size(); index++) {
-                        TransactionInput in = tx.getInputs().get(index);
-                        UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                in.getOutpoint().getIndex());
-                        if (prevOut == null)
-                            throw new VerificationException("Attempted to spend a non-existent or already spent output!");
-                        // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
-                        // chains. The assumption is there will ~never be re-orgs deeper than the spendable coinbase
-                        // chain depth.
-                        if (prevOut.isCoinbase()) {
-                            if (height - prevOut.getHeight() < params.getSpendableCoinbaseDepth()) {
-                                throw new VerificationException("Tried to spend coinbase at depth " + (height - prevOut.getHeight()));
-                            }
-                        }
-                        // TODO: Check we're not spending the genesis transaction here. Bitcoin Core won't allow it.
-                        valueIn = valueIn.add(prevOut.getValue());
-                        if (verifyFlags.contains(VerifyFlag.P2SH)) {
-                            if (ScriptPattern.isP2SH(prevOut.getScript()))
-                                sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
-                            if (sigOps > Block.MAX_BLOCK_SIGOPS)
-                                throw new VerificationException("Too many P2SH SigOps in block");
-                        }
-
-                        prevOutScripts.add(prevOut.getScript());
-                        blockStore.removeUnspentTransactionOutput(prevOut);
-                        txOutsSpent.add(prevOut);
-                    }
-                }
-                Sha256Hash hash = tx.getTxId();
-                for (TransactionOutput out : tx.getOutputs()) {
-                    valueOut = valueOut.add(out.getValue());
-                    // For each output, add it to the set of unspent outputs so it can be consumed in future.
-                    Script script = getScript(out.getScriptBytes());
-                    UTXO newOut = new UTXO(hash,
-                            out.getIndex(),
-                            out.getValue(),
-                            height, isCoinBase,
-                            script,
-                            getScriptAddress(script));
-                    blockStore.addUnspentTransactionOutput(newOut);
-                    txOutsCreated.add(newOut);
-                }
-                // All values were already checked for being non-negative (as it is verified in Transaction.verify())
-                // but we check again here just for defence in depth. Transactions with zero output value are OK.
-                if (valueOut.signum() < 0 || valueOut.compareTo(params.getMaxMoney()) > 0)
-                    throw new VerificationException("Transaction output value out of range");
-                if (isCoinBase) {
-                    coinbaseValue = valueOut;
-                } else {
-                    if (valueIn.compareTo(valueOut) < 0 || valueIn.compareTo(params.getMaxMoney()) > 0)
-                        throw new VerificationException("Transaction input value out of range");
-                    totalFees = totalFees.add(valueIn.subtract(valueOut));
-                }
-
-                if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
-                }
-            }
-            if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
-                throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            return connectTransactions(height, transactions, verifyFlags, sigOps, block.getBlockInflation(height),
+                    runScripts);
         } catch (VerificationException e) {
             scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
@@ -341,7 +319,6 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
-        return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
     }
 
     /**
@@ -365,10 +342,6 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
-                LinkedList<UTXO> txOutsSpent = new LinkedList<>();
-                LinkedList<UTXO> txOutsCreated = new LinkedList<>();
-                long sigOps = 0;
-
                 if (!params.isCheckpoint(newBlock.getHeight())) {
                     for (Transaction tx : transactions) {
                         Sha256Hash hash = tx.getTxId();
@@ -376,95 +349,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             throw new VerificationException("Block failed BIP30 test!");
                     }
                 }
-                Coin totalFees = Coin.ZERO;
-                Coin coinbaseValue = null;
 
                 if (scriptVerificationExecutor.isShutdown())
                     scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(transactions.size());
-                for (final Transaction tx : transactions) {
-                    final Set<VerifyFlag> verifyFlags =
-                        params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
-                    boolean isCoinBase = tx.isCoinBase();
-                    Coin valueIn = Coin.ZERO;
-                    Coin valueOut = Coin.ZERO;
-                    final List<Script> prevOutScripts = new LinkedList<>();
-
-                    if (!isCoinBase) {
-                        for (int index = 0; index < tx.getInputs().size(); index++) {
-                            final TransactionInput in = tx.getInputs().get(index);
-                            final UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                    in.getOutpoint().getIndex());
-                            if (prevOut == null)
-                                throw new VerificationException("Attempted spend of a non-existent or already spent output!");
-                            if (prevOut.isCoinbase() && newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
-                                throw new VerificationException("Tried to spend coinbase at depth " + (newBlock.getHeight() - prevOut.getHeight()));
-                            valueIn = valueIn.add(prevOut.getValue());
-                            if (verifyFlags.contains(VerifyFlag.P2SH)) {
-                                if (ScriptPattern.isP2SH(prevOut.getScript()))
-                                    sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
-                                if (sigOps > Block.MAX_BLOCK_SIGOPS)
-                                    throw new VerificationException("Too many P2SH SigOps in block");
-                            }
-
-                            // TODO: Enforce DER signature format
-
-                            prevOutScripts.add(prevOut.getScript());
-
-                            blockStore.removeUnspentTransactionOutput(prevOut);
-                            txOutsSpent.add(prevOut);
-                        }
-                    }
-                    Sha256Hash hash = tx.getTxId();
-                    for (TransactionOutput out : tx.getOutputs()) {
-                        valueOut = valueOut.add(out.getValue());
-                        Script script = getScript(out.getScriptBytes());
-                        UTXO newOut = new UTXO(hash,
-                                out.getIndex(),
-                                out.getValue(),
-                                newBlock.getHeight(),
-                                isCoinBase,
-                                script,
-                                getScriptAddress(script));
-                        blockStore.addUnspentTransactionOutput(newOut);
-                        txOutsCreated.add(newOut);
-                    }
-                    // All values were already checked for being non-negative (as it is verified in Transaction.verify())
-                    // but we check again here just for defence in depth. Transactions with zero output value are OK.
-                    if (valueOut.signum() < 0 || valueOut.compareTo(params.getMaxMoney()) > 0)
-                        throw new VerificationException("Transaction output value out of range");
-                    if (isCoinBase) {
-                        coinbaseValue = valueOut;
-                    } else {
-                        if (valueIn.compareTo(valueOut) < 0 || valueIn.compareTo(params.getMaxMoney()) > 0)
-                            throw new VerificationException("Transaction input value out of range");
-                        totalFees = totalFees.add(valueIn.subtract(valueOut));
-                    }
-
-                    if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
-                    }
-                }
-                if (totalFees.compareTo(params.getMaxMoney()) > 0 ||
-                        newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
-                    throw new VerificationException("Transaction fees out of range");
-                txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                List<Set<VerifyFlag>> verifyFlags = new ArrayList<>(transactions.size());
+                for (Transaction tx : transactions)
+                    verifyFlags.add(params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE));
+                txOutChanges = connectTransactions(newBlock.getHeight(), transactions, verifyFlags, 0,
+                        newBlock.getHeader().getBlockInflation(newBlock.getHeight()), true);
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -473,10 +365,17 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         if (blockStore.getTransactionOutput(hash, out.getIndex()) != null)
                             throw new VerificationException("Block failed BIP30 test!");
                     }
+                // Outputs both created and spent by the block cancel out, the rest is applied in one batch.
+                Set<UTXO> spent = new HashSet<>(txOutChanges.txOutsSpent);
+                List<UTXO> created = new ArrayList<>(txOutChanges.txOutsCreated.size());
                 for (UTXO out : txOutChanges.txOutsCreated)
-                    blockStore.addUnspentTransactionOutput(out);
+                    if (!spent.remove(out))
+                        created.add(out);
+                List<UTXO> spentFromStore = new ArrayList<>(txOutChanges.txOutsSpent.size());
                 for (UTXO out : txOutChanges.txOutsSpent)
-                    blockStore.removeUnspentTransactionOutput(out);
+                    if (spent.contains(out))
+                        spentFromStore.add(out);
+                blockStore.updateUnspentTransactionOutputs(spentFromStore, created);
             }
         } catch (VerificationException e) {
             scriptVerificationExecutor.shutdownNow();
@@ -490,6 +389,160 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         return txOutChanges;
     }
 
+    /**
+     * Connects the transactions of a block in four stages: the outputs spent from the store are fetched in one batch,
+     * while outputs created earlier in the same block are resolved from a map. Then values, coinbase maturity and
+     * P2SH sigops are checked in parallel and finally the changes to the set of unspent outputs are applied in one
+     * batch, while the scripts are being verified.
+     */
+    private TransactionOutputChanges connectTransactions(int height, List<Transaction> transactions,
+                                                         List<Set<VerifyFlag>> verifyFlags, long sigOps,
+                                                         Coin blockInflation, boolean verifyScripts)
+            throws VerificationException, BlockStoreException {
+        // Create the new outputs, and resolve the spent ones which were created by preceding transactions of this
+        // block. All others are collected to be fetched from the store.
+        LinkedList<UTXO> txOutsCreated = new LinkedList<>();
+        Map<TransactionOutPoint, UTXO> unspentInBlock = new LinkedHashMap<>();
+        List<TransactionOutPoint> outPointsToFetch = new ArrayList<>();
+        Set<TransactionOutPoint> outPointsFetched = new HashSet<>();
+        UTXO[][] prevOuts = new UTXO[transactions.size()][];
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction tx = transactions.get(i);
+            boolean isCoinBase = tx.isCoinBase();
+            prevOuts[i] = new UTXO[isCoinBase ? 0 : tx.getInputs().size()];
+            for (int index = 0; index < prevOuts[i].length; index++) {
+                TransactionOutPoint outPoint = tx.getInput(index).getOutpoint();
+                UTXO prevOut = unspentInBlock.remove(outPoint);
+                if (prevOut != null)
+                    prevOuts[i][index] = prevOut;
+                else if (outPointsFetched.add(outPoint))
+                    outPointsToFetch.add(outPoint);
+                else
+                    throw new VerificationException("Attempted to spend a non-existent or already spent output!");
+            }
+            Sha256Hash hash = tx.getTxId();
+            for (TransactionOutput out : tx.getOutputs()) {
+                // For each output, add it to the set of unspent outputs so it can be consumed in future.
+                Script script = getScript(out.getScriptBytes());
+                UTXO newOut = new UTXO(hash,
+                        out.getIndex(),
+                        out.getValue(),
+                        height, isCoinBase,
+                        script,
+                        params);
+                txOutsCreated.add(newOut);
+                unspentInBlock.put(new TransactionOutPoint(params, out.getIndex(), hash), newOut);
+            }
+        }
+
+        // Fetch the outputs spent from the store in one go, and fill them in in the same order they were collected.
+        List<UTXO> fetched = blockStore.getTransactionOutputs(outPointsToFetch);
+        List<UTXO> spentFromStore = new ArrayList<>(fetched.size());
+        Iterator<UTXO> fetchedIt = fetched.iterator();
+        LinkedList<UTXO> txOutsSpent = new LinkedList<>();
+        for (UTXO[] txPrevOuts : prevOuts) {
+            for (int index = 0; index < txPrevOuts.length; index++) {
+                if (txPrevOuts[index] == null) {
+                    UTXO prevOut = fetchedIt.next();
+                    if (prevOut == null)
+                        throw new VerificationException("Attempted to spend a non-existent or already spent output!");
+                    txPrevOuts[index] = prevOut;
+                    spentFromStore.add(prevOut);
+                }
+                txOutsSpent.add(txPrevOuts[index]);
+            }
+        }
+
+        // Check the transactions, in parallel if there are enough of them to be worth it.
+        List<TransactionChecker> checkers = new ArrayList<>();
+        for (int from = 0; from < transactions.size(); from += CHECK_BATCH_SIZE)
+            checkers.add(new TransactionChecker(height, transactions, verifyFlags, prevOuts, from,
+                    Math.min(from + CHECK_BATCH_SIZE, transactions.size())));
+        if (checkers.size() == 1) {
+            checkers.get(0).call();
+        } else {
+            List<Future<Void>> checkResults = new ArrayList<>(checkers.size());
+            for (TransactionChecker checker : checkers)
+                checkResults.add(scriptVerificationExecutor.submit(checker));
+            for (Future<Void> future : checkResults)
+                getVerificationResult(future, "Bug in checking the transactions of the block.");
+        }
+        Coin totalFees = Coin.ZERO;
+        Coin coinbaseValue = null;
+        for (TransactionChecker checker : checkers) {
+            sigOps += checker.sigOps;
+            totalFees = totalFees.add(checker.fees);
+            if (checker.coinbaseValue != null)
+                coinbaseValue = checker.coinbaseValue;
+        }
+        if (sigOps > Block.MAX_BLOCK_SIGOPS)
+            throw new VerificationException("Too many P2SH SigOps in block");
+        if (totalFees.compareTo(params.getMaxMoney()) > 0 || blockInflation.add(totalFees).compareTo(coinbaseValue) < 0)
+            throw new VerificationException("Transaction fees out of range");
+
+        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(transactions.size());
+        if (verifyScripts) {
+            // The signatures of the standard spends are verified in batches across the whole block first, so the
+            // scripts only have to look them up. The scripts still decide whether an input is valid, and report it if
+            // it isn't.
+            List<SignatureBatchVerifier.Request> signatureRequests = new ArrayList<>();
+            for (int i = 0; i < transactions.size(); i++) {
+                Transaction tx = transactions.get(i);
+                for (int index = 0; index < prevOuts[i].length; index++) {
+                    SignatureBatchVerifier.Request request = SignatureBatchVerifier.Request.forInput(tx, index,
+                            prevOuts[i][index].getScript(), connectedValue(tx, index));
+                    if (request != null)
+                        signatureRequests.add(request);
+                }
+            }
+            SignatureBatchVerifier.Result verifiedSignatures = signatureVerifier.verify(signatureRequests,
+                    scriptVerificationExecutor);
+            if (!verifiedSignatures.getFailures().isEmpty())
+                log.warn("Invalid signatures in block at height {}: {}", height, verifiedSignatures.getFailures());
+
+            for (int i = 0; i < transactions.size(); i++) {
+                Transaction tx = transactions.get(i);
+                if (tx.isCoinBase())
+                    continue;
+                List<Script> prevOutScripts = new ArrayList<>(prevOuts[i].length);
+                for (UTXO prevOut : prevOuts[i])
+                    prevOutScripts.add(prevOut.getScript());
+                // Because correctlySpends modifies transactions, this must come after we are done with tx
+                FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags.get(i),
+                        verifiedSignatures));
+                scriptVerificationExecutor.execute(future);
+                listScriptVerificationResults.add(future);
+            }
+        }
+
+        // Outputs which were both created and spent within this block never need to touch the store.
+        blockStore.updateUnspentTransactionOutputs(spentFromStore, new ArrayList<>(unspentInBlock.values()));
+
+        for (Future<VerificationException> future : listScriptVerificationResults) {
+            VerificationException e = getVerificationResult(future,
+                    "Bug in Script.correctlySpends, likely script malformed in some new and interesting way.");
+            if (e != null)
+                throw e;
+        }
+        return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
+    }
+
+    // Waits for a verification job. A VerificationException (or ScriptException) it threw is passed on as it is, anything
+    // else is a bug, which is reported with the given message.
+    private static <T> T getVerificationResult(Future<T> future, String bugMessage) throws VerificationException {
+        try {
+            return future.get();
+        } catch (InterruptedException thrownE) {
+            throw new RuntimeException(thrownE); // Shouldn't happen
+        } catch (ExecutionException thrownE) {
+            Throwable cause = thrownE.getCause();
+            if (cause instanceof VerificationException)
+                throw (VerificationException) cause;
+            log.error("Verification threw a non-normal exception: " + cause);
+            throw new VerificationException(bugMessage, cause);
+        }
+    }
+
     /**
      * This is broken for blocks that do not pass BIP30, so all BIP30-failing blocks which are allowed to fail BIP30
      * must be checkpointed.
@@ -0,0 +1,541 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Downloads the block chain headers first, and then the blocks from all connected peers in parallel. Used by
+ * {@link PeerGroup} when {@link PeerGroup#setHeadersFirstDownload(boolean)} is enabled.</p>
+ *
+ * <p>The headers are requested from the download peer with getheaders, a batch at a time, and checked to connect to
+ * each other and to carry enough work. Their blocks are cut into windows of consecutive blocks, which are requested
+ * with getdata from whichever peer has the fewest windows in flight. Blocks arrive in any order, so they are kept in
+ * a reorder buffer until all blocks before them have arrived, and then added to the chain in order. Blocks which
+ * predate the fast catchup time are added as headers, without downloading them.</p>
+ *
+ * <p>Windows which take too long are taken from their peer and requested from another one, see
+ * {@link #checkStalls(long)}. If anything goes wrong with the download itself, e.g. headers that don't connect or a
+ * block which doesn't verify, the download is abandoned and the download peer continues with the regular chain
+ * download from wherever it got to. The same happens once all blocks are in, to catch up with anything that was
+ * mined in the meantime and to keep following the chain.</p>
+ */
+class HeadersFirstDownload {
+    private static final Logger log = LoggerFactory.getLogger(HeadersFirstDownload.class);
+
+    // Blocks are requested in windows of this many consecutive blocks.
+    static final int WINDOW_SIZE = 16;
+    // The number of windows that may be in flight to a single peer.
+    static final int MAX_WINDOWS_PER_PEER = 4;
+    // Blocks are only requested up to this far ahead of the chain, which bounds the size of the reorder buffer.
+    static final int MAX_BLOCKS_AHEAD = 1024;
+    // Headers are requested ahead of the blocks, but only up to this many.
+    static final int MAX_HEADERS_AHEAD = 4 * HeadersMessage.MAX_HEADERS;
+
+    private final ReentrantLock lock = Threading.lock("headersfirstdownload");
+
+    private final AbstractBlockChain chain;
+    private final Peer downloadPeer;
+    private final long fastCatchupTimeSecs;
+
+    // The windows of blocks which are not all added to the chain yet, in chain order.
+    @GuardedBy("lock") private final LinkedList<Window> windows = new LinkedList<>();
+    @GuardedBy("lock") private int queuedBlocks;
+    // The peers blocks are requested from, with the number of windows in flight to each.
+    @GuardedBy("lock") private final Map<Peer, Integer> peers = new HashMap<>();
+    @GuardedBy("lock") @Nullable private Block lastHeader;
+    @GuardedBy("lock") private int lastHeaderHeight;
+    @GuardedBy("lock") private boolean passedFastCatchupTime;
+    @GuardedBy("lock") private boolean requestingHeaders, headersDone;
+    @GuardedBy("lock") private long headersRequestTimeMillis;
+    @GuardedBy("lock") private boolean running, draining;
+
+    private static class Window {
+        final Block[] headers;
+        final int startHeight;
+        final Block[] blocks;
+        int received;
+        // The blocks before this one were added to the chain, this is only ever non-zero for the first window.
+        int added;
+        @Nullable Peer peer;
+        long requestTimeMillis;
+        final Set<Peer> failedPeers = new HashSet<>();
+
+        Window(List<Block> headers, int startHeight, boolean needsBodies) {
+            this.headers = headers.toArray(new Block[headers.size()]);
+            this.startHeight = startHeight;
+            if (needsBodies) {
+                blocks = new Block[this.headers.length];
+            } else {
+                blocks = this.headers.clone();
+                received = blocks.length;
+            }
+        }
+
+        int size() {
+            return headers.length;
+        }
+
+        int endHeight() {
+            return startHeight + headers.length - 1;
+        }
+
+        boolean isComplete() {
+            return received == headers.length;
+        }
+
+        int indexOf(Sha256Hash hash) {
+            for (int i = 0; i < headers.length; i++)
+                if (headers[i].getHash().equals(hash))
+                    return i;
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return "blocks " + startHeight + " to " + endHeight();
+        }
+    }
+
+    HeadersFirstDownload(AbstractBlockChain chain, Peer downloadPeer, long fastCatchupTimeSecs) {
+        this.chain = chain;
+        this.downloadPeer = downloadPeer;
+        this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+    }
+
+    /**
+     * Starts the download: requests the first headers from the download peer, and the blocks from it and the given
+     * peers, as soon as the headers are in.
+     */
+    void start(Collection<Peer> connectedPeers) {
+        int blocksLeft = downloadPeer.getPeerBlockHeightDifference();
+        lock.lock();
+        try {
+            running = true;
+            peers.put(downloadPeer, 0);
+            for (Peer peer : connectedPeers)
+                if (!peers.containsKey(peer))
+                    peers.put(peer, 0);
+            log.info("Starting headers first download of {} blocks from {} peers", blocksLeft, peers.size());
+        } finally {
+            lock.unlock();
+        }
+        if (blocksLeft >= 0)
+            downloadPeer.invokeOnChainDownloadStarted(blocksLeft);
+        update();
+    }
+
+    /** Stops the download, without falling back to the regular chain download. */
+    void cancel() {
+        lock.lock();
+        try {
+            running = false;
+            windows.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Makes the given peer available for downloading blocks. */
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!running || peers.containsKey(peer))
+                return;
+            peers.put(peer, 0);
+        } finally {
+            lock.unlock();
+        }
+        update();
+    }
+
+    /**
+     * Takes the windows of the given peer, which is gone, and requests them from other peers. If it is the download
+     * peer, the download is cancelled, as a new one will be started with the next download peer.
+     */
+    void removePeer(Peer peer) {
+        if (peer == downloadPeer) {
+            cancel();
+            return;
+        }
+        lock.lock();
+        try {
+            if (peers.remove(peer) == null)
+                return;
+            for (Window window : windows) {
+                if (window.peer == peer)
+                    window.peer = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        update();
+    }
+
+    /**
+     * Takes the windows that are in flight for longer than the given time from their peers, and requests them from
+     * other peers. If the headers take longer than that, the download is abandoned.
+     */
+    void checkStalls(long timeoutMillis) {
+        boolean headersStalled;
+        lock.lock();
+        try {
+            if (!running)
+                return;
+            long now = Utils.currentTimeMillis();
+            // Only the download peer serves headers, so there is nobody else to ask.
+            headersStalled = requestingHeaders && now - headersRequestTimeMillis > timeoutMillis;
+            for (Window window : windows) {
+                if (window.peer != null && !window.isComplete() && now - window.requestTimeMillis > timeoutMillis) {
+                    log.info("{}: Stalled on {}, requesting them elsewhere", window.peer, window);
+                    window.failedPeers.add(window.peer);
+                    release(window);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (headersStalled)
+            fail("Stalled on headers", null);
+        else
+            update();
+    }
+
+    /**
+     * Returns the peer that the next block to be added to the chain is waiting for, if any. That is the peer which
+     * holds up the download.
+     */
+    @Nullable
+    Peer getBlockingPeer() {
+        lock.lock();
+        try {
+            Window first = windows.peekFirst();
+            return first != null && !first.isComplete() ? first.peer : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Requests more headers and blocks as far as the limits allow, and finishes the download once it is done.
+    private void update() {
+        boolean done;
+        lock.lock();
+        try {
+            if (!running)
+                return;
+            requestBlocks();
+            requestHeaders();
+            done = headersDone && !requestingHeaders && windows.isEmpty();
+            if (done)
+                running = false;
+        } finally {
+            lock.unlock();
+        }
+        if (done) {
+            log.info("Headers first download done at height {}, continuing with regular chain download",
+                    chain.getBestChainHeight());
+            downloadPeer.startBlockChainDownload();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void requestHeaders() {
+        if (requestingHeaders || headersDone || queuedBlocks >= MAX_HEADERS_AHEAD)
+            return;
+        BlockLocator locator = lastHeader != null ? new BlockLocator().add(lastHeader.getHash())
+                : Peer.createBlockLocator(chain);
+        requestingHeaders = true;
+        headersRequestTimeMillis = Utils.currentTimeMillis();
+        ListenableFuture<List<Block>> future = downloadPeer.getBlockHeaders(locator, Sha256Hash.ZERO_HASH);
+        Futures.addCallback(future, new FutureCallback<List<Block>>() {
+            @Override
+            public void onSuccess(List<Block> headers) {
+                receiveHeaders(headers);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                fail("Failed to download headers", t);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void receiveHeaders(List<Block> headers) {
+        Exception invalid = null;
+        lock.lock();
+        try {
+            if (!running)
+                return;
+            requestingHeaders = false;
+            List<Block> windowHeaders = new ArrayList<>(WINDOW_SIZE);
+            int windowHeight = lastHeaderHeight + 1;
+            boolean windowNeedsBodies = passedFastCatchupTime;
+            for (Block header : headers) {
+                if (lastHeader == null) {
+                    // The first header must connect to a block we have. Headers of blocks we already have are skipped.
+                    if (chain.getBlockStore().get(header.getHash()) != null)
+                        continue;
+                    StoredBlock prev = chain.getBlockStore().get(header.getPrevBlockHash());
+                    if (prev == null)
+                        throw new VerificationException("Header does not connect to the chain: " + header.getHash());
+                    lastHeaderHeight = prev.getHeight();
+                    windowHeight = lastHeaderHeight + 1;
+                } else if (!header.getPrevBlockHash().equals(lastHeader.getHash())) {
+                    throw new VerificationException("Headers do not connect: " + header.getHash());
+                }
+                header.verifyHeader();
+                passedFastCatchupTime |= header.getTimeSeconds() >= fastCatchupTimeSecs;
+                if (windowHeaders.size() == WINDOW_SIZE || passedFastCatchupTime != windowNeedsBodies) {
+                    addWindow(windowHeaders, windowHeight, windowNeedsBodies);
+                    windowHeaders.clear();
+                    windowHeight = lastHeaderHeight + 1;
+                    windowNeedsBodies = passedFastCatchupTime;
+                }
+                windowHeaders.add(header);
+                lastHeader = header;
+                lastHeaderHeight++;
+            }
+            addWindow(windowHeaders, windowHeight, windowNeedsBodies);
+            if (headers.size() < HeadersMessage.MAX_HEADERS)
+                headersDone = true;
+            log.info("Received {} headers, up to height {}", headers.size(), lastHeaderHeight);
+        } catch (VerificationException | BlockStoreException e) {
+            invalid = e;
+        } finally {
+            lock.unlock();
+        }
+        if (invalid != null) {
+            fail("Invalid headers", invalid);
+            return;
+        }
+        // Blocks before the fast catchup time can be added right away.
+        addBlocksToChain();
+    }
+
+    @GuardedBy("lock")
+    private void addWindow(List<Block> headers, int startHeight, boolean needsBodies) {
+        if (headers.isEmpty())
+            return;
+        windows.add(new Window(headers, startHeight, needsBodies));
+        queuedBlocks += headers.size();
+    }
+
+    @GuardedBy("lock")
+    private void requestBlocks() {
+        int ahead = 0;
+        for (Window window : windows) {
+            if (ahead >= MAX_BLOCKS_AHEAD)
+                break;
+            ahead += window.size();
+            if (window.isComplete() || window.peer != null)
+                continue;
+            Peer peer = selectPeer(window);
+            if (peer == null) {
+                if (!peers.isEmpty() && window.failedPeers.containsAll(peers.keySet())) {
+                    // Every peer failed us, retry them all rather than give up.
+                    window.failedPeers.clear();
+                }
+                continue;
+            }
+            requestWindow(window, peer);
+        }
+    }
+
+    // Returns the peer with the fewest windows in flight that can serve the given window, if any.
+    @GuardedBy("lock")
+    @Nullable
+    private Peer selectPeer(Window window) {
+        Peer best = null;
+        int bestInFlight = MAX_WINDOWS_PER_PEER;
+        for (Map.Entry<Peer, Integer> entry : peers.entrySet()) {
+            Peer peer = entry.getKey();
+            int inFlight = entry.getValue();
+            if (inFlight >= bestInFlight || window.failedPeers.contains(peer) || peer.getBestHeight() < window.endHeight())
+                continue;
+            // Prefer the download peer, all else being equal.
+            if (best == null || inFlight < bestInFlight || peer == downloadPeer) {
+                best = peer;
+                bestInFlight = inFlight;
+            }
+        }
+        return best;
+    }
+
+    @GuardedBy("lock")
+    private void requestWindow(final Window window, final Peer peer) {
+        window.peer = peer;
+        window.requestTimeMillis = Utils.currentTimeMillis();
+        peers.put(peer, peers.get(peer) + 1);
+        List<Sha256Hash> hashes = new ArrayList<>(window.size());
+        for (int i = 0; i < window.size(); i++)
+            if (window.blocks[i] == null)
+                hashes.add(window.headers[i].getHash());
+        if (log.isDebugEnabled())
+            log.debug("{}: Requesting {}", peer, window);
+        for (ListenableFuture<Block> future : peer.getBlocks(hashes)) {
+            Futures.addCallback(future, new FutureCallback<Block>() {
+                @Override
+                public void onSuccess(Block block) {
+                    receiveBlock(window, block);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    // The peer doesn't have the block.
+                    windowFailed(window, peer);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+    }
+
+    // Takes the window from its peer.
+    @GuardedBy("lock")
+    private void release(Window window) {
+        Integer inFlight = peers.get(window.peer);
+        if (inFlight != null)
+            peers.put(window.peer, inFlight - 1);
+        window.peer = null;
+    }
+
+    private void windowFailed(Window window, Peer peer) {
+        lock.lock();
+        try {
+            if (!running || window.peer != peer)
+                return;
+            log.info("{}: Failed to download {}, requesting them elsewhere", peer, window);
+            window.failedPeers.add(peer);
+            release(window);
+        } finally {
+            lock.unlock();
+        }
+        update();
+    }
+
+    private void receiveBlock(Window window, Block block) {
+        lock.lock();
+        try {
+            if (!running)
+                return;
+            int index = window.indexOf(block.getHash());
+            // It may arrive twice if the window was requested again, and only the first one counts.
+            if (index < 0 || window.blocks[index] != null)
+                return;
+            window.blocks[index] = block;
+            window.received++;
+            if (window.isComplete() && window.peer != null)
+                release(window);
+        } finally {
+            lock.unlock();
+        }
+        addBlocksToChain();
+    }
+
+    // Adds the blocks that are next in line to the chain. Only one thread does so at a time, any others just leave
+    // their blocks in the buffer for it.
+    private void addBlocksToChain() {
+        lock.lock();
+        try {
+            if (draining || !running)
+                return;
+            draining = true;
+        } finally {
+            lock.unlock();
+        }
+        while (true) {
+            List<Block> ready = new ArrayList<>();
+            lock.lock();
+            try {
+                while (running && !windows.isEmpty()) {
+                    Window first = windows.getFirst();
+                    while (first.added < first.size() && first.blocks[first.added] != null)
+                        ready.add(first.blocks[first.added++]);
+                    if (first.added < first.size())
+                        break;
+                    windows.removeFirst();
+                    queuedBlocks -= first.size();
+                    if (first.peer != null)
+                        release(first);
+                }
+                if (ready.isEmpty() || !running) {
+                    draining = false;
+                    break;
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Block block : ready) {
+                try {
+                    if (!chain.add(block)) {
+                        fail("Block does not connect to the chain: " + block.getHash(), null);
+                        return;
+                    }
+                } catch (VerificationException e) {
+                    fail("Block verification failed", e);
+                    return;
+                } catch (PrunedException e) {
+                    // Unreachable when in SPV mode.
+                    throw new RuntimeException(e);
+                }
+                // The block was successfully linked into the chain. Notify the user of our progress.
+                downloadPeer.invokeOnBlocksDownloaded(block, null);
+            }
+        }
+        update();
+    }
+
+    // Abandons the download, and falls back to the regular chain download from wherever we got to.
+    private void fail(String message, @Nullable Throwable t) {
+        lock.lock();
+        try {
+            if (!running)
+                return;
+            running = false;
+            draining = false;
+            windows.clear();
+        } finally {
+            lock.unlock();
+        }
+        log.warn("{}: {}, continuing with regular chain download", downloadPeer, message, t);
+        downloadPeer.startBlockChainDownload();
+    }
+}
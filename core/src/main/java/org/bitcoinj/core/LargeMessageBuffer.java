@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.net.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Collects the payload of a message which doesn't fit into the read buffer of a connection, as it comes in. The
+ * payload goes into buffers taken from a {@link BufferPool}, one after the other, so the heap only has to hold it once
+ * it's complete.</p>
+ *
+ * <p>Used by the network thread of a single connection. Not thread safe.</p>
+ */
+final class LargeMessageBuffer {
+    private final int size;
+    private int position;
+    private final BufferPool pool;
+    // The chunks taken from the pool, the last of which is being filled.
+    private final List<ByteBuffer> chunks;
+
+    /** Creates a buffer for a payload of the given size, which is kept in buffers from the given pool. */
+    LargeMessageBuffer(int size, BufferPool pool) {
+        this.size = size;
+        this.pool = pool;
+        this.chunks = new ArrayList<>(size / pool.getBufferSize() + 1);
+    }
+
+    /** Copies as many bytes from the given buffer as are still missing from the payload. */
+    void put(ByteBuffer buff) {
+        while (buff.hasRemaining() && position < size) {
+            ByteBuffer target = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (target == null || !target.hasRemaining()) {
+                target = pool.acquire();
+                target.limit(Math.min(target.capacity(), size - position));
+                chunks.add(target);
+            }
+            int length = Math.min(buff.remaining(), Math.min(target.remaining(), size - position));
+            ByteBuffer slice = buff.slice();
+            slice.limit(length);
+            target.put(slice);
+            buff.position(buff.position() + length);
+            position += length;
+        }
+    }
+
+    /** Returns true once the whole payload has been put. */
+    boolean isComplete() {
+        return position == size;
+    }
+
+    /**
+     * Returns the payload in an array of its own. The chunks go back to their pool, so the buffer can't be used
+     * afterwards.
+     */
+    byte[] toByteArray() {
+        checkState(isComplete());
+        byte[] bytes = new byte[size];
+        int offset = 0;
+        for (ByteBuffer chunk : chunks) {
+            chunk.flip();
+            int length = chunk.remaining();
+            chunk.get(bytes, offset, length);
+            offset += length;
+            pool.release(chunk);
+        }
+        chunks.clear();
+        return bytes;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * <p>The transactions of a block parsed from the wire, which are only parsed themselves when they're asked for. Parsing
+ * the block just walks over each transaction to find where it ends, so that e.g. a block that's checked against a
+ * Bloom filter only costs a {@link Transaction} object for each transaction that matched.</p>
+ *
+ * <p>The id of a transaction is hashed straight from its bytes in the block, so the merkle root can be checked without
+ * parsing anything. Once the list is changed, all transactions are parsed and it behaves like any other list.</p>
+ */
+final class LazyTransactionList extends AbstractList<Transaction> implements RandomAccess {
+    private final Block block;
+    private final int count;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final Sha256Hash[] txIds;
+    private int end;
+    private int optimalEncodingSize;
+
+    // The bytes of the block, until every transaction has been parsed.
+    @GuardedBy("this") @Nullable private byte[] payload;
+    @GuardedBy("this") private final Transaction[] parsed;
+    @GuardedBy("this") private int parsedCount;
+    // All transactions, once the list has been changed.
+    @GuardedBy("this") @Nullable private ArrayList<Transaction> list;
+
+    /**
+     * Finds the given number of transactions in the given block bytes, starting at the given offset.
+     *
+     * @throws ProtocolException if a transaction runs past the end of the bytes
+     */
+    LazyTransactionList(Block block, byte[] payload, int offset, int count) throws ProtocolException {
+        this.block = block;
+        this.payload = payload;
+        this.count = count;
+        this.offsets = new int[count];
+        this.lengths = new int[count];
+        this.txIds = new Sha256Hash[count];
+        this.parsed = new Transaction[count];
+        int cursor = offset;
+        try {
+            for (int i = 0; i < count; i++) {
+                offsets[i] = cursor;
+                cursor = skipTransaction(payload, cursor);
+                lengths[i] = cursor - offsets[i];
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+        end = cursor;
+    }
+
+    // Walks over the transaction at the given offset the way Transaction.parse() does, and returns where it ends.
+    private int skipTransaction(byte[] payload, int cursor) throws ProtocolException {
+        cursor += 4; // version
+        optimalEncodingSize += 4;
+        VarInt numInputs = new VarInt(payload, cursor);
+        cursor += numInputs.getOriginalSizeInBytes();
+        optimalEncodingSize += VarInt.sizeOf(numInputs.value);
+        for (long i = 0; i < numInputs.value; i++) {
+            cursor += TransactionOutPoint.MESSAGE_LENGTH;
+            VarInt scriptLen = new VarInt(payload, cursor);
+            cursor = skip(payload, cursor + scriptLen.getOriginalSizeInBytes(), scriptLen.value + 4);
+            optimalEncodingSize += TransactionOutPoint.MESSAGE_LENGTH + VarInt.sizeOf(scriptLen.value) +
+                    scriptLen.value + 4;
+        }
+        VarInt numOutputs = new VarInt(payload, cursor);
+        cursor += numOutputs.getOriginalSizeInBytes();
+        optimalEncodingSize += VarInt.sizeOf(numOutputs.value);
+        for (long i = 0; i < numOutputs.value; i++) {
+            cursor += 8; // value
+            VarInt scriptLen = new VarInt(payload, cursor);
+            cursor = skip(payload, cursor + scriptLen.getOriginalSizeInBytes(), scriptLen.value);
+            optimalEncodingSize += 8 + VarInt.sizeOf(scriptLen.value) + scriptLen.value;
+        }
+        optimalEncodingSize += 4;
+        return skip(payload, cursor, 4); // lock time
+    }
+
+    private static int skip(byte[] payload, int cursor, long length) throws ProtocolException {
+        if (length < 0 || length > payload.length - cursor)
+            throw new ProtocolException("Transaction runs past the end of the block");
+        return cursor + (int) length;
+    }
+
+    /** Returns the offset in the block bytes right after the last transaction. */
+    int getEnd() {
+        return end;
+    }
+
+    /** Returns the size of the transactions if their var ints were encoded optimally. */
+    int getOptimalEncodingSize() {
+        return optimalEncodingSize;
+    }
+
+    @Override
+    public synchronized Transaction get(int index) {
+        if (list != null)
+            return list.get(index);
+        Transaction tx = parsed[index];
+        if (tx == null) {
+            try {
+                tx = new Transaction(block.getParams(), payload, offsets[index], block, block.serializer,
+                        lengths[index], getTxId(index).getReversedBytes());
+            } catch (ProtocolException e) {
+                // The transaction was walked over when the block was parsed already.
+                throw new IllegalStateException(e);
+            }
+            // Label the transaction as coming from the P2P network, so code that cares where we first saw it knows.
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            parsed[index] = tx;
+            if (++parsedCount == count)
+                payload = null;
+        }
+        return tx;
+    }
+
+    @Override
+    public synchronized int size() {
+        return list != null ? list.size() : count;
+    }
+
+    /** Returns the id of the transaction at the given index, hashing it from its bytes if it hasn't been parsed. */
+    synchronized Sha256Hash getTxId(int index) {
+        if (list != null)
+            return list.get(index).getTxId();
+        if (parsed[index] != null)
+            return parsed[index].getTxId();
+        Sha256Hash txId = txIds[index];
+        if (txId == null) {
+            txId = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, offsets[index], lengths[index]));
+            txIds[index] = txId;
+        }
+        return txId;
+    }
+
+    /**
+     * Returns the bytes of the block the transaction at the given index can be read from at
+     * {@link #getOffset(int)}, or null if it has been parsed already, in which case it should be used instead.
+     */
+    @Nullable
+    synchronized byte[] getPayload(int index) {
+        return list == null && parsed[index] == null ? payload : null;
+    }
+
+    /** Returns the offset of the transaction at the given index in the bytes returned by {@link #getPayload(int)}. */
+    int getOffset(int index) {
+        return offsets[index];
+    }
+
+    /** Writes the transaction at the given index to the given stream, straight from the block bytes if possible. */
+    void bitcoinSerialize(int index, OutputStream stream) throws IOException {
+        byte[] bytes = getPayload(index);
+        if (bytes != null)
+            stream.write(bytes, offsets[index], lengths[index]);
+        else
+            get(index).bitcoinSerialize(stream);
+    }
+
+    /** Returns the length of the transaction at the given index. */
+    int getMessageSize(int index) {
+        return getPayload(index) != null ? lengths[index] : get(index).getMessageSize();
+    }
+
+    @Override
+    public synchronized Transaction set(int index, Transaction tx) {
+        return toList().set(index, tx);
+    }
+
+    @Override
+    public synchronized void add(int index, Transaction tx) {
+        toList().add(index, tx);
+        modCount++;
+    }
+
+    @Override
+    public synchronized Transaction remove(int index) {
+        Transaction tx = toList().remove(index);
+        modCount++;
+        return tx;
+    }
+
+    @GuardedBy("this")
+    private ArrayList<Transaction> toList() {
+        if (list == null) {
+            ArrayList<Transaction> transactions = new ArrayList<>(count + 1);
+            for (int i = 0; i < count; i++)
+                transactions.add(get(i));
+            list = transactions;
+            Arrays.fill(parsed, null);
+            payload = null;
+        }
+        return list;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.bitcoinj.utils.Threading;
+
+import javax.annotation.Nullable;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Computes merkle trees over transaction ids the way blocks commit to them: each node is the double SHA-256 of its
+ * two children, and the last node of a level is paired with itself if the level has an odd number of nodes.</p>
+ *
+ * <p>Hashes are kept in their internal byte order, 32 bytes each, one level after the other in a single array, so
+ * hashing a node doesn't allocate anything. The nodes of a level are spread over several threads once a level is wide
+ * enough. When only the root is needed, {@link #calculateRoot(byte[], int)} keeps no more than two levels around;
+ * {@link #build(List)} keeps the whole tree, which {@link PartialMerkleTree}s can then be cut from.</p>
+ */
+final class MerkleTree {
+    // The nodes of a level are only spread over threads in chunks of at least this many, as starting a task costs about
+    // as much as hashing a few hundred nodes.
+    private static final int MIN_NODES_PER_TASK = 1024;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return Sha256Hash.newDigest();
+        }
+    };
+
+    private final int leafCount;
+    private final byte[] nodes;
+    // Offset in nodes where the level at each height starts, leaves being at height 0.
+    private final int[] levelOffsets;
+
+    private MerkleTree(int leafCount, byte[] nodes, int[] levelOffsets) {
+        this.leafCount = leafCount;
+        this.nodes = nodes;
+        this.levelOffsets = levelOffsets;
+    }
+
+    /**
+     * Calculates the root of the tree over the given leaves, which are {@code count} hashes in internal byte order one
+     * after the other. The leaves are overwritten.
+     */
+    static Sha256Hash calculateRoot(byte[] leaves, int count) {
+        return calculateRoot(leaves, count, PARALLELISM);
+    }
+
+    static Sha256Hash calculateRoot(byte[] leaves, int count, int parallelism) {
+        checkArgument(count > 0, "No leaves");
+        checkArgument(leaves.length >= count * Sha256Hash.LENGTH);
+        ExecutorService executor = getExecutor(count, parallelism);
+        // Each level is hashed into the other array, so threads never write what another thread still has to read.
+        byte[] level = leaves;
+        byte[] next = new byte[getWidth(count, 1) * Sha256Hash.LENGTH];
+        for (int width = count; width > 1; width = getWidth(width, 1)) {
+            hashLevel(level, 0, width, next, 0, executor, parallelism);
+            byte[] previous = level;
+            level = next;
+            next = previous;
+        }
+        return Sha256Hash.wrapReversed(Arrays.copyOf(level, Sha256Hash.LENGTH));
+    }
+
+    /** Builds the whole tree over the given leaves. */
+    static MerkleTree build(List<Sha256Hash> leaves) {
+        return build(leaves, PARALLELISM);
+    }
+
+    static MerkleTree build(List<Sha256Hash> leaves, int parallelism) {
+        int count = leaves.size();
+        checkArgument(count > 0, "No leaves");
+        int height = getHeight(count);
+        int[] levelOffsets = new int[height + 1];
+        int size = 0;
+        for (int h = 0; h <= height; h++) {
+            levelOffsets[h] = size;
+            size += getWidth(count, h) * Sha256Hash.LENGTH;
+        }
+        byte[] nodes = new byte[size];
+        for (int i = 0; i < count; i++)
+            putReversed(leaves.get(i), nodes, i * Sha256Hash.LENGTH);
+        ExecutorService executor = getExecutor(count, parallelism);
+        for (int h = 0; h < height; h++)
+            hashLevel(nodes, levelOffsets[h], getWidth(count, h), nodes, levelOffsets[h + 1], executor, parallelism);
+        return new MerkleTree(count, nodes, levelOffsets);
+    }
+
+    /** Writes the given hash in internal byte order, as a leaf for {@link #calculateRoot(byte[], int)}. */
+    static void putReversed(Sha256Hash hash, byte[] dest, int offset) {
+        byte[] bytes = hash.getBytes();
+        for (int i = 0; i < Sha256Hash.LENGTH; i++)
+            dest[offset + i] = bytes[Sha256Hash.LENGTH - 1 - i];
+    }
+
+    /** Returns the number of leaves of the tree. */
+    int getLeafCount() {
+        return leafCount;
+    }
+
+    /** Returns the height of the root, leaves being at height 0. */
+    int getHeight() {
+        return levelOffsets.length - 1;
+    }
+
+    /** Returns the number of nodes at the given height. */
+    int getWidth(int height) {
+        return getWidth(leafCount, height);
+    }
+
+    /** Returns the hash of the node at the given height and position. */
+    Sha256Hash getHash(int height, int pos) {
+        checkArgument(pos >= 0 && pos < getWidth(height), "No node %s at height %s", pos, height);
+        int offset = levelOffsets[height] + pos * Sha256Hash.LENGTH;
+        byte[] bytes = new byte[Sha256Hash.LENGTH];
+        for (int i = 0; i < Sha256Hash.LENGTH; i++)
+            bytes[i] = nodes[offset + Sha256Hash.LENGTH - 1 - i];
+        return Sha256Hash.wrap(bytes);
+    }
+
+    /** Returns the root of the tree. */
+    Sha256Hash getRoot() {
+        return getHash(getHeight(), 0);
+    }
+
+    // The number of nodes at the given height of a tree with the given number of leaves.
+    static int getWidth(int leafCount, int height) {
+        return (int) (((long) leafCount + (1L << height) - 1) >> height);
+    }
+
+    static int getHeight(int leafCount) {
+        int height = 0;
+        while (getWidth(leafCount, height) > 1)
+            height++;
+        return height;
+    }
+
+    // Returns the pool to spread the levels of a tree with the given number of leaves over, or null if even the widest
+    // level isn't worth it.
+    @Nullable
+    private static ExecutorService getExecutor(int leafCount, int parallelism) {
+        int chunks = Math.min(parallelism, getWidth(leafCount, 1) / MIN_NODES_PER_TASK);
+        return chunks > 1 ? Threading.getComputePool() : null;
+    }
+
+    // Hashes the pairs of nodes of the level of the given width in src into the level above it in dest.
+    private static void hashLevel(final byte[] src, final int srcOffset, final int width, final byte[] dest,
+                                  final int destOffset, @Nullable ExecutorService executor, int parallelism) {
+        final int parents = getWidth(width, 1);
+        int chunks = executor == null ? 1 : Math.min(parallelism, parents / MIN_NODES_PER_TASK);
+        if (chunks <= 1) {
+            hashNodes(src, srcOffset, width, dest, destOffset, 0, parents);
+            return;
+        }
+        try {
+            List<Future<?>> futures = new ArrayList<>(chunks);
+            for (int c = 0; c < chunks; c++) {
+                final int start = (int) ((long) parents * c / chunks);
+                final int end = (int) ((long) parents * (c + 1) / chunks);
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        hashNodes(src, srcOffset, width, dest, destOffset, start, end);
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // Hashes the parents from start to end of the level of the given width.
+    private static void hashNodes(byte[] src, int srcOffset, int width, byte[] dest, int destOffset, int start,
+                                  int end) {
+        MessageDigest digest = MerkleTree.digest.get();
+        try {
+            for (int parent = start; parent < end; parent++) {
+                int left = parent * 2;
+                // The right hand node is the same as the left hand one if the level has an odd number of nodes.
+                int right = Math.min(left + 1, width - 1);
+                int out = destOffset + parent * Sha256Hash.LENGTH;
+                digest.update(src, srcOffset + left * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+                digest.update(src, srcOffset + right * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+                digest.digest(dest, out, Sha256Hash.LENGTH);
+                digest.update(dest, out, Sha256Hash.LENGTH);
+                digest.digest(dest, out, Sha256Hash.LENGTH);
+            }
+        } catch (DigestException e) {
+            throw new RuntimeException(e); // Cannot happen, the output always fits.
+        }
+    }
+}
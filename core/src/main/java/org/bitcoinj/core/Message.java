@@ -20,6 +20,7 @@ package org.bitcoinj.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
@@ -60,6 +61,10 @@ public abstract class Message {
 
     protected NetworkParameters params;
 
+    // The checksum of the cached payload, so that a message sent to many peers is only hashed once. Both arrays are held
+    // by one object so that they're always seen together.
+    @Nullable private Checksum checksum;
+
     protected Message() {
         serializer = DummySerializer.DEFAULT;
     }
@@ -139,6 +144,7 @@ public abstract class Message {
     protected void unCache() {
         payload = null;
         recached = false;
+        checksum = null;
     }
 
     protected void adjustLength(int newArraySize, int adjustment) {
@@ -256,6 +262,32 @@ public abstract class Message {
         return buf;
     }
 
+    /**
+     * Returns the first four bytes of the double SHA-256 hash of the given serialization of this message, as used in
+     * the message header. The checksum is computed once and reused for as long as the serialization is the cached
+     * payload of this message, which isn't modified once cached.
+     */
+    byte[] getChecksum(byte[] serialized) {
+        Checksum checksum = this.checksum;
+        if (checksum != null && checksum.payload == serialized && serialized == payload)
+            return checksum.bytes;
+        byte[] bytes = Arrays.copyOf(Sha256Hash.hashTwice(serialized), 4);
+        // Only the message's own payload is remembered, so the cache never holds on to any other array.
+        if (serialized == payload)
+            this.checksum = new Checksum(serialized, bytes);
+        return bytes;
+    }
+
+    private static final class Checksum {
+        private final byte[] payload;
+        private final byte[] bytes;
+
+        private Checksum(byte[] payload, byte[] bytes) {
+            this.payload = payload;
+            this.bytes = bytes;
+        }
+    }
+
     /**
      * Serialize this message to the provided OutputStream using the bitcoin wire format.
      *
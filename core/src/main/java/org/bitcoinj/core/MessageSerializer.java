@@ -18,10 +18,12 @@
 
 package org.bitcoinj.core;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Generic interface for classes which serialize/deserialize messages. Implementing
@@ -56,6 +58,14 @@ public abstract class MessageSerializer {
      */
     public abstract Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException;
 
+    /**
+     * Deserializes the given payload, which the message may keep as its own rather than copy, so the caller must not
+     * use the array afterwards.
+     */
+    Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, byte[] payload) throws ProtocolException, UnsupportedOperationException {
+        return deserializePayload(header, ByteBuffer.wrap(payload));
+    }
+
     /**
      * Whether the serializer will produce cached mode Messages
      */
@@ -97,6 +107,14 @@ public abstract class MessageSerializer {
      */
     public abstract Block makeBlock(final byte[] payloadBytes, final int offset, final int length) throws ProtocolException, UnsupportedOperationException;
 
+    /**
+     * Make a parser which reads the payload of the given block message incrementally, passing its transactions to
+     * the listener as they arrive instead of building the whole block in memory. Not supported unless overridden.
+     */
+    public StreamingBlockParser makeStreamingBlockParser(BitcoinSerializer.BitcoinPacketHeader header, StreamingBlockParser.Listener listener) throws UnsupportedOperationException {
+        throw new UnsupportedOperationException("Streaming blocks isn't supported by " + getClass().getName());
+    }
+
     /**
      * Make an filter message from the payload. Extension point for alternative
      * serialization format support.
@@ -173,5 +191,26 @@ public abstract class MessageSerializer {
      * it does not support serializing the given message.
      */
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
+
+    /**
+     * Returns the header to send ahead of the given message, whose serialized payload is given. Lets the payload be
+     * written straight from its own array instead of copying it next to the header. By default, the whole message is
+     * serialized and cut after the header, override this to avoid that.
+     *
+     * @throws UnsupportedOperationException if this serializer/deserializer
+     * does not support serialization. This can occur either because it's a dummy
+     * serializer (i.e. for messages with no network parameters), or because
+     * it does not support serializing the given message.
+     */
+    public byte[] serializeHeader(Message message, byte[] payload) throws UnsupportedOperationException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length + 24);
+        try {
+            serialize(message, out);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+        byte[] bytes = out.toByteArray();
+        return Arrays.copyOf(bytes, bytes.length - payload.length);
+    }
     
 }
@@ -87,18 +87,22 @@ public class PartialMerkleTree extends Message {
      * are calculated and a new PMT returned.
      */
     public static PartialMerkleTree buildFromLeaves(NetworkParameters params, byte[] includeBits, List<Sha256Hash> allLeafHashes) {
-        // Calculate height of the tree.
-        int height = 0;
-        while (getTreeWidth(allLeafHashes.size(), height) > 1)
-            height++;
+        return buildFromTree(params, includeBits, MerkleTree.build(allLeafHashes));
+    }
+
+    /**
+     * Calculates a PMT from the given full merkle tree and which leaves need to be included, taking the interior hashes
+     * from the tree. Any number of PMTs can be cut from the same tree without hashing anything again.
+     */
+    static PartialMerkleTree buildFromTree(NetworkParameters params, byte[] includeBits, MerkleTree tree) {
         List<Boolean> bitList = new ArrayList<>();
         List<Sha256Hash> hashes = new ArrayList<>();
-        traverseAndBuild(height, 0, allLeafHashes, includeBits, bitList, hashes);
+        traverseAndBuild(tree.getHeight(), 0, tree, includeBits, bitList, hashes);
         byte[] bits = new byte[(int)Math.ceil(bitList.size() / 8.0)];
         for (int i = 0; i < bitList.size(); i++)
             if (bitList.get(i))
                 Utils.setBitLE(bits, i);
-        return new PartialMerkleTree(params, bits, hashes, allLeafHashes.size());
+        return new PartialMerkleTree(params, bits, hashes, tree.getLeafCount());
     }
 
     @Override
@@ -129,11 +133,11 @@ public class PartialMerkleTree extends Message {
     }
 
     // Based on CPartialMerkleTree::TraverseAndBuild in Bitcoin Core.
-    private static void traverseAndBuild(int height, int pos, List<Sha256Hash> allLeafHashes, byte[] includeBits,
+    private static void traverseAndBuild(int height, int pos, MerkleTree tree, byte[] includeBits,
                                          List<Boolean> matchedChildBits, List<Sha256Hash> resultHashes) {
         boolean parentOfMatch = false;
         // Is this node a parent of at least one matched hash?
-        for (int p = pos << height; p < (pos+1) << height && p < allLeafHashes.size(); p++) {
+        for (int p = pos << height; p < (pos+1) << height && p < tree.getLeafCount(); p++) {
             if (Utils.checkBitLE(includeBits, p)) {
                 parentOfMatch = true;
                 break;
@@ -143,33 +147,15 @@ public class PartialMerkleTree extends Message {
         matchedChildBits.add(parentOfMatch);
         if (height == 0 || !parentOfMatch) {
             // If at height 0, or nothing interesting below, store hash and stop.
-            resultHashes.add(calcHash(height, pos, allLeafHashes));
+            resultHashes.add(tree.getHash(height, pos));
         } else {
             // Otherwise descend into the subtrees.
             int h = height - 1;
             int p = pos * 2;
-            traverseAndBuild(h, p, allLeafHashes, includeBits, matchedChildBits, resultHashes);
-            if (p + 1 < getTreeWidth(allLeafHashes.size(), h))
-                traverseAndBuild(h, p + 1, allLeafHashes, includeBits, matchedChildBits, resultHashes);
-        }
-    }
-
-    private static Sha256Hash calcHash(int height, int pos, List<Sha256Hash> hashes) {
-        if (height == 0) {
-            // Hash at height 0 is just the regular tx hash itself.
-            return hashes.get(pos);
-        }
-        int h = height - 1;
-        int p = pos * 2;
-        Sha256Hash left = calcHash(h, p, hashes);
-        // Calculate right hash if not beyond the end of the array - copy left hash otherwise.
-        Sha256Hash right;
-        if (p + 1 < getTreeWidth(hashes.size(), h)) {
-            right = calcHash(h, p + 1, hashes);
-        } else {
-            right = left;
+            traverseAndBuild(h, p, tree, includeBits, matchedChildBits, resultHashes);
+            if (p + 1 < tree.getWidth(h))
+                traverseAndBuild(h, p + 1, tree, includeBits, matchedChildBits, resultHashes);
         }
-        return combineLeftRight(left.getBytes(), right.getBytes());
     }
 
     // helper function to efficiently calculate the number of nodes at given height in the merkle tree
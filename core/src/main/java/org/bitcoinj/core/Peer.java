@@ -136,17 +136,29 @@ public class Peer extends PeerSocketHandler {
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
     // whilst waiting for the response. Is not used for downloads Peer generates itself.
     private static class GetDataRequest {
-        public GetDataRequest(Sha256Hash hash, SettableFuture future) {
+        public GetDataRequest(Sha256Hash hash, SettableFuture<?> future) {
+            this(hash, future, null);
+        }
+        public GetDataRequest(Sha256Hash hash, SettableFuture<?> future,
+                              @Nullable StreamingBlockParser.Listener blockListener) {
             this.hash = hash;
             this.future = future;
+            this.blockListener = blockListener;
         }
         final Sha256Hash hash;
         final SettableFuture future;
+        // Set for blocks requested with getBlock(Sha256Hash, StreamingBlockParser.Listener).
+        @Nullable final StreamingBlockParser.Listener blockListener;
     }
     // TODO: The types/locking should be rationalised a bit.
     private final CopyOnWriteArrayList<GetDataRequest> getDataFutures;
+    // The request whose block is being streamed right now, if any. Only touched by the network thread, except when the
+    // connection is closed.
+    @Nullable private volatile GetDataRequest currentStreamedBlock;
     @GuardedBy("getAddrFutures") private final LinkedList<SettableFuture<AddressMessage>> getAddrFutures;
     @Nullable @GuardedBy("lock") private LinkedList<SettableFuture<UTXOsMessage>> getutxoFutures;
+    // Outstanding getheaders requests made through getBlockHeaders(), answered in order.
+    @Nullable @GuardedBy("lock") private LinkedList<SettableFuture<List<Block>>> getHeadersFutures;
 
     // Outstanding pings against this peer and how long the last one took to complete.
     private final ReentrantLock lastPingTimesLock = new ReentrantLock();
@@ -386,6 +398,9 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     public void connectionClosed() {
+        GetDataRequest streamed = currentStreamedBlock;
+        if (streamed != null)
+            streamed.future.setException(new PeerException("Connection closed while streaming block " + streamed.hash));
         for (final ListenerRegistration<PeerDisconnectedEventListener> registration : disconnectedEventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -640,10 +655,15 @@ public class Peer extends PeerSocketHandler {
         // request the full blocks from that point on instead.
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
+        SettableFuture<List<Block>> headersFuture = null;
 
         lock.lock();
         try {
-            if (blockChain == null) {
+            if (getHeadersFutures != null)
+                headersFuture = getHeadersFutures.pollFirst();
+            if (headersFuture != null) {
+                // Requested by getBlockHeaders(), which takes care of the headers itself.
+            } else if (blockChain == null) {
                 // Can happen if we are receiving unrequested data, or due to programmer error.
                 log.warn("Received headers when Peer is not configured with a chain.");
                 return;
@@ -653,6 +673,10 @@ public class Peer extends PeerSocketHandler {
         } finally {
             lock.unlock();
         }
+        if (headersFuture != null) {
+            headersFuture.set(m.getBlockHeaders());
+            return;
+        }
 
         try {
             checkState(!downloadBlockBodies, toString());
@@ -949,7 +973,8 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast block {}", getAddress(), m.getHashAsString());
         // Was this block requested by getBlock()?
-        if (maybeHandleRequestedData(m)) return;
+        boolean streamed = maybeStreamRequestedBlock(m);
+        if (maybeHandleRequestedData(m) || streamed) return;
         if (blockChain == null) {
             if (log.isDebugEnabled())
                 log.debug("Received block but was not configured with an AbstractBlockChain");
@@ -1120,7 +1145,7 @@ public class Peer extends PeerSocketHandler {
         boolean found = false;
         Sha256Hash hash = m.getHash();
         for (GetDataRequest req : getDataFutures) {
-            if (hash.equals(req.hash)) {
+            if (hash.equals(req.hash) && req.blockListener == null) {
                 req.future.set(m);
                 getDataFutures.remove(req);
                 found = true;
@@ -1130,7 +1155,111 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+    // Hands a block which was received whole to the listeners of streaming requests for it, as if it had been streamed.
+    @SuppressWarnings("unchecked")
+    private boolean maybeStreamRequestedBlock(Block block) {
+        boolean found = false;
+        Block header = null;
+        for (GetDataRequest req : getDataFutures) {
+            if (req.blockListener == null || !block.getHash().equals(req.hash))
+                continue;
+            getDataFutures.remove(req);
+            found = true;
+            if (header == null)
+                header = block.cloneAsHeader();
+            try {
+                List<Transaction> transactions = block.getTransactions();
+                req.blockListener.onBlockHeader(header, transactions.size());
+                for (int i = 0; i < transactions.size(); i++)
+                    req.blockListener.onTransaction(header, transactions.get(i), i);
+                req.blockListener.onBlockComplete(header);
+                req.future.set(header);
+            } catch (Exception e) {
+                req.future.setException(e);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    protected boolean isStreamingBlocks() {
+        if (super.isStreamingBlocks())
+            return true;
+        for (GetDataRequest req : getDataFutures)
+            if (req.blockListener != null)
+                return true;
+        return false;
+    }
+
+    @Nullable
+    @Override
+    protected StreamingBlockParser.Listener getStreamingBlockListener(Block header) {
+        Sha256Hash hash = header.getHash();
+        GetDataRequest streamed = null;
+        for (GetDataRequest req : getDataFutures) {
+            if (!hash.equals(req.hash))
+                continue;
+            // Someone wants the whole block, so it's received whole and handed to the streaming requests from there.
+            if (req.blockListener == null)
+                return null;
+            if (streamed == null)
+                streamed = req;
+        }
+        if (streamed == null)
+            return super.getStreamingBlockListener(header);
+        getDataFutures.remove(streamed);
+        return new StreamedBlockRequest(streamed);
+    }
+
+    // Passes a streamed block on to the listener of a request, and completes the request's future once it's done.
+    private class StreamedBlockRequest implements StreamingBlockParser.Listener {
+        private final GetDataRequest request;
+
+        StreamedBlockRequest(GetDataRequest request) {
+            this.request = request;
+            currentStreamedBlock = request;
+        }
+
+        @Override
+        public void onBlockHeader(Block header, long transactionCount) throws Exception {
+            try {
+                request.blockListener.onBlockHeader(header, transactionCount);
+            } catch (Exception e) {
+                throw fail(e);
+            }
+        }
+
+        @Override
+        public void onTransaction(Block header, Transaction tx, int index) throws Exception {
+            try {
+                request.blockListener.onTransaction(header, tx, index);
+            } catch (Exception e) {
+                throw fail(e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void onBlockComplete(Block header) throws Exception {
+            try {
+                request.blockListener.onBlockComplete(header);
+            } catch (Exception e) {
+                throw fail(e);
+            }
+            currentStreamedBlock = null;
+            request.future.set(header);
+        }
+
+        // Fails the request with what the listener threw. The connection is closed after that, as the rest of the
+        // block can't be skipped.
+        private Exception fail(Exception e) {
+            currentStreamedBlock = null;
+            request.future.setException(e);
+            return e;
+        }
+    }
+
+    void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1291,6 +1420,65 @@ public class Peer extends PeerSocketHandler {
         return sendSingleGetData(getdata);
     }
 
+    /**
+     * <p>Asks the connected peer for the block of the given hash, and hands it to the given listener transaction by
+     * transaction as it comes in, rather than as a whole {@link Block}. A block too large for the read buffer is
+     * then never held in memory as a whole, only its largest transaction is. A smaller block is received as usual and
+     * handed to the listener in one go.</p>
+     *
+     * <p>The listener is called on the network thread, even if messages are processed on an executor. The returned
+     * future completes with the header of the block once the listener has seen all of it, and fails if the listener
+     * throws or the connection closes while the block is coming in.</p>
+     */
+    public ListenableFuture<Block> getBlock(Sha256Hash blockHash, StreamingBlockParser.Listener listener) {
+        // This does not need to be locked.
+        log.info("Request to stream block {}", blockHash);
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addBlock(blockHash, true);
+        SettableFuture<Block> future = SettableFuture.create();
+        getDataFutures.add(new GetDataRequest(blockHash, future, checkNotNull(listener)));
+        sendMessage(getdata);
+        return future;
+    }
+
+    /**
+     * Asks the connected peer for the blocks of the given hashes in a single getdata, and returns a future for each of
+     * them, in the same order. A block the peer doesn't have makes its future fail with a
+     * {@link java.util.concurrent.CancellationException}.
+     */
+    public List<ListenableFuture<Block>> getBlocks(List<Sha256Hash> blockHashes) {
+        // This does not need to be locked.
+        GetDataMessage getdata = new GetDataMessage(params);
+        List<ListenableFuture<Block>> futures = new ArrayList<>(blockHashes.size());
+        for (Sha256Hash blockHash : blockHashes) {
+            getdata.addBlock(blockHash, vPeerVersionMessage.isWitnessSupported());
+            SettableFuture<Block> future = SettableFuture.create();
+            getDataFutures.add(new GetDataRequest(blockHash, future));
+            futures.add(future);
+        }
+        sendMessage(getdata);
+        return futures;
+    }
+
+    /**
+     * Asks the connected peer for the headers of the blocks following the given locator, up to and including the
+     * block of the given stop hash, or up to {@link HeadersMessage#MAX_HEADERS} headers if the stop hash is zero.
+     * The headers are handed to the returned future rather than to the block chain.
+     */
+    public ListenableFuture<List<Block>> getBlockHeaders(BlockLocator locator, Sha256Hash stopHash) {
+        lock.lock();
+        try {
+            SettableFuture<List<Block>> future = SettableFuture.create();
+            if (getHeadersFutures == null)
+                getHeadersFutures = new LinkedList<>();
+            getHeadersFutures.add(future);
+            sendMessage(new GetHeadersMessage(params, locator, stopHash));
+            return future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Asks the connected peer for the given transaction from its memory pool. Transactions in the chain cannot be
      * retrieved this way because peers don't have a transaction ID to transaction-pos-on-disk index, and besides,
@@ -1412,16 +1600,7 @@ public class Peer extends PeerSocketHandler {
         // headers and then request the blocks from that point onwards. "getheaders" does not send us an inv, it just
         // sends us the data we requested in a "headers" message.
 
-        BlockLocator blockLocator = new BlockLocator();
-        // For now we don't do the exponential thinning as suggested here:
-        //
-        //   https://en.bitcoin.it/wiki/Protocol_specification#getblocks
-        //
-        // This is because it requires scanning all the block chain headers, which is very slow. Instead we add the top
-        // 100 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
-        // must always put the genesis block as the first entry.
-        BlockStore store = checkNotNull(blockChain).getBlockStore();
-        StoredBlock chainHead = blockChain.getChainHead();
+        StoredBlock chainHead = checkNotNull(blockChain).getChainHead();
         Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
         // Did we already make this request? If so, don't do it again.
         if (Objects.equals(lastGetBlocksBegin, chainHeadHash) && Objects.equals(lastGetBlocksEnd, toHash)) {
@@ -1434,19 +1613,7 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled())
             log.debug("{}: blockChainDownloadLocked({}) current head = {}",
                     this, toHash, chainHead.getHeader().getHashAsString());
-        StoredBlock cursor = chainHead;
-        for (int i = 100; cursor != null && i > 0; i--) {
-            blockLocator = blockLocator.add(cursor.getHeader().getHash());
-            try {
-                cursor = cursor.getPrev(store);
-            } catch (BlockStoreException e) {
-                log.error("Failed to walk the block chain whilst constructing a locator");
-                throw new RuntimeException(e);
-            }
-        }
-        // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
-        if (cursor != null)
-            blockLocator = blockLocator.add(params.getGenesisBlock().getHash());
+        BlockLocator blockLocator = createBlockLocator(blockChain);
 
         // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
         // block being solved during chain download.
@@ -1463,6 +1630,35 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Returns a locator describing the head of the given chain, for getblocks and getheaders requests.
+     */
+    static BlockLocator createBlockLocator(AbstractBlockChain blockChain) {
+        BlockLocator blockLocator = new BlockLocator();
+        // For now we don't do the exponential thinning as suggested here:
+        //
+        //   https://en.bitcoin.it/wiki/Protocol_specification#getblocks
+        //
+        // This is because it requires scanning all the block chain headers, which is very slow. Instead we add the top
+        // 100 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
+        // must always put the genesis block as the first entry.
+        BlockStore store = blockChain.getBlockStore();
+        StoredBlock cursor = blockChain.getChainHead();
+        for (int i = 100; cursor != null && i > 0; i--) {
+            blockLocator = blockLocator.add(cursor.getHeader().getHash());
+            try {
+                cursor = cursor.getPrev(store);
+            } catch (BlockStoreException e) {
+                log.error("Failed to walk the block chain whilst constructing a locator");
+                throw new RuntimeException(e);
+            }
+        }
+        // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
+        if (cursor != null)
+            blockLocator = blockLocator.add(blockChain.params.getGenesisBlock().getHash());
+        return blockLocator;
+    }
+
     /**
      * Starts an asynchronous download of the block chain. The chain download is deemed to be complete once we've
      * downloaded the same number of blocks that the peer advertised having in its version handshake message.
@@ -1473,14 +1669,7 @@ public class Peer extends PeerSocketHandler {
         // chain even if the chain block count is lower.
         final int blocksLeft = getPeerBlockHeightDifference();
         if (blocksLeft >= 0) {
-            for (final ListenerRegistration<ChainDownloadStartedEventListener> registration : chainDownloadStartedEventListeners) {
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
-                    }
-                });
-            }
+            invokeOnChainDownloadStarted(blocksLeft);
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1491,6 +1680,17 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    void invokeOnChainDownloadStarted(final int blocksLeft) {
+        for (final ListenerRegistration<ChainDownloadStartedEventListener> registration : chainDownloadStartedEventListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
+                }
+            });
+        }
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public final SettableFuture<Long> future;
@@ -152,6 +152,8 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private boolean ipv6Unreachable = false;
 
     @GuardedBy("lock") private long fastCatchupTimeSecs;
+    @GuardedBy("lock") private boolean headersFirstDownload = false;
+    @GuardedBy("lock") @Nullable private HeadersFirstDownload runningHeadersFirstDownload;
     private final CopyOnWriteArrayList<Wallet> wallets;
     private final CopyOnWriteArrayList<PeerFilterProvider> peerFilterProviders;
 
@@ -278,6 +280,8 @@ public class PeerGroup implements TransactionBroadcaster {
     /** The default timeout between when a connection attempt begins and version message exchange completes */
     public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
     private volatile int vConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    // The executor new peers decode and process their messages on, or null to do it on the network thread.
+    @Nullable private volatile Executor vMessageExecutor;
 
     /** Whether bloom filter support is enabled when using a non FullPrunedBlockchain*/
     private volatile boolean vBloomFilteringEnabled = true;
@@ -1081,6 +1085,7 @@ public class PeerGroup implements TransactionBroadcaster {
                 try {
                     log.info("Stopping ...");
                     Stopwatch watch = Stopwatch.createStarted();
+                    cancelHeadersFirstDownload();
                     // The log output this creates can be useful.
                     setDownloadPeer(null);
                     // Blocking close of all sockets.
@@ -1393,6 +1398,7 @@ public class PeerGroup implements TransactionBroadcaster {
         ver.receivingAddr.setParent(ver);
 
         Peer peer = createPeer(address, ver);
+        peer.setMessageExecutor(vMessageExecutor);
         peer.addConnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.addDisconnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
@@ -1427,6 +1433,16 @@ public class PeerGroup implements TransactionBroadcaster {
         return new Peer(params, ver, address, chain, requiredServices, downloadTxDependencyDepth);
     }
 
+    /**
+     * Sets the executor that peers connected from now on decode and process their messages on, instead of the network
+     * thread, so that e.g. a slow block from one peer doesn't stop reading from the others. A fixed size thread pool
+     * is a good choice; it can be shared by all peers. Pass null to go back to processing on the network thread. See
+     * {@link PeerSocketHandler#setMessageExecutor(Executor)}.
+     */
+    public void setMessageExecutor(@Nullable Executor executor) {
+        this.vMessageExecutor = executor;
+    }
+
     /**
      * Sets the timeout between when a connection attempt to a peer begins and when the version message exchange
      * completes. This does not apply to currently pending peers.
@@ -1511,6 +1527,8 @@ public class PeerGroup implements TransactionBroadcaster {
             pendingPeers.remove(peer);
             peers.add(peer);
             newSize = peers.size();
+            if (runningHeadersFirstDownload != null)
+                runningHeadersFirstDownload.addPeer(peer);
             log.info("{}: New peer      ({} connected, {} pending, {} max)", peer, newSize, pendingPeers.size(), maxConnections);
             // Give the peer a filter that can be used to probabilistically drop transactions that
             // aren't relevant to our wallet. We may still receive some false positives, which is
@@ -1673,6 +1691,8 @@ public class PeerGroup implements TransactionBroadcaster {
         try {
             pendingPeers.remove(peer);
             peers.remove(peer);
+            if (runningHeadersFirstDownload != null)
+                runningHeadersFirstDownload.removePeer(peer);
 
             PeerAddress address = peer.getAddress();
 
@@ -1824,6 +1844,10 @@ public class PeerGroup implements TransactionBroadcaster {
                 lock.unlock();
             }
 
+            HeadersFirstDownload download = getRunningHeadersFirstDownload();
+            if (download != null)
+                download.checkStalls(period * 1000L);
+
             synchronized (this) {
                 if (samples == null || samples.length != period) {
                     samples = new long[period];
@@ -1873,7 +1897,9 @@ public class PeerGroup implements TransactionBroadcaster {
                             // deal.
                             log.warn("This network seems to be slower than the requested stall threshold - won't do stall disconnects any more.");
                         } else {
-                            Peer peer = getDownloadPeer();
+                            // In a headers first download the peer holding up the chain is the one to go.
+                            Peer blockingPeer = download != null ? download.getBlockingPeer() : null;
+                            Peer peer = blockingPeer != null ? blockingPeer : getDownloadPeer();
                             log.warn(String.format(Locale.US,
                                     "Chain download stalled: received %.2f KB/sec for %d seconds, require average of %.2f KB/sec, disconnecting %s, %d stalls left",
                                     average / 1024.0, samples.length, minSpeedBytesPerSec / 1024.0, peer, maxStalls));
@@ -1908,8 +1934,68 @@ public class PeerGroup implements TransactionBroadcaster {
             }
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, chainDownloadSpeedCalculator);
 
-            // startBlockChainDownload will setDownloadData(true) on itself automatically.
-            peer.startBlockChainDownload();
+            cancelHeadersFirstDownload();
+            if (headersFirstDownload && chain != null) {
+                // The blocks are requested explicitly, the peer mustn't download them on its own. Once done, the
+                // download calls startBlockChainDownload, which will setDownloadData(true) again.
+                peer.setDownloadData(false);
+                runningHeadersFirstDownload = new HeadersFirstDownload(chain, peer, fastCatchupTimeSecs);
+                runningHeadersFirstDownload.start(peers);
+            } else {
+                // startBlockChainDownload will setDownloadData(true) on itself automatically.
+                peer.startBlockChainDownload();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void cancelHeadersFirstDownload() {
+        lock.lock();
+        try {
+            if (runningHeadersFirstDownload != null) {
+                runningHeadersFirstDownload.cancel();
+                runningHeadersFirstDownload = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private HeadersFirstDownload getRunningHeadersFirstDownload() {
+        lock.lock();
+        try {
+            return runningHeadersFirstDownload != null && runningHeadersFirstDownload.isRunning()
+                    ? runningHeadersFirstDownload : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>If enabled, the block chain is downloaded headers first: the headers are fetched from the download peer, and
+     * the blocks are then fetched from all connected peers in parallel and added to the chain in order. This is
+     * faster when syncing a full chain, e.g. with a {@link FullPrunedBlockChain}, but downloads full blocks rather
+     * than filtered ones, so it isn't meant for SPV wallets. Once the download is done, the download peer continues
+     * as usual. Disabled by default.</p>
+     *
+     * <p>Takes effect the next time the chain download is started.</p>
+     */
+    public void setHeadersFirstDownload(boolean headersFirstDownload) {
+        lock.lock();
+        try {
+            this.headersFirstDownload = headersFirstDownload;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the block chain is downloaded headers first, see {@link #setHeadersFirstDownload(boolean)}. */
+    public boolean isHeadersFirstDownload() {
+        lock.lock();
+        try {
+            return headersFirstDownload;
         } finally {
             lock.unlock();
         }
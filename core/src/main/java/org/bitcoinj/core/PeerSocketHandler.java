@@ -16,27 +16,34 @@
 
 package org.bitcoinj.core;
 
+import com.google.common.primitives.Bytes;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.bitcoinj.net.AbstractTimeoutHandler;
+import org.bitcoinj.net.BufferPool;
 import org.bitcoinj.net.MessageWriteTarget;
 import org.bitcoinj.net.NioClient;
 import org.bitcoinj.net.NioClientManager;
 import org.bitcoinj.net.StreamConnection;
+import org.bitcoinj.net.StreamWriteTarget;
 import org.bitcoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Lock;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
 import static com.google.common.base.Preconditions.*;
 
 /**
@@ -57,9 +64,33 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
     // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
+    @Nullable private LargeMessageBuffer largeReadBuffer;
     private BitcoinSerializer.BitcoinPacketHeader header;
+    // Blocks which are larger than the read buffer are instead fed through this parser, if isStreamingBlocks().
+    @Nullable private StreamingBlockParser blockParser;
+    @Nullable private volatile StreamingBlockParser.Listener streamingBlockListener;
+    private final StreamingBlockParser.ListenerSelector blockListenerSelector =
+            new StreamingBlockParser.ListenerSelector() {
+                @Nullable
+                @Override
+                public StreamingBlockParser.Listener select(Block header) {
+                    return getStreamingBlockListener(header);
+                }
+            };
+
+    // Messages are decoded and processed on this executor if set, rather than on the network thread. See
+    // setMessageExecutor().
+    @Nullable private volatile Executor vMessageExecutor;
+    // Reading from the network pauses while the messages waiting to be processed add up to more than this many bytes.
+    private volatile int maxPendingMessageBytes = Message.MAX_SIZE * 2;
+    // At most this many messages are processed in one go, before the executor gets to run other peers' messages.
+    private static final int MAX_MESSAGES_PER_TASK = 16;
+    // The messages received but not processed yet, in the order they were received, and their size in total.
+    @GuardedBy("pendingMessages") private final ArrayDeque<PendingMessage> pendingMessages = new ArrayDeque<>();
+    @GuardedBy("pendingMessages") private long pendingMessageBytes;
+    // Whether a task processing the pending messages has been handed to the executor and hasn't finished yet.
+    @GuardedBy("pendingMessages") private boolean processingScheduled;
+    @GuardedBy("pendingMessages") private boolean readPaused;
 
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         checkNotNull(params);
@@ -86,11 +117,15 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            return writeTarget.writeBytes(out.toByteArray());
+            byte[] payload = message.unsafeBitcoinSerialize();
+            byte[] header = serializer.serializeHeader(message, payload);
+            if (writeTarget instanceof StreamWriteTarget) {
+                // The payload is sent straight from the array the message serialized itself to, or parsed from.
+                // Messages don't write to that array once it's handed out, they serialize to a new one if they change.
+                return ((StreamWriteTarget) writeTarget).writeBuffers(ByteBuffer.wrap(header), ByteBuffer.wrap(payload));
+            }
+            return writeTarget.writeBytes(Bytes.concat(header, payload));
         } catch (IOException e) {
             exceptionCaught(e);
             return Futures.immediateFailedFuture(e);
@@ -119,6 +154,57 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         close();
     }
 
+    /**
+     * Sets a listener which receives blocks that do not fit into the read buffer incrementally, transaction by
+     * transaction, instead of as a whole {@link Block} passed to {@link #processMessage(Message)}. This bounds the
+     * memory needed for very large blocks by the largest transaction, and is also the only way to receive blocks larger
+     * than {@link Message#MAX_SIZE}. Smaller blocks are still processed as usual. Pass null to turn streaming off.
+     * Blocks aren't streamed while a message executor is set, see {@link #setMessageExecutor(Executor)}.
+     */
+    public void setStreamingBlockListener(@Nullable StreamingBlockParser.Listener listener) {
+        this.streamingBlockListener = listener;
+    }
+
+    /**
+     * Returns true if a block which doesn't fit into the read buffer may be streamed, in which case
+     * {@link #getStreamingBlockListener(Block)} is asked for the listener once its header is in. Subclasses which
+     * stream some blocks themselves override both.
+     */
+    protected boolean isStreamingBlocks() {
+        return streamingBlockListener != null;
+    }
+
+    /**
+     * Returns the listener to stream the block with the given header to, or null to receive it as a whole
+     * {@link Block} after all, like any other message. Called on the network thread.
+     */
+    @Nullable
+    protected StreamingBlockParser.Listener getStreamingBlockListener(Block header) {
+        return streamingBlockListener;
+    }
+
+    /**
+     * <p>Sets an executor to decode and process the messages received, so the network thread only has to split what it
+     * reads into messages. That thread is usually shared by all peers, so without this, a message which takes a long
+     * time to process, such as a block, holds up reading from all of them. Pass null to do everything on the network
+     * thread again, which is the default.</p>
+     *
+     * <p>Messages are still processed one at a time and in order, whatever the number of threads of the executor. If
+     * they arrive faster than they are processed, reading from the peer is paused until the backlog is down again.
+     * The executor can be shared by many peers; each one only ever has one task queued in it.</p>
+     *
+     * <p>Streaming of blocks is turned off while an executor is set, as it would happen on the network thread, out of
+     * order with the queued messages. Large blocks are then received whole, up to {@link Message#MAX_SIZE}.</p>
+     */
+    public void setMessageExecutor(@Nullable Executor executor) {
+        this.vMessageExecutor = executor;
+    }
+
+    @VisibleForTesting
+    void setMaxPendingMessageBytes(int maxPendingMessageBytes) {
+        this.maxPendingMessageBytes = maxPendingMessageBytes;
+    }
+
     /**
      * Called every time a message is received from the network
      */
@@ -132,18 +218,35 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
             // Repeatedly try to deserialize messages until we hit a BufferUnderflowException
             boolean firstMessage = true;
             while (true) {
+                // If we are in the middle of streaming a block, feed it the new bytes first
+                if (blockParser != null) {
+                    // This can only happen in the first iteration
+                    checkState(firstMessage);
+                    blockParser.feed(buff);
+                    if (blockParser.isComplete()) {
+                        byte[] payload = blockParser.getCollectedPayload();
+                        if (payload != null)
+                            dispatchPayload(header, payload);
+                        blockParser = null;
+                        header = null;
+                        firstMessage = false;
+                    } else
+                        return buff.position();
+                }
                 // If we are in the middle of reading a message, try to fill that one first, before we expect another
                 if (largeReadBuffer != null) {
                     // This can only happen in the first iteration
                     checkState(firstMessage);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
+                    largeReadBuffer.put(buff);
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (largeReadBuffer.isComplete()) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        Executor executor = vMessageExecutor;
+                        if (executor != null)
+                            queueMessage(executor, header, largeReadBuffer.toByteArray());
+                        else
+                            processMessage(serializer.deserializePayload(header, largeReadBuffer.toByteArray()));
                         largeReadBuffer = null;
                         header = null;
                         firstMessage = false;
@@ -151,10 +254,22 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                         return buff.position();
                 }
                 // Now try to deserialize any messages left in buff
-                Message message;
+                Message message = null;
                 int preSerializePosition = buff.position();
+                Executor executor = vMessageExecutor;
                 try {
-                    message = serializer.deserialize(buff);
+                    if (executor != null) {
+                        // Only cut the message out of buff, it's decoded along with being processed
+                        serializer.seekPastMagicBytes(buff);
+                        BitcoinSerializer.BitcoinPacketHeader messageHeader = serializer.deserializeHeader(buff);
+                        if (buff.remaining() < messageHeader.size)
+                            throw new BufferUnderflowException();
+                        byte[] payload = new byte[messageHeader.size];
+                        buff.get(payload);
+                        queueMessage(executor, messageHeader, payload);
+                    } else {
+                        message = serializer.deserialize(buff);
+                    }
                 } catch (BufferUnderflowException e) {
                     // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
                     if (firstMessage && buff.limit() == buff.capacity()) {
@@ -163,11 +278,21 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                         try {
                             serializer.seekPastMagicBytes(buff);
                             header = serializer.deserializeHeader(buff);
+                            if (header.command.equals("block") && vMessageExecutor == null && isStreamingBlocks()) {
+                                // Hand the block to a parser which doesn't need all of it in memory, unless it turns
+                                // out to be a block nobody wants streamed. Not with an executor though: the parser
+                                // calls back on this thread, which would overtake messages still waiting to be
+                                // processed.
+                                blockParser = new StreamingBlockParser(serializer, header, blockListenerSelector);
+                                blockParser.feed(buff);
+                                return buff.position();
+                            }
+                            if (header.size > Message.MAX_SIZE)
+                                throw new ProtocolException("Message size too large: " + header.size);
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            largeReadBuffer = new LargeMessageBuffer(header.size, BufferPool.DEFAULT);
+                            largeReadBuffer.put(buff);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
                             // In cases where the buff is just really small, we could create a second largeReadBuffer
@@ -183,7 +308,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     return buff.position();
                 }
                 // Process our freshly deserialized message
-                processMessage(message);
+                if (message != null)
+                    processMessage(message);
                 firstMessage = false;
             }
         } catch (Exception e) {
@@ -192,6 +318,90 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    // Processes a message which was received whole, on the executor if there is one.
+    private void dispatchPayload(BitcoinSerializer.BitcoinPacketHeader header, byte[] payload) throws Exception {
+        Executor executor = vMessageExecutor;
+        if (executor != null)
+            queueMessage(executor, header, payload);
+        else
+            processMessage(serializer.deserializePayload(header, payload));
+    }
+
+    // A message which has been received but not decoded yet.
+    private static class PendingMessage {
+        final BitcoinSerializer.BitcoinPacketHeader header;
+        final byte[] payload;
+
+        PendingMessage(BitcoinSerializer.BitcoinPacketHeader header, byte[] payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+    }
+
+    // Queues a message to be processed on the given executor, after the ones received before it. Pauses reading if
+    // too much is waiting already.
+    private void queueMessage(Executor executor, BitcoinSerializer.BitcoinPacketHeader header, byte[] payload) {
+        boolean schedule;
+        synchronized (pendingMessages) {
+            pendingMessages.add(new PendingMessage(header, payload));
+            pendingMessageBytes += payload.length;
+            schedule = !processingScheduled;
+            processingScheduled = true;
+            if (!readPaused && pendingMessageBytes > maxPendingMessageBytes) {
+                readPaused = true;
+                setReadPaused(true);
+            }
+        }
+        if (schedule)
+            scheduleProcessing(executor);
+    }
+
+    // Stops or resumes reading, if the write target can. Otherwise the messages just queue up.
+    private void setReadPaused(boolean paused) {
+        if (writeTarget instanceof StreamWriteTarget)
+            ((StreamWriteTarget) writeTarget).setReadPaused(paused);
+    }
+
+    private void scheduleProcessing(final Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                processPendingMessages(executor);
+            }
+        });
+    }
+
+    // Processes some of the pending messages, and hands the rest to the executor again so other peers get a turn.
+    private void processPendingMessages(Executor executor) {
+        for (int i = 0; i < MAX_MESSAGES_PER_TASK; i++) {
+            PendingMessage pending;
+            synchronized (pendingMessages) {
+                pending = pendingMessages.poll();
+                if (pending == null) {
+                    processingScheduled = false;
+                    return;
+                }
+                pendingMessageBytes -= pending.payload.length;
+                if (readPaused && pendingMessageBytes <= maxPendingMessageBytes / 2) {
+                    readPaused = false;
+                    setReadPaused(false);
+                }
+            }
+            try {
+                processMessage(serializer.deserializePayload(pending.header, pending.payload));
+            } catch (Exception e) {
+                synchronized (pendingMessages) {
+                    pendingMessages.clear();
+                    pendingMessageBytes = 0;
+                    processingScheduled = false;
+                }
+                exceptionCaught(e);
+                return;
+            }
+        }
+        scheduleProcessing(executor);
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link NioClient} or
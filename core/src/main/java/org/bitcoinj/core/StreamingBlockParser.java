@@ -0,0 +1,389 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.net.BufferPool;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static org.bitcoinj.core.Utils.HEX;
+
+/**
+ * <p>Parses a block message incrementally, as its bytes arrive from the network. Instead of materializing the whole
+ * block, each transaction is handed to a {@link Listener} as soon as it has been received completely, and then
+ * forgotten. The payload checksum and the merkle root are calculated on the fly and checked once the last byte has
+ * been read, so the memory needed is bounded by the largest single transaction rather than by the block size.</p>
+ *
+ * <p>Instances are obtained from {@link BitcoinSerializer#makeStreamingBlockParser(BitcoinSerializer.BitcoinPacketHeader, Listener)}
+ * and are fed by calling {@link #feed(ByteBuffer)} repeatedly until {@link #isComplete()} returns true. This class
+ * is NOT thread safe.</p>
+ */
+public class StreamingBlockParser {
+    /**
+     * Receives the parts of a block from a {@link StreamingBlockParser}.
+     */
+    public interface Listener {
+        /**
+         * Called once the 80 byte header and the transaction count have been read. The given block has no
+         * transactions.
+         */
+        void onBlockHeader(Block header, long transactionCount) throws Exception;
+
+        /**
+         * Called for every transaction of the block, in block order. The transaction has no parent block.
+         */
+        void onTransaction(Block header, Transaction tx, int index) throws Exception;
+
+        /**
+         * Called after the last transaction, once the checksum and the merkle root have been verified.
+         */
+        void onBlockComplete(Block header) throws Exception;
+    }
+
+    /**
+     * Picks the listener for a block once its header has been read, see
+     * {@link StreamingBlockParser#StreamingBlockParser(MessageSerializer, BitcoinSerializer.BitcoinPacketHeader, ListenerSelector)}.
+     */
+    interface ListenerSelector {
+        /** Returns the listener to stream the block with the given header to, or null to collect it whole. */
+        @Nullable
+        Listener select(Block header);
+    }
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final MessageSerializer serializer;
+    private final BitcoinSerializer.BitcoinPacketHeader packetHeader;
+    @Nullable private final ListenerSelector selector;
+    // Null until the header has been read if there is a selector.
+    @Nullable private Listener listener;
+    // The whole payload, if the selector didn't pick a listener.
+    @Nullable private LargeMessageBuffer collected;
+    private final MessageDigest checksumDigest = Sha256Hash.newDigest();
+    private final MerkleRootAccumulator merkleRoot = new MerkleRootAccumulator();
+
+    // Bytes of the header or the current transaction which have been received so far. Only grows if a single
+    // transaction is larger than the buffer.
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int bufferLength = 0;
+    private long bytesRemaining;
+
+    private Block header;
+    private long transactionCount = -1;
+    private int transactionIndex = 0;
+    private final TransactionScanner scanner = new TransactionScanner();
+
+    StreamingBlockParser(MessageSerializer serializer, BitcoinSerializer.BitcoinPacketHeader packetHeader,
+                         Listener listener) {
+        this(serializer, packetHeader, checkNotNull(listener), null);
+    }
+
+    /**
+     * Makes a parser which asks the given selector for the listener once the block header has been read. If it
+     * doesn't return one, the parser just collects the payload, see {@link #getCollectedPayload()}. That way the
+     * decision to stream a block can depend on which block it is.
+     */
+    StreamingBlockParser(MessageSerializer serializer, BitcoinSerializer.BitcoinPacketHeader packetHeader,
+                         ListenerSelector selector) {
+        this(serializer, packetHeader, null, checkNotNull(selector));
+    }
+
+    private StreamingBlockParser(MessageSerializer serializer, BitcoinSerializer.BitcoinPacketHeader packetHeader,
+                                 @Nullable Listener listener, @Nullable ListenerSelector selector) {
+        checkArgument(packetHeader.command.equals("block"), "Not a block message: %s", packetHeader.command);
+        this.serializer = serializer;
+        this.packetHeader = packetHeader;
+        this.listener = listener;
+        this.selector = selector;
+        this.bytesRemaining = packetHeader.size;
+    }
+
+    /**
+     * Consumes as many bytes of the block payload as are available in the given buffer, but never more than the
+     * payload has left, and passes all transactions that have been completed to the listener.
+     *
+     * @return the number of bytes consumed from the buffer.
+     */
+    public int feed(ByteBuffer in) throws Exception {
+        checkState(!isComplete(), "Block already complete");
+        final int length = (int) Math.min(in.remaining(), bytesRemaining);
+        if (collected != null) {
+            collected.put(in);
+            bytesRemaining -= length;
+            return length;
+        }
+        ensureCapacity(bufferLength + length);
+        in.get(buffer, bufferLength, length);
+        checksumDigest.update(buffer, bufferLength, length);
+        bufferLength += length;
+        bytesRemaining -= length;
+
+        compact(parse());
+        if (collected != null)
+            return length;
+
+        if (transactionIndex == transactionCount && bufferLength > 0)
+            throw new ProtocolException("Block " + header.getHashAsString() + " has trailing bytes after its last "
+                    + "transaction");
+        if (bytesRemaining == 0) {
+            if (header == null || transactionIndex < transactionCount)
+                throw new ProtocolException("Block message of " + packetHeader.size + " bytes ended after "
+                        + transactionIndex + " of " + Math.max(transactionCount, 0) + " transactions");
+            verify();
+            listener.onBlockComplete(header);
+        }
+        return length;
+    }
+
+    // Parses whatever is complete in the buffer, returns the number of bytes which are done with.
+    private int parse() throws Exception {
+        int consumed = 0;
+        if (header == null) {
+            if (bufferLength < Block.HEADER_SIZE)
+                return 0;
+            header = serializer.makeBlock(Arrays.copyOf(buffer, Block.HEADER_SIZE), 0, Block.HEADER_SIZE);
+            if (listener == null) {
+                listener = selector.select(header);
+                if (listener == null) {
+                    startCollecting();
+                    return 0;
+                }
+            }
+            consumed = Block.HEADER_SIZE;
+        }
+        if (transactionCount < 0) {
+            if (!varIntAvailable(buffer, consumed, bufferLength))
+                return consumed;
+            final VarInt count = new VarInt(buffer, consumed);
+            if (count.value <= 0 || count.value > Block.MAX_BLOCK_SIZE)
+                throw new ProtocolException("Bad transaction count in block " + header.getHashAsString() + ": "
+                        + count.value);
+            transactionCount = count.value;
+            consumed += count.getOriginalSizeInBytes();
+            listener.onBlockHeader(header, transactionCount);
+        }
+        while (transactionIndex < transactionCount) {
+            final int txLength = scanner.scan(buffer, consumed, bufferLength);
+            if (txLength < 0)
+                break;
+            final byte[] txBytes = Arrays.copyOfRange(buffer, consumed, consumed + txLength);
+            final byte[] hash = Sha256Hash.hashTwice(txBytes);
+            final Transaction tx = serializer.makeTransaction(txBytes, 0, txLength, hash);
+            // Label the transaction as coming from the P2P network, like the transactions of a parsed block.
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            merkleRoot.add(hash);
+            listener.onTransaction(header, tx, transactionIndex++);
+            consumed += txLength;
+            scanner.reset();
+        }
+        return consumed;
+    }
+
+    // Switches to collecting the payload, starting with what was fed so far, which is still all in the buffer.
+    private void startCollecting() throws ProtocolException {
+        if (packetHeader.size > Message.MAX_SIZE)
+            throw new ProtocolException("Message size too large: " + packetHeader.size);
+        collected = new LargeMessageBuffer(packetHeader.size, BufferPool.DEFAULT);
+        collected.put(ByteBuffer.wrap(buffer, 0, bufferLength));
+        buffer = null;
+        bufferLength = 0;
+    }
+
+    /**
+     * Returns true once the whole payload has been read and verified, or collected.
+     */
+    public boolean isComplete() {
+        if (collected != null)
+            return bytesRemaining == 0;
+        return bytesRemaining == 0 && transactionCount >= 0 && transactionIndex == transactionCount;
+    }
+
+    /**
+     * Returns the whole payload once it's complete, if it was collected rather than streamed because the selector
+     * didn't pick a listener for the block. It hasn't been checked against the checksum. The payload is collected in
+     * pooled buffers, which are handed back by this call, so it can only be called once.
+     */
+    @Nullable
+    byte[] getCollectedPayload() {
+        return collected != null && isComplete() ? collected.toByteArray() : null;
+    }
+
+    /**
+     * Returns the number of payload bytes which have not been fed yet.
+     */
+    public long getBytesRemaining() {
+        return bytesRemaining;
+    }
+
+    private void verify() throws ProtocolException, VerificationException {
+        final byte[] hash = Sha256Hash.hash(checksumDigest.digest());
+        final byte[] checksum = packetHeader.checksum;
+        if (checksum[0] != hash[0] || checksum[1] != hash[1] || checksum[2] != hash[2] || checksum[3] != hash[3])
+            throw new ProtocolException("Checksum failed to verify, actual " + HEX.encode(hash) + " vs "
+                    + HEX.encode(checksum));
+        final Sha256Hash calculatedRoot = merkleRoot.getRoot();
+        if (!calculatedRoot.equals(header.getMerkleRoot()))
+            throw new VerificationException("Merkle hashes do not match: " + calculatedRoot + " vs "
+                    + header.getMerkleRoot());
+    }
+
+    // Drops the consumed bytes from the front of the buffer.
+    private void compact(int consumed) {
+        if (consumed > 0) {
+            System.arraycopy(buffer, consumed, buffer, 0, bufferLength - consumed);
+            bufferLength -= consumed;
+            scanner.shift(consumed);
+        }
+    }
+
+    private static boolean varIntAvailable(byte[] buf, int offset, int end) {
+        if (offset >= end)
+            return false;
+        final int first = 0xFF & buf[offset];
+        final int size = first < 253 ? 1 : first == 253 ? 3 : first == 254 ? 5 : 9;
+        return offset + size <= end;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+
+    /**
+     * Finds the length of a serialized transaction within a partially received buffer. Scanning is resumable, so
+     * a transaction that arrives in many pieces is only looked at once.
+     */
+    static class TransactionScanner {
+        private static final int VERSION = 0, INPUT_COUNT = 1, INPUTS = 2, OUTPUT_COUNT = 3, OUTPUTS = 4,
+                LOCK_TIME = 5;
+
+        private int state = VERSION;
+        // Position of the next element to scan, relative to the start of the buffer.
+        private int cursor = -1;
+        private long itemsLeft;
+
+        void reset() {
+            state = VERSION;
+            cursor = -1;
+        }
+
+        void shift(int bytes) {
+            if (cursor >= 0)
+                cursor -= bytes;
+        }
+
+        /**
+         * Continues scanning the transaction starting at {@code start} of the buffer.
+         *
+         * @return the length of the transaction, or -1 if more bytes are needed.
+         */
+        int scan(byte[] buf, int start, int end) throws ProtocolException {
+            if (cursor < 0)
+                cursor = start;
+            while (true) {
+                switch (state) {
+                    case VERSION:
+                        if (cursor + 4 > end)
+                            return -1;
+                        cursor += 4;
+                        state = INPUT_COUNT;
+                        break;
+                    case INPUT_COUNT:
+                    case OUTPUT_COUNT:
+                        if (!varIntAvailable(buf, cursor, end))
+                            return -1;
+                        final VarInt count = new VarInt(buf, cursor);
+                        if (count.value < 0 || count.value > Block.MAX_BLOCK_SIZE)
+                            throw new ProtocolException("Bad count in transaction: " + count.value);
+                        cursor += count.getOriginalSizeInBytes();
+                        itemsLeft = count.value;
+                        state = state == INPUT_COUNT ? INPUTS : OUTPUTS;
+                        break;
+                    case INPUTS:
+                    case OUTPUTS:
+                        if (itemsLeft == 0) {
+                            state = state == INPUTS ? OUTPUT_COUNT : LOCK_TIME;
+                            break;
+                        }
+                        // An input is an outpoint, a script and a sequence number; an output is a value and a script.
+                        final int prefix = state == INPUTS ? 36 : 8;
+                        final int suffix = state == INPUTS ? 4 : 0;
+                        if (!varIntAvailable(buf, cursor + prefix, end))
+                            return -1;
+                        final VarInt scriptLength = new VarInt(buf, cursor + prefix);
+                        if (scriptLength.value < 0 || scriptLength.value > Block.MAX_BLOCK_SIZE)
+                            throw new ProtocolException("Bad script length in transaction: " + scriptLength.value);
+                        final long itemLength = prefix + scriptLength.getOriginalSizeInBytes() + scriptLength.value + suffix;
+                        if (cursor + itemLength > end)
+                            return -1;
+                        cursor += itemLength;
+                        itemsLeft--;
+                        break;
+                    case LOCK_TIME:
+                        if (cursor + 4 > end)
+                            return -1;
+                        return cursor + 4 - start;
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates a merkle root from leaves which are added one at a time, keeping only one pending hash per level of
+     * the tree. The result is the same as {@link Block#getMerkleRoot()} for the same transactions, including the
+     * duplication of the last hash on levels with an odd number of nodes.
+     */
+    static class MerkleRootAccumulator {
+        private final byte[][] inner = new byte[32][];
+        private long count = 0;
+
+        /**
+         * Adds a leaf, in the internal byte order that is hashed, i.e. reversed compared to {@link Sha256Hash}.
+         */
+        void add(byte[] hash) {
+            count++;
+            int level = 0;
+            for (; (count & (1L << level)) == 0; level++)
+                hash = Sha256Hash.hashTwice(inner[level], hash);
+            inner[level] = hash;
+        }
+
+        Sha256Hash getRoot() {
+            checkState(count > 0, "No transactions");
+            int level = 0;
+            while ((count & (1L << level)) == 0)
+                level++;
+            byte[] hash = inner[level];
+            long n = count;
+            while (n != (1L << level)) {
+                // Not the top yet, so this node has no sibling and is paired with itself.
+                hash = Sha256Hash.hashTwice(hash, hash);
+                n += 1L << level;
+                level++;
+                for (; (n & (1L << level)) == 0; level++)
+                    hash = Sha256Hash.hashTwice(inner[level], hash);
+            }
+            return Sha256Hash.wrapReversed(hash);
+        }
+    }
+}
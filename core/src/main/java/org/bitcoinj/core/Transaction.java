@@ -31,6 +31,7 @@ import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletTransaction.Pool;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
@@ -144,6 +145,9 @@ public class Transaction extends ChildMessage {
     // These are in memory helpers only. They contain the transaction hashes without and with witness.
     private Sha256Hash cachedTxId;
 
+    // In memory helper for hashForSignatureWitness(), shared by all inputs. See SigHashPrecomputedData.
+    @Nullable private volatile SigHashPrecomputedData cachedSigHashData;
+
     // Data about how confirmed this tx is. Serialized, may be null.
     @Nullable private TransactionConfidence confidence;
 
@@ -573,6 +577,7 @@ public class Transaction extends ChildMessage {
     @Override
     protected void parse() throws ProtocolException {
         cursor = offset;
+        cachedSigHashData = null;
 
         version = readUint32();
         optimalEncodingMessageSize = 4;
@@ -792,6 +797,7 @@ public class Transaction extends ChildMessage {
      */
     public void clearInputs() {
         unCache();
+        invalidateSigHashPrecomputedData();
         for (TransactionInput input : inputs) {
             input.setParent(null);
         }
@@ -817,6 +823,7 @@ public class Transaction extends ChildMessage {
      */
     public TransactionInput addInput(TransactionInput input) {
         unCache();
+        invalidateSigHashPrecomputedData();
         input.setParent(this);
         inputs.add(input);
         adjustLength(inputs.size(), input.length);
@@ -943,6 +950,7 @@ public class Transaction extends ChildMessage {
      */
     public void clearOutputs() {
         unCache();
+        invalidateSigHashPrecomputedData();
         for (TransactionOutput output : outputs) {
             output.setParent(null);
         }
@@ -956,6 +964,7 @@ public class Transaction extends ChildMessage {
      */
     public TransactionOutput addOutput(TransactionOutput to) {
         unCache();
+        invalidateSigHashPrecomputedData();
         to.setParent(this);
         outputs.add(to);
         adjustLength(outputs.size(), to.length);
@@ -1283,41 +1292,25 @@ public class Transaction extends ChildMessage {
             boolean anyoneCanPay)
     {
         byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay, true);
-        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
+        // Everything but the script code has a fixed size, so don't size the buffer by the (possibly huge) tx length.
+        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(165 + connectedScript.length);
         try {
             byte[] hashPrevouts = new byte[32];
             byte[] hashSequence = new byte[32];
             byte[] hashOutputs = new byte[32];
             anyoneCanPay = (sigHashType & SIGHASH_ANYONECANPAY_VALUE) == SIGHASH_ANYONECANPAY_VALUE;
+            SigHashPrecomputedData precomputed = getSigHashPrecomputedData();
 
             if (!anyoneCanPay) {
-                ByteArrayOutputStream bosHashPrevouts = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.inputs.size(); ++i) {
-                    bosHashPrevouts.write(this.inputs.get(i).getOutpoint().getHash().getReversedBytes());
-                    uint32ToByteStreamLE(this.inputs.get(i).getOutpoint().getIndex(), bosHashPrevouts);
-                }
-                hashPrevouts = Sha256Hash.hashTwice(bosHashPrevouts.toByteArray());
+                hashPrevouts = precomputed.hashPrevouts;
             }
 
             if (!anyoneCanPay && type != SigHash.SINGLE && type != SigHash.NONE) {
-                ByteArrayOutputStream bosSequence = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.inputs.size(); ++i) {
-                    uint32ToByteStreamLE(this.inputs.get(i).getSequenceNumber(), bosSequence);
-                }
-                hashSequence = Sha256Hash.hashTwice(bosSequence.toByteArray());
+                hashSequence = precomputed.hashSequence;
             }
 
             if (type != SigHash.SINGLE && type != SigHash.NONE) {
-                ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.outputs.size(); ++i) {
-                    uint64ToByteStreamLE(
-                            BigInteger.valueOf(this.outputs.get(i).getValue().getValue()),
-                            bosHashOutputs
-                    );
-                    bosHashOutputs.write(new VarInt(this.outputs.get(i).getScriptBytes().length).encode());
-                    bosHashOutputs.write(this.outputs.get(i).getScriptBytes());
-                }
-                hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
+                hashOutputs = precomputed.hashOutputs;
             } else if (type == SigHash.SINGLE && inputIndex < outputs.size()) {
                 ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
                 uint64ToByteStreamLE(
@@ -1347,6 +1340,69 @@ public class Transaction extends ChildMessage {
         return Sha256Hash.twiceOf(bos.toByteArray());
     }
 
+    /**
+     * Returns the precomputed parts of the signature hash for this transaction, computing them on first use. They are
+     * then reused for every input that is signed or verified, until the inputs or outputs are modified.
+     */
+    private SigHashPrecomputedData getSigHashPrecomputedData() throws IOException {
+        SigHashPrecomputedData data = cachedSigHashData;
+        if (data == null) {
+            data = new SigHashPrecomputedData();
+            cachedSigHashData = data;
+        }
+        return data;
+    }
+
+    /**
+     * Drops the precomputed signature hash data. Must be called whenever an outpoint, a sequence number or an output
+     * of this transaction changes. Script changes of inputs don't affect it, so signing doesn't invalidate it.
+     */
+    void invalidateSigHashPrecomputedData() {
+        cachedSigHashData = null;
+    }
+
+    /** Returns true if the signature hash data has been precomputed and not been invalidated since. */
+    @VisibleForTesting
+    boolean isSigHashDataPrecomputed() {
+        return cachedSigHashData != null;
+    }
+
+    /**
+     * <p>Holds hashPrevouts, hashSequence and hashOutputs as defined by BIP143, which is also the basis of the
+     * Bitcoin Cash (forkid) signature hash. These are the same for all inputs of a transaction, so computing them once
+     * turns signing or verifying all inputs of a transaction from quadratic into linear work.</p>
+     *
+     * <p>Instances are immutable, so they can be shared between threads through the volatile
+     * {@link #cachedSigHashData}.</p>
+     */
+    private final class SigHashPrecomputedData {
+        private final byte[] hashPrevouts;
+        private final byte[] hashSequence;
+        private final byte[] hashOutputs;
+
+        SigHashPrecomputedData() throws IOException {
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(inputs.size() * 36);
+            for (TransactionInput input : inputs) {
+                bos.write(input.getOutpoint().getHash().getReversedBytes());
+                uint32ToByteStreamLE(input.getOutpoint().getIndex(), bos);
+            }
+            hashPrevouts = Sha256Hash.hashTwice(bos.toByteArray());
+
+            bos = new UnsafeByteArrayOutputStream(inputs.size() * 4);
+            for (TransactionInput input : inputs)
+                uint32ToByteStreamLE(input.getSequenceNumber(), bos);
+            hashSequence = Sha256Hash.hashTwice(bos.toByteArray());
+
+            bos = new UnsafeByteArrayOutputStream(256);
+            for (TransactionOutput output : outputs) {
+                uint64ToByteStreamLE(BigInteger.valueOf(output.getValue().getValue()), bos);
+                bos.write(new VarInt(output.getScriptBytes().length).encode());
+                bos.write(output.getScriptBytes());
+            }
+            hashOutputs = Sha256Hash.hashTwice(bos.toByteArray());
+        }
+    }
+
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         // version
@@ -1435,6 +1491,7 @@ public class Transaction extends ChildMessage {
 
     /** Randomly re-orders the transaction outputs: good for privacy */
     public void shuffleOutputs() {
+        invalidateSigHashPrecomputedData();
         Collections.shuffle(outputs);
     }
 
@@ -30,8 +30,6 @@ import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.*;
 
-// TODO: Modify the getDepthInBlocks method to require the chain height to be specified, in preparation for ceasing to touch every tx on every block.
-
 /**
  * <p>A TransactionConfidence object tracks data you can use to make a confidence decision about a transaction.
  * It also contains some pre-canned rules for common scenarios: if you aren't really sure what level of confidence
@@ -56,8 +54,9 @@ import static com.google.common.base.Preconditions.*;
  * <p>Alternatively, you may know that the transaction is "dead", that is, one or more of its inputs have
  * been double spent and will never confirm unless there is another re-org.</p>
  *
- * <p>TransactionConfidence is updated via the {@link TransactionConfidence#incrementDepthInBlocks()}
- * method to ensure the block depth is up to date.</p>
+ * <p>The depth of a transaction in a {@link Wallet} is derived from the height it appeared at and the height of the
+ * wallet's best chain, see {@link BestChainHeight}, so the wallet doesn't need to touch every transaction on every
+ * block. Otherwise it has to be kept up to date via {@link TransactionConfidence#incrementDepthInBlocks()}.</p>
  * To make a copy that won't be changed, use {@link TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence {
@@ -80,8 +79,40 @@ public class TransactionConfidence {
     // Lazily created listeners array.
     private CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
 
-    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
+    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0. Only used if the
+    // depth can't be derived from bestChainHeight.
     private int depth;
+    @Nullable private BestChainHeight bestChainHeight;
+    // The number of futures from getDepthFuture() which are not complete yet.
+    private int pendingDepthFutures;
+
+    /**
+     * <p>The height of the best chain, as known to whoever tracks a set of transactions, usually a {@link Wallet}.
+     * Confidence objects which are given one through {@link #setBestChainHeight(BestChainHeight)} derive the depth
+     * of a BUILDING transaction from it, so they don't have to be updated on every block.</p>
+     *
+     * <p>It also keeps the confidence objects which are waiting for a depth through {@link #getDepthFuture(int)},
+     * which the tracker has to notify on every block until they get there.</p>
+     */
+    public static class BestChainHeight {
+        private volatile int height = -1;
+        private final Set<TransactionConfidence> awaitingDepth =
+                Collections.newSetFromMap(new ConcurrentHashMap<TransactionConfidence, Boolean>());
+
+        /** Returns the height of the best chain, or -1 if it is unknown. */
+        public int get() {
+            return height;
+        }
+
+        public void set(int height) {
+            this.height = height;
+        }
+
+        /** Returns a snapshot of the confidence objects which are waiting for a depth. */
+        public List<TransactionConfidence> getAwaitingDepth() {
+            return new ArrayList<>(awaitingDepth);
+        }
+    }
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -379,6 +410,22 @@ public class TransactionConfidence {
         return ++this.depth;
     }
 
+    /**
+     * Makes the depth derive from the given best chain height, rather than from {@link #incrementDepthInBlocks()}.
+     * Called by the {@link Wallet} that holds the transaction.
+     */
+    public synchronized void setBestChainHeight(@Nullable BestChainHeight bestChainHeight) {
+        if (bestChainHeight == this.bestChainHeight)
+            return;
+        if (pendingDepthFutures > 0) {
+            if (this.bestChainHeight != null)
+                this.bestChainHeight.awaitingDepth.remove(this);
+            if (bestChainHeight != null)
+                bestChainHeight.awaitingDepth.add(this);
+        }
+        this.bestChainHeight = bestChainHeight;
+    }
+
     /**
      * <p>Depth in the chain is an approximation of how much time has elapsed since the transaction has been confirmed.
      * On average there is supposed to be a new block every 10 minutes, but the actual rate may vary. Bitcoin Core
@@ -390,6 +437,10 @@ public class TransactionConfidence {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
+        int chainHeight = bestChainHeight != null ? bestChainHeight.get() : -1;
+        if (confidenceType == ConfidenceType.BUILDING && appearedAtChainHeight >= 0 && chainHeight >= 0)
+            // The chain height can lag behind while the block the transaction appeared in is being processed.
+            return Math.max(1, chainHeight - appearedAtChainHeight + 1);
         return depth;
     }
 
@@ -445,6 +496,8 @@ public class TransactionConfidence {
             c.confidenceType = confidenceType;
             c.overridingTransaction = overridingTransaction;
             c.appearedAtChainHeight = appearedAtChainHeight;
+            // The copy doesn't follow the best chain height, so it keeps the depth as it is now.
+            c.depth = getDepthInBlocks();
         }
         return c;
     }
@@ -496,10 +549,14 @@ public class TransactionConfidence {
         if (getDepthInBlocks() >= depth) {
             result.set(this);
         }
+        // Tell the tracker of the best chain height we need to hear about every block, until we're deep enough.
+        if (pendingDepthFutures++ == 0 && bestChainHeight != null)
+            bestChainHeight.awaitingDepth.add(this);
         addEventListener(executor, new Listener() {
             @Override public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
                 if (getDepthInBlocks() >= depth) {
-                    removeEventListener(this);
+                    if (removeEventListener(this))
+                        depthFutureDone();
                     result.set(confidence);
                 }
             }
@@ -507,6 +564,11 @@ public class TransactionConfidence {
         return result;
     }
 
+    private synchronized void depthFutureDone() {
+        if (--pendingDepthFutures == 0 && bestChainHeight != null)
+            bestChainHeight.awaitingDepth.remove(this);
+    }
+
     public synchronized ListenableFuture<TransactionConfidence> getDepthFuture(final int depth) {
         return getDepthFuture(depth, Threading.USER_THREAD);
     }
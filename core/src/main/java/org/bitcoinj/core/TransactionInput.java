@@ -98,6 +98,7 @@ public class TransactionInput extends ChildMessage {
         super(params);
         this.scriptBytes = scriptBytes;
         this.outpoint = outpoint;
+        this.outpoint.setParent(this);
         this.sequence = NO_SEQUENCE;
         this.value = value;
         setParent(parentTransaction);
@@ -115,6 +116,7 @@ public class TransactionInput extends ChildMessage {
         } else {
             outpoint = new TransactionOutPoint(params, output);
         }
+        outpoint.setParent(this);
         scriptBytes = EMPTY_ARRAY;
         sequence = NO_SEQUENCE;
         setParent(parentTransaction);
@@ -222,6 +224,8 @@ public class TransactionInput extends ChildMessage {
      */
     public void setSequenceNumber(long sequence) {
         unCache();
+        if (parent != null)
+            getParentTransaction().invalidateSigHashPrecomputedData();
         this.sequence = sequence;
     }
 
@@ -192,6 +192,7 @@ public class TransactionOutPoint extends ChildMessage {
     }
 
     void setHash(Sha256Hash hash) {
+        outpointChanged();
         this.hash = hash;
     }
 
@@ -200,9 +201,21 @@ public class TransactionOutPoint extends ChildMessage {
     }
     
     public void setIndex(long index) {
+        outpointChanged();
         this.index = index;
     }
 
+    // The outpoints of a transaction are part of the signature hash of each of its inputs, which the transaction
+    // precomputes, see Transaction#hashForSignatureWitness().
+    private void outpointChanged() {
+        unCache();
+        if (parent instanceof TransactionInput) {
+            Transaction tx = ((TransactionInput) parent).getParentTransaction();
+            if (tx != null)
+                tx.invalidateSigHashPrecomputedData();
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -17,7 +17,9 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.script.*;
+import org.bitcoinj.script.Script.ScriptType;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.math.*;
 import java.util.Locale;
@@ -40,7 +42,13 @@ public class UTXO implements Serializable {
     private long index;
     private int height;
     private boolean coinbase;
+    // Null until derived from the script, see getAddress().
     private String address;
+    @Nullable private transient NetworkParameters params;
+    // Derived from the script on first use, see getAddressHash().
+    private transient byte[] addressHash;
+    private transient ScriptType scriptType;
+    private transient boolean addressHashDerived;
 
     /**
      * Creates a stored transaction output.
@@ -87,6 +95,30 @@ public class UTXO implements Serializable {
         this.address = address;
     }
 
+    /**
+     * Creates a stored transaction output whose address is only derived from the script, using the given network
+     * parameters, when {@link #getAddress()} is called. This is cheap to construct for outputs which are never
+     * looked up by address.
+     *
+     * @param hash     The hash of the containing transaction.
+     * @param index    The outpoint.
+     * @param value    The value available.
+     * @param height   The height this output was created in.
+     * @param coinbase The coinbase flag.
+     * @param params   The network the address is encoded for.
+     */
+    public UTXO(Sha256Hash hash,
+                long index,
+                Coin value,
+                int height,
+                boolean coinbase,
+                Script script,
+                NetworkParameters params) {
+        this(hash, index, value, height, coinbase, script);
+        this.address = null;
+        this.params = params;
+    }
+
     public UTXO(InputStream in) throws IOException {
         deserializeFromStream(in);
     }
@@ -121,11 +153,59 @@ public class UTXO implements Serializable {
         return coinbase;
     }
 
-    /** The address of this output, can be the empty string if none was provided at construction time or was deserialized */
+    /**
+     * The address of this output, can be the empty string if none was provided at construction time or was
+     * deserialized. If network parameters were provided instead, the address is derived from the script on first use,
+     * and is the empty string if the script doesn't pay to a pubkey (hash) or script hash.
+     */
     public String getAddress() {
+        if (address == null) {
+            byte[] hash = params != null ? getAddressHash() : null;
+            if (hash == null)
+                address = "";
+            else if (scriptType == ScriptType.P2SH)
+                address = LegacyAddress.fromScriptHash(params, hash).toString();
+            else
+                address = LegacyAddress.fromPubKeyHash(params, hash).toString();
+        }
         return address;
     }
 
+    /**
+     * The hash this output pays to: the pubkey hash of a pay to pubkey hash or pay to pubkey output, or the script
+     * hash of a pay to script hash output. Unlike {@link #getAddress()} this needs neither network parameters nor
+     * Base58 encoding, which makes it the key to index outputs by.
+     *
+     * @return the 20 byte hash, or null if the script doesn't pay to an address.
+     */
+    @Nullable
+    public byte[] getAddressHash() {
+        if (!addressHashDerived) {
+            if (ScriptPattern.isP2PKH(script)) {
+                scriptType = ScriptType.P2PKH;
+                addressHash = ScriptPattern.extractHashFromP2PKH(script);
+            } else if (ScriptPattern.isP2SH(script)) {
+                scriptType = ScriptType.P2SH;
+                addressHash = ScriptPattern.extractHashFromP2SH(script);
+            } else if (ScriptPattern.isP2PK(script)) {
+                scriptType = ScriptType.P2PK;
+                addressHash = Utils.sha256hash160(ScriptPattern.extractKeyFromP2PK(script));
+            }
+            addressHashDerived = true;
+        }
+        return addressHash;
+    }
+
+    /**
+     * The type of the script of this output, or null if it doesn't pay to an address. This is the type the
+     * {@link #getAddressHash()} belongs to.
+     */
+    @Nullable
+    public ScriptType getScriptType() {
+        getAddressHash();
+        return scriptType;
+    }
+
     @Override
     public String toString() {
         return String.format(Locale.US, "Stored TxOut of %s (%s:%d)", value.toFriendlyString(), hash, index);
@@ -41,9 +41,11 @@ public interface TransactionConfidenceEventListener {
      * <p>To find if the transaction is dead, you can use {@code tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD}.
      * If it is, you should notify the user in some way so they know the thing they bought may not arrive/the thing they sold should not be dispatched.</p>
      *
-     * <p>Note that this callback will be invoked for every transaction in the wallet, for every new block that is
-     * received (because the depth has changed). <b>If you want to update a UI view from the contents of the wallet
-     * it is more efficient to use onWalletChanged instead.</b></p>
+     * <p>Note that the depth of a transaction changes with every new block that is received, but this callback is only
+     * invoked when the depth reaches one of the wallet's depth notification thresholds, see
+     * {@link Wallet#setDepthNotificationThresholds(java.util.Collection)}. Read the depth from the confidence when
+     * you need it. <b>If you want to update a UI view from the contents of the wallet it is more efficient to use
+     * onWalletChanged instead.</b></p>
      */
     void onTransactionConfidenceChanged(Wallet wallet, Transaction tx);
 }
@@ -17,12 +17,18 @@
 package org.bitcoinj.crypto;
 
 import org.bitcoinj.core.*;
+import org.bitcoinj.utils.Threading;
+import org.bouncycastle.crypto.macs.HMac;
 import org.bouncycastle.math.ec.*;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+
 import java.math.*;
 import java.nio.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -50,6 +56,9 @@ public final class HDKeyDerivation {
      */
     public static final int MAX_CHILD_DERIVATION_ATTEMPTS = 100;
 
+    // Ranges are split across threads in chunks of at least this many keys.
+    private static final int MIN_DERIVATION_CHUNK = 128;
+
     /**
      * Generates a new deterministic key from the given seed, which can be any arbitrary byte array. However resist
      * the temptation to use a string as the seed - any key derived from a password is likely to be weak and easily
@@ -132,6 +141,113 @@ public final class HDKeyDerivation {
 
     }
 
+    /**
+     * <p>Derives {@code count} consecutive non-hardened child keys of the given parent, starting at {@code firstChild}.
+     * Like {@link #deriveThisOrNextChildKey(DeterministicKey, int)}, child numbers for which derivation fails are
+     * skipped. The keys are derived from the public key of the parent, as by
+     * {@link #deriveChildKeyFromPublic(DeterministicKey, ChildNumber, PublicDeriveMode)}.</p>
+     *
+     * <p>This is much faster than deriving the keys one by one: the public key of the parent is only decoded and
+     * encoded once, the points of the children are normalized together, and large ranges are derived in parallel on
+     * as many threads as there are processors.</p>
+     */
+    public static List<DeterministicKey> deriveChildKeysFromPublic(DeterministicKey parent, int firstChild, int count) {
+        return deriveChildKeysFromPublic(parent, firstChild, count, Runtime.getRuntime().availableProcessors());
+    }
+
+    static List<DeterministicKey> deriveChildKeysFromPublic(DeterministicKey parent, int firstChild, int count,
+                                                            int parallelism) {
+        checkArgument(count >= 0, "Negative count: %s", count);
+        checkArgument(!new ChildNumber(firstChild).isHardened(), "Hardened derivation is unsupported (%s).", firstChild);
+        List<DeterministicKey> keys = new ArrayList<>(count);
+        int nextChild = firstChild;
+        int nAttempts = 0;
+        while (keys.size() < count) {
+            int needed = count - keys.size();
+            List<DeterministicKey> derived = deriveChildKeyRange(parent, nextChild, needed, parallelism);
+            keys.addAll(derived);
+            nextChild += needed;
+            if (derived.size() < needed && ++nAttempts >= MAX_CHILD_DERIVATION_ATTEMPTS)
+                throw new HDDerivationException("Maximum number of child derivation attempts reached, this is probably an indication of a bug.");
+        }
+        return keys;
+    }
+
+    // Derives the valid keys among the given range of child numbers.
+    private static List<DeterministicKey> deriveChildKeyRange(DeterministicKey parent, int firstChild, int count,
+                                                              int parallelism) {
+        byte[] parentPublicKey = parent.getPubKeyPoint().getEncoded(true);
+        checkState(parentPublicKey.length == 33, "Parent pubkey must be 33 bytes, but is " + parentPublicKey.length);
+        int chunks = Math.min(parallelism, count / MIN_DERIVATION_CHUNK);
+        if (chunks <= 1)
+            return new ChildKeyRange(parent, parentPublicKey, firstChild, count).call();
+        ExecutorService executor = Threading.getComputePool();
+        try {
+            List<Future<List<DeterministicKey>>> futures = new ArrayList<>(chunks);
+            for (int i = 0; i < chunks; i++) {
+                int start = (int) ((long) count * i / chunks);
+                int end = (int) ((long) count * (i + 1) / chunks);
+                futures.add(executor.submit(new ChildKeyRange(parent, parentPublicKey, firstChild + start, end - start)));
+            }
+            List<DeterministicKey> keys = new ArrayList<>(count);
+            for (Future<List<DeterministicKey>> future : futures)
+                keys.addAll(Uninterruptibles.getUninterruptibly(future));
+            return keys;
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // Derives a range of public child keys on one thread.
+    private static class ChildKeyRange implements Callable<List<DeterministicKey>> {
+        private final DeterministicKey parent;
+        private final byte[] parentPublicKey;
+        private final int firstChild;
+        private final int count;
+
+        ChildKeyRange(DeterministicKey parent, byte[] parentPublicKey, int firstChild, int count) {
+            this.parent = parent;
+            this.parentPublicKey = parentPublicKey;
+            this.firstChild = firstChild;
+            this.count = count;
+        }
+
+        @Override
+        public List<DeterministicKey> call() {
+            HMac hmac = HDUtils.createHmacSha512Digest(parent.getChainCode());
+            ECPoint parentPoint = parent.getPubKeyPoint();
+            ByteBuffer data = ByteBuffer.allocate(37);
+            List<ECPoint> points = new ArrayList<>(count);
+            List<byte[]> chainCodes = new ArrayList<>(count);
+            List<ChildNumber> childNumbers = new ArrayList<>(count);
+            for (int n = 0; n < count; n++) {
+                data.clear();
+                data.put(parentPublicKey);
+                data.putInt(firstChild + n);
+                byte[] i = HDUtils.hmacSha512(hmac, data.array());
+                BigInteger ilInt = new BigInteger(1, Arrays.copyOfRange(i, 0, 32));
+                if (ilInt.compareTo(ECKey.CURVE.getN()) >= 0)
+                    continue;  // Illegal derived key: I_L >= n
+                ECPoint point = ECKey.publicPointFromPrivate(ilInt).add(parentPoint);
+                if (point.isInfinity())
+                    continue;  // Illegal derived key: derived public key equals infinity
+                points.add(point);
+                chainCodes.add(Arrays.copyOfRange(i, 32, 64));
+                childNumbers.add(new ChildNumber(firstChild + n, false));
+            }
+            // One field inversion for all of the points, rather than one each.
+            ECPoint[] normalized = points.toArray(new ECPoint[points.size()]);
+            ECKey.CURVE.getCurve().normalizeAll(normalized);
+            List<DeterministicKey> keys = new ArrayList<>(normalized.length);
+            for (int n = 0; n < normalized.length; n++) {
+                keys.add(new DeterministicKey(parent.getPath().extend(childNumbers.get(n)), chainCodes.get(n),
+                        new LazyECPoint(normalized[n], true), null, parent));
+            }
+            return keys;
+        }
+    }
+
     /**
      * @throws HDDerivationException if private derivation is attempted for a public-only parent key, or
      * if the resulting derived key is invalid (eg. private key == 0).
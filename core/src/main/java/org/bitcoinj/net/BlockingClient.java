@@ -21,6 +21,7 @@ import org.bitcoinj.core.*;
 import org.slf4j.*;
 
 import javax.annotation.*;
+import javax.annotation.concurrent.GuardedBy;
 import javax.net.*;
 import java.io.*;
 import java.net.*;
@@ -36,7 +37,7 @@ import static com.google.common.base.Preconditions.*;
  * and {@link BlockingClientManager}, unless you wish to connect over a proxy or use some other network settings that
  * cannot be set using NIO.</p>
  */
-public class BlockingClient implements MessageWriteTarget {
+public class BlockingClient implements StreamWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(BlockingClient.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
@@ -44,6 +45,9 @@ public class BlockingClient implements MessageWriteTarget {
 
     private Socket socket;
     private volatile boolean vCloseRequested = false;
+    // Guards readPaused, and is notified when reading resumes.
+    private final Object readPauseLock = new Object();
+    @GuardedBy("readPauseLock") private boolean readPaused = false;
     private SettableFuture<SocketAddress> connectFuture;
 
     /**
@@ -78,7 +82,7 @@ public class BlockingClient implements MessageWriteTarget {
                     connection.connectionOpened();
                     connectFuture.set(serverAddress);
                     InputStream stream = socket.getInputStream();
-                    runReadLoop(stream, connection);
+                    runReadLoop(stream, connection, BlockingClient.this);
                 } catch (Exception e) {
                     if (!vCloseRequested) {
                         log.error("Error trying to open/read from connection: {}: {}", serverAddress, e.getMessage());
@@ -106,11 +110,32 @@ public class BlockingClient implements MessageWriteTarget {
      * and feeds them to the provided {@link StreamConnection}, for example, a {@link Peer}.
      */
     public static void runReadLoop(InputStream stream, StreamConnection connection) throws Exception {
-        ByteBuffer dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        runReadLoop(stream, connection, null);
+    }
+
+    // The read loop, which waits while reading is paused if a client is given.
+    private static void runReadLoop(InputStream stream, StreamConnection connection, @Nullable BlockingClient client)
+            throws Exception {
+        int size = Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND);
+        BufferPool pool = size == BufferPool.DEFAULT.getBufferSize() ? BufferPool.DEFAULT : null;
+        ByteBuffer dbuf = pool != null ? pool.acquire() : ByteBuffer.allocateDirect(size);
+        try {
+            readLoop(stream, connection, client, dbuf);
+        } finally {
+            // Nobody else reads into the buffer, so it can go back to the pool however the loop ended.
+            if (pool != null)
+                pool.release(dbuf);
+        }
+    }
+
+    private static void readLoop(InputStream stream, StreamConnection connection, @Nullable BlockingClient client,
+                                 ByteBuffer dbuf) throws Exception {
         byte[] readBuff = new byte[dbuf.capacity()];
         while (true) {
             // TODO Kill the message duplication here
             checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
+            if (client != null)
+                client.awaitReadResumed();
             int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
             if (read == -1)
                 return;
@@ -136,12 +161,31 @@ public class BlockingClient implements MessageWriteTarget {
         // Closes the channel, triggering an exception in the network-handling thread triggering connectionClosed()
         try {
             vCloseRequested = true;
+            synchronized (readPauseLock) {
+                readPauseLock.notifyAll();
+            }
             socket.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public void setReadPaused(boolean paused) {
+        synchronized (readPauseLock) {
+            readPaused = paused;
+            if (!paused)
+                readPauseLock.notifyAll();
+        }
+    }
+
+    private void awaitReadResumed() throws InterruptedException {
+        synchronized (readPauseLock) {
+            while (readPaused && !vCloseRequested)
+                readPauseLock.wait();
+        }
+    }
+
     @Override
     public synchronized ListenableFuture writeBytes(byte[] message) throws IOException {
         try {
@@ -156,6 +200,28 @@ public class BlockingClient implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public synchronized ListenableFuture<Void> writeBuffers(ByteBuffer... buffers) throws IOException {
+        try {
+            OutputStream stream = socket.getOutputStream();
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasArray()) {
+                    stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                } else {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.duplicate().get(bytes);
+                    stream.write(bytes);
+                }
+            }
+            stream.flush();
+            return Futures.<Void>immediateFuture(null);
+        } catch (IOException e) {
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        }
+    }
+
     /** Returns a future that completes once connection has occurred at the socket level or with an exception if failed to connect. */
     public ListenableFuture<SocketAddress> getConnectFuture() {
         return connectFuture;
@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A pool of direct buffers of one size, shared by connections so that each of them doesn't allocate, and leave to
+ * the garbage collector, buffers of its own. Buffers are cut from larger slabs of memory, which are allocated as the
+ * pool runs dry.</p>
+ *
+ * <p>A buffer which isn't released is simply garbage collected, so it's fine to not release buffers whose owner can't
+ * tell whether it's safe to. Thread safe.</p>
+ */
+public final class BufferPool {
+    /** The pool connections take their read buffers from, if they read 64 KB at a time. */
+    public static final BufferPool DEFAULT = new BufferPool(65536, 16, 256);
+
+    private final int bufferSize;
+    private final int buffersPerSlab;
+    private final int maxFreeBuffers;
+
+    @GuardedBy("this") private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+    /**
+     * @param bufferSize the capacity of each buffer
+     * @param buffersPerSlab how many buffers to cut from each allocation
+     * @param maxFreeBuffers how many released buffers to keep at most, the ones released beyond that are dropped
+     */
+    public BufferPool(int bufferSize, int buffersPerSlab, int maxFreeBuffers) {
+        checkArgument(bufferSize > 0 && buffersPerSlab > 0 && maxFreeBuffers >= 0);
+        this.bufferSize = bufferSize;
+        this.buffersPerSlab = buffersPerSlab;
+        this.maxFreeBuffers = maxFreeBuffers;
+    }
+
+    /** Returns the capacity of the buffers of this pool. */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Returns an empty buffer, which is the caller's until it's handed back with {@link #release(ByteBuffer)}. */
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+            for (int i = 0; i < buffersPerSlab; i++) {
+                slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+                free.add(slab.slice());
+            }
+            buffer = free.poll();
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Hands back a buffer taken from this pool. The caller must not use it anymore. */
+    public synchronized void release(ByteBuffer buffer) {
+        checkArgument(buffer.capacity() == bufferSize && buffer.isDirect(), "Not a buffer of this pool");
+        if (free.size() < maxFreeBuffers)
+            free.add(buffer);
+    }
+
+    @VisibleForTesting
+    synchronized int getFreeBufferCount() {
+        return free.size();
+    }
+}
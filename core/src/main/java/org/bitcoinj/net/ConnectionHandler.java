@@ -16,6 +16,7 @@
 
 package org.bitcoinj.net;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
@@ -45,7 +46,7 @@ import static com.google.common.base.Preconditions.checkState;
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
  * Used only by the NioClient and NioServer classes
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements StreamWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
@@ -56,7 +57,11 @@ class ConnectionHandler implements MessageWriteTarget {
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
 
+    // Taken from BufferPool.DEFAULT if it has the right size, and handed back once the connection is closed and not
+    // being read from.
     @GuardedBy("lock") private final ByteBuffer readBuff;
+    @Nullable private final BufferPool readBuffPool;
+    @GuardedBy("lock") private boolean reading = false;
     @GuardedBy("lock") private final SocketChannel channel;
     @GuardedBy("lock") private final SelectionKey key;
     @GuardedBy("lock") StreamConnection connection;
@@ -66,13 +71,21 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") private final LinkedList<BytesAndFuture> bytesToWrite = new LinkedList<>();
 
     private static class BytesAndFuture {
-        public final ByteBuffer bytes;
-        public final SettableFuture future;
+        public final ByteBuffer[] bytes;
+        public final SettableFuture<Void> future;
 
-        public BytesAndFuture(ByteBuffer bytes, SettableFuture future) {
+        public BytesAndFuture(ByteBuffer[] bytes, SettableFuture<Void> future) {
             this.bytes = bytes;
             this.future = future;
         }
+
+        public boolean hasRemaining() {
+            // Any of the buffers may be empty to begin with, eg. the payload of a message that has none.
+            for (ByteBuffer buffer : bytes)
+                if (buffer.hasRemaining())
+                    return true;
+            return false;
+        }
     }
 
     private Set<ConnectionHandler> connectedHandlers;
@@ -88,10 +101,13 @@ class ConnectionHandler implements MessageWriteTarget {
         this.channel = checkNotNull(((SocketChannel)key.channel()));
         if (connection == null) {
             readBuff = null;
+            readBuffPool = null;
             return;
         }
         this.connection = connection;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        int size = Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND);
+        readBuffPool = size == BufferPool.DEFAULT.getBufferSize() ? BufferPool.DEFAULT : null;
+        readBuff = readBuffPool != null ? readBuffPool.acquire() : ByteBuffer.allocateDirect(size);
         connection.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
@@ -121,7 +137,8 @@ class ConnectionHandler implements MessageWriteTarget {
     }
 
     // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
-    private void tryWriteBytes() throws IOException {
+    @VisibleForTesting
+    void tryWriteBytes() throws IOException {
         lock.lock();
         try {
             // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
@@ -129,7 +146,7 @@ class ConnectionHandler implements MessageWriteTarget {
             while (iterator.hasNext()) {
                 BytesAndFuture bytesAndFuture = iterator.next();
                 bytesToWriteRemaining -= channel.write(bytesAndFuture.bytes);
-                if (!bytesAndFuture.bytes.hasRemaining()) {
+                if (!bytesAndFuture.hasRemaining()) {
                     iterator.remove();
                     bytesAndFuture.future.set(null);
                 } else {
@@ -148,6 +165,11 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public ListenableFuture writeBytes(byte[] message) throws IOException {
+        return writeBuffers(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+    }
+
+    @Override
+    public ListenableFuture<Void> writeBuffers(ByteBuffer... buffers) throws IOException {
         boolean andUnlock = true;
         lock.lock();
         try {
@@ -156,13 +178,16 @@ class ConnectionHandler implements MessageWriteTarget {
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            long length = 0;
+            for (ByteBuffer buffer : buffers)
+                length += buffer.remaining();
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            final SettableFuture<Object> future = SettableFuture.create();
-            bytesToWrite.offer(new BytesAndFuture(ByteBuffer.wrap(Arrays.copyOf(message, message.length)), future));
-            bytesToWriteRemaining += message.length;
+            // Just dump the message onto the write buffer and call tryWriteBytes. The buffers are written with a
+            // single gathering write each time the channel is writable, so they needn't be copied together first.
+            final SettableFuture<Void> future = SettableFuture.create();
+            bytesToWrite.offer(new BytesAndFuture(buffers.clone(), future));
+            bytesToWriteRemaining += length;
             setWriteOps();
             return future;
         } catch (IOException e) {
@@ -183,6 +208,24 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public void setReadPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                // Refresh the selector to make sure it gets the new interestOps
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // The connection is closing anyway.
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // May NOT be called with lock held
     @Override
     public void closeConnection() {
@@ -201,6 +244,8 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            if (callClosed && !reading)
+                releaseReadBuff();
         } finally {
             lock.unlock();
         }
@@ -210,6 +255,37 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    // Hands the read buffer back to its pool, once the connection is closed and nobody is reading into it.
+    @GuardedBy("lock")
+    private void releaseReadBuff() {
+        if (readBuffPool != null)
+            readBuffPool.release(readBuff);
+    }
+
+    // Marks the start of a read, returns false if the connection has been closed and the read buffer released already.
+    private boolean startReading() {
+        lock.lock();
+        try {
+            if (closeCalled)
+                return false;
+            reading = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void stopReading() {
+        lock.lock();
+        try {
+            reading = false;
+            if (closeCalled)
+                releaseReadBuff();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // Handle a SelectionKey which was selected
     // Runs unlocked as the caller is single-threaded (or if not, should enforce that handleKey is only called
     // atomically for a given ConnectionHandler)
@@ -222,24 +298,28 @@ class ConnectionHandler implements MessageWriteTarget {
                 handler.closeConnection(); // Key has been cancelled, make sure the socket gets closed
                 return;
             }
-            if (key.isReadable()) {
-                // Do a socket read and invoke the connection's receiveBytes message
-                int read = handler.channel.read(handler.readBuff);
-                if (read == 0)
-                    return; // Was probably waiting on a write
-                else if (read == -1) { // Socket was closed
-                    key.cancel();
-                    handler.closeConnection();
-                    return;
+            if (key.isReadable() && handler.startReading()) {
+                try {
+                    // Do a socket read and invoke the connection's receiveBytes message
+                    int read = handler.channel.read(handler.readBuff);
+                    if (read == 0)
+                        return; // Was probably waiting on a write
+                    else if (read == -1) { // Socket was closed
+                        key.cancel();
+                        handler.closeConnection();
+                        return;
+                    }
+                    // "flip" the buffer - setting the limit to the current position and setting position to 0
+                    handler.readBuff.flip();
+                    // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
+                    int bytesConsumed = checkNotNull(handler.connection).receiveBytes(handler.readBuff);
+                    checkState(handler.readBuff.position() == bytesConsumed);
+                    // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
+                    // position)
+                    handler.readBuff.compact();
+                } finally {
+                    handler.stopReading();
                 }
-                // "flip" the buffer - setting the limit to the current position and setting position to 0
-                handler.readBuff.flip();
-                // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
-                int bytesConsumed = checkNotNull(handler.connection).receiveBytes(handler.readBuff);
-                checkState(handler.readBuff.position() == bytesConsumed);
-                // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
-                // position)
-                handler.readBuff.compact();
             }
             if (key.isWritable())
                 handler.tryWriteBytes();
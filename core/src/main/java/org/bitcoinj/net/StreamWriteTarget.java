@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link MessageWriteTarget} which can also write buffers without copying them, and stop reading for a while. The
+ * connections of bitcoinj implement it, other targets only get {@link MessageWriteTarget#writeBytes(byte[])} called.
+ */
+public interface StreamWriteTarget extends MessageWriteTarget {
+    /**
+     * Writes the remaining bytes of the given buffers, one after the other, to the remote server. Unlike
+     * {@link #writeBytes(byte[])} the bytes aren't copied, so the buffers must not be changed until the returned future
+     * completes. This lets a message header and payload be sent from where they are, in one gathering write.
+     */
+    ListenableFuture<Void> writeBuffers(ByteBuffer... buffers) throws IOException;
+    /**
+     * Stops or resumes reading from the remote end. While reading is paused, no bytes are passed to
+     * {@link StreamConnection#receiveBytes(java.nio.ByteBuffer)}, and once the OS network buffer is full, TCP flow
+     * control makes the remote end stop sending. Used by connections which can't keep up with what they receive.
+     */
+    void setReadPaused(boolean paused);
+}
@@ -27,19 +27,25 @@ import org.bitcoinj.pow.rule.NewDifficultyAdjustmentAlgorithmRulesChecker;
 
 public class DAARuleCheckerFactory extends AbstractRuleCheckerFactory {
 
+    // The rule checkers are stateless, so they are created once rather than per block.
+    private final RulesPoolChecker minimalDifficultyRulesChecker;
+    private final RulesPoolChecker daaRulesChecker;
+
     public DAARuleCheckerFactory(NetworkParameters parameters) {
         super(parameters);
+        this.minimalDifficultyRulesChecker = new RulesPoolChecker(networkParameters);
+        this.minimalDifficultyRulesChecker.addRule(new MinimalDifficultyRuleChecker(networkParameters));
+        this.daaRulesChecker = new RulesPoolChecker(networkParameters);
+        this.daaRulesChecker.addRule(new NewDifficultyAdjustmentAlgorithmRulesChecker(networkParameters));
     }
 
     @Override
     public RulesPoolChecker getRuleChecker(StoredBlock storedPrev, Block nextBlock) {
-        RulesPoolChecker rulesChecker = new RulesPoolChecker(networkParameters);
         if (isTestNet() && TestNet3Params.isValidTestnetDateBlock(nextBlock)) {
-            rulesChecker.addRule(new MinimalDifficultyRuleChecker(networkParameters));
+            return minimalDifficultyRulesChecker;
         } else {
-            rulesChecker.addRule(new NewDifficultyAdjustmentAlgorithmRulesChecker(networkParameters));
+            return daaRulesChecker;
         }
-        return rulesChecker;
     }
 
 }
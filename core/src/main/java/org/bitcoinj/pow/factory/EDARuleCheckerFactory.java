@@ -31,8 +31,22 @@ import org.bitcoinj.pow.rule.MinimalDifficultyNoChangedRuleChecker;
 
 public class EDARuleCheckerFactory extends AbstractRuleCheckerFactory {
 
+    // The rule checkers are stateless, so they are created once rather than per block.
+    private final RulesPoolChecker transitionPointRulesChecker;
+    private final RulesPoolChecker lastNonMinimalDifficultyRulesChecker;
+    private final RulesPoolChecker minimalDifficultyNoChangedRulesChecker;
+    private final RulesPoolChecker edaRulesChecker;
+
     public EDARuleCheckerFactory(NetworkParameters parameters) {
         super(parameters);
+        this.transitionPointRulesChecker = new RulesPoolChecker(networkParameters);
+        this.transitionPointRulesChecker.addRule(new DifficultyTransitionPointRuleChecker(networkParameters));
+        this.lastNonMinimalDifficultyRulesChecker = new RulesPoolChecker(networkParameters);
+        this.lastNonMinimalDifficultyRulesChecker.addRule(new LastNonMinimalDifficultyRuleChecker(networkParameters));
+        this.minimalDifficultyNoChangedRulesChecker = new RulesPoolChecker(networkParameters);
+        this.minimalDifficultyNoChangedRulesChecker.addRule(new MinimalDifficultyNoChangedRuleChecker(networkParameters));
+        this.edaRulesChecker = new RulesPoolChecker(networkParameters);
+        this.edaRulesChecker.addRule(new EmergencyDifficultyAdjustmentRuleChecker(networkParameters));
     }
 
     @Override
@@ -45,24 +59,20 @@ public class EDARuleCheckerFactory extends AbstractRuleCheckerFactory {
     }
 
     private RulesPoolChecker getTransitionPointRulesChecker() {
-        RulesPoolChecker rulesChecker = new RulesPoolChecker(networkParameters);
-        rulesChecker.addRule(new DifficultyTransitionPointRuleChecker(networkParameters));
-        return rulesChecker;
+        return transitionPointRulesChecker;
     }
 
     private RulesPoolChecker getNoTransitionPointRulesChecker(StoredBlock storedPrev, Block nextBlock) {
-        RulesPoolChecker rulesChecker = new RulesPoolChecker(networkParameters);
         if (isTestNet() && TestNet3Params.isValidTestnetDateBlock(nextBlock)) {
-            rulesChecker.addRule(new LastNonMinimalDifficultyRuleChecker(networkParameters));
+            return lastNonMinimalDifficultyRulesChecker;
         } else {
             if (AbstractPowRulesChecker.hasEqualDifficulty(
                     storedPrev.getHeader().getDifficultyTarget(), networkParameters.getMaxTarget())) {
-                rulesChecker.addRule(new MinimalDifficultyNoChangedRuleChecker(networkParameters));
+                return minimalDifficultyNoChangedRulesChecker;
             } else {
-                rulesChecker.addRule(new EmergencyDifficultyAdjustmentRuleChecker(networkParameters));
+                return edaRulesChecker;
             }
         }
-        return rulesChecker;
     }
 
 }
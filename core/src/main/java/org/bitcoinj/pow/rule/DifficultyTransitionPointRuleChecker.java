@@ -20,6 +20,7 @@ import org.bitcoinj.core.*;
 import org.bitcoinj.pow.AbstractPowRulesChecker;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.HeaderWindow;
 
 import java.math.BigInteger;
 
@@ -35,21 +36,20 @@ public class DifficultyTransitionPointRuleChecker extends AbstractPowRulesChecke
 
         Block prevBlock = storedPrev.getHeader();
 
-        Block lastBlockInterval = findLastBlockInterval(prevBlock, blockStore);
+        Block lastBlockInterval = findLastBlockInterval(storedPrev, blockStore, blockChain.getHeaderWindow());
         int timeSpan = (int) (prevBlock.getTimeSeconds() - lastBlockInterval.getTimeSeconds());
         BigInteger newTarget = calculateNewTarget(prevBlock, timeSpan);
 
         networkParameters.verifyDifficulty(newTarget, nextBlock);
     }
 
-    private Block findLastBlockInterval(Block prevBlock, BlockStore blockStore) throws BlockStoreException {
-        StoredBlock cursor = blockStore.get(prevBlock.getHash());
-        for (int i = 0; i < networkParameters.getInterval() - 1; i++) {
-            if (cursor == null) {
-                throw new VerificationException("Difficulty transition point but we did " +
-                        "not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+    private Block findLastBlockInterval(StoredBlock storedPrev, BlockStore blockStore, HeaderWindow headerWindow)
+            throws BlockStoreException {
+        int height = storedPrev.getHeight() - (networkParameters.getInterval() - 1);
+        StoredBlock cursor = height < 0 ? null : headerWindow.getAncestor(storedPrev, height, blockStore);
+        if (cursor == null) {
+            throw new VerificationException("Difficulty transition point but we did " +
+                    "not find a way back to the genesis block.");
         }
         return cursor.getHeader();
     }
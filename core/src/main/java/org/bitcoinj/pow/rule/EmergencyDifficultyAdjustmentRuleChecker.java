@@ -20,6 +20,7 @@ import org.bitcoinj.core.*;
 import org.bitcoinj.pow.AbstractPowRulesChecker;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.HeaderWindow;
 
 import java.math.BigInteger;
 
@@ -38,7 +39,7 @@ public class EmergencyDifficultyAdjustmentRuleChecker extends AbstractPowRulesCh
 
         try {
             long lastBlocksMPTinSeconds = getMedianProducingTimeInSeconds(REFERENCE_OF_BLOCKS_PRODUCED_SIZE,
-                    storedPrev, blockStore);
+                    storedPrev, blockStore, blockChain.getHeaderWindow());
             checkEDARules(storedPrev, nextBlock, lastBlocksMPTinSeconds);
         } catch (NullPointerException ex) {
             // We don't have enough blocks, yet
@@ -47,23 +48,17 @@ public class EmergencyDifficultyAdjustmentRuleChecker extends AbstractPowRulesCh
         }
     }
 
-    private long getMedianProducingTimeInSeconds(int sizeOfBlocks, StoredBlock storedPrev, BlockStore blockStore) throws BlockStoreException {
-        StoredBlock cursor = blockStore.get(storedPrev.getHeader().getHash());
-        for (int i = 0; i < sizeOfBlocks; i++) {
-            if (cursor == null) {
-                throw new NullPointerException("Not enough blocks to check difficulty.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
-        }
+    private long getMedianProducingTimeInSeconds(int sizeOfBlocks, StoredBlock storedPrev, BlockStore blockStore,
+                                                 HeaderWindow headerWindow) throws BlockStoreException {
         //Check to see if there are enough blocks before cursor to correctly calculate the median time
-        StoredBlock beforeCursor = cursor;
-        for (int i = 0; i < 10; i++) {
-            beforeCursor = blockStore.get(beforeCursor.getHeader().getPrevBlockHash());
-            if(beforeCursor == null)
-                throw new NullPointerException("Not enough blocks to check difficulty.");
+        int beforeCursorHeight = storedPrev.getHeight() - sizeOfBlocks - (HeaderWindow.MEDIAN_TIME_SPAN - 1);
+        if (beforeCursorHeight < 0
+                || headerWindow.getAncestor(storedPrev, beforeCursorHeight, blockStore) == null) {
+            throw new NullPointerException("Not enough blocks to check difficulty.");
         }
-        return BlockChain.getMedianTimestampOfRecentBlocks(storedPrev, blockStore) -
-                BlockChain.getMedianTimestampOfRecentBlocks(cursor, blockStore);
+        StoredBlock cursor = headerWindow.getAncestor(storedPrev, storedPrev.getHeight() - sizeOfBlocks, blockStore);
+        return headerWindow.getMedianTimestampOfRecentBlocks(storedPrev, blockStore) -
+                headerWindow.getMedianTimestampOfRecentBlocks(cursor, blockStore);
     }
 
     private void checkEDARules(StoredBlock storedPrev, Block nextBlock, long lastBlocksMPTinSeconds) {
@@ -20,6 +20,7 @@ import org.bitcoinj.core.*;
 import org.bitcoinj.pow.AbstractPowRulesChecker;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.HeaderWindow;
 
 import java.math.BigInteger;
 
@@ -38,7 +39,7 @@ public class LastNonMinimalDifficultyRuleChecker extends AbstractPowRulesChecker
                            AbstractBlockChain blockChain) throws VerificationException, BlockStoreException {
         Block prevBlock = storedPrev.getHeader();
         if (isUnderPeriod(prevBlock, nextBlock)) {
-            checkLastNonMinimalDifficultyIsSet(storedPrev, blockStore, nextBlock);
+            checkLastNonMinimalDifficultyIsSet(storedPrev, blockStore, blockChain.getHeaderWindow(), nextBlock);
         }
     }
 
@@ -47,9 +48,10 @@ public class LastNonMinimalDifficultyRuleChecker extends AbstractPowRulesChecker
         return timeDelta >= 0 && timeDelta <= NetworkParameters.TARGET_SPACING * 2;
     }
 
-    private void checkLastNonMinimalDifficultyIsSet(StoredBlock storedPrev, BlockStore blockStore, Block nextBlock) throws BlockStoreException {
+    private void checkLastNonMinimalDifficultyIsSet(StoredBlock storedPrev, BlockStore blockStore,
+                                                    HeaderWindow headerWindow, Block nextBlock) throws BlockStoreException {
         try {
-            Block lastNotEasiestPowBlock = findLastNotEasiestPowBlock(storedPrev, blockStore);
+            Block lastNotEasiestPowBlock = findLastNotEasiestPowBlock(storedPrev, blockStore, headerWindow);
             if (!hasEqualDifficulty(lastNotEasiestPowBlock, nextBlock))
                 throw new VerificationException("Testnet block transition that is not allowed: " +
                         Long.toHexString(lastNotEasiestPowBlock.getDifficultyTarget()) + " vs " +
@@ -60,13 +62,14 @@ public class LastNonMinimalDifficultyRuleChecker extends AbstractPowRulesChecker
 
     }
 
-    private Block findLastNotEasiestPowBlock(StoredBlock storedPrev, BlockStore blockStore) throws BlockStoreException {
+    private Block findLastNotEasiestPowBlock(StoredBlock storedPrev, BlockStore blockStore, HeaderWindow headerWindow)
+            throws BlockStoreException {
         StoredBlock cursor = storedPrev;
         BigInteger easiestDifficulty = networkParameters.getMaxTarget();
         while (!cursor.getHeader().equals(networkParameters.getGenesisBlock()) &&
                 cursor.getHeight() % networkParameters.getInterval() != 0 &&
                 hasEqualDifficulty(cursor.getHeader().getDifficultyTarget(), easiestDifficulty)) {
-            cursor = cursor.getPrev(blockStore);
+            cursor = headerWindow.getPrev(cursor, blockStore);
         }
         return cursor.getHeader();
     }
@@ -22,6 +22,7 @@ import org.bitcoinj.params.AbstractBitcoinNetParams;
 import org.bitcoinj.pow.AbstractPowRulesChecker;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.HeaderWindow;
 
 import java.math.BigInteger;
 
@@ -45,7 +46,7 @@ public class NewDifficultyAdjustmentAlgorithmRulesChecker extends AbstractPowRul
 
     @Override
     public void checkRules(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore, AbstractBlockChain blockChain) throws VerificationException, BlockStoreException {
-        checkNextCashWorkRequired(storedPrev, nextBlock, blockStore);
+        checkNextCashWorkRequired(storedPrev, nextBlock, blockStore, blockChain.getHeaderWindow());
     }
 
     /**
@@ -57,13 +58,14 @@ public class NewDifficultyAdjustmentAlgorithmRulesChecker extends AbstractPowRul
      * block. Because timestamps are the least trustworthy information we have as
      * input, this ensures the algorithm is more resistant to malicious inputs.
      */
-    private void checkNextCashWorkRequired(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore) {
+    private void checkNextCashWorkRequired(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore,
+                                           HeaderWindow headerWindow) {
         int prevHeight = storedPrev.getHeight();
         Preconditions.checkState(prevHeight >= networkParameters.getInterval());
 
         try {
-            StoredBlock last = GetMostSuitableBlock(storedPrev, blockStore);
-            StoredBlock first = getFirst(storedPrev, blockStore);
+            StoredBlock last = GetMostSuitableBlock(storedPrev, blockStore, headerWindow);
+            StoredBlock first = getFirst(storedPrev, blockStore, headerWindow);
 
             BigInteger nextTarget = AbstractBitcoinNetParams.ComputeTarget(first, last);
             networkParameters.verifyDifficulty(nextTarget, nextBlock);
@@ -76,7 +78,8 @@ public class NewDifficultyAdjustmentAlgorithmRulesChecker extends AbstractPowRul
      * To reduce the impact of timestamp manipulation, we select the block we are
      * basing our computation on via a median of 3.
      */
-    private StoredBlock GetMostSuitableBlock(StoredBlock pindex, BlockStore blockStore) throws BlockStoreException {
+    private StoredBlock GetMostSuitableBlock(StoredBlock pindex, BlockStore blockStore, HeaderWindow headerWindow)
+            throws BlockStoreException {
         /**
          * In order to avoid a block is a very skewed timestamp to have too much
          * influence, we select the median of the 3 top most blocks as a starting
@@ -84,10 +87,10 @@ public class NewDifficultyAdjustmentAlgorithmRulesChecker extends AbstractPowRul
          */
         StoredBlock blocks[] = new StoredBlock[3];
         blocks[2] = pindex;
-        blocks[1] = pindex.getPrev(blockStore);
+        blocks[1] = headerWindow.getPrev(pindex, blockStore);
         if(blocks[1] == null)
             throw new BlockStoreException("Not enough blocks in blockStore to calculate difficulty");
-        blocks[0] = blocks[1].getPrev(blockStore);
+        blocks[0] = headerWindow.getPrev(blocks[1], blockStore);
         if(blocks[0] == null)
             throw new BlockStoreException("Not enough blocks in blockStore to calculate difficulty");
 
@@ -117,15 +120,14 @@ public class NewDifficultyAdjustmentAlgorithmRulesChecker extends AbstractPowRul
         return blocks[1];
     }
 
-    private StoredBlock getFirst(StoredBlock storedPrev, BlockStore blockStore) throws BlockStoreException {
-        StoredBlock first = storedPrev;
-        for (int i = AVERAGE_BLOCKS_PER_DAY; i > 0; --i) {
-            first = first.getPrev(blockStore);
-            if (first == null) {
-                throw new BlockStoreException("The previous block no longer exists");
-            }
+    private StoredBlock getFirst(StoredBlock storedPrev, BlockStore blockStore, HeaderWindow headerWindow)
+            throws BlockStoreException {
+        StoredBlock first = headerWindow.getAncestor(storedPrev, storedPrev.getHeight() - AVERAGE_BLOCKS_PER_DAY,
+                blockStore);
+        if (first == null) {
+            throw new BlockStoreException("The previous block no longer exists");
         }
-        return GetMostSuitableBlock(first, blockStore);
+        return GetMostSuitableBlock(first, blockStore, headerWindow);
     }
 
 }
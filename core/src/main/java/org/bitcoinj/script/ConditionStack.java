@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+/**
+ * The stack of OP_IF/OP_NOTIF conditions of the script interpreter. All the interpreter needs to know is whether
+ * every condition is true, so instead of the conditions themselves only their number and the position of the first
+ * false one are kept, like the ConditionStack of Bitcoin Core. All operations take constant time and never allocate.
+ */
+final class ConditionStack {
+    private static final int NO_FALSE = -1;
+
+    private int size = 0;
+    private int firstFalse = NO_FALSE;
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** True if all conditions are true, i.e. the current branch is executed. */
+    boolean allTrue() {
+        return firstFalse == NO_FALSE;
+    }
+
+    void push(boolean condition) {
+        if (firstFalse == NO_FALSE && !condition)
+            firstFalse = size;
+        size++;
+    }
+
+    void pop() {
+        size--;
+        if (firstFalse == size)
+            firstFalse = NO_FALSE;
+    }
+
+    /** Negates the innermost condition, for OP_ELSE. */
+    void toggleTop() {
+        if (firstFalse == NO_FALSE)
+            firstFalse = size - 1;
+        else if (firstFalse == size - 1)
+            firstFalse = NO_FALSE;
+        // Otherwise an outer condition is false, which the inner one can't change.
+    }
+
+    void clear() {
+        size = 0;
+        firstFalse = NO_FALSE;
+    }
+}
@@ -96,6 +96,10 @@ public class Script {
     /** Max number of sigops allowed in a standard p2sh redeem script */
     public static final int MAX_P2SH_SIGOPS = 15;
 
+    // Signatures known to be valid, shared by all scripts. See setSignatureCache().
+    @Nullable
+    private static volatile SignatureCache signatureCache = new SignatureCache();
+
     // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]
     protected List<ScriptChunk> chunks;
     // Unfortunately, scripts are not ever re-serialized or canonicalized when used in signature hashing. Thus we
@@ -767,15 +771,45 @@ public class Script {
      */
     public static void executeScript(@Nullable Transaction txContainingThis, long index,
                                      Script script, LinkedList<byte[]> stack, Coin value, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        ScriptStack scriptStack = new ScriptStack(stack);
+        try {
+            executeScript(txContainingThis, index, script, scriptStack, value, verifyFlags);
+        } finally {
+            stack.clear();
+            stack.addAll(scriptStack.toList());
+        }
+    }
+
+    /**
+     * Exposes the script interpreter, like {@link #executeScript(Transaction, long, Script, LinkedList, Coin, Set)},
+     * but operating on a {@link ScriptStack}, which avoids copying the stack in and out of a list.
+     */
+    public static void executeScript(@Nullable Transaction txContainingThis, long index,
+                                     Script script, ScriptStack stack, Coin value, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        ScriptExecutionContext context = ScriptExecutionContext.acquire();
+        try {
+            executeScript(txContainingThis, index, script, stack, context, value, verifyFlags);
+        } finally {
+            context.release();
+        }
+    }
+
+    // The interpreter itself. The altstack and the conditions are taken from the given context, which avoids
+    // allocating them for every script.
+    private static void executeScript(@Nullable Transaction txContainingThis, long index, Script script,
+                                      ScriptStack stack, ScriptExecutionContext context, Coin value,
+                                      Set<VerifyFlag> verifyFlags) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
 
-        LinkedList<byte[]> altstack = new LinkedList<>();
-        LinkedList<Boolean> ifStack = new LinkedList<>();
+        ScriptStack altstack = context.altstack;
+        ConditionStack conditions = context.conditions;
+        altstack.clear();
+        conditions.clear();
 
         int nextLocationInScript = 0;
         for (ScriptChunk chunk : script.chunks) {
-            boolean shouldExecute = !ifStack.contains(false);
+            boolean shouldExecute = conditions.allTrue();
             int opcode = chunk.opcode;
             nextLocationInScript += chunk.size();
 
@@ -803,44 +837,44 @@ public class Script {
                     throw new ScriptException(ScriptError.SCRIPT_ERR_MINIMALDATA, "Script included a not minimal push operation.");
 
                 if (opcode == OP_0)
-                    stack.add(new byte[]{});
+                    stack.push(new byte[]{});
                 else
-                    stack.add(chunk.data);
+                    stack.push(chunk.data);
             } else if (shouldExecute || (OP_IF <= opcode && opcode <= OP_ENDIF)){
 
                 switch (opcode) {
                 case OP_IF:
                     if (!shouldExecute) {
-                        ifStack.add(false);
+                        conditions.push(false);
                         continue;
                     }
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_IF on an empty stack");
-                    ifStack.add(castToBool(stack.pollLast()));
+                    conditions.push(castToBool(stack.pop()));
                     continue;
                 case OP_NOTIF:
                     if (!shouldExecute) {
-                        ifStack.add(false);
+                        conditions.push(false);
                         continue;
                     }
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_NOTIF on an empty stack");
-                    ifStack.add(!castToBool(stack.pollLast()));
+                    conditions.push(!castToBool(stack.pop()));
                     continue;
                 case OP_ELSE:
-                    if (ifStack.isEmpty())
+                    if (conditions.isEmpty())
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ELSE without OP_IF/NOTIF");
-                    ifStack.add(!ifStack.pollLast());
+                    conditions.toggleTop();
                     continue;
                 case OP_ENDIF:
-                    if (ifStack.isEmpty())
+                    if (conditions.isEmpty())
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ENDIF without OP_IF/NOTIF");
-                    ifStack.pollLast();
+                    conditions.pop();
                     continue;
 
                 // OP_0 is no opcode
                 case OP_1NEGATE:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE.negate(), false)));
+                    stack.push(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE.negate(), false)));
                     break;
                 case OP_1:
                 case OP_2:
@@ -858,14 +892,14 @@ public class Script {
                 case OP_14:
                 case OP_15:
                 case OP_16:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(decodeFromOpN(opcode)), false)));
+                    stack.push(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(decodeFromOpN(opcode)), false)));
                     break;
                 case OP_NOP:
                     break;
                 case OP_VERIFY:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_VERIFY on an empty stack");
-                    if (!castToBool(stack.pollLast()))
+                    if (!castToBool(stack.pop()))
                         throw new ScriptException(ScriptError.SCRIPT_ERR_VERIFY, "OP_VERIFY failed");
                     break;
                 case OP_RETURN:
@@ -873,158 +907,142 @@ public class Script {
                 case OP_TOALTSTACK:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_TOALTSTACK on an empty stack");
-                    altstack.add(stack.pollLast());
+                    altstack.push(stack.pop());
                     break;
                 case OP_FROMALTSTACK:
                     if (altstack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_ALTSTACK_OPERATION, "Attempted OP_FROMALTSTACK on an empty altstack");
-                    stack.add(altstack.pollLast());
+                    stack.push(altstack.pop());
                     break;
                 case OP_2DROP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2DROP on a stack with size < 2");
-                    stack.pollLast();
-                    stack.pollLast();
+                    stack.pop();
+                    stack.pop();
                     break;
                 case OP_2DUP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2DUP on a stack with size < 2");
-                    Iterator<byte[]> it2DUP = stack.descendingIterator();
-                    byte[] OP2DUPtmpChunk2 = it2DUP.next();
-                    stack.add(it2DUP.next());
-                    stack.add(OP2DUPtmpChunk2);
+                    stack.push(stack.peek(1));
+                    stack.push(stack.peek(1));
                     break;
                 case OP_3DUP:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_3DUP on a stack with size < 3");
-                    Iterator<byte[]> it3DUP = stack.descendingIterator();
-                    byte[] OP3DUPtmpChunk3 = it3DUP.next();
-                    byte[] OP3DUPtmpChunk2 = it3DUP.next();
-                    stack.add(it3DUP.next());
-                    stack.add(OP3DUPtmpChunk2);
-                    stack.add(OP3DUPtmpChunk3);
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
                     break;
                 case OP_2OVER:
                     if (stack.size() < 4)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2OVER on a stack with size < 4");
-                    Iterator<byte[]> it2OVER = stack.descendingIterator();
-                    it2OVER.next();
-                    it2OVER.next();
-                    byte[] OP2OVERtmpChunk2 = it2OVER.next();
-                    stack.add(it2OVER.next());
-                    stack.add(OP2OVERtmpChunk2);
+                    stack.push(stack.peek(3));
+                    stack.push(stack.peek(3));
                     break;
                 case OP_2ROT:
                     if (stack.size() < 6)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2ROT on a stack with size < 6");
-                    byte[] OP2ROTtmpChunk6 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk5 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk4 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk3 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk2 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk1 = stack.pollLast();
-                    stack.add(OP2ROTtmpChunk3);
-                    stack.add(OP2ROTtmpChunk4);
-                    stack.add(OP2ROTtmpChunk5);
-                    stack.add(OP2ROTtmpChunk6);
-                    stack.add(OP2ROTtmpChunk1);
-                    stack.add(OP2ROTtmpChunk2);
+                    byte[] OP2ROTtmpChunk6 = stack.pop();
+                    byte[] OP2ROTtmpChunk5 = stack.pop();
+                    byte[] OP2ROTtmpChunk4 = stack.pop();
+                    byte[] OP2ROTtmpChunk3 = stack.pop();
+                    byte[] OP2ROTtmpChunk2 = stack.pop();
+                    byte[] OP2ROTtmpChunk1 = stack.pop();
+                    stack.push(OP2ROTtmpChunk3);
+                    stack.push(OP2ROTtmpChunk4);
+                    stack.push(OP2ROTtmpChunk5);
+                    stack.push(OP2ROTtmpChunk6);
+                    stack.push(OP2ROTtmpChunk1);
+                    stack.push(OP2ROTtmpChunk2);
                     break;
                 case OP_2SWAP:
                     if (stack.size() < 4)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2SWAP on a stack with size < 4");
-                    byte[] OP2SWAPtmpChunk4 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk3 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk2 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OP2SWAPtmpChunk3);
-                    stack.add(OP2SWAPtmpChunk4);
-                    stack.add(OP2SWAPtmpChunk1);
-                    stack.add(OP2SWAPtmpChunk2);
+                    byte[] OP2SWAPtmpChunk4 = stack.pop();
+                    byte[] OP2SWAPtmpChunk3 = stack.pop();
+                    byte[] OP2SWAPtmpChunk2 = stack.pop();
+                    byte[] OP2SWAPtmpChunk1 = stack.pop();
+                    stack.push(OP2SWAPtmpChunk3);
+                    stack.push(OP2SWAPtmpChunk4);
+                    stack.push(OP2SWAPtmpChunk1);
+                    stack.push(OP2SWAPtmpChunk2);
                     break;
                 case OP_IFDUP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_IFDUP on an empty stack");
-                    if (castToBool(stack.getLast()))
-                        stack.add(stack.getLast());
+                    if (castToBool(stack.peek()))
+                        stack.push(stack.peek());
                     break;
                 case OP_DEPTH:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
+                    stack.push(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
                     break;
                 case OP_DROP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_DROP on an empty stack");
-                    stack.pollLast();
+                    stack.pop();
                     break;
                 case OP_DUP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_DUP on an empty stack");
-                    stack.add(stack.getLast());
+                    stack.push(stack.peek());
                     break;
                 case OP_NIP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_NIP on a stack with size < 2");
-                    byte[] OPNIPtmpChunk = stack.pollLast();
-                    stack.pollLast();
-                    stack.add(OPNIPtmpChunk);
+                    byte[] OPNIPtmpChunk = stack.pop();
+                    stack.pop();
+                    stack.push(OPNIPtmpChunk);
                     break;
                 case OP_OVER:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_OVER on a stack with size < 2");
-                    Iterator<byte[]> itOVER = stack.descendingIterator();
-                    itOVER.next();
-                    stack.add(itOVER.next());
+                    stack.push(stack.peek(1));
                     break;
                 case OP_PICK:
                 case OP_ROLL:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_PICK/OP_ROLL on an empty stack");
-                    long val = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).longValue();
+                    long val = castToBigInteger(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).longValue();
                     if (val < 0 || val >= stack.size())
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "OP_PICK/OP_ROLL attempted to get data deeper than stack size");
-                    Iterator<byte[]> itPICK = stack.descendingIterator();
-                    for (long i = 0; i < val; i++)
-                        itPICK.next();
-                    byte[] OPROLLtmpChunk = itPICK.next();
-                    if (opcode == OP_ROLL)
-                        itPICK.remove();
-                    stack.add(OPROLLtmpChunk);
+                    byte[] OPROLLtmpChunk = opcode == OP_ROLL ? stack.remove((int) val) : stack.peek((int) val);
+                    stack.push(OPROLLtmpChunk);
                     break;
                 case OP_ROT:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_ROT on a stack with size < 3");
-                    byte[] OPROTtmpChunk3 = stack.pollLast();
-                    byte[] OPROTtmpChunk2 = stack.pollLast();
-                    byte[] OPROTtmpChunk1 = stack.pollLast();
-                    stack.add(OPROTtmpChunk2);
-                    stack.add(OPROTtmpChunk3);
-                    stack.add(OPROTtmpChunk1);
+                    byte[] OPROTtmpChunk3 = stack.pop();
+                    byte[] OPROTtmpChunk2 = stack.pop();
+                    byte[] OPROTtmpChunk1 = stack.pop();
+                    stack.push(OPROTtmpChunk2);
+                    stack.push(OPROTtmpChunk3);
+                    stack.push(OPROTtmpChunk1);
                     break;
                 case OP_SWAP:
                 case OP_TUCK:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SWAP on a stack with size < 2");
-                    byte[] OPSWAPtmpChunk2 = stack.pollLast();
-                    byte[] OPSWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OPSWAPtmpChunk2);
-                    stack.add(OPSWAPtmpChunk1);
+                    byte[] OPSWAPtmpChunk2 = stack.pop();
+                    byte[] OPSWAPtmpChunk1 = stack.pop();
+                    stack.push(OPSWAPtmpChunk2);
+                    stack.push(OPSWAPtmpChunk1);
                     if (opcode == OP_TUCK)
-                        stack.add(OPSWAPtmpChunk2);
+                        stack.push(OPSWAPtmpChunk2);
                     break;
                 case OP_SIZE:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SIZE on an empty stack");
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.getLast().length), false)));
+                    stack.push(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.peek().length), false)));
                     break;
                 case OP_EQUAL:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_EQUAL on a stack with size < 2");
-                    stack.add(Arrays.equals(stack.pollLast(), stack.pollLast()) ? new byte[] {1} : new byte[] {});
+                    stack.push(Arrays.equals(stack.pop(), stack.pop()) ? new byte[] {1} : new byte[] {});
                     break;
                 case OP_EQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    if (!Arrays.equals(stack.pollLast(), stack.pollLast()))
+                    if (!Arrays.equals(stack.pop(), stack.pop()))
                         throw new ScriptException(ScriptError.SCRIPT_ERR_EQUALVERIFY, "OP_EQUALVERIFY: non-equal data");
                     break;
                 case OP_1ADD:
@@ -1035,7 +1053,7 @@ public class Script {
                 case OP_0NOTEQUAL:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted a numeric op on an empty stack");
-                    BigInteger numericOPnum = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                    BigInteger numericOPnum = castToBigInteger(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
 
                     switch (opcode) {
                     case OP_1ADD:
@@ -1067,7 +1085,7 @@ public class Script {
                         throw new AssertionError("Unreachable");
                     }
 
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)));
+                    stack.push(Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)));
                     break;
                 case OP_ADD:
                 case OP_SUB:
@@ -1083,8 +1101,8 @@ public class Script {
                 case OP_MAX:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted a numeric op on a stack with size < 2");
-                    BigInteger numericOPnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger numericOPnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                    BigInteger numericOPnum2 = castToBigInteger(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                    BigInteger numericOPnum1 = castToBigInteger(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
 
                     BigInteger numericOPresult;
                     switch (opcode) {
@@ -1158,13 +1176,13 @@ public class Script {
                         throw new RuntimeException("Opcode switched at runtime?");
                     }
 
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)));
+                    stack.push(Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)));
                     break;
                 case OP_NUMEQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
-                    BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                    BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                    BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
 
                     if (!OPNUMEQUALVERIFYnum1.equals(OPNUMEQUALVERIFYnum2))
                         throw new ScriptException(ScriptError.SCRIPT_ERR_NUMEQUALVERIFY, "OP_NUMEQUALVERIFY failed");
@@ -1172,29 +1190,29 @@ public class Script {
                 case OP_WITHIN:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_WITHIN on a stack with size < 3");
-                    BigInteger OPWITHINnum3 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPWITHINnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPWITHINnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                    BigInteger OPWITHINnum3 = castToBigInteger(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                    BigInteger OPWITHINnum2 = castToBigInteger(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                    BigInteger OPWITHINnum1 = castToBigInteger(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
                     if (OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0)
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE, false)));
+                        stack.push(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE, false)));
                     else
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ZERO, false)));
+                        stack.push(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ZERO, false)));
                     break;
                 case OP_RIPEMD160:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_RIPEMD160 on an empty stack");
                     RIPEMD160Digest digest = new RIPEMD160Digest();
-                    byte[] dataToHash = stack.pollLast();
+                    byte[] dataToHash = stack.pop();
                     digest.update(dataToHash, 0, dataToHash.length);
                     byte[] ripmemdHash = new byte[20];
                     digest.doFinal(ripmemdHash, 0);
-                    stack.add(ripmemdHash);
+                    stack.push(ripmemdHash);
                     break;
                 case OP_SHA1:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA1 on an empty stack");
                     try {
-                        stack.add(MessageDigest.getInstance("SHA-1").digest(stack.pollLast()));
+                        stack.push(MessageDigest.getInstance("SHA-1").digest(stack.pop()));
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(e);  // Cannot happen.
                     }
@@ -1202,17 +1220,17 @@ public class Script {
                 case OP_SHA256:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA256 on an empty stack");
-                    stack.add(Sha256Hash.hash(stack.pollLast()));
+                    stack.push(Sha256Hash.hash(stack.pop()));
                     break;
                 case OP_HASH160:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_HASH160 on an empty stack");
-                    stack.add(Utils.sha256hash160(stack.pollLast()));
+                    stack.push(Utils.sha256hash160(stack.pop()));
                     break;
                 case OP_HASH256:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA256 on an empty stack");
-                    stack.add(Sha256Hash.hashTwice(stack.pollLast()));
+                    stack.push(Sha256Hash.hashTwice(stack.pop()));
                     break;
                 case OP_CODESEPARATOR:
                     lastCodeSepLocation = nextLocationInScript;
@@ -1221,13 +1239,15 @@ public class Script {
                 case OP_CHECKSIGVERIFY:
                     if (txContainingThis == null)
                         throw new IllegalStateException("Script attempted signature check but no tx was provided");
-                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode, value, verifyFlags);
+                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode, value, verifyFlags,
+                            context.verifiedSignatures);
                     break;
                 case OP_CHECKMULTISIG:
                 case OP_CHECKMULTISIGVERIFY:
                     if (txContainingThis == null)
                         throw new IllegalStateException("Script attempted signature check but no tx was provided");
-                    opCount = executeMultiSig(txContainingThis, (int) index, script, stack, opCount, lastCodeSepLocation, opcode, value, verifyFlags);
+                    opCount = executeMultiSig(txContainingThis, (int) index, script, stack, opCount, lastCodeSepLocation, opcode, value,
+                            verifyFlags, context.verifiedSignatures);
                     break;
                 case OP_CHECKLOCKTIMEVERIFY:
                     if (!verifyFlags.contains(VerifyFlag.CHECKLOCKTIMEVERIFY)) {
@@ -1271,18 +1291,18 @@ public class Script {
                 throw new ScriptException(ScriptError.SCRIPT_ERR_STACK_SIZE, "Stack size exceeded range");
         }
 
-        if (!ifStack.isEmpty())
+        if (!conditions.isEmpty())
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "OP_IF/OP_NOTIF without OP_ENDIF");
     }
 
     // This is more or less a direct translation of the code in Bitcoin Core
-    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, ScriptStack stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKLOCKTIMEVERIFY on a stack with size < 1");
 
         // Thus as a special case we tell CScriptNum to accept up
         // to 5-byte bignums to avoid year 2038 issue.
-        final BigInteger nLockTime = castToBigInteger(stack.getLast(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
+        final BigInteger nLockTime = castToBigInteger(stack.peek(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
 
         if (nLockTime.compareTo(BigInteger.ZERO) < 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_NEGATIVE_LOCKTIME, "Negative locktime");
@@ -1313,7 +1333,7 @@ public class Script {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Transaction contains a final transaction input for a CHECKLOCKTIMEVERIFY script.");
     }
 
-    private static void executeCheckSequenceVerify(Transaction txContainingThis, int index, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static void executeCheckSequenceVerify(Transaction txContainingThis, int index, ScriptStack stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSEQUENCEVERIFY on a stack with size < 1");
 
@@ -1326,7 +1346,7 @@ public class Script {
         // Thus as a special case we tell CScriptNum to accept up
         // to 5-byte bignums, which are good until 2**39-1, well
         // beyond the 2**32-1 limit of the nSequence field itself.
-        final long nSequence = castToBigInteger(stack.getLast(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA)).longValue();
+        final long nSequence = castToBigInteger(stack.peek(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA)).longValue();
 
         // In the rare event that the argument may be < 0 due to
         // some arithmetic being done first, you can always use
@@ -1385,16 +1405,50 @@ public class Script {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Relative locktime requirement not satisfied");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
-                                        int lastCodeSepLocation, int opcode, Coin value,
-                                        Set<VerifyFlag> verifyFlags) throws ScriptException {
+    /**
+     * Sets the cache of valid signatures consulted by OP_CHECKSIG and OP_CHECKMULTISIG of all scripts, and by
+     * {@link SignatureBatchVerifier}. By default a cache of {@link SignatureCache#DEFAULT_MAX_SIZE} is used. Usually
+     * the cache is set up by the {@link Context}, see {@link Context#getSignatureCacheSize()}.
+     * @param cache The cache to use, or null to verify every signature.
+     */
+    public static void setSignatureCache(@Nullable SignatureCache cache) {
+        signatureCache = cache;
+    }
+
+    /** Returns the cache of valid signatures, or null if there is none. */
+    @Nullable
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    // Verifies a signature the interpreter comes across. Signatures which were verified ahead of the interpreter, or
+    // before by any script, are only looked up.
+    private static boolean verifySignature(Sha256Hash hash, TransactionSignature sig, byte[] pubKey, byte[] sigBytes,
+                                           @Nullable SignatureBatchVerifier.Result verifiedSignatures) {
+        if (verifiedSignatures != null) {
+            Boolean verified = verifiedSignatures.get(hash, pubKey, sigBytes);
+            if (verified != null)
+                return verified;
+        }
+        SignatureCache cache = signatureCache;
+        if (cache != null && cache.contains(hash, pubKey, sigBytes))
+            return true;
+        boolean valid = ECKey.verify(hash.getBytes(), sig, pubKey);
+        if (valid && cache != null)
+            cache.add(hash, pubKey, sigBytes);
+        return valid;
+    }
+
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
+                                        int lastCodeSepLocation, int opcode, Coin value, Set<VerifyFlag> verifyFlags,
+                                        @Nullable SignatureBatchVerifier.Result verifiedSignatures) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
             || verifyFlags.contains(VerifyFlag.DERSIG)
             || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 2)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
-        byte[] pubKey = stack.pollLast();
-        byte[] sigBytes = stack.pollLast();
+        byte[] pubKey = stack.pop();
+        byte[] sigBytes = stack.pop();
 
         byte[] prog = script.getProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
@@ -1417,7 +1471,7 @@ public class Script {
             Sha256Hash hash = sig.useForkId() ?
                     txContainingThis.hashForSignatureWitness(index, connectedScript, value, sig.sigHashMode(), sig.anyoneCanPay()) :
                     txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            sigValid = verifySignature(hash, sig, pubKey, sigBytes, verifiedSignatures);
         } catch (VerificationException.NoncanonicalSignature e) {
             throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_DER, "Script contains non-canonical signature");
         } catch (SignatureDecodeException e) {
@@ -1433,21 +1487,22 @@ public class Script {
         }
 
         if (opcode == OP_CHECKSIG)
-            stack.add(sigValid ? new byte[] {1} : new byte[] {});
+            stack.push(sigValid ? new byte[] {1} : new byte[] {});
         else if (opcode == OP_CHECKSIGVERIFY)
             if (!sigValid)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Script failed OP_CHECKSIGVERIFY");
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                        int opCount, int lastCodeSepLocation, int opcode, Coin value,
-                                       Set<VerifyFlag> verifyFlags) throws ScriptException {
+                                       Set<VerifyFlag> verifyFlags,
+                                       @Nullable SignatureBatchVerifier.Result verifiedSignatures) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
             || verifyFlags.contains(VerifyFlag.DERSIG)
             || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
-        int pubKeyCount = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).intValue();
+        int pubKeyCount = castToBigInteger(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).intValue();
         if (pubKeyCount < 0 || pubKeyCount > MAX_PUBKEYS_PER_MULTISIG)
             throw new ScriptException(ScriptError.SCRIPT_ERR_PUBKEY_COUNT, "OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
         opCount += pubKeyCount;
@@ -1456,23 +1511,19 @@ public class Script {
         if (stack.size() < pubKeyCount + 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + 2");
 
-        LinkedList<byte[]> pubkeys = new LinkedList<>();
-        for (int i = 0; i < pubKeyCount; i++) {
-            byte[] pubKey = stack.pollLast();
-            pubkeys.add(pubKey);
-        }
+        byte[][] pubkeys = new byte[pubKeyCount][];
+        for (int i = 0; i < pubKeyCount; i++)
+            pubkeys[i] = stack.pop();
 
-        int sigCount = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).intValue();
+        int sigCount = castToBigInteger(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).intValue();
         if (sigCount < 0 || sigCount > pubKeyCount)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_COUNT, "OP_CHECKMULTISIG(VERIFY) with sig count out of range");
         if (stack.size() < sigCount + 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + num_of_signatures + 3");
 
-        LinkedList<byte[]> sigs = new LinkedList<>();
-        for (int i = 0; i < sigCount; i++) {
-            byte[] sig = stack.pollLast();
-            sigs.add(sig);
-        }
+        byte[][] sigs = new byte[sigCount][];
+        for (int i = 0; i < sigCount; i++)
+            sigs[i] = stack.pop();
 
         byte[] prog = script.getProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
@@ -1488,35 +1539,36 @@ public class Script {
         }
 
         boolean valid = true;
-        while (sigs.size() > 0) {
-            byte[] pubKey = pubkeys.pollFirst();
+        int sigIndex = 0, pubKeyIndex = 0;
+        while (sigIndex < sigCount) {
+            byte[] pubKey = pubkeys[pubKeyIndex++];
             // We could reasonably move this out of the loop, but because signature verification is significantly
             // more expensive than hashing, its not a big deal.
             try {
-                TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), requireCanonical, false);
+                TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs[sigIndex], requireCanonical, false);
                 Sha256Hash hash = sig.useForkId() ?
                         txContainingThis.hashForSignatureWitness(index, connectedScript, value, sig.sigHashMode(), sig.anyoneCanPay()):
                         txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
-                    sigs.pollFirst();
+                if (verifySignature(hash, sig, pubKey, sigs[sigIndex], verifiedSignatures))
+                    sigIndex++;
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
                 // Because I can't verify there aren't more, we use a very generic Exception catch
             }
 
-            if (sigs.size() > pubkeys.size()) {
+            if (sigCount - sigIndex > pubKeyCount - pubKeyIndex) {
                 valid = false;
                 break;
             }
         }
 
         // We uselessly remove a stack object to emulate a Bitcoin Core bug.
-        byte[] nullDummy = stack.pollLast();
+        byte[] nullDummy = stack.pop();
         if (verifyFlags.contains(VerifyFlag.NULLDUMMY) && nullDummy.length > 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "OP_CHECKMULTISIG(VERIFY) with non-null nulldummy: " + Arrays.toString(nullDummy));
 
         if (opcode == OP_CHECKMULTISIG) {
-            stack.add(valid ? new byte[] {1} : new byte[] {});
+            stack.push(valid ? new byte[] {1} : new byte[] {});
         } else if (opcode == OP_CHECKMULTISIGVERIFY) {
             if (!valid)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "Script failed OP_CHECKMULTISIGVERIFY");
@@ -1555,31 +1607,51 @@ public class Script {
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey, Coin value,
                                 Set<VerifyFlag> verifyFlags) throws ScriptException {
-        // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
-        // the tx half broken (also it's not so thread safe to work on it directly.
-        try {
-            txContainingThis = txContainingThis.getParams().getDefaultSerializer().makeTransaction(txContainingThis.bitcoinSerialize());
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
-        }
+        correctlySpends(txContainingThis, scriptSigIndex, scriptPubKey, value, verifyFlags,
+                (SignatureBatchVerifier.Result) null);
+    }
+
+    /**
+     * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey, like
+     * {@link #correctlySpends(Transaction, long, Script, Coin, Set)}, but takes the outcome of signatures which were
+     * already verified by a {@link SignatureBatchVerifier} from the given result, rather than verifying them again.
+     * @param verifiedSignatures Signatures which were verified beforehand, or null to verify all of them.
+     */
+    public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey, Coin value,
+                                Set<VerifyFlag> verifyFlags,
+                                @Nullable SignatureBatchVerifier.Result verifiedSignatures) throws ScriptException {
+        // The transaction is only read, not edited: the legacy signature hash works on a copy of its own, and the forkid
+        // one reuses the data the transaction precomputed for all its inputs. Copying the transaction for every input
+        // would throw that data away and make verifying all inputs quadratic again.
         if (getProgram().length > MAX_SCRIPT_SIZE || scriptPubKey.getProgram().length > MAX_SCRIPT_SIZE)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Script larger than 10,000 bytes");
 
-        LinkedList<byte[]> stack = new LinkedList<>();
-        LinkedList<byte[]> p2shStack = null;
+        ScriptExecutionContext context = ScriptExecutionContext.acquire();
+        context.verifiedSignatures = verifiedSignatures;
+        try {
+            correctlySpends(txContainingThis, scriptSigIndex, scriptPubKey, value, verifyFlags, context);
+        } finally {
+            context.release();
+        }
+    }
+
+    private void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey, Coin value,
+                                 Set<VerifyFlag> verifyFlags, ScriptExecutionContext context) throws ScriptException {
+        final boolean p2sh = verifyFlags.contains(VerifyFlag.P2SH) && ScriptPattern.isP2SH(scriptPubKey);
+        ScriptStack stack = context.stack;
+        ScriptStack p2shStack = null;
 
-        executeScript(txContainingThis, scriptSigIndex, this, stack, value, verifyFlags);
-        if (verifyFlags.contains(VerifyFlag.P2SH))
-            p2shStack = new LinkedList<>(stack);
-        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, value, verifyFlags);
+        executeScript(txContainingThis, scriptSigIndex, this, stack, context, value, verifyFlags);
+        if (p2sh)
+            p2shStack = stack.snapshot();
+        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, context, value, verifyFlags);
 
         if (stack.size() == 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Stack empty at end of script execution.");
 
-        List<byte[]> stackCopy = new LinkedList<>(stack);
-        if (!castToBool(stack.pollLast()))
+        if (!castToBool(stack.peek()))
             throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE,
-                    "Script resulted in a non-true stack: " + Utils.toString(stackCopy));
+                    "Script resulted in a non-true stack: " + stack);
 
         // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
         // program but it has "useless" form that if evaluated as a normal program always returns true.
@@ -1594,23 +1666,22 @@ public class Script {
         //     overall scalability and performance.
 
         // TODO: Check if we can take out enforceP2SH if there's a checkpoint at the enforcement block.
-        if (verifyFlags.contains(VerifyFlag.P2SH) && ScriptPattern.isP2SH(scriptPubKey)) {
+        if (p2sh) {
             for (ScriptChunk chunk : chunks)
                 if (!chunk.isPushData())
                     throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_PUSHONLY, "Attempted to spend a P2SH scriptPubKey with a script that contained the script op " + chunk);
 
-            byte[] scriptPubKeyBytes = p2shStack.pollLast();
+            byte[] scriptPubKeyBytes = p2shStack.pop();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
 
-            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, value, verifyFlags);
+            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, context, value, verifyFlags);
 
             if (p2shStack.size() == 0)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2SH stack empty at end of script execution.");
 
-            List<byte[]> p2shStackCopy = new LinkedList<>(p2shStack);
-            if (!castToBool(p2shStack.pollLast()))
+            if (!castToBool(p2shStack.peek()))
                 throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE,
-                        "P2SH script execution resulted in a non-true stack: " + Utils.toString(p2shStackCopy));
+                        "P2SH script execution resulted in a non-true stack: " + p2shStack);
         }
     }
 
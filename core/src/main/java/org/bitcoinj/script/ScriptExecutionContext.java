@@ -0,0 +1,63 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import javax.annotation.Nullable;
+
+/**
+ * The working memory of the script interpreter. One instance is kept per thread and reused for every script that
+ * thread verifies, so the stacks are allocated once and then only grow to the largest size seen.
+ */
+final class ScriptExecutionContext {
+    // Enough for the scripts seen in practice, the stacks grow beyond that if needed.
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final ThreadLocal<ScriptExecutionContext> CURRENT = new ThreadLocal<ScriptExecutionContext>() {
+        @Override
+        protected ScriptExecutionContext initialValue() {
+            return new ScriptExecutionContext();
+        }
+    };
+
+    final ScriptStack stack = new ScriptStack(INITIAL_CAPACITY);
+    final ScriptStack altstack = new ScriptStack(INITIAL_CAPACITY);
+    final ConditionStack conditions = new ConditionStack();
+    // Signatures verified ahead of the interpreter, which only have to be looked up.
+    @Nullable SignatureBatchVerifier.Result verifiedSignatures;
+    private boolean inUse = false;
+
+    /**
+     * Returns the context of the current thread, or a fresh one if the context of the current thread is already in
+     * use further up the call stack. Must be paired with {@link #release()}.
+     */
+    static ScriptExecutionContext acquire() {
+        ScriptExecutionContext context = CURRENT.get();
+        if (context.inUse)
+            context = new ScriptExecutionContext();
+        context.inUse = true;
+        return context;
+    }
+
+    /**
+     * Clears the context, so it doesn't keep script data alive, and makes it available again.
+     */
+    void release() {
+        stack.clear();
+        altstack.clear();
+        conditions.clear();
+        verifiedSignatures = null;
+        inUse = false;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The stack of the script interpreter, backed by an array that only grows when needed. Elements are addressed by
+ * their depth, where 0 is the top of the stack.</p>
+ *
+ * <p>Elements are never modified by the interpreter, so they are shared rather than copied. {@link #snapshot()} makes
+ * use of that: the snapshot and the original share the same array until one of them pushes, and only then is the
+ * array copied.</p>
+ *
+ * <p>This class is NOT thread safe.</p>
+ */
+public final class ScriptStack {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final byte[][] EMPTY = new byte[0][];
+
+    private byte[][] elements;
+    private int size;
+    // True if the array may also be referenced by a snapshot, so it must be copied before it is written.
+    private boolean shared;
+
+    public ScriptStack() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty stack which can hold the given number of elements before it needs to grow.
+     */
+    public ScriptStack(int capacity) {
+        checkArgument(capacity >= 0, "Negative capacity: %s", capacity);
+        elements = capacity > 0 ? new byte[capacity][] : EMPTY;
+    }
+
+    /**
+     * Creates a stack of the given elements, the last one being the top of the stack.
+     */
+    public ScriptStack(Collection<byte[]> elements) {
+        this.elements = elements.toArray(new byte[Math.max(elements.size(), DEFAULT_CAPACITY)][]);
+        this.size = elements.size();
+    }
+
+    private ScriptStack(byte[][] elements, int size) {
+        this.elements = elements;
+        this.size = size;
+        this.shared = true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void push(byte[] element) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, Math.max(DEFAULT_CAPACITY, elements.length * 2));
+        else if (shared)
+            elements = elements.clone();
+        shared = false;
+        elements[size++] = element;
+    }
+
+    /**
+     * Removes the top of the stack and returns it.
+     *
+     * @throws NoSuchElementException if the stack is empty.
+     */
+    public byte[] pop() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        byte[] element = elements[--size];
+        if (!shared)
+            elements[size] = null;
+        return element;
+    }
+
+    /**
+     * Returns the top of the stack without removing it.
+     *
+     * @throws NoSuchElementException if the stack is empty.
+     */
+    public byte[] peek() {
+        return peek(0);
+    }
+
+    /**
+     * Returns the element at the given depth without removing it, 0 being the top of the stack.
+     *
+     * @throws NoSuchElementException if the stack is not that deep.
+     */
+    public byte[] peek(int depth) {
+        if (depth < 0 || depth >= size)
+            throw new NoSuchElementException("Depth " + depth + " of a stack of size " + size);
+        return elements[size - 1 - depth];
+    }
+
+    /**
+     * Removes the element at the given depth and returns it, 0 being the top of the stack.
+     *
+     * @throws NoSuchElementException if the stack is not that deep.
+     */
+    public byte[] remove(int depth) {
+        byte[] element = peek(depth);
+        if (shared) {
+            elements = elements.clone();
+            shared = false;
+        }
+        int index = size - 1 - depth;
+        System.arraycopy(elements, index + 1, elements, index, depth);
+        elements[--size] = null;
+        return element;
+    }
+
+    /**
+     * Removes all elements, but keeps the capacity.
+     */
+    public void clear() {
+        if (shared) {
+            elements = new byte[elements.length][];
+            shared = false;
+        } else {
+            Arrays.fill(elements, 0, size, null);
+        }
+        size = 0;
+    }
+
+    /**
+     * Returns a stack with the same elements as this one, which is independent of it from then on. This is cheap:
+     * the elements are only copied once either of the stacks pushes.
+     */
+    public ScriptStack snapshot() {
+        shared = true;
+        return new ScriptStack(elements, size);
+    }
+
+    /**
+     * Returns a copy of the elements, the top of the stack being the last one.
+     */
+    public List<byte[]> toList() {
+        return new ArrayList<>(Arrays.asList(elements).subList(0, size));
+    }
+
+    @Override
+    public String toString() {
+        return Utils.toString(toList());
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.UnsafeByteArrayOutputStream;
+import org.bitcoinj.crypto.LazyECPoint;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.Futures;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Verifies the signatures of many transaction inputs at once, ahead of the script interpreter. The (signature hash,
+ * public key, signature) triples of the standard P2PKH and P2PK spends are gathered up front, see
+ * {@link Request#forInput(Transaction, int, Script, Coin)}, and verified in batches on an executor, so that all cores
+ * are kept busy regardless of how the inputs are spread over the transactions. Triples which occur more than once are
+ * only verified once, and each public key is only decoded once.</p>
+ *
+ * <p>Signatures found in the {@link Script#getSignatureCache() signature cache} are not verified again, and the valid
+ * ones which aren't are added to it.</p>
+ *
+ * <p>The {@link Result} is then handed to
+ * {@link Script#correctlySpends(Transaction, long, Script, Coin, java.util.Set, Result)}, which looks the signatures
+ * up instead of verifying them again. Anything the result doesn't know about is verified by the interpreter as usual,
+ * so the scripts are still the only authority on whether an input is valid.</p>
+ */
+public class SignatureBatchVerifier {
+    private static final Logger log = LoggerFactory.getLogger(SignatureBatchVerifier.class);
+
+    /** The number of signatures verified per job submitted to the executor, by default. */
+    public static final int DEFAULT_BATCH_SIZE = 32;
+
+    private final int batchSize;
+
+    public SignatureBatchVerifier() {
+        this(DEFAULT_BATCH_SIZE);
+    }
+
+    public SignatureBatchVerifier(int batchSize) {
+        checkArgument(batchSize > 0, "Batch size must be positive: %s", batchSize);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The (signature hash, public key, signature) triple of a single signature check. The signature is kept in its
+     * encoded form including the sighash byte, exactly as it is found on the stack. The arrays are not copied, so
+     * they must not be modified.
+     */
+    public static final class SignatureCheck {
+        private final Sha256Hash hash;
+        private final byte[] pubKey;
+        private final byte[] sigBytes;
+        private final int hashCode;
+
+        public SignatureCheck(Sha256Hash hash, byte[] pubKey, byte[] sigBytes) {
+            this.hash = checkNotNull(hash);
+            this.pubKey = checkNotNull(pubKey);
+            this.sigBytes = checkNotNull(sigBytes);
+            this.hashCode = 31 * (31 * hash.hashCode() + Arrays.hashCode(pubKey)) + Arrays.hashCode(sigBytes);
+        }
+
+        public Sha256Hash getHash() {
+            return hash;
+        }
+
+        public byte[] getPubKey() {
+            return pubKey;
+        }
+
+        public byte[] getSigBytes() {
+            return sigBytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SignatureCheck other = (SignatureCheck) o;
+            return hashCode == other.hashCode && hash.equals(other.hash) && Arrays.equals(pubKey, other.pubKey)
+                    && Arrays.equals(sigBytes, other.sigBytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * The signature of one transaction input, to be verified. The signature hash is only calculated by
+     * {@link #verify(List, ExecutorService)}, in parallel with the other requests.
+     */
+    public static final class Request {
+        private final Transaction tx;
+        private final int inputIndex;
+        private final byte[] connectedScript;
+        private final Coin value;
+        private final byte[] pubKey;
+        private final byte[] sigBytes;
+        private final TransactionSignature signature;
+        @Nullable private SignatureCheck check;
+
+        private Request(Transaction tx, int inputIndex, byte[] connectedScript, Coin value, byte[] pubKey,
+                        byte[] sigBytes, TransactionSignature signature) {
+            this.tx = tx;
+            this.inputIndex = inputIndex;
+            this.connectedScript = connectedScript;
+            this.value = value;
+            this.pubKey = pubKey;
+            this.sigBytes = sigBytes;
+            this.signature = signature;
+        }
+
+        /**
+         * Extracts the signature check of the given input, if it spends a P2PKH or P2PK output with the standard
+         * scriptSig. The scripts are not executed, so the check is the one the interpreter will come across if the
+         * input is valid. The value must be the one that will be passed to the interpreter.
+         *
+         * @return the request, or null if the input is of any other form.
+         */
+        @Nullable
+        public static Request forInput(Transaction tx, int inputIndex, Script scriptPubKey, Coin value) {
+            List<ScriptChunk> chunks;
+            try {
+                chunks = tx.getInput(inputIndex).getScriptSig().chunks;
+            } catch (ScriptException e) {
+                return null;
+            }
+            byte[] sigBytes, pubKey;
+            if (ScriptPattern.isP2PKH(scriptPubKey) && chunks.size() == 2) {
+                sigBytes = chunks.get(0).data;
+                pubKey = chunks.get(1).data;
+            } else if (ScriptPattern.isP2PK(scriptPubKey) && chunks.size() == 1) {
+                sigBytes = chunks.get(0).data;
+                pubKey = ScriptPattern.extractKeyFromP2PK(scriptPubKey);
+            } else {
+                return null;
+            }
+            if (sigBytes == null || sigBytes.length == 0 || pubKey == null || pubKey.length == 0)
+                return null;
+            TransactionSignature signature;
+            try {
+                signature = TransactionSignature.decodeFromBitcoin(sigBytes, false, false);
+            } catch (Exception e) {
+                return null; // Left to the interpreter, which knows how to report it.
+            }
+            // The script the signature hash is calculated over, the same way the interpreter does for OP_CHECKSIG.
+            UnsafeByteArrayOutputStream sigPush = new UnsafeByteArrayOutputStream(sigBytes.length + 1);
+            try {
+                Script.writeBytes(sigPush, sigBytes);
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Cannot happen
+            }
+            byte[] connectedScript = Script.removeAllInstancesOf(scriptPubKey.getProgram(), sigPush.toByteArray());
+            return new Request(tx, inputIndex, connectedScript, value, pubKey, sigBytes, signature);
+        }
+
+        public Transaction getTransaction() {
+            return tx;
+        }
+
+        public int getInputIndex() {
+            return inputIndex;
+        }
+
+        /** Returns the triple that was verified, or null if the signature hash could not be calculated. */
+        @Nullable
+        public SignatureCheck getCheck() {
+            return check;
+        }
+
+        private void calculateCheck() {
+            try {
+                Sha256Hash hash = signature.useForkId() ?
+                        tx.hashForSignatureWitness(inputIndex, connectedScript, value, signature.sigHashMode(),
+                                signature.anyoneCanPay()) :
+                        tx.hashForSignature(inputIndex, connectedScript, (byte) signature.sighashFlags);
+                check = new SignatureCheck(hash, pubKey, sigBytes);
+            } catch (Exception e) {
+                log.debug("Could not calculate the signature hash of input {} of {}", inputIndex, tx.getTxId(), e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return tx.getTxId() + ":" + inputIndex;
+        }
+    }
+
+    /**
+     * The outcome of {@link #verify(List, ExecutorService)}.
+     */
+    public static final class Result {
+        private final Map<SignatureCheck, Boolean> verified;
+        private final List<Request> failures;
+
+        private Result(Map<SignatureCheck, Boolean> verified, List<Request> failures) {
+            this.verified = verified;
+            this.failures = failures;
+        }
+
+        /**
+         * Returns whether the given signature is valid, or null if it wasn't verified.
+         */
+        @Nullable
+        public Boolean get(Sha256Hash hash, byte[] pubKey, byte[] sigBytes) {
+            return verified.get(new SignatureCheck(hash, pubKey, sigBytes));
+        }
+
+        /** The number of distinct signatures which were verified. */
+        public int size() {
+            return verified.size();
+        }
+
+        /**
+         * Returns the requests whose signature is not valid, in the order they were given. There is one for each
+         * input, also if several inputs carry the same signature.
+         */
+        public List<Request> getFailures() {
+            return failures;
+        }
+    }
+
+    /**
+     * Verifies the signatures of the given requests, in parallel on the given executor. This blocks until all of them
+     * are done, so it must not be called from a thread of the executor.
+     */
+    public Result verify(List<Request> requests, ExecutorService executor) {
+        // Calculate the signature hashes. The requests of a transaction are kept together, as hashing serializes the
+        // transaction, which must not happen on several threads at once.
+        List<Callable<Void>> hashJobs = new ArrayList<>();
+        int from = 0;
+        while (from < requests.size()) {
+            int to = Math.min(from + batchSize, requests.size());
+            while (to < requests.size() && requests.get(to).tx == requests.get(to - 1).tx)
+                to++;
+            final List<Request> slice = requests.subList(from, to);
+            hashJobs.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (Request request : slice)
+                        request.calculateCheck();
+                    return null;
+                }
+            });
+            from = to;
+        }
+        run(hashJobs, executor);
+
+        // Each distinct triple is verified once. They are grouped by public key so that each key is decoded once,
+        // and by one thread only.
+        final SignatureCache cache = Script.getSignatureCache();
+        final Map<SignatureCheck, Boolean> verified = new ConcurrentHashMap<>(requests.size() * 2);
+        Map<SignatureCheck, Request> distinct = new LinkedHashMap<>();
+        for (Request request : requests) {
+            if (request.check == null || verified.containsKey(request.check) || distinct.containsKey(request.check))
+                continue;
+            if (cache != null && cache.contains(request.check))
+                verified.put(request.check, Boolean.TRUE);
+            else
+                distinct.put(request.check, request);
+        }
+        Map<ByteBuffer, List<Request>> byPubKey = new LinkedHashMap<>();
+        for (Request request : distinct.values()) {
+            ByteBuffer pubKey = ByteBuffer.wrap(request.pubKey);
+            List<Request> group = byPubKey.get(pubKey);
+            if (group == null) {
+                group = new ArrayList<>(1);
+                byPubKey.put(pubKey, group);
+            }
+            group.add(request);
+        }
+
+        List<Callable<Void>> verifyJobs = new ArrayList<>();
+        List<List<Request>> batch = new ArrayList<>();
+        int batchCount = 0;
+        for (List<Request> group : byPubKey.values()) {
+            batch.add(group);
+            batchCount += group.size();
+            if (batchCount >= batchSize) {
+                verifyJobs.add(verifyJob(batch, verified, cache));
+                batch = new ArrayList<>();
+                batchCount = 0;
+            }
+        }
+        if (!batch.isEmpty())
+            verifyJobs.add(verifyJob(batch, verified, cache));
+        run(verifyJobs, executor);
+
+        List<Request> failures = new ArrayList<>();
+        for (Request request : requests)
+            if (request.check != null && !verified.get(request.check))
+                failures.add(request);
+        return new Result(verified, Collections.unmodifiableList(failures));
+    }
+
+    private static Callable<Void> verifyJob(final List<List<Request>> groups, final Map<SignatureCheck, Boolean> verified,
+                                            @Nullable final SignatureCache cache) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (List<Request> group : groups) {
+                    LazyECPoint pubKey = new LazyECPoint(ECKey.CURVE.getCurve(), group.get(0).pubKey);
+                    for (Request request : group) {
+                        boolean valid;
+                        try {
+                            valid = ECKey.verify(request.check.getHash().getBytes(), request.signature, pubKey);
+                        } catch (Exception e) {
+                            // Most likely a public key which is not a point on the curve.
+                            valid = false;
+                        }
+                        verified.put(request.check, valid);
+                        if (valid && cache != null)
+                            cache.add(request.check);
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    // Runs the jobs on the executor and waits for all of them. A single job is run right away on this thread.
+    private static void run(List<Callable<Void>> jobs, ExecutorService executor) {
+        if (jobs.size() == 1) {
+            try {
+                jobs.get(0).call();
+            } catch (Exception e) {
+                throw new RuntimeException(e); // Cannot happen, the jobs catch everything.
+            }
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<>(jobs.size());
+        for (Callable<Void> job : jobs)
+            futures.add(executor.submit(job));
+        for (Future<Void> future : futures)
+            Futures.getUnchecked(future);
+    }
+}
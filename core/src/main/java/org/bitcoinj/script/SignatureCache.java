@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.script.SignatureBatchVerifier.SignatureCheck;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A bounded cache of signatures which are known to be valid, keyed by (signature hash, public key, signature),
+ * like the sigcache of Bitcoin Core. A transaction which was verified when it was announced, e.g. through
+ * {@link org.bitcoinj.core.TransactionInput#verify(org.bitcoinj.core.TransactionOutput)}, then doesn't need its
+ * signatures to be verified again when the block containing it is connected. The cache is consulted by the script
+ * interpreter and by {@link SignatureBatchVerifier}, see {@link Script#setSignatureCache(SignatureCache)}. It is on by
+ * default, its size can be set or it can be turned off with
+ * {@link org.bitcoinj.core.Context#Context(org.bitcoinj.core.NetworkParameters, int, org.bitcoinj.core.Coin, boolean, long)}.</p>
+ *
+ * <p>Only valid signatures are cached, so invalid ones can't be used to push valid ones out. Entries are kept as a
+ * salted hash of the triple, so each takes the same amount of memory and the size of the cache can be given in bytes.
+ * When the cache is full, the oldest entries are evicted first.</p>
+ *
+ * <p>This class is thread safe: the entries are spread over several independently locked segments.</p>
+ */
+public class SignatureCache {
+    /** The default maximum size, in bytes. */
+    public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+    // A rough estimate of the memory taken by an entry: the hash object and its array, and the map entry.
+    static final int ENTRY_SIZE = 128;
+    private static final int SEGMENTS = 16;
+
+    private final byte[] salt = new byte[32];
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long maxSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class Segment extends LinkedHashMap<Sha256Hash, Boolean> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    public SignatureCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Creates a cache which takes about the given number of bytes of memory when it is full.
+     */
+    public SignatureCache(long maxSize) {
+        checkArgument(maxSize >= ENTRY_SIZE * SEGMENTS, "Size too small: %s", maxSize);
+        this.maxSize = maxSize;
+        long segmentCapacity = maxSize / ENTRY_SIZE / SEGMENTS;
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment((int) Math.min(segmentCapacity, Integer.MAX_VALUE));
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * Returns true if the given signature is known to be valid. Counts as a hit or a miss.
+     */
+    public boolean contains(Sha256Hash hash, byte[] pubKey, byte[] sigBytes) {
+        Sha256Hash key = key(hash, pubKey, sigBytes);
+        Segment segment = segment(key);
+        boolean found;
+        synchronized (segment) {
+            found = segment.containsKey(key);
+        }
+        (found ? hits : misses).incrementAndGet();
+        return found;
+    }
+
+    public boolean contains(SignatureCheck check) {
+        return contains(check.getHash(), check.getPubKey(), check.getSigBytes());
+    }
+
+    /**
+     * Records that the given signature is valid. Nothing is recorded while {@link ECKey#FAKE_SIGNATURES} is set.
+     */
+    public void add(Sha256Hash hash, byte[] pubKey, byte[] sigBytes) {
+        if (ECKey.FAKE_SIGNATURES)
+            return;
+        Sha256Hash key = key(hash, pubKey, sigBytes);
+        Segment segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, Boolean.TRUE);
+        }
+    }
+
+    public void add(SignatureCheck check) {
+        add(check.getHash(), check.getPubKey(), check.getSigBytes());
+    }
+
+    /** Returns the number of signatures in the cache. */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /** Returns the maximum size of the cache, in bytes. */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /** Returns the number of lookups which found the signature. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns the number of lookups which didn't find the signature. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Removes all signatures, but keeps the counters. */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private Sha256Hash key(Sha256Hash hash, byte[] pubKey, byte[] sigBytes) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        digest.update(hash.getBytes());
+        // The length keeps the boundary between the key and the signature unambiguous.
+        digest.update((byte) (pubKey.length >> 8));
+        digest.update((byte) pubKey.length);
+        digest.update(pubKey);
+        digest.update(sigBytes);
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    private Segment segment(Sha256Hash key) {
+        // The key is random, so any of its bytes will do. The last ones are used by hashCode() already.
+        return segments[(key.getBytes()[0] & 0xff) % SEGMENTS];
+    }
+
+    @Override
+    public String toString() {
+        return "SignatureCache{size=" + size() + ", hits=" + hits + ", misses=" + misses + "}";
+    }
+}
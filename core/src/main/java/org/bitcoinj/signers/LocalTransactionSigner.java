@@ -17,23 +17,32 @@
 
 package org.bitcoinj.signers;
 
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
-import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.crypto.DeterministicKey;
 import org.bitcoinj.crypto.TransactionSignature;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptException;
-import org.bitcoinj.script.ScriptPattern;
 import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.KeyBag;
 import org.bitcoinj.wallet.RedeemData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * <p>{@link TransactionSigner} implementation for signing inputs using keys from provided {@link KeyBag}.</p>
  * <p>This signer doesn't create input scripts for tx inputs. Instead it expects inputs to contain scripts with
@@ -45,6 +54,9 @@ import org.slf4j.LoggerFactory;
  * signers to use correct signing key for P2SH inputs, because all the keys involved in a single P2SH address have
  * the same derivation path.</p>
  * <p>This signer always uses {@link Transaction.SigHash#ALL} signing mode.</p>
+ * <p>Transactions with many inputs have their inputs checked and signed on several threads, see
+ * {@link #setParallelism(int)}. Keys are looked up, and the transaction is changed, on the calling thread only, in the
+ * order of the inputs, so the result is the same as signing one input after the other.</p>
  */
 public class LocalTransactionSigner implements TransactionSigner {
     private static final Logger log = LoggerFactory.getLogger(LocalTransactionSigner.class);
@@ -56,31 +68,64 @@ public class LocalTransactionSigner implements TransactionSigner {
     private static final EnumSet<VerifyFlag> MINIMUM_VERIFY_FLAGS = EnumSet.of(VerifyFlag.P2SH,
         VerifyFlag.NULLDUMMY);
 
+    // Inputs are only spread over threads in chunks of at least this many, as starting a task costs about as much as
+    // checking or signing a few inputs.
+    private static final int MIN_INPUTS_PER_TASK = 16;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
     @Override
     public boolean isReady() {
         return true;
     }
 
+    /**
+     * Sets how many threads of {@link Threading#getComputePool()} may check and sign the inputs of a transaction at
+     * once. Defaults to the number of processors. With 1, everything happens on the calling thread.
+     */
+    public void setParallelism(int parallelism) {
+        checkArgument(parallelism > 0, "Parallelism must be positive: %s", parallelism);
+        this.parallelism = parallelism;
+    }
+
     @Override
-    public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
-        Transaction tx = propTx.partialTx;
+    public boolean signInputs(final ProposedTransaction propTx, KeyBag keyBag) {
+        final Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        // Serialize the transaction once up front, so the threads computing signature hashes from it only read it.
+        tx.unsafeBitcoinSerialize();
+
+        final boolean[] alreadySigned = new boolean[numInputs];
+        forEachInput(numInputs, new InputTask() {
+            @Override
+            public void run(int i) {
+                TransactionInput txIn = tx.getInput(i);
+                if (txIn.getConnectedOutput() == null)
+                    return;
+                try {
+                    // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
+                    // we sign missing pieces (to check this would require either assuming any signatures are signing
+                    // standard output types or a way to get processed signatures out of script execution)
+                    txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey(), txIn.getConnectedOutput().getValue(), MINIMUM_VERIFY_FLAGS);
+                    alreadySigned[i] = true;
+                } catch (ScriptException e) {
+                    // Expected.
+                }
+            }
+        });
+
+        // Looking up and decrypting keys goes through the key bag, which is left to the calling thread.
+        final ECKey[] keys = new ECKey[numInputs];
+        final byte[][] scripts = new byte[numInputs][];
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
             if (txIn.getConnectedOutput() == null) {
                 log.warn("Missing connected output, assuming input {} is already signed.", i);
                 continue;
             }
-
-            try {
-                // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
-                // we sign missing pieces (to check this would require either assuming any signatures are signing
-                // standard output types or a way to get processed signatures out of script execution)
-                txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey(), txIn.getConnectedOutput().getValue(), MINIMUM_VERIFY_FLAGS);
+            if (alreadySigned[i]) {
                 log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                 continue;
-            } catch (ScriptException e) {
-                // Expected.
             }
 
             RedeemData redeemData = txIn.getConnectedRedeemData(keyBag);
@@ -94,24 +139,46 @@ public class LocalTransactionSigner implements TransactionSigner {
             if (pubKey instanceof DeterministicKey)
                 propTx.keyPaths.put(scriptPubKey, (((DeterministicKey) pubKey).getPath()));
 
-            ECKey key;
             // locate private key in redeem data. For pay-to-address and pay-to-key inputs RedeemData will always contain
             // only one key (with private bytes). For P2SH inputs RedeemData will contain multiple keys, one of which MAY
             // have private bytes
-            if ((key = redeemData.getFullKey()) == null) {
+            if ((keys[i] = redeemData.getFullKey()) == null) {
                 log.warn("No local key found for input {}", i);
                 continue;
             }
-
-            Script inputScript = txIn.getScriptSig();
-            // script here would be either a standard CHECKSIG program for pay-to-address or pay-to-pubkey inputs or
+            // script here would be either a standard CHECKSIG program for pay-to-address or pay-to-key inputs or
             // a CHECKMULTISIG program for P2SH inputs
-            byte[] script = redeemData.redeemScript.getProgram();
-            try {
-                TransactionSignature signature = propTx.useForkId ?
-                        tx.calculateWitnessSignature(i, key, script, tx.getInput(i).getConnectedOutput().getValue(), Transaction.SigHash.ALL, false) :
-                        tx.calculateSignature(i, key, script, Transaction.SigHash.ALL, false);
+            scripts[i] = redeemData.redeemScript.getProgram();
+        }
+
+        // The signature of an input doesn't cover the scripts of the other inputs, so all of them can be calculated
+        // before any is put in place. Failures are kept to be dealt with in input order, like the signatures.
+        final TransactionSignature[] signatures = new TransactionSignature[numInputs];
+        final RuntimeException[] failures = new RuntimeException[numInputs];
+        forEachInput(numInputs, new InputTask() {
+            @Override
+            public void run(int i) {
+                if (keys[i] == null)
+                    return;
+                try {
+                    signatures[i] = propTx.useForkId ?
+                            tx.calculateWitnessSignature(i, keys[i], scripts[i], tx.getInput(i).getConnectedOutput().getValue(), Transaction.SigHash.ALL, false) :
+                            tx.calculateSignature(i, keys[i], scripts[i], Transaction.SigHash.ALL, false);
+                } catch (RuntimeException e) {
+                    failures[i] = e;
+                }
+            }
+        });
 
+        for (int i = 0; i < numInputs; i++) {
+            if (keys[i] == null)
+                continue;
+            TransactionInput txIn = tx.getInput(i);
+            try {
+                if (failures[i] != null)
+                    throw failures[i];
+                Script scriptPubKey = txIn.getConnectedOutput().getScriptPubKey();
+                Script inputScript = txIn.getScriptSig();
                 // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
                 // have calculated the signature using the local key and now need to insert it in the correct place
                 // within inputScript. For pay-to-address and pay-to-key script there is only one signature and it always
@@ -120,16 +187,49 @@ public class LocalTransactionSigner implements TransactionSigner {
                 // we always run first, we have to depend on the other signers rearranging the signatures as needed.
                 // Therefore, always place as first signature.
                 int sigIndex = 0;
-                inputScript = scriptPubKey.getScriptSigWithSignature(inputScript, signature.encodeToBitcoin(), sigIndex);
+                inputScript = scriptPubKey.getScriptSigWithSignature(inputScript, signatures[i].encodeToBitcoin(), sigIndex);
                 txIn.setScriptSig(inputScript);
             } catch (ECKey.KeyIsEncryptedException e) {
                 throw e;
             } catch (ECKey.MissingPrivateKeyException e) {
                 log.warn("No private key in keypair for input {}", i);
             }
-
         }
         return true;
     }
 
+    private interface InputTask {
+        void run(int input);
+    }
+
+    // Runs the task for every input, spread over up to parallelism threads if there are enough inputs. The task must
+    // only touch what belongs to its input.
+    private void forEachInput(final int numInputs, final InputTask task) {
+        int chunks = Math.min(parallelism, numInputs / MIN_INPUTS_PER_TASK);
+        if (chunks <= 1) {
+            for (int i = 0; i < numInputs; i++)
+                task.run(i);
+            return;
+        }
+        ExecutorService executor = Threading.getComputePool();
+        try {
+            List<Future<?>> futures = new ArrayList<>(chunks);
+            for (int c = 0; c < chunks; c++) {
+                final int start = (int) ((long) numInputs * c / chunks);
+                final int end = (int) ((long) numInputs * (c + 1) / chunks);
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = start; i < end; i++)
+                            task.run(i);
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
 }
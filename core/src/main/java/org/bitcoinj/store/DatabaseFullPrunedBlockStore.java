@@ -21,6 +21,7 @@ package org.bitcoinj.store;
 import org.bitcoinj.core.*;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.Script.ScriptType;
+import org.bitcoinj.script.ScriptException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,7 +73,7 @@ import java.util.*;
  *     <tr><td>height</td><td>integer</td></tr>
  *     <tr><td>value</td><td>integer</td></tr>
  *     <tr><td>scriptbytes</td><td>binary</td></tr>
- *     <tr><td>toaddress</td><td>string</td></tr>
+ *     <tr><td>addresshash</td><td>binary</td></tr>
  *     <tr><td>addresstargetable</td><td>integer</td></tr>
  *     <tr><td>coinbase</td><td>boolean</td></tr>
  * </table>
@@ -104,9 +105,9 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String UPDATE_UNDOABLEBLOCKS_SQL                       = "UPDATE undoableblocks SET txoutchanges=?, transactions=? WHERE hash = ?";
     private static final String DELETE_UNDOABLEBLOCKS_SQL                       = "DELETE FROM undoableblocks WHERE height <= ?";
 
-    private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND index = ?";
+    private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, addresshash, addresstargetable FROM openoutputs WHERE hash = ? AND index = ?";
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
-    private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, addresshash, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
 
     // Dump table SQL (this is just for data sizing statistics).
@@ -115,16 +116,21 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_DUMP_UNDOABLEBLOCKS_SQL                  = "SELECT txoutchanges, transactions FROM undoableblocks";
     private static final String SELECT_DUMP_OPENOUTPUTS_SQL                     = "SELECT value, scriptbytes FROM openoutputs";
 
-    private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
+    private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, index, coinbase, addresshash, addresstargetable FROM openoutputs where addresshash = ?";
 
     // Select the balance of an address SQL.
-    private static final String SELECT_BALANCE_SQL                              = "select sum(value) from openoutputs where toaddress = ?";
+    private static final String SELECT_BALANCE_SQL                              = "select sum(value) from openoutputs where addresshash = ? and addresstargetable in (?, ?)";
 
     // Tables exist SQL.
     private static final String SELECT_CHECK_TABLES_EXIST_SQL                   = "SELECT * FROM settings WHERE 1 = 2";
 
     // Compatibility SQL.
     private static final String SELECT_COMPATIBILITY_COINBASE_SQL               = "SELECT coinbase FROM openoutputs WHERE 1 = 2";
+    private static final String SELECT_COMPATIBILITY_ADDRESSHASH_SQL            = "SELECT addresshash FROM openoutputs WHERE 1 = 2";
+
+    // Upgrade from version 03, where outputs have a Base58 toaddress column instead of addresshash.
+    private static final String SELECT_UPGRADE_OPENOUTPUTS_SQL                  = "SELECT hash, index, scriptbytes FROM openoutputs";
+    private static final String UPDATE_UPGRADE_OPENOUTPUTS_SQL                  = "UPDATE openoutputs SET addresshash = ?, addresstargetable = ? WHERE hash = ? AND index = ?";
 
     protected Sha256Hash chainHeadHash;
     protected StoredBlock chainHeadBlock;
@@ -176,6 +182,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             if (!tablesExists()) {
                 createTables();
             } else {
+                maybeUpgradeFromVersion3();
                 checkCompatibility();
             }
             initFromDatabase();
@@ -217,7 +224,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected abstract String getDuplicateKeyErrorCode();
 
     /**
-     * Get the SQL to select the total balance for a given address.
+     * Get the SQL to select the total balance for a given address hash, paid to by either of two script types.
      * @return The SQL prepared statement.
      */
     protected String getBalanceSelectSQL() {
@@ -239,9 +246,46 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected List<String> getCompatibilitySQL() {
         List<String> sqlStatements = new ArrayList<>();
         sqlStatements.add(SELECT_COMPATIBILITY_COINBASE_SQL);
+        sqlStatements.add(SELECT_COMPATIBILITY_ADDRESSHASH_SQL);
         return sqlStatements;
     }
 
+    /**
+     * Get the SQL statements that add the addresshash column to the openoutputs table of a store created by an earlier
+     * release (version 03), which has a toaddress column instead. Without them, such stores aren't upgraded and fail
+     * the compatibility check.
+     * @return The SQL statements, or an empty list if this database can't upgrade such stores.
+     */
+    protected List<String> getUpgradeAddColumnsSQL() {
+        return new ArrayList<>();
+    }
+
+    /**
+     * Get the SQL statements that finish the upgrade of a version 03 store once the addresshash column is filled in:
+     * drop the toaddress column along with its indexes, and create the indexes of the addresshash column.
+     * @return The SQL statements.
+     */
+    protected List<String> getUpgradeDropColumnsSQL() {
+        return new ArrayList<>();
+    }
+
+    /**
+     * Get the SQL to select the scripts of all outputs, to fill in their address hashes when upgrading a version 03
+     * store.
+     * @return The SQL prepared statement.
+     */
+    protected String getUpgradeSelectOpenoutputsSQL() {
+        return SELECT_UPGRADE_OPENOUTPUTS_SQL;
+    }
+
+    /**
+     * Get the SQL to set the address hash and script type of an output when upgrading a version 03 store.
+     * @return The SQL prepared statement.
+     */
+    protected String getUpgradeUpdateOpenoutputsSQL() {
+        return UPDATE_UPGRADE_OPENOUTPUTS_SQL;
+    }
+
     /**
      * Get the SQL to select the transaction outputs for a given address.
      * @return The SQL prepared statement.
@@ -506,6 +550,91 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    /**
+     * Upgrades a store created by an earlier release (version 03), which keeps the Base58 address an output pays to
+     * rather than its hash, if the database supports it. The address hashes are derived from the scripts.
+     * @throws java.sql.SQLException If there is a database error.
+     */
+    private void maybeUpgradeFromVersion3() throws SQLException {
+        List<String> addColumnsSQL = getUpgradeAddColumnsSQL();
+        if (addColumnsSQL.isEmpty())
+            return;
+        PreparedStatement ps = conn.get().prepareStatement(getSelectSettingsSQL());
+        ps.setString(1, VERSION_SETTING);
+        ResultSet rs = ps.executeQuery();
+        String version = rs.next() ? new String(rs.getBytes(1)) : null;
+        rs.close();
+        ps.close();
+        if (!"03".equals(version))
+            return;
+        log.info("Upgrading database block store from version 03 to 04, this may take a while");
+        Statement s = conn.get().createStatement();
+        // The column may be there already, if an earlier upgrade was interrupted.
+        if (!canQuery(SELECT_COMPATIBILITY_ADDRESSHASH_SQL)) {
+            for (String sql : addColumnsSQL)
+                s.executeUpdate(sql);
+        }
+
+        conn.get().setAutoCommit(false);
+        try {
+            PreparedStatement select = conn.get().prepareStatement(getUpgradeSelectOpenoutputsSQL());
+            select.setFetchSize(1000);
+            PreparedStatement update = conn.get().prepareStatement(getUpgradeUpdateOpenoutputsSQL());
+            rs = select.executeQuery();
+            int batched = 0;
+            while (rs.next()) {
+                byte[] hash = rs.getBytes(1);
+                int index = rs.getInt(2);
+                UTXO out;
+                try {
+                    out = new UTXO(Sha256Hash.wrap(hash), index, Coin.ZERO, 0, false, new Script(rs.getBytes(3)));
+                } catch (ScriptException e) {
+                    continue; // Doesn't pay to an address.
+                }
+                byte[] addressHash = out.getAddressHash();
+                if (addressHash == null)
+                    continue;
+                update.setBytes(1, addressHash);
+                update.setInt(2, out.getScriptType().id);
+                update.setBytes(3, hash);
+                update.setInt(4, index);
+                update.addBatch();
+                if (++batched % 1000 == 0)
+                    update.executeBatch();
+            }
+            update.executeBatch();
+            rs.close();
+            select.close();
+            update.close();
+            conn.get().commit();
+        } catch (SQLException e) {
+            conn.get().rollback();
+            throw e;
+        } finally {
+            conn.get().setAutoCommit(true);
+        }
+
+        for (String sql : getUpgradeDropColumnsSQL())
+            s.executeUpdate(sql);
+        s.close();
+        ps = conn.get().prepareStatement(getUpdateSettingsSLQ());
+        ps.setBytes(1, "04".getBytes());
+        ps.setString(2, VERSION_SETTING);
+        ps.executeUpdate();
+        ps.close();
+        log.info("Upgraded database block store to version 04");
+    }
+
+    // Returns whether the given query runs, e.g. whether the columns it selects exist.
+    private boolean canQuery(String sql) {
+        try (PreparedStatement ps = conn.get().prepareStatement(sql)) {
+            ps.executeQuery().close();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
     /**
      * Create the tables/block store in the database and
      * @throws java.sql.SQLException If there is a database error.
@@ -538,7 +667,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         ps.setNull(2, Types.BINARY);
         ps.execute();
         ps.setString(1, VERSION_SETTING);
-        ps.setBytes(2, "03".getBytes());
+        ps.setBytes(2, "04".getBytes());
         ps.execute();
         ps.close();
         createNewStore(params);
@@ -903,10 +1032,51 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         try {
             s = conn.get()
                     .prepareStatement(getSelectOpenoutputsSQL());
-            s.setBytes(1, hash.getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) index);
-            ResultSet results = s.executeQuery();
+            return getTransactionOutput(s, hash, index);
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException("Failed to close PreparedStatement");
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        maybeConnect();
+        PreparedStatement s = null;
+        try {
+            // Prepare the query once and run it for each of the outpoints.
+            s = conn.get()
+                    .prepareStatement(getSelectOpenoutputsSQL());
+            List<UTXO> outputs = new ArrayList<>(outPoints.size());
+            for (TransactionOutPoint outPoint : outPoints)
+                outputs.add(getTransactionOutput(s, outPoint.getHash(), outPoint.getIndex()));
+            return outputs;
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException("Failed to close PreparedStatement");
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private UTXO getTransactionOutput(PreparedStatement s, Sha256Hash hash, long index) throws SQLException {
+        s.setBytes(1, hash.getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) index);
+        try (ResultSet results = s.executeQuery()) {
             if (!results.next()) {
                 return null;
             }
@@ -915,25 +1085,13 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             Coin value = Coin.valueOf(results.getLong(2));
             byte[] scriptBytes = results.getBytes(3);
             boolean coinbase = results.getBoolean(4);
-            String address = results.getString(5);
-            UTXO txout = new UTXO(hash,
+            return new UTXO(hash,
                     index,
                     value,
                     height,
                     coinbase,
                     new Script(scriptBytes),
-                    address);
-            return txout;
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+                    params);
         }
     }
 
@@ -943,16 +1101,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
-            ScriptType scriptType = out.getScript().getScriptType();
-            s.setInt(7, scriptType != null ? scriptType.id : 0);
-            s.setBoolean(8, out.isCoinbase());
+            setInsertOpenoutputsParameters(s, out);
             s.executeUpdate();
             s.close();
         } catch (SQLException e) {
@@ -969,6 +1118,23 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    private void setInsertOpenoutputsParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, out.getScript().getProgram());
+        byte[] addressHash = out.getAddressHash();
+        if (addressHash != null)
+            s.setBytes(6, addressHash);
+        else
+            s.setNull(6, Types.BINARY);
+        ScriptType scriptType = out.getScriptType();
+        s.setInt(7, scriptType != null ? scriptType.id : 0);
+        s.setBoolean(8, out.isCoinbase());
+    }
+
     @Override
     public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
@@ -988,6 +1154,52 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    @Override
+    public void updateUnspentTransactionOutputs(List<UTXO> spent, List<UTXO> created) throws BlockStoreException {
+        maybeConnect();
+        try {
+            if (!spent.isEmpty()) {
+                try (PreparedStatement s = conn.get().prepareStatement(getDeleteOpenoutputsSQL())) {
+                    for (UTXO out : spent) {
+                        s.setBytes(1, out.getHash().getBytes());
+                        // index is actually an unsigned int
+                        s.setInt(2, (int) out.getIndex());
+                        s.addBatch();
+                    }
+                    // The update counts replace the existence check done by removeUnspentTransactionOutput.
+                    for (int count : s.executeBatch())
+                        if (count == 0)
+                            throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+                }
+            }
+            if (!created.isEmpty()) {
+                try (PreparedStatement s = conn.get().prepareStatement(getInsertOpenoutputsSQL())) {
+                    for (UTXO out : created) {
+                        setInsertOpenoutputsParameters(s, out);
+                        s.addBatch();
+                    }
+                    s.executeBatch();
+                } catch (SQLException e) {
+                    if (!isDuplicateKeyError(e))
+                        throw e;
+                    // A batch fails as a whole on a duplicate, so fall back to inserting one by one and ignoring those.
+                    for (UTXO out : created)
+                        addUnspentTransactionOutput(out);
+                }
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // Batch failures may report the cause of the failing statement only in the chained exceptions.
+    private boolean isDuplicateKeyError(SQLException e) {
+        for (SQLException cause = e; cause != null; cause = cause.getNextException())
+            if (getDuplicateKeyErrorCode().equals(cause.getSQLState()))
+                return true;
+        return false;
+    }
+
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
@@ -1121,7 +1333,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getBalanceSelectSQL());
-            s.setString(1, address.toString());
+            s.setBytes(1, address.getHash());
+            if (address.getOutputScriptType() == ScriptType.P2SH) {
+                s.setInt(2, ScriptType.P2SH.id);
+                s.setInt(3, ScriptType.P2SH.id);
+            } else {
+                // Pay to pubkey outputs are indexed under the hash of their key, just like pay to pubkey hash ones.
+                s.setInt(2, ScriptType.P2PKH.id);
+                s.setInt(3, ScriptType.P2PK.id);
+            }
             ResultSet rs = s.executeQuery();
             BigInteger balance = BigInteger.ZERO;
             if (rs.next()) {
@@ -1149,24 +1369,25 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             maybeConnect();
             s = conn.get().prepareStatement(getTransactionOutputSelectSQL());
             for (ECKey key : keys) {
-                // TODO switch to pubKeyHash in order to support native segwit addresses
-                s.setString(1, LegacyAddress.fromKey(params, key).toString());
+                s.setBytes(1, key.getPubKeyHash());
                 ResultSet rs = s.executeQuery();
                 while (rs.next()) {
+                    // A script hash which happens to equal the pubkey hash isn't spendable by the key.
+                    if (rs.getInt(8) == ScriptType.P2SH.id)
+                        continue;
                     Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
                     Coin amount = Coin.valueOf(rs.getLong(2));
                     byte[] scriptBytes = rs.getBytes(3);
                     int height = rs.getInt(4);
                     int index = rs.getInt(5);
                     boolean coinbase = rs.getBoolean(6);
-                    String toAddress = rs.getString(7);
                     UTXO output = new UTXO(hash,
                             index,
                             amount,
                             height,
                             coinbase,
                             new Script(scriptBytes),
-                            toAddress);
+                            params);
                     outputs.add(output);
                 }
             }
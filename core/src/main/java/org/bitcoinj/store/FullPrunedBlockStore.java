@@ -18,6 +18,8 @@ package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
 
+import java.util.List;
+
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -76,6 +78,12 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      */
     UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException;
     
+    /**
+     * Gets the {@link UTXO}s for all of the given outpoints in one call. The returned list has one entry per outpoint,
+     * in the same order, which is null if no such output is found.
+     */
+    List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException;
+
     /**
      * Adds a {@link UTXO} to the list of unspent TransactionOutputs
      */
@@ -88,6 +96,13 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      */
     void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException;
     
+    /**
+     * Removes all of the spent {@link UTXO}s and then adds all of the created ones in one call, with the same result
+     * as calling {@link #removeUnspentTransactionOutput(UTXO)} and {@link #addUnspentTransactionOutput(UTXO)} for each.
+     * @throws BlockStoreException if there is an underlying storage issue, or a spent output was not in the list.
+     */
+    void updateUnspentTransactionOutputs(List<UTXO> spent, List<UTXO> created) throws BlockStoreException;
+
     /**
      * True if this store has any unspent outputs from a transaction with a hash equal to the first parameter
      * @param numOutputs the number of outputs the given transaction has
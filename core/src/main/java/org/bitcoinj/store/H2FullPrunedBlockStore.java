@@ -66,19 +66,27 @@ public class H2FullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
             + "height INT NOT NULL,"
             + "value BIGINT NOT NULL,"
             + "scriptbytes BLOB NOT NULL,"
-            + "toaddress VARCHAR(74),"
+            + "addresshash BINARY(20),"
             + "addresstargetable TINYINT,"
             + "coinbase BOOLEAN,"
             + "PRIMARY KEY (hash, index),"
             + ")";
 
     // Some indexes to speed up inserts
-    private static final String CREATE_OUTPUTS_ADDRESS_MULTI_INDEX      = "CREATE INDEX openoutputs_hash_index_height_toaddress_idx ON openoutputs (hash, index, height, toaddress)";
-    private static final String CREATE_OUTPUTS_TOADDRESS_INDEX          = "CREATE INDEX openoutputs_toaddress_idx ON openoutputs (toaddress)";
+    private static final String CREATE_OUTPUTS_ADDRESS_MULTI_INDEX      = "CREATE INDEX openoutputs_hash_index_height_addresshash_idx ON openoutputs (hash, index, height, addresshash)";
+    private static final String CREATE_OUTPUTS_ADDRESSHASH_INDEX        = "CREATE INDEX openoutputs_addresshash_idx ON openoutputs (addresshash)";
     private static final String CREATE_OUTPUTS_ADDRESSTARGETABLE_INDEX  = "CREATE INDEX openoutputs_addresstargetable_idx ON openoutputs (addresstargetable)";
     private static final String CREATE_OUTPUTS_HASH_INDEX               = "CREATE INDEX openoutputs_hash_idx ON openoutputs (hash)";
     private static final String CREATE_UNDOABLE_TABLE_INDEX             = "CREATE INDEX undoableblocks_height_idx ON undoableblocks (height)";
 
+    // Upgrade from version 03, which kept the Base58 address in a toaddress column.
+    private static final String UPGRADE_ADD_ADDRESSHASH_COLUMN          = "ALTER TABLE openoutputs ADD COLUMN addresshash BINARY(20)";
+    private static final String UPGRADE_DROP_ADDRESS_MULTI_INDEX        = "DROP INDEX IF EXISTS openoutputs_hash_index_height_toaddress_idx";
+    private static final String UPGRADE_DROP_TOADDRESS_INDEX            = "DROP INDEX IF EXISTS openoutputs_toaddress_idx";
+    private static final String UPGRADE_DROP_TOADDRESS_COLUMN           = "ALTER TABLE openoutputs DROP COLUMN IF EXISTS toaddress";
+    private static final String UPGRADE_CREATE_ADDRESS_MULTI_INDEX      = "CREATE INDEX IF NOT EXISTS openoutputs_hash_index_height_addresshash_idx ON openoutputs (hash, index, height, addresshash)";
+    private static final String UPGRADE_CREATE_ADDRESSHASH_INDEX        = "CREATE INDEX IF NOT EXISTS openoutputs_addresshash_idx ON openoutputs (addresshash)";
+
     /**
      * Creates a new H2FullPrunedBlockStore, with given credentials for H2 database
      * @param params A copy of the NetworkParameters used
@@ -149,7 +157,23 @@ public class H2FullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         sqlStatements.add(CREATE_OUTPUTS_ADDRESS_MULTI_INDEX);
         sqlStatements.add(CREATE_OUTPUTS_ADDRESSTARGETABLE_INDEX);
         sqlStatements.add(CREATE_OUTPUTS_HASH_INDEX);
-        sqlStatements.add(CREATE_OUTPUTS_TOADDRESS_INDEX);
+        sqlStatements.add(CREATE_OUTPUTS_ADDRESSHASH_INDEX);
+        return sqlStatements;
+    }
+
+    @Override
+    protected List<String> getUpgradeAddColumnsSQL() {
+        return Collections.singletonList(UPGRADE_ADD_ADDRESSHASH_COLUMN);
+    }
+
+    @Override
+    protected List<String> getUpgradeDropColumnsSQL() {
+        List<String> sqlStatements = new ArrayList<>();
+        sqlStatements.add(UPGRADE_DROP_ADDRESS_MULTI_INDEX);
+        sqlStatements.add(UPGRADE_DROP_TOADDRESS_INDEX);
+        sqlStatements.add(UPGRADE_DROP_TOADDRESS_COLUMN);
+        sqlStatements.add(UPGRADE_CREATE_ADDRESS_MULTI_INDEX);
+        sqlStatements.add(UPGRADE_CREATE_ADDRESSHASH_INDEX);
         return sqlStatements;
     }
 
@@ -16,6 +16,7 @@
 
 package org.bitcoinj.store;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -28,22 +29,18 @@ import java.util.concurrent.TimeUnit;
 import java.io.*;
 import java.nio.ByteBuffer;
 
-import org.bitcoinj.core.Address;
-import org.bitcoinj.core.AddressFormatException;
 import org.bitcoinj.core.ECKey;
-import org.bitcoinj.core.LegacyAddress;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.StoredUndoableBlock;
 import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutputChanges;
 import org.bitcoinj.core.UTXO;
 import org.bitcoinj.core.UTXOProviderException;
 import org.bitcoinj.core.Utils;
 import org.bitcoinj.core.VerificationException;
-import org.bitcoinj.script.Script;
-import org.bitcoinj.script.ScriptException;
 import org.iq80.leveldb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -460,10 +457,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                     throw new UTXOProviderException("block store execption", e);
                 }
                 if (txout != null) {
-                    Script sc = txout.getScript();
-                    Address address = sc.getToAddress(params, true);
                     UTXO output = new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(), txout.getHeight(),
-                            txout.isCoinbase(), txout.getScript(), address.toString());
+                            txout.isCoinbase(), txout.getScript(), params);
                     results.add(output);
                 }
             }
@@ -787,23 +782,15 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
         // Could run this in parallel with above too.
         // Should update instrumentation to see if worth while.
-        Address a;
-        if (out.getAddress() == null || out.getAddress().equals("")) {
+        byte[] addressHash = out.getAddressHash();
+        if (addressHash == null) {
             if (instrument)
                 endMethod("addUnspentTransactionOutput");
             return;
-        } else {
-            try {
-                a = LegacyAddress.fromBase58(params, out.getAddress());
-            } catch (AddressFormatException e) {
-                if (instrument)
-                    endMethod("addUnspentTransactionOutput");
-                return;
-            }
         }
         ByteBuffer bb = ByteBuffer.allocate(57);
         bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-        bb.put(a.getHash());
+        bb.put(addressHash);
         bb.put(out.getHash().getBytes());
         bb.putInt((int) out.getIndex());
         byte[] value = new byte[0];
@@ -878,30 +865,13 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         // could run this and the above in parallel
         // Need to update instrumentation to check if worth the effort
 
-        // TODO storing as byte[] hash to save space. But think should just
-        // store as String of address. Might be faster. Need to test.
-        ByteBuffer bb = ByteBuffer.allocate(57);
-        Address a;
-        byte[] hashBytes = null;
-        try {
-            String address = out.getAddress();
-            if (address == null || address.equals("")) {
-                Script sc = out.getScript();
-                a = sc.getToAddress(params);
-                hashBytes = a.getHash();
-            } else {
-                a = LegacyAddress.fromBase58(params, out.getAddress());
-                hashBytes = a.getHash();
-            }
-        } catch (AddressFormatException e) {
-            if (instrument)
-                endMethod("removeUnspentTransactionOutput");
-            return;
-        } catch (ScriptException e) {
+        byte[] hashBytes = out.getAddressHash();
+        if (hashBytes == null) {
             if (instrument)
                 endMethod("removeUnspentTransactionOutput");
             return;
         }
+        ByteBuffer bb = ByteBuffer.allocate(57);
         bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
         bb.put(hashBytes);
         bb.put(out.getHash().getBytes());
@@ -912,6 +882,23 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             endMethod("removeUnspentTransactionOutput");
     }
 
+    @Override
+    public List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        List<UTXO> result = new ArrayList<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            result.add(getTransactionOutput(outPoint.getHash(), outPoint.getIndex()));
+        return result;
+    }
+
+    @Override
+    public void updateUnspentTransactionOutputs(List<UTXO> spent, List<UTXO> created) throws BlockStoreException {
+        // Writes already go to the batch if one was started, so there is nothing to gain from anything else here.
+        for (UTXO out : spent)
+            removeUnspentTransactionOutput(out);
+        for (UTXO out : created)
+            addUnspentTransactionOutput(out);
+    }
+
     // Instrumentation of bloom filter to check theory
     // matches reality. Without this initial chain sync takes
     // 50-75% longer.
@@ -17,6 +17,7 @@
 package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
+import org.bitcoinj.script.Script;
 import com.google.common.base.Preconditions;
 
 import javax.annotation.Nullable;
@@ -366,6 +367,23 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
             throw new BlockStoreException("Tried to remove a UTXO from MemoryFullPrunedBlockStore that it didn't have!");
     }
 
+    @Override
+    public synchronized List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        List<UTXO> result = new ArrayList<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            result.add(transactionOutputMap.get(new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex())));
+        return result;
+    }
+
+    @Override
+    public synchronized void updateUnspentTransactionOutputs(List<UTXO> spent, List<UTXO> created) throws BlockStoreException {
+        for (UTXO out : spent)
+            removeUnspentTransactionOutput(out);
+        for (UTXO out : created)
+            addUnspentTransactionOutput(out);
+    }
+
     @Override
     public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
         blockMap.beginDatabaseBatchWrite();
@@ -415,11 +433,15 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         // If someone uses this store for production then they have a lot more to worry about than an inefficient impl :)
         List<UTXO> foundOutputs = new ArrayList<>();
         List<UTXO> outputsList = transactionOutputMap.values();
+        List<byte[]> pubKeyHashes = new ArrayList<>(keys.size());
+        for (ECKey key : keys)
+            pubKeyHashes.add(key.getPubKeyHash());
         for (UTXO output : outputsList) {
-            for (ECKey key : keys) {
-                // TODO switch to pubKeyHash in order to support native segwit addresses
-                Address address = LegacyAddress.fromKey(params, key);
-                if (output.getAddress().equals(address.toString())) {
+            byte[] addressHash = output.getAddressHash();
+            if (addressHash == null || output.getScriptType() == Script.ScriptType.P2SH)
+                continue;
+            for (byte[] pubKeyHash : pubKeyHashes) {
+                if (Arrays.equals(addressHash, pubKeyHash)) {
                     foundOutputs.add(output);
                 }
             }
@@ -64,25 +64,33 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
             "    height integer NOT NULL,\n" +
             "    value bigint NOT NULL,\n" +
             "    scriptbytes mediumblob NOT NULL,\n" +
-            "    toaddress varchar(74),\n" +
+            "    addresshash varbinary(20),\n" +
             "    addresstargetable tinyint(1),\n" +
             "    coinbase boolean,\n" +
             "    CONSTRAINT openoutputs_pk PRIMARY KEY (hash, `index`) USING BTREE \n" +
             ")\n";
 
     // Some indexes to speed up inserts
-    private static final String CREATE_OUTPUTS_ADDRESS_MULTI_INDEX              = "CREATE INDEX openoutputs_hash_index_height_toaddress_idx ON openoutputs (hash, `index`, height, toaddress) USING btree";
-    private static final String CREATE_OUTPUTS_TOADDRESS_INDEX                  = "CREATE INDEX openoutputs_toaddress_idx ON openoutputs (toaddress) USING btree";
+    private static final String CREATE_OUTPUTS_ADDRESS_MULTI_INDEX              = "CREATE INDEX openoutputs_hash_index_height_addresshash_idx ON openoutputs (hash, `index`, height, addresshash) USING btree";
+    private static final String CREATE_OUTPUTS_ADDRESSHASH_INDEX                = "CREATE INDEX openoutputs_addresshash_idx ON openoutputs (addresshash) USING btree";
     private static final String CREATE_OUTPUTS_ADDRESSTARGETABLE_INDEX          = "CREATE INDEX openoutputs_addresstargetable_idx ON openoutputs (addresstargetable) USING btree";
     private static final String CREATE_OUTPUTS_HASH_INDEX                       = "CREATE INDEX openoutputs_hash_idx ON openoutputs (hash) USING btree";
     private static final String CREATE_UNDOABLE_TABLE_INDEX                     = "CREATE INDEX undoableblocks_height_idx ON undoableblocks (height) USING btree";
 
     // SQL involving index column (table openOutputs) overridden as it is a reserved word and must be back ticked in MySQL.
-    private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND `index` = ?";
-    private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, `index`, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, addresshash, addresstargetable FROM openoutputs WHERE hash = ? AND `index` = ?";
+    private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, `index`, height, value, scriptbytes, addresshash, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND `index`= ?";
 
-    private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
+    private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, `index`, coinbase, addresshash, addresstargetable FROM openoutputs where addresshash = ?";
+
+    // Upgrade from version 03, which kept the Base58 address in a toaddress column.
+    private static final String UPGRADE_ADD_ADDRESSHASH_COLUMN                  = "ALTER TABLE openoutputs ADD COLUMN addresshash varbinary(20)";
+    private static final String UPGRADE_SELECT_OPENOUTPUTS_SQL                  = "SELECT hash, `index`, scriptbytes FROM openoutputs";
+    private static final String UPGRADE_UPDATE_OPENOUTPUTS_SQL                  = "UPDATE openoutputs SET addresshash = ?, addresstargetable = ? WHERE hash = ? AND `index` = ?";
+    private static final String UPGRADE_DROP_ADDRESS_MULTI_INDEX                = "DROP INDEX openoutputs_hash_index_height_toaddress_idx ON openoutputs";
+    private static final String UPGRADE_DROP_TOADDRESS_INDEX                    = "DROP INDEX openoutputs_toaddress_idx ON openoutputs";
+    private static final String UPGRADE_DROP_TOADDRESS_COLUMN                   = "ALTER TABLE openoutputs DROP COLUMN toaddress";
 
     /**
      * Creates a new MySQLFullPrunedBlockStore.
@@ -142,10 +150,36 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         sqlStatements.add(CREATE_OUTPUTS_ADDRESS_MULTI_INDEX);
         sqlStatements.add(CREATE_OUTPUTS_ADDRESSTARGETABLE_INDEX);
         sqlStatements.add(CREATE_OUTPUTS_HASH_INDEX);
-        sqlStatements.add(CREATE_OUTPUTS_TOADDRESS_INDEX);
+        sqlStatements.add(CREATE_OUTPUTS_ADDRESSHASH_INDEX);
+        return sqlStatements;
+    }
+
+    @Override
+    protected List<String> getUpgradeAddColumnsSQL() {
+        return Collections.singletonList(UPGRADE_ADD_ADDRESSHASH_COLUMN);
+    }
+
+    @Override
+    protected List<String> getUpgradeDropColumnsSQL() {
+        List<String> sqlStatements = new ArrayList<>();
+        sqlStatements.add(UPGRADE_DROP_ADDRESS_MULTI_INDEX);
+        sqlStatements.add(UPGRADE_DROP_TOADDRESS_INDEX);
+        sqlStatements.add(UPGRADE_DROP_TOADDRESS_COLUMN);
+        sqlStatements.add(CREATE_OUTPUTS_ADDRESS_MULTI_INDEX);
+        sqlStatements.add(CREATE_OUTPUTS_ADDRESSHASH_INDEX);
         return sqlStatements;
     }
 
+    @Override
+    protected String getUpgradeSelectOpenoutputsSQL() {
+        return UPGRADE_SELECT_OPENOUTPUTS_SQL;
+    }
+
+    @Override
+    protected String getUpgradeUpdateOpenoutputsSQL() {
+        return UPGRADE_UPDATE_OPENOUTPUTS_SQL;
+    }
+
     @Override
     protected List<String> getCreateSchemeSQL() {
         // do nothing
@@ -30,6 +30,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -74,19 +75,27 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
             "    height integer NOT NULL,\n" +
             "    value bigint NOT NULL,\n" +
             "    scriptbytes bytea NOT NULL,\n" +
-            "    toaddress character varying(74),\n" +
+            "    addresshash bytea,\n" +
             "    addresstargetable smallint,\n" +
             "    coinbase boolean,\n" +
             "    CONSTRAINT openoutputs_pk PRIMARY KEY (hash,index)\n" +
             ")\n";
 
     // Some indexes to speed up inserts
-    private static final String CREATE_OUTPUTS_ADDRESS_MULTI_INDEX      = "CREATE INDEX openoutputs_hash_index_num_height_toaddress_idx ON openoutputs USING btree (hash, index, height, toaddress)";
-    private static final String CREATE_OUTPUTS_TOADDRESS_INDEX          = "CREATE INDEX openoutputs_toaddress_idx ON openoutputs USING btree (toaddress)";
+    private static final String CREATE_OUTPUTS_ADDRESS_MULTI_INDEX      = "CREATE INDEX openoutputs_hash_index_num_height_addresshash_idx ON openoutputs USING btree (hash, index, height, addresshash)";
+    private static final String CREATE_OUTPUTS_ADDRESSHASH_INDEX        = "CREATE INDEX openoutputs_addresshash_idx ON openoutputs USING btree (addresshash)";
     private static final String CREATE_OUTPUTS_ADDRESSTARGETABLE_INDEX  = "CREATE INDEX openoutputs_addresstargetable_idx ON openoutputs USING btree (addresstargetable)";
     private static final String CREATE_OUTPUTS_HASH_INDEX               = "CREATE INDEX openoutputs_hash_idx ON openoutputs USING btree (hash)";
     private static final String CREATE_UNDOABLE_TABLE_INDEX             = "CREATE INDEX undoableblocks_height_idx ON undoableBlocks USING btree (height)";
 
+    // Upgrade from version 03, which kept the Base58 address in a toaddress column.
+    private static final String UPGRADE_ADD_ADDRESSHASH_COLUMN          = "ALTER TABLE openoutputs ADD COLUMN addresshash bytea";
+    private static final String UPGRADE_DROP_ADDRESS_MULTI_INDEX        = "DROP INDEX IF EXISTS openoutputs_hash_index_num_height_toaddress_idx";
+    private static final String UPGRADE_DROP_TOADDRESS_INDEX            = "DROP INDEX IF EXISTS openoutputs_toaddress_idx";
+    private static final String UPGRADE_DROP_TOADDRESS_COLUMN           = "ALTER TABLE openoutputs DROP COLUMN IF EXISTS toaddress";
+    private static final String UPGRADE_CREATE_ADDRESS_MULTI_INDEX      = "CREATE INDEX IF NOT EXISTS openoutputs_hash_index_num_height_addresshash_idx ON openoutputs USING btree (hash, index, height, addresshash)";
+    private static final String UPGRADE_CREATE_ADDRESSHASH_INDEX        = "CREATE INDEX IF NOT EXISTS openoutputs_addresshash_idx ON openoutputs USING btree (addresshash)";
+
     private static final String SELECT_UNDOABLEBLOCKS_EXISTS_SQL        = "select 1 from undoableblocks where hash = ?";
 
     /**
@@ -148,7 +157,23 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         sqlStatements.add(CREATE_OUTPUTS_ADDRESS_MULTI_INDEX);
         sqlStatements.add(CREATE_OUTPUTS_ADDRESSTARGETABLE_INDEX);
         sqlStatements.add(CREATE_OUTPUTS_HASH_INDEX);
-        sqlStatements.add(CREATE_OUTPUTS_TOADDRESS_INDEX);
+        sqlStatements.add(CREATE_OUTPUTS_ADDRESSHASH_INDEX);
+        return sqlStatements;
+    }
+
+    @Override
+    protected List<String> getUpgradeAddColumnsSQL() {
+        return Collections.singletonList(UPGRADE_ADD_ADDRESSHASH_COLUMN);
+    }
+
+    @Override
+    protected List<String> getUpgradeDropColumnsSQL() {
+        List<String> sqlStatements = new ArrayList<>();
+        sqlStatements.add(UPGRADE_DROP_ADDRESS_MULTI_INDEX);
+        sqlStatements.add(UPGRADE_DROP_TOADDRESS_INDEX);
+        sqlStatements.add(UPGRADE_DROP_TOADDRESS_COLUMN);
+        sqlStatements.add(UPGRADE_CREATE_ADDRESS_MULTI_INDEX);
+        sqlStatements.add(UPGRADE_CREATE_ADDRESSHASH_INDEX);
         return sqlStatements;
     }
 
@@ -28,6 +28,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.locks.*;
 
+import com.google.common.primitives.Ints;
+
 import static com.google.common.base.Preconditions.*;
 
 // TODO: Lose the mmap in this class. There are too many platform bugs that require odd workarounds.
@@ -36,6 +38,10 @@ import static com.google.common.base.Preconditions.*;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>Lookups by hash are served by a memory mapped hash index that is kept in a sidecar file next to the ring buffer
+ * (see {@link #INDEX_FILE_SUFFIX}), so they don't need to scan the ring even with large capacities. The index is
+ * rebuilt from the ring if it is missing or wasn't closed cleanly.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -44,6 +50,9 @@ public class SPVBlockStore implements BlockStore {
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_CAPACITY = 10000;
     public static final String HEADER_MAGIC = "SPVB";
+    public static final String INDEX_HEADER_MAGIC = "SPVI";
+    /** Suffix that is appended to the block store file name to get the name of its index file. */
+    public static final String INDEX_FILE_SUFFIX = ".idx";
 
     protected volatile MappedByteBuffer buffer;
     protected final NetworkParameters params;
@@ -79,6 +88,11 @@ public class SPVBlockStore implements BlockStore {
     protected RandomAccessFile randomAccessFile = null;
     private int fileLength;
 
+    // Hash index over the records of the ring buffer. It's only ever accessed while holding the lock.
+    protected volatile MappedByteBuffer indexBuffer;
+    protected RandomAccessFile indexRandomAccessFile = null;
+    private int indexMask;
+
     /**
      * Creates and initializes an SPV block store that can hold {@link #DEFAULT_CAPACITY} block headers. Will create the
      * given file if it's missing. This operation will block on disk.
@@ -144,12 +158,15 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                openIndex(new File(file.getPath() + INDEX_FILE_SUFFIX), capacity, false);
             } else {
+                openIndex(new File(file.getPath() + INDEX_FILE_SUFFIX), capacity, true);
                 initNewStore(params);
             }
         } catch (Exception e) {
             try {
                 if (randomAccessFile != null) randomAccessFile.close();
+                if (indexRandomAccessFile != null) indexRandomAccessFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
             }
@@ -191,12 +208,17 @@ public class SPVBlockStore implements BlockStore {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            // The record we're about to overwrite (if any) must be dropped from the index first.
+            final int record = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            indexRemove(buffer, record);
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
             notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
+            indexPut(buffer, hash.getBytes(), record);
             setRingCursor(buffer, buffer.position());
+            setIndexRingCursor(buffer.position());
             blockCache.put(hash, block);
         } finally { lock.unlock(); }
     }
@@ -215,28 +237,14 @@ public class SPVBlockStore implements BlockStore {
             if (notFoundCache.get(hash) != null)
                 return null;
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileLength - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
+            // Look the record up in the hash index rather than scanning the ring.
+            final int offset = indexFind(buffer, hash.getBytes());
+            if (offset >= 0) {
+                buffer.position(recordOffset(indexBuffer.getInt(offset + 4) - 1) + 32);
+                StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
+                blockCache.put(hash, storedBlock);
+                return storedBlock;
+            }
             // Not found.
             notFoundCache.put(hash, NOT_FOUND_MARKER);
             return null;
@@ -286,9 +294,15 @@ public class SPVBlockStore implements BlockStore {
     public void close() throws BlockStoreException {
         try {
             buffer.force();
+            // Only now that the ring is on disk the index may be marked as consistent with it.
+            setIndexRingCursor(getRingCursor(buffer));
+            indexBuffer.putInt(4, 0);
+            indexBuffer.force();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            indexBuffer = null;
             fileLock.release();
             randomAccessFile.close();
+            indexRandomAccessFile.close();
             blockCache.clear();
         } catch (IOException e) {
             throw new BlockStoreException(e);
@@ -314,6 +328,164 @@ public class SPVBlockStore implements BlockStore {
     //   80 bytes of block header data
     protected static final int FILE_PROLOGUE_BYTES = 1024;
 
+    // Index file format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes of flags, non-zero while the store is open (i.e. the index may be inconsistent after a crash)
+    //   4 bytes copy of the ring cursor the index is consistent with
+    //   4 bytes number of slots, a power of two of at least twice the capacity of the ring
+    //
+    // For each slot (8 bytes), an open addressing hash table with linear probing
+    //   4 bytes of the record's block hash, which also determines the home slot
+    //   4 bytes record number in the ring plus one, or zero if the slot is empty
+    protected static final int INDEX_PROLOGUE_BYTES = 16;
+    protected static final int INDEX_SLOT_SIZE = 8;
+
+    /** Returns the size in bytes of the index file that is used for the given capacity. */
+    public static int getIndexFileSize(int capacity) {
+        return INDEX_PROLOGUE_BYTES + getIndexSlots(capacity) * INDEX_SLOT_SIZE;
+    }
+
+    private static int getIndexSlots(int capacity) {
+        return Integer.highestOneBit(capacity) * 4;
+    }
+
+    private void openIndex(File indexFile, int capacity, boolean forceRebuild) throws IOException {
+        final int slots = getIndexSlots(capacity);
+        final int indexLength = getIndexFileSize(capacity);
+        final boolean exists = indexFile.exists();
+        indexRandomAccessFile = new RandomAccessFile(indexFile, "rw");
+        boolean rebuild = forceRebuild || !exists || indexRandomAccessFile.length() != indexLength;
+        if (rebuild)
+            indexRandomAccessFile.setLength(indexLength);
+        indexBuffer = indexRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexLength);
+        indexMask = slots - 1;
+        if (!rebuild) {
+            byte[] header = new byte[4];
+            indexBuffer.position(0);
+            indexBuffer.get(header);
+            rebuild = !new String(header, StandardCharsets.US_ASCII).equals(INDEX_HEADER_MAGIC)
+                    || indexBuffer.getInt(4) != 0 || indexBuffer.getInt(12) != slots
+                    || indexBuffer.getInt(8) != getRingCursor(buffer);
+        }
+        if (rebuild) {
+            if (exists && !forceRebuild)
+                log.info("Rebuilding SPV block store index " + indexFile);
+            for (int i = INDEX_PROLOGUE_BYTES; i < indexLength; i += INDEX_SLOT_SIZE)
+                indexBuffer.putLong(i, 0);
+            indexBuffer.position(0);
+            indexBuffer.put(INDEX_HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+            indexBuffer.putInt(12, slots);
+            if (!forceRebuild)
+                reindexRing();
+        }
+        // Mark the index as in use. If we crash before close(), it will be rebuilt on next open.
+        indexBuffer.putInt(4, 1);
+        indexBuffer.force();
+    }
+
+    /** Inserts all records of the ring into the index, from the oldest to the most recently written. */
+    private void reindexRing() {
+        final int cursor = getRingCursor(buffer);
+        final int records = (fileLength - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        // The cursor points to the next record to be overwritten, which is the oldest one.
+        final int oldest = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        byte[] hash = new byte[32];
+        for (int i = 0; i < records; i++) {
+            final int record = (oldest + i) % records;
+            buffer.position(recordOffset(record));
+            buffer.get(hash);
+            if (!isEmptyHash(hash))
+                indexPut(buffer, hash, record);
+        }
+        setIndexRingCursor(cursor);
+    }
+
+    private static int recordOffset(int record) {
+        return FILE_PROLOGUE_BYTES + record * RECORD_SIZE;
+    }
+
+    private static boolean isEmptyHash(byte[] hash) {
+        for (byte b : hash)
+            if (b != 0)
+                return false;
+        return true;
+    }
+
+    // Block hashes start with zeros, so use the last four bytes for hashing.
+    private static int hashKey(byte[] hash) {
+        return Ints.fromBytes(hash[28], hash[29], hash[30], hash[31]);
+    }
+
+    private int slotOffset(int slot) {
+        return INDEX_PROLOGUE_BYTES + (slot & indexMask) * INDEX_SLOT_SIZE;
+    }
+
+    /** Returns the offset of the index slot referencing the given hash, or -1 if it's not indexed. */
+    private int indexFind(ByteBuffer buffer, byte[] hash) {
+        final int key = hashKey(hash);
+        for (int slot = key; ; slot++) {
+            final int offset = slotOffset(slot);
+            final int record = indexBuffer.getInt(offset + 4) - 1;
+            if (record < 0)
+                return -1;
+            if (indexBuffer.getInt(offset) == key && recordHashEquals(buffer, record, hash))
+                return offset;
+        }
+    }
+
+    private boolean recordHashEquals(ByteBuffer buffer, int record, byte[] hash) {
+        final int offset = recordOffset(record);
+        for (int i = 0; i < hash.length; i++)
+            if (buffer.get(offset + i) != hash[i])
+                return false;
+        return true;
+    }
+
+    /** Makes the index point the given hash to the given record, replacing any older record with the same hash. */
+    private void indexPut(ByteBuffer buffer, byte[] hash, int record) {
+        final int key = hashKey(hash);
+        int offset = indexFind(buffer, hash);
+        if (offset < 0) {
+            int slot = key;
+            while (indexBuffer.getInt(slotOffset(slot) + 4) != 0)
+                slot++;
+            offset = slotOffset(slot);
+        }
+        indexBuffer.putInt(offset, key);
+        indexBuffer.putInt(offset + 4, record + 1);
+    }
+
+    /** Removes the slot referencing the given record from the index, if there is one. */
+    private void indexRemove(ByteBuffer buffer, int record) {
+        byte[] hash = new byte[32];
+        buffer.position(recordOffset(record));
+        buffer.get(hash);
+        if (isEmptyHash(hash))
+            return;
+        final int offset = indexFind(buffer, hash);
+        // If the hash was written again later, the slot references the newer record which must be kept.
+        if (offset < 0 || indexBuffer.getInt(offset + 4) - 1 != record)
+            return;
+        // Backward shift deletion: move entries up that would otherwise become unreachable by the gap.
+        int gap = (offset - INDEX_PROLOGUE_BYTES) / INDEX_SLOT_SIZE;
+        for (int slot = gap + 1; ; slot++) {
+            final int slotOffset = slotOffset(slot);
+            if (indexBuffer.getInt(slotOffset + 4) == 0)
+                break;
+            final int home = indexBuffer.getInt(slotOffset) & indexMask;
+            // Distance from the entry's home slot to the gap and to its current slot, in probe order.
+            if (((gap - home) & indexMask) < ((slot - home) & indexMask)) {
+                indexBuffer.putLong(slotOffset(gap), indexBuffer.getLong(slotOffset));
+                gap = slot & indexMask;
+            }
+        }
+        indexBuffer.putLong(slotOffset(gap), 0);
+    }
+
+    private void setIndexRingCursor(int cursor) {
+        indexBuffer.putInt(8, cursor);
+    }
+
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
         int c = buffer.getInt(4);
@@ -332,6 +504,9 @@ public class SPVBlockStore implements BlockStore {
             // Clear caches
             blockCache.clear();
             notFoundCache.clear();
+            // Clear index
+            for (int i = INDEX_PROLOGUE_BYTES; i < indexBuffer.limit(); i += INDEX_SLOT_SIZE)
+                indexBuffer.putLong(i, 0);
             // Clear file content
             buffer.position(0);
             long fileLength = randomAccessFile.length();
@@ -0,0 +1,233 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Stack;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Caches the most recent headers of the best chain within a moving window, indexed by height and by hash. Difficulty
+ * and median time past calculations use it to look up previous blocks without hitting the block store. Blocks that
+ * are not in the window, e.g. those on side chains, are transparently read from the block store instead.
+ *
+ * This class is NOT thread safe. It is meant to be updated and read by the block chain while holding its lock.
+ *
+ * @see org.bitcoinj.core.AbstractBlockChain#getHeaderWindow()
+ */
+public class HeaderWindow {
+    /** Number of blocks the median time past is calculated over. */
+    public static final int MEDIAN_TIME_SPAN = 11;
+    /** Number of blocks looked back by the DAA, plus its median of three. */
+    private static final int DAA_SPAN = 144 + 3;
+
+    /**
+     * Cache of headers, indexed by height modulo the window length.
+     */
+    private final StoredBlock[] window;
+
+    private final Map<Sha256Hash, StoredBlock> byHash;
+
+    /**
+     * Most recently added block, the top of the window.
+     */
+    @Nullable
+    private StoredBlock head;
+
+    /**
+     * Number of consecutive blocks in the window, ending at the head.
+     */
+    private int blocksStored = 0;
+
+    /**
+     * Creates a window that is large enough for all difficulty rules of the given network.
+     */
+    public HeaderWindow(final NetworkParameters params) {
+        this(Math.max(params.getInterval(), DAA_SPAN) + MEDIAN_TIME_SPAN);
+    }
+
+    public HeaderWindow(final int size) {
+        checkArgument(size > 0);
+        window = new StoredBlock[size];
+        byHash = new HashMap<>(size * 2);
+    }
+
+    /**
+     * Initialize the window from the block store. Note this does not search backwards past the start of the block
+     * store, so if starting from a checkpoint this may not fill the window.
+     *
+     * @param blockStore block store to load blocks from.
+     * @param chainHead current chain tip.
+     */
+    public void initialize(final BlockStore blockStore, final StoredBlock chainHead) throws BlockStoreException {
+        clear();
+        StoredBlock block = chainHead;
+        final Stack<StoredBlock> blocks = new Stack<>();
+
+        // We don't know how many blocks back we can go, so load what we can first
+        blocks.push(block);
+        for (int headOffset = 1; headOffset < window.length; headOffset++) {
+            block = block.getPrev(blockStore);
+            if (null == block) {
+                break;
+            }
+            blocks.push(block);
+        }
+
+        // Replay the blocks into the window
+        while (!blocks.isEmpty()) {
+            push(blocks.pop());
+        }
+    }
+
+    /**
+     * Moves the top of the window to the given new chain head. This works if the new head extends the current head or
+     * is already in the window, e.g. after rolling back the chain.
+     *
+     * @return false if the new head is on a different chain, then the window must be initialized again.
+     */
+    public boolean setHead(final StoredBlock newHead) {
+        if (head == null) {
+            push(newHead);
+            return true;
+        }
+        if (newHead.getHeight() == head.getHeight() + 1
+                && newHead.getHeader().getPrevBlockHash().equals(head.getHeader().getHash())) {
+            push(newHead);
+            return true;
+        }
+        if (contains(newHead)) {
+            for (int height = head.getHeight(); height > newHead.getHeight(); height--) {
+                final int slot = height % window.length;
+                byHash.remove(window[slot].getHeader().getHash());
+                window[slot] = null;
+                blocksStored--;
+            }
+            head = newHead;
+            return true;
+        }
+        return false;
+    }
+
+    private void push(final StoredBlock block) {
+        final int slot = block.getHeight() % window.length;
+        final StoredBlock evicted = window[slot];
+        if (evicted != null) {
+            byHash.remove(evicted.getHeader().getHash());
+        }
+        window[slot] = block;
+        byHash.put(block.getHeader().getHash(), block);
+        head = block;
+        blocksStored = Math.min(blocksStored + 1, window.length);
+    }
+
+    public void clear() {
+        Arrays.fill(window, null);
+        byHash.clear();
+        head = null;
+        blocksStored = 0;
+    }
+
+    /**
+     * Returns the block with the given hash, if it's within the window.
+     */
+    @Nullable
+    public StoredBlock get(final Sha256Hash hash) {
+        return byHash.get(hash);
+    }
+
+    /**
+     * Returns the block of the best chain at the given height, if it's within the window.
+     */
+    @Nullable
+    public StoredBlock get(final int height) {
+        if (head == null || height > head.getHeight() || height <= head.getHeight() - blocksStored) {
+            return null;
+        }
+        return window[height % window.length];
+    }
+
+    private boolean contains(final StoredBlock block) {
+        return block.equals(get(block.getHeight()));
+    }
+
+    /**
+     * Returns the previous block of the given one, from the window if possible or otherwise from the block store.
+     */
+    @Nullable
+    public StoredBlock getPrev(final StoredBlock block, final BlockStore blockStore) throws BlockStoreException {
+        final StoredBlock prev = byHash.get(block.getHeader().getPrevBlockHash());
+        return prev != null ? prev : block.getPrev(blockStore);
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height. Within the window this is a direct lookup, only the
+     * parts of the chain outside of it are walked through the block store.
+     *
+     * @return the ancestor, or null if the chain could not be followed back that far.
+     */
+    @Nullable
+    public StoredBlock getAncestor(final StoredBlock block, final int height, final BlockStore blockStore)
+            throws BlockStoreException {
+        checkArgument(height >= 0 && height <= block.getHeight(), "Bad height: %s", height);
+        StoredBlock cursor = block;
+        while (cursor != null && cursor.getHeight() > height) {
+            if (contains(cursor)) {
+                // Jump as far as the window allows, then continue from there.
+                cursor = window[Math.max(height, head.getHeight() - blocksStored + 1) % window.length];
+                if (cursor.getHeight() == height) {
+                    break;
+                }
+            }
+            cursor = getPrev(cursor, blockStore);
+        }
+        return cursor;
+    }
+
+    /**
+     * Gets the median timestamp of the last 11 blocks, like
+     * {@link org.bitcoinj.core.AbstractBlockChain#getMedianTimestampOfRecentBlocks(StoredBlock, BlockStore)}.
+     */
+    public long getMedianTimestampOfRecentBlocks(StoredBlock storedBlock, final BlockStore blockStore)
+            throws BlockStoreException {
+        final long[] timestamps = new long[MEDIAN_TIME_SPAN];
+        int unused = MEDIAN_TIME_SPAN - 2;
+        timestamps[MEDIAN_TIME_SPAN - 1] = storedBlock.getHeader().getTimeSeconds();
+        while (unused >= 0 && (storedBlock = getPrev(storedBlock, blockStore)) != null) {
+            timestamps[unused--] = storedBlock.getHeader().getTimeSeconds();
+        }
+
+        Arrays.sort(timestamps, unused + 1, MEDIAN_TIME_SPAN);
+        return timestamps[unused + (MEDIAN_TIME_SPAN - unused) / 2];
+    }
+
+    /**
+     * Get the size of the window.
+     */
+    public int size() {
+        return window.length;
+    }
+}
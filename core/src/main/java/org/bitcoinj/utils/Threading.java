@@ -200,4 +200,26 @@ public class Threading {
                 }
             })
     );
+
+    /**
+     * Returns a pool of daemon threads, one per processor, that CPU bound work such as hashing or key derivation can be
+     * spread over. It is created on first use and shared by all of bitcoinj, so it must not be shut down.
+     */
+    public static ForkJoinPool getComputePool() {
+        return ComputePoolHolder.POOL;
+    }
+
+    // Holds the pool, so that it is only created once something asks for it.
+    private static class ComputePoolHolder {
+        static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                    @Override
+                    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                        ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                        t.setName("Threading.getComputePool() worker " + t.getPoolIndex());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, null, false);
+    }
 }
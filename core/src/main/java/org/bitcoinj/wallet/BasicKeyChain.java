@@ -45,22 +45,37 @@ import static com.google.common.base.Preconditions.*;
 public class BasicKeyChain implements EncryptableKeyChain {
     private final ReentrantLock lock = Threading.lock(BasicKeyChain.class);
 
-    // Maps used to let us quickly look up a key given data we find in transactions or the block chain.
-    private final LinkedHashMap<ByteString, ECKey> hashToKeys;
-    private final LinkedHashMap<ByteString, ECKey> pubkeyToKeys;
+    // The keys in the order they were added.
+    private final ArrayList<ECKey> orderedKeys;
+    // Tables used to let us quickly look up a key given data we find in transactions or the block chain.
+    private final KeyTable hashToKeys;
+    private final KeyTable pubkeyToKeys;
     @Nullable private final KeyCrypter keyCrypter;
     private boolean isWatching;
 
     private final CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>> listeners;
 
+    // The Bloom filter hashes of the public key and of its hash of each key, for the tweak filterTweak. They don't
+    // depend on the size of the filter, so filters of any size are built from them without hashing the keys again.
+    private final Map<ECKey, int[][]> filterHashes = new IdentityHashMap<>();
+    private long filterTweak;
+    // The last filter built, and the number of keys inserted into it. Keys are only ever appended to orderedKeys, unless
+    // they're removed, which drops the filter. So as long as the filter parameters don't change, only the keys added
+    // since have to be inserted.
+    @Nullable private BloomFilter lastFilter;
+    private int lastFilterSize;
+    private double lastFilterFalsePositiveRate;
+    private int lastFilterKeys;
+
     public BasicKeyChain() {
         this(null);
     }
 
     public BasicKeyChain(@Nullable KeyCrypter crypter) {
         this.keyCrypter = crypter;
-        hashToKeys = new LinkedHashMap<>();
-        pubkeyToKeys = new LinkedHashMap<>();
+        orderedKeys = new ArrayList<>();
+        hashToKeys = new KeyTable();
+        pubkeyToKeys = new KeyTable();
         listeners = new CopyOnWriteArrayList<>();
     }
 
@@ -80,13 +95,13 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey getKey(@Nullable KeyPurpose ignored) {
         lock.lock();
         try {
-            if (hashToKeys.isEmpty()) {
+            if (orderedKeys.isEmpty()) {
                 checkState(keyCrypter == null);   // We will refuse to encrypt an empty key chain.
                 final ECKey key = new ECKey();
                 importKeyLocked(key);
                 queueOnKeysAdded(ImmutableList.of(key));
             }
-            return hashToKeys.values().iterator().next();
+            return orderedKeys.iterator().next();
         } finally {
             lock.unlock();
         }
@@ -97,11 +112,11 @@ public class BasicKeyChain implements EncryptableKeyChain {
         checkArgument(numberOfKeys > 0);
         lock.lock();
         try {
-            if (hashToKeys.size() < numberOfKeys) {
+            if (orderedKeys.size() < numberOfKeys) {
                 checkState(keyCrypter == null);
 
                 List<ECKey> keys = new ArrayList<>();
-                for (int i = 0; i < numberOfKeys - hashToKeys.size(); i++) {
+                for (int i = 0; i < numberOfKeys - orderedKeys.size(); i++) {
                     keys.add(new ECKey());
                 }
 
@@ -112,8 +127,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
             List<ECKey> keysToReturn = new ArrayList<>();
             int count = 0;
-            while (hashToKeys.values().iterator().hasNext() && numberOfKeys != count) {
-                keysToReturn.add(hashToKeys.values().iterator().next());
+            while (orderedKeys.iterator().hasNext() && numberOfKeys != count) {
+                keysToReturn.add(orderedKeys.iterator().next());
                 count++;
             }
             return keysToReturn;
@@ -126,7 +141,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public List<ECKey> getKeys() {
         lock.lock();
         try {
-            return new ArrayList<>(hashToKeys.values());
+            return new ArrayList<>(orderedKeys);
         } finally {
             lock.unlock();
         }
@@ -170,7 +185,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     }
 
     private void importKeyLocked(ECKey key) {
-        if (hashToKeys.isEmpty()) {
+        if (orderedKeys.isEmpty()) {
             isWatching = key.isWatching();
         } else {
             if (key.isWatching() && !isWatching)
@@ -178,9 +193,10 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (!key.isWatching() && isWatching)
                 throw new IllegalArgumentException("Key is not watching but chain is");
         }
-        ECKey previousKey = pubkeyToKeys.put(ByteString.copyFrom(key.getPubKey()), key);
-        hashToKeys.put(ByteString.copyFrom(key.getPubKeyHash()), key);
+        ECKey previousKey = pubkeyToKeys.put(key.getPubKey(), key);
+        hashToKeys.put(key.getPubKeyHash(), key);
         checkState(previousKey == null);
+        orderedKeys.add(key);
     }
 
     private void importKeysLocked(List<ECKey> keys) {
@@ -205,18 +221,36 @@ public class BasicKeyChain implements EncryptableKeyChain {
     }
 
     public ECKey findKeyFromPubHash(byte[] pubKeyHash) {
+        return findKeyFromPubHash(pubKeyHash, 0, pubKeyHash.length);
+    }
+
+    /**
+     * Returns the key whose hash is the given slice of bytes, or null. Doesn't copy the bytes, so it can be used on
+     * data as it was found, e.g. in a script.
+     */
+    @Nullable
+    public ECKey findKeyFromPubHash(byte[] bytes, int offset, int length) {
         lock.lock();
         try {
-            return hashToKeys.get(ByteString.copyFrom(pubKeyHash));
+            return hashToKeys.get(bytes, offset, length);
         } finally {
             lock.unlock();
         }
     }
 
     public ECKey findKeyFromPubKey(byte[] pubKey) {
+        return findKeyFromPubKey(pubKey, 0, pubKey.length);
+    }
+
+    /**
+     * Returns the key whose public key is the given slice of bytes, or null. Doesn't copy the bytes, so it can be used
+     * on data as it was found, e.g. in a script.
+     */
+    @Nullable
+    public ECKey findKeyFromPubKey(byte[] bytes, int offset, int length) {
         lock.lock();
         try {
-            return pubkeyToKeys.get(ByteString.copyFrom(pubKey));
+            return pubkeyToKeys.get(bytes, offset, length);
         } finally {
             lock.unlock();
         }
@@ -246,7 +280,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public State isWatching() {
         lock.lock();
         try {
-            if (hashToKeys.isEmpty())
+            if (orderedKeys.isEmpty())
                 return State.EMPTY;
             return isWatching ? State.WATCHING : State.REGULAR;
         } finally {
@@ -262,9 +296,15 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            boolean a = hashToKeys.remove(ByteString.copyFrom(key.getPubKeyHash())) != null;
-            boolean b = pubkeyToKeys.remove(ByteString.copyFrom(key.getPubKey())) != null;
+            ECKey removed = hashToKeys.remove(key.getPubKeyHash());
+            boolean a = removed != null;
+            boolean b = pubkeyToKeys.remove(key.getPubKey()) != null;
             checkState(a == b);   // Should be in both maps or neither.
+            if (a) {
+                orderedKeys.remove(removed);
+                filterHashes.remove(removed);
+                lastFilter = null;
+            }
             return a;
         } finally {
             lock.unlock();
@@ -276,7 +316,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             long time = Long.MAX_VALUE;
-            for (ECKey key : hashToKeys.values())
+            for (ECKey key : orderedKeys)
                 time = Math.min(key.getCreationTimeSeconds(), time);
             return time;
         } finally {
@@ -296,7 +336,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     Map<ECKey, Protos.Key.Builder> serializeToEditableProtobufs() {
         Map<ECKey, Protos.Key.Builder> result = new LinkedHashMap<>();
-        for (ECKey ecKey : hashToKeys.values()) {
+        for (ECKey ecKey : orderedKeys) {
             Protos.Key.Builder protoKey = serializeEncryptableItem(ecKey);
             protoKey.setPublicKey(ByteString.copyFrom(ecKey.getPubKey()));
             result.put(ecKey, protoKey);
@@ -362,7 +402,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     private void deserializeFromProtobuf(List<Protos.Key> keys) throws UnreadableWalletException {
         lock.lock();
         try {
-            checkState(hashToKeys.isEmpty(), "Tried to deserialize into a non-empty chain");
+            checkState(orderedKeys.isEmpty(), "Tried to deserialize into a non-empty chain");
             for (Protos.Key key : keys) {
                 if (key.getType() != Protos.Key.Type.ORIGINAL && key.getType() != Protos.Key.Type.ENCRYPTED_SCRYPT_AES)
                     continue;
@@ -464,7 +504,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
             checkNotNull(keyCrypter);
             checkState(this.keyCrypter == null, "Key chain is already encrypted");
             BasicKeyChain encrypted = new BasicKeyChain(keyCrypter);
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : orderedKeys) {
                 ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
                 // Check that the encrypted key can be successfully decrypted.
                 // This is done as it is a critical failure if the private key cannot be decrypted successfully
@@ -497,7 +537,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (numKeys() > 0 && !checkAESKey(aesKey))
                 throw new KeyCrypterException("Password/key was incorrect.");
             BasicKeyChain decrypted = new BasicKeyChain();
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : orderedKeys) {
                 decrypted.importKeyLocked(key.decrypt(aesKey));
             }
             return decrypted;
@@ -527,12 +567,12 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             // If no keys then cannot decrypt.
-            if (hashToKeys.isEmpty()) return false;
+            if (orderedKeys.isEmpty()) return false;
             checkState(keyCrypter != null, "Key chain is not encrypted");
 
             // Find the first encrypted key in the wallet.
             ECKey first = null;
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : orderedKeys) {
                 if (key.isEncrypted()) {
                     first = key;
                     break;
@@ -563,9 +603,33 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public BloomFilter getFilter(int size, double falsePositiveRate, long tweak) {
         lock.lock();
         try {
+            if (lastFilter == null || size != lastFilterSize || falsePositiveRate != lastFilterFalsePositiveRate
+                    || tweak != lastFilter.getTweak()) {
+                lastFilter = new BloomFilter(size, falsePositiveRate, tweak);
+                lastFilterSize = size;
+                lastFilterFalsePositiveRate = falsePositiveRate;
+                lastFilterKeys = 0;
+            }
+            if (tweak != filterTweak) {
+                filterHashes.clear();
+                filterTweak = tweak;
+            }
+            int hashFuncs = lastFilter.getHashFuncs();
+            for (ECKey key : orderedKeys.subList(lastFilterKeys, orderedKeys.size())) {
+                int[][] hashes = filterHashes.get(key);
+                if (hashes == null || hashes[0].length < hashFuncs) {
+                    hashes = new int[][] {
+                            BloomFilter.getHashes(key.getPubKey(), tweak, hashFuncs),
+                            BloomFilter.getHashes(key.getPubKeyHash(), tweak, hashFuncs) };
+                    filterHashes.put(key, hashes);
+                }
+                lastFilter.insertHashes(hashes[0]);
+                lastFilter.insertHashes(hashes[1]);
+            }
+            lastFilterKeys = orderedKeys.size();
+            // The caller gets a copy, as it may change it.
             BloomFilter filter = new BloomFilter(size, falsePositiveRate, tweak);
-            for (ECKey key : hashToKeys.values())
-                filter.insert(key);
+            filter.merge(lastFilter);
             return filter;
         } finally {
             lock.unlock();
@@ -590,7 +654,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             ECKey oldest = null;
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : orderedKeys) {
                 final long keyTime = key.getCreationTimeSeconds();
                 if (keyTime > timeSecs) {
                     if (oldest == null || oldest.getCreationTimeSeconds() > keyTime)
@@ -608,7 +672,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             List<ECKey> results = new LinkedList<>();
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : orderedKeys) {
                 final long keyTime = key.getCreationTimeSeconds();
                 if (keyTime < timeSecs) {
                     results.add(key);
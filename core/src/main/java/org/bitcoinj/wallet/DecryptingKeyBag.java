@@ -23,18 +23,24 @@ import org.bouncycastle.crypto.params.KeyParameter;
 import javax.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * A DecryptingKeyBag filters a pre-existing key bag, decrypting keys as they are requested using the provided
  * AES key. If the keys are encrypted and no AES key provided, {@link ECKey.KeyIsEncryptedException}
- * will be thrown.
+ * will be thrown. Each key is decrypted once, however often it is requested, so a bag should only be kept for as
+ * long as the operation it was made for, e.g. signing a transaction.
  */
 public class DecryptingKeyBag implements KeyBag {
     protected final KeyBag target;
     protected final KeyParameter aesKey;
+    // Decrypted keys by the encrypted keys they came from, as decrypting is costly and a transaction often spends
+    // several outputs of the same key.
+    private final Map<ECKey, ECKey> decryptedKeys = new IdentityHashMap<>();
 
     public DecryptingKeyBag(KeyBag target, @Nullable KeyParameter aesKey) {
         this.target = checkNotNull(target);
@@ -48,7 +54,14 @@ public class DecryptingKeyBag implements KeyBag {
         else if (key.isEncrypted()) {
             if (aesKey == null)
                 throw new ECKey.KeyIsEncryptedException();
-            return key.decrypt(aesKey);
+            synchronized (decryptedKeys) {
+                ECKey decrypted = decryptedKeys.get(key);
+                if (decrypted == null) {
+                    decrypted = key.decrypt(aesKey);
+                    decryptedKeys.put(key, decrypted);
+                }
+                return decrypted;
+            }
         } else {
             return key;
         }
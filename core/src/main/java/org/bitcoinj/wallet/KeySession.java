@@ -0,0 +1,165 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.crypto.KeyCrypter;
+import org.bitcoinj.utils.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Holds the AES key derived from a wallet password, so that it can be used over and over without running the key
+ * derivation, which for {@link org.bitcoinj.crypto.KeyCrypterScrypt} is deliberately slow, each time. Open one with
+ * {@link Wallet#openKeySession(CharSequence, long, long, TimeUnit)} and pass {@link #getAesKey()} wherever an AES key
+ * is asked for, e.g. as {@link SendRequest#aesKey}.</p>
+ *
+ * <p>The session ends when it hasn't been used for its idle timeout, when it has been open for its maximum lifetime,
+ * or when it's closed, whichever comes first. The key is then overwritten with zeros. While the session is open, the
+ * key is held outside of the Java heap, so it isn't copied around by the garbage collector. The {@link KeyParameter}s
+ * handed out are copies, which callers should drop as soon as they're done with them.</p>
+ */
+public class KeySession implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(KeySession.class);
+
+    // Wipes the keys of sessions that time out without anybody asking for them.
+    private static final ScheduledThreadPoolExecutor expiry;
+    static {
+        expiry = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("Key session expiry"));
+        expiry.setRemoveOnCancelPolicy(true);
+    }
+
+    private final KeyCrypter keyCrypter;
+    private final long idleTimeoutMillis;
+    private final long expiryTimeMillis;
+
+    @GuardedBy("this") @Nullable private ByteBuffer key;
+    @GuardedBy("this") private long lastUsedMillis;
+    @GuardedBy("this") private long uses;
+    @GuardedBy("this") @Nullable private ScheduledFuture<?> expiryCheck;
+
+    /**
+     * Starts a session holding the given key, which is copied. The caller should wipe its own copy afterwards.
+     *
+     * @param keyCrypter the crypter the key was derived with
+     * @param aesKey the key derived from the password
+     * @param idleTimeout how long the session lasts without being used
+     * @param maxLifetime how long the session lasts at most
+     */
+    KeySession(KeyCrypter keyCrypter, KeyParameter aesKey, long idleTimeout, long maxLifetime, TimeUnit unit) {
+        checkArgument(idleTimeout > 0 && maxLifetime > 0, "Timeouts must be positive");
+        this.keyCrypter = keyCrypter;
+        this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+        long now = Utils.currentTimeMillis();
+        this.expiryTimeMillis = now + unit.toMillis(maxLifetime);
+        byte[] bytes = aesKey.getKey();
+        key = ByteBuffer.allocateDirect(bytes.length);
+        key.put(bytes);
+        lastUsedMillis = now;
+        scheduleExpiryCheck(now);
+    }
+
+    /** Returns the crypter the key of this session was derived with. */
+    public KeyCrypter getKeyCrypter() {
+        return keyCrypter;
+    }
+
+    /**
+     * Returns a copy of the key, and counts as a use of the session.
+     *
+     * @throws IllegalStateException if the session has ended
+     */
+    public synchronized KeyParameter getAesKey() {
+        checkState(isOpen(), "Key session has ended");
+        lastUsedMillis = Utils.currentTimeMillis();
+        uses++;
+        byte[] bytes = new byte[key.capacity()];
+        key.position(0);
+        key.get(bytes);
+        try {
+            return new KeyParameter(bytes);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    /** Returns true unless the session has been closed or has timed out, in which case it ends now. */
+    public synchronized boolean isOpen() {
+        if (key == null)
+            return false;
+        long now = Utils.currentTimeMillis();
+        if (now - lastUsedMillis < idleTimeoutMillis && now < expiryTimeMillis)
+            return true;
+        log.info("Key session timed out");
+        close();
+        return false;
+    }
+
+    /**
+     * Returns how many times the key of this session was asked for. Every time but the first is a key derivation
+     * saved, because the session itself was started with one.
+     */
+    public synchronized long getUses() {
+        return uses;
+    }
+
+    /** Returns the number of key derivations this session saved, see {@link #getUses()}. */
+    public synchronized long getDerivationsAvoided() {
+        return Math.max(0, uses - 1);
+    }
+
+    /** Ends the session and wipes its key. Does nothing if it has already ended. */
+    @Override
+    public synchronized void close() {
+        if (key == null)
+            return;
+        key.clear();
+        while (key.hasRemaining())
+            key.put((byte) 0);
+        key = null;
+        if (expiryCheck != null) {
+            expiryCheck.cancel(false);
+            expiryCheck = null;
+        }
+        log.info("Key session ended after {} uses", uses);
+    }
+
+    // Checks again when the session would time out, unless it's used in the meantime.
+    @GuardedBy("this")
+    private void scheduleExpiryCheck(long now) {
+        long delay = Math.min(lastUsedMillis + idleTimeoutMillis, expiryTimeMillis) - now;
+        expiryCheck = expiry.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (KeySession.this) {
+                    if (isOpen())
+                        scheduleExpiryCheck(Utils.currentTimeMillis());
+                }
+            }
+        }, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.ECKey;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * <p>An open addressing hash table from raw byte strings, such as public keys or their hashes, to keys. Lookups take a
+ * slice of a byte array and allocate nothing, so the bytes can be checked where they were found, e.g. in a script,
+ * without copying them out first.</p>
+ *
+ * <p>The strings looked up are hashes or elliptic curve coordinates, so their last bytes are already uniformly
+ * distributed and make up the hash code. Collisions are resolved by linear probing, and removals shift the following
+ * entries back rather than leaving tombstones. Not thread safe.</p>
+ */
+final class KeyTable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Parallel arrays, indexed by slot. A slot is empty if its entry is null.
+    private byte[][] entries;
+    private ECKey[] keys;
+    private int size;
+
+    KeyTable() {
+        entries = new byte[INITIAL_CAPACITY][];
+        keys = new ECKey[INITIAL_CAPACITY];
+    }
+
+    /** Returns the number of keys in the table. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the key stored under the given bytes, or null. */
+    @Nullable
+    ECKey get(byte[] bytes) {
+        return get(bytes, 0, bytes.length);
+    }
+
+    /** Returns the key stored under the given slice of bytes, or null. */
+    @Nullable
+    ECKey get(byte[] bytes, int offset, int length) {
+        int slot = find(bytes, offset, length);
+        return slot >= 0 ? keys[slot] : null;
+    }
+
+    /** Stores the given key under the given bytes, which are copied, and returns the key it replaced, or null. */
+    @Nullable
+    ECKey put(byte[] bytes, ECKey key) {
+        int slot = find(bytes, 0, bytes.length);
+        if (slot >= 0) {
+            ECKey previous = keys[slot];
+            keys[slot] = key;
+            return previous;
+        }
+        if ((size + 1) * 4 > entries.length * 3)
+            resize(entries.length * 2);
+        insert(Arrays.copyOf(bytes, bytes.length), key);
+        size++;
+        return null;
+    }
+
+    /** Removes the key stored under the given bytes, and returns it, or null if there was none. */
+    @Nullable
+    ECKey remove(byte[] bytes) {
+        int slot = find(bytes, 0, bytes.length);
+        if (slot < 0)
+            return null;
+        ECKey previous = keys[slot];
+        int mask = entries.length - 1;
+        // Move back the entries following the removed one that would no longer be found past the gap it leaves.
+        int gap = slot;
+        for (int i = (gap + 1) & mask; entries[i] != null; i = (i + 1) & mask) {
+            int home = hash(entries[i], 0, entries[i].length) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                entries[gap] = entries[i];
+                keys[gap] = keys[i];
+                gap = i;
+            }
+        }
+        entries[gap] = null;
+        keys[gap] = null;
+        size--;
+        return previous;
+    }
+
+    // Returns the slot holding the given bytes, or -1.
+    private int find(byte[] bytes, int offset, int length) {
+        int mask = entries.length - 1;
+        for (int i = hash(bytes, offset, length) & mask; entries[i] != null; i = (i + 1) & mask) {
+            if (equals(entries[i], bytes, offset, length))
+                return i;
+        }
+        return -1;
+    }
+
+    private void insert(byte[] bytes, ECKey key) {
+        int mask = entries.length - 1;
+        int i = hash(bytes, 0, bytes.length) & mask;
+        while (entries[i] != null)
+            i = (i + 1) & mask;
+        entries[i] = bytes;
+        keys[i] = key;
+    }
+
+    private void resize(int capacity) {
+        byte[][] oldEntries = entries;
+        ECKey[] oldKeys = keys;
+        entries = new byte[capacity][];
+        keys = new ECKey[capacity];
+        for (int i = 0; i < oldEntries.length; i++) {
+            if (oldEntries[i] != null)
+                insert(oldEntries[i], oldKeys[i]);
+        }
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = length;
+        for (int i = Math.max(0, length - 4); i < length; i++)
+            h = (h << 8) | (bytes[offset + i] & 0xff);
+        // Spread the bits, in case the bytes aren't as random as they should be.
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(byte[] entry, byte[] bytes, int offset, int length) {
+        if (entry.length != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (entry[i] != bytes[offset + i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -130,9 +130,30 @@ public class Wallet extends BaseTaggableObject
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
 
+    // The transactions above (coinbases aside) by the outpoints they spend, and by the ids of the transactions whose
+    // outputs they spend. Used to find double spends and dependent transactions without scanning all transactions,
+    // so they must be kept in sync with it, see putTransaction() and removeTransaction().
+    private final SetMultimap<TransactionOutPoint, Transaction> spenders = HashMultimap.create();
+    private final SetMultimap<Sha256Hash, Transaction> children = HashMultimap.create();
+
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
+    // Used to speed up various calculations. Must only be changed through addUnspent() and removeUnspent(), which
+    // keep the structures below in sync.
     protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    // myUnspents in the order the DefaultCoinSelector prefers them, as of the last time they were sorted. Sorting
+    // them again after a few changes is cheap, and so is sorting the spend candidates taken from them.
+    private final LinkedHashSet<TransactionOutput> unspentsInSpendOrder = new LinkedHashSet<>();
+    private boolean unspentsSorted = true;
+    // The total value of myUnspents, and of those of them we can sign for, leaving out dust. See getBalance().
+    private Coin unspentValue = Coin.ZERO;
+    private final Set<TransactionOutput> signableUnspents = new HashSet<>();
+    private Coin signableUnspentValue = Coin.ZERO;
+    // Set when keys are added or removed, so that signableUnspents needs to be worked out again.
+    private volatile boolean vKeysChanged;
+    // The AVAILABLE balances as of the last time they were calculated with availableBalanceSelector. Cleared on
+    // every change to myUnspents, to the confidence of a wallet transaction and on every new block.
+    private final EnumMap<BalanceType, Coin> availableBalances = new EnumMap<>(BalanceType.class);
+    @Nullable private CoinSelector availableBalanceSelector;
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -162,6 +183,16 @@ public class Wallet extends BaseTaggableObject
     private int lastBlockSeenHeight;
     private long lastBlockSeenTimeSecs;
 
+    // The confidence of our transactions derives their depth from this, so it must follow lastBlockSeenHeight.
+    private final TransactionConfidence.BestChainHeight bestChainHeight = new TransactionConfidence.BestChainHeight();
+    // BUILDING transactions by the height they appeared at, for the recent blocks in which they can still cross a
+    // depth notification threshold or the event horizon. Entries are checked when used, as transactions can leave the
+    // best chain in a re-org.
+    private final TreeMap<Integer, Set<Transaction>> buildingTxnsByHeight = new TreeMap<>();
+    /** The depths at which transactions notify their confidence listeners by default, see {@link #setDepthNotificationThresholds(Collection)}. */
+    public static final List<Integer> DEFAULT_DEPTH_NOTIFICATION_THRESHOLDS = ImmutableList.of(1, 2, 3, 4, 5, 6);
+    private final TreeSet<Integer> depthNotificationThresholds = new TreeSet<>(DEFAULT_DEPTH_NOTIFICATION_THRESHOLDS);
+
     private final CopyOnWriteArrayList<ListenerRegistration<WalletChangeEventListener>> changeListeners
         = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<ListenerRegistration<WalletCoinsReceivedEventListener>> coinsReceivedListeners
@@ -179,10 +210,6 @@ public class Wallet extends BaseTaggableObject
     // as a convenience to API users so they don't have to register on every transaction themselves.
     private TransactionConfidence.Listener txConfidenceListener;
 
-    // If a TX hash appears in this set then notifyNewBestBlock will ignore it, as its confidence was already set up
-    // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
-    // it sent transactions to the wallet, without this we'd double count.
-    private HashSet<Sha256Hash> ignoreNextNewBlock;
     // Whether or not to ignore pending transactions that are considered risky by the configured risk analyzer.
     private boolean acceptRiskyTransactions;
     // Object that performs risk analysis of pending transactions. We might reject transactions that seem like
@@ -196,6 +223,21 @@ public class Wallet extends BaseTaggableObject
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     protected volatile WalletFiles vFileManager;
+    // The ids of the transactions added, changed or removed since the last journal record or snapshot was written,
+    // see WalletFiles#setJournaling(boolean). Null unless the wallet is journaled.
+    @Nullable private Set<Sha256Hash> journalChanged;
+    @Nullable private Set<Sha256Hash> journalRemoved;
+    // Set when the key chains changed since the last journal record or snapshot, so the next record has to carry them.
+    private volatile boolean vJournalKeysChanged;
+    // The ids of the extensions added or updated since the last journal record or snapshot. Null unless journaled.
+    @Nullable private Set<String> journalExtensionsChanged;
+    // Catches the keys the chains derive by themselves, e.g. when looking ahead.
+    private final KeyChainEventListener journalKeysListener = new KeyChainEventListener() {
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            vJournalKeysChanged = true;
+        }
+    };
     // Object that is used to send transactions asynchronously when the wallet requires it.
     protected volatile TransactionBroadcaster vTransactionBroadcaster;
     // UNIX time in seconds. Money controlled by keys created before this time will be automatically respent to a key
@@ -445,7 +487,6 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void createTransientState() {
-        ignoreNextNewBlock = new HashSet<>();
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
@@ -458,8 +499,12 @@ public class Wallet extends BaseTaggableObject
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
+                        // Pending transactions of our own become spendable once they've been seen.
+                        availableBalances.clear();
                         checkBalanceFuturesLocked(null);
                         Transaction tx = getTransaction(confidence.getTransactionHash());
+                        if (tx != null)
+                            markJournalChanged(tx);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
                     } finally {
@@ -541,6 +586,7 @@ public class Wallet extends BaseTaggableObject
     public DeterministicKey currentKey(KeyChain.KeyPurpose purpose) {
         keyChainGroupLock.lock();
         try {
+            markJournalKeysChanged();
             return keyChainGroup.currentKey(purpose);
         } finally {
             keyChainGroupLock.unlock();
@@ -561,6 +607,7 @@ public class Wallet extends BaseTaggableObject
     public Address currentAddress(KeyChain.KeyPurpose purpose) {
         keyChainGroupLock.lock();
         try {
+            markJournalKeysChanged();
             return keyChainGroup.currentAddress(purpose);
         } finally {
             keyChainGroupLock.unlock();
@@ -600,6 +647,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keys = keyChainGroup.freshKeys(purpose, numberOfKeys);
+            markJournalKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -625,6 +673,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             address = keyChainGroup.freshAddress(purpose);
+            markJournalKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -652,6 +701,7 @@ public class Wallet extends BaseTaggableObject
         try {
             long keyRotationTimeSecs = vKeyRotationTimestamp;
             address = keyChainGroup.freshAddress(KeyChain.KeyPurpose.RECEIVE_FUNDS, scriptType, keyRotationTimeSecs);
+            markJournalKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -727,6 +777,8 @@ public class Wallet extends BaseTaggableObject
         try {
             long keyRotationTimeSecs = vKeyRotationTimestamp;
             keyChainGroup.upgradeToDeterministic(outputScriptType, structure, keyRotationTimeSecs, aesKey);
+            vKeysChanged = true;
+            markJournalKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -773,6 +825,8 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
+            vKeysChanged = true;
+            markJournalKeysChanged();
             return keyChainGroup.removeImportedKey(key);
         } finally {
             keyChainGroupLock.unlock();
@@ -842,6 +896,8 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             result = keyChainGroup.importKeys(keys);
+            vKeysChanged = true;
+            markJournalKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -872,6 +928,8 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             checkNoDeterministicKeys(keys);
+            vKeysChanged = true;
+            markJournalKeysChanged();
             return keyChainGroup.importKeysAndEncrypt(keys, aesKey);
         } finally {
             keyChainGroupLock.unlock();
@@ -893,6 +951,8 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.addAndActivateHDChain(chain);
+            vKeysChanged = true;
+            markJournalKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -902,6 +962,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.removeHDChainByIndex(index);
+            markJournalKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1225,6 +1286,7 @@ public class Wallet extends BaseTaggableObject
     private void markKeysAsUsed(Transaction tx) {
         keyChainGroupLock.lock();
         try {
+            markJournalKeysChanged();
             for (TransactionOutput o : tx.getOutputs()) {
                 try {
                     Script script = o.getScriptPubKey();
@@ -1288,6 +1350,7 @@ public class Wallet extends BaseTaggableObject
         try {
             final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
             keyChainGroup.encrypt(scrypt, scrypt.deriveKey(password));
+            markJournalKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1306,6 +1369,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.encrypt(keyCrypter, aesKey);
+            markJournalKeysChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1323,6 +1387,7 @@ public class Wallet extends BaseTaggableObject
             final KeyCrypter crypter = keyChainGroup.getKeyCrypter();
             checkState(crypter != null, "Not encrypted");
             keyChainGroup.decrypt(crypter.deriveKey(password));
+            markJournalKeysChanged();
         } catch (KeyCrypterException.InvalidCipherText e) {
             throw new BadWalletEncryptionKeyException(e);
         } catch (KeyCrypterException.PublicPrivateMismatch e) {
@@ -1344,6 +1409,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.decrypt(aesKey);
+            markJournalKeysChanged();
         } catch (KeyCrypterException.InvalidCipherText e) {
             throw new BadWalletEncryptionKeyException(e);
         } catch (KeyCrypterException.PublicPrivateMismatch e) {
@@ -1370,6 +1436,28 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Derives the AES key from the given password once, and returns a session that hands it out until it is closed or
+     * times out, so that signing over and over doesn't run the slow key derivation each time. See {@link KeySession}.
+     *
+     * @param idleTimeout how long the session lasts without being used
+     * @param maxLifetime how long the session lasts at most
+     * @throws BadWalletEncryptionKeyException if the given password is wrong
+     * @throws IllegalStateException if the wallet is not encrypted
+     */
+    public KeySession openKeySession(CharSequence password, long idleTimeout, long maxLifetime, TimeUnit unit)
+            throws BadWalletEncryptionKeyException {
+        keyChainGroupLock.lock();
+        try {
+            KeySession session = keyChainGroup.openKeySession(password, idleTimeout, maxLifetime, unit);
+            if (session == null)
+                throw new BadWalletEncryptionKeyException(new KeyCrypterException("Wrong password"));
+            return session;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /**
      *  Check whether the AES key can decrypt the first encrypted key in the wallet.
      *
@@ -1470,11 +1558,28 @@ public class Wallet extends BaseTaggableObject
 
     /** Saves the wallet first to the given temp file, then renames to the dest file. */
     public void saveToFile(File temp, File destFile) throws IOException {
+        lock.lock();
+        try {
+            saveToFile(temp, destFile, null);
+            // A journal the file was saved with doesn't belong to it anymore.
+            WalletFiles files = vFileManager;
+            if (files != null)
+                files.onSavedToFile(destFile);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saves the wallet first to the given temp file, then renames to the dest file. The given journal id is stored
+     * with it, to be matched up with the journal on load, see {@link WalletJournal}.
+     */
+    void saveToFile(File temp, File destFile, @Nullable ByteString journalId) throws IOException {
         FileOutputStream stream = null;
         lock.lock();
         try {
             stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
+            new WalletProtobufSerializer().writeWallet(this, stream, journalId);
             // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
             // to not write through to physical media for at least a few seconds, but this is the best we can do.
             stream.flush();
@@ -1625,6 +1730,7 @@ public class Wallet extends BaseTaggableObject
             vFileManager = null;
             checkState(files != null, "Auto saving not enabled.");
             files.shutdownAndWait();
+            stopJournal();
         } finally {
             lock.unlock();
         }
@@ -1680,6 +1786,9 @@ public class Wallet extends BaseTaggableObject
      * <p>Returns a wallet deserialized from the given file. Extensions previously saved with the wallet can be
      * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}</p>
      *
+     * <p>If the wallet was saved with {@link WalletFiles#setJournaling(boolean)}, the changes in the journal next to
+     * the file are applied as well.</p>
+     *
      * @param file the wallet file to read
      * @param walletExtensions extensions possibly added to the wallet.
      */
@@ -1687,8 +1796,14 @@ public class Wallet extends BaseTaggableObject
         try {
             FileInputStream stream = null;
             try {
+                WalletJournal.Replay journal = WalletJournal.read(file);
                 stream = new FileInputStream(file);
-                return loadFromFileStream(stream, walletExtensions);
+                Wallet wallet = new WalletProtobufSerializer().readWallet(stream,
+                        DeterministicKeyChain.BIP44_ACCOUNT_ZERO_PATH, false, walletExtensions, journal);
+                if (!wallet.isConsistent()) {
+                    log.error("Loaded an inconsistent wallet");
+                }
+                return wallet;
             } finally {
                 if (stream != null) stream.close();
             }
@@ -1996,22 +2111,16 @@ public class Wallet extends BaseTaggableObject
     private Set<Transaction> findDoubleSpendsAgainst(Transaction tx, Map<Sha256Hash, Transaction> candidates) {
         checkState(lock.isHeldByCurrentThread());
         if (tx.isCoinBase()) return Sets.newHashSet();
-        // Compile a set of outpoints that are spent by tx.
-        HashSet<TransactionOutPoint> outpoints = new HashSet<>();
-        for (TransactionInput input : tx.getInputs()) {
-            outpoints.add(input.getOutpoint());
-        }
-        // Now for each pending transaction, see if it shares any outpoints with this tx.
+        // Look up the transactions which spend the same outpoints as tx. The candidates are all in the wallet, so they
+        // are in the index. This relies on the fact that TransactionOutPoint equality is defined at the protocol not
+        // object level - outpoints from two different inputs that point to the same output compare the same.
         Set<Transaction> doubleSpendTxns = Sets.newHashSet();
-        for (Transaction p : candidates.values()) {
-            if (p.equals(tx))
-                continue;
-            for (TransactionInput input : p.getInputs()) {
-                // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
-                // level - outpoints from two different inputs that point to the same output compare the same.
-                TransactionOutPoint outpoint = input.getOutpoint();
-                if (outpoints.contains(outpoint)) {
-                    // It does, it's a double spend against the candidates, which makes it relevant.
+        for (TransactionInput input : tx.getInputs()) {
+            for (Transaction p : spenders.get(input.getOutpoint())) {
+                if (p.equals(tx))
+                    continue;
+                if (candidates.containsKey(p.getTxId())) {
+                    // It's a double spend against the candidates, which makes it relevant.
                     doubleSpendTxns.add(p);
                 }
             }
@@ -2020,26 +2129,16 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Adds to txSet all the txns in txPool spending outputs of txns in txSet,
+     * Adds to txSet all the txns in the wallet spending outputs of txns in txSet,
      * and all txns spending the outputs of those txns, recursively.
      */
-    void addTransactionsDependingOn(Set<Transaction> txSet, Set<Transaction> txPool) {
-        Map<Sha256Hash, Transaction> txQueue = new LinkedHashMap<>();
-        for (Transaction tx : txSet) {
-            txQueue.put(tx.getTxId(), tx);
-        }
-        while(!txQueue.isEmpty()) {
-            Transaction tx = txQueue.remove(txQueue.keySet().iterator().next());
-            for (Transaction anotherTx : txPool) {
-                if (anotherTx.equals(tx)) continue;
-                for (TransactionInput input : anotherTx.getInputs()) {
-                    if (input.getOutpoint().getHash().equals(tx.getTxId())) {
-                        if (txQueue.get(anotherTx.getTxId()) == null) {
-                            txQueue.put(anotherTx.getTxId(), anotherTx);
-                            txSet.add(anotherTx);
-                        }
-                    }
-                }
+    void addTransactionsDependingOn(Set<Transaction> txSet) {
+        ArrayDeque<Transaction> txQueue = new ArrayDeque<>(txSet);
+        while (!txQueue.isEmpty()) {
+            Transaction tx = txQueue.poll();
+            for (Transaction anotherTx : children.get(tx.getTxId())) {
+                if (txSet.add(anotherTx))
+                    txQueue.add(anotherTx);
             }
         }
     }
@@ -2125,7 +2224,7 @@ public class Wallet extends BaseTaggableObject
                 for (TransactionOutput output : tx.getOutputs()) {
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
-                        checkState(myUnspents.add(output));
+                        checkState(addUnspent(output));
                         spentBy.disconnect();
                     }
                 }
@@ -2156,17 +2255,15 @@ public class Wallet extends BaseTaggableObject
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
+            markJournalChanged(tx);
             if (bestChain) {
-                // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
-                // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
-                // count.
-                ignoreNextNewBlock.add(txHash);
+                indexBuildingTransaction(tx);
 
                 // When a tx is received from the best chain, if other txns that spend this tx are IN_CONFLICT,
                 // change its confidence to PENDING (Unless they are also spending other txns IN_CONFLICT).
                 // Consider dependency chains.
                 Set<Transaction> currentTxDependencies = Sets.newHashSet(tx);
-                addTransactionsDependingOn(currentTxDependencies, getTransactions(true));
+                addTransactionsDependingOn(currentTxDependencies);
                 currentTxDependencies.remove(tx);
                 List<Transaction> currentTxDependenciesSorted = sortTxnsByDependency(currentTxDependencies);
                 for (Transaction txDependency : currentTxDependenciesSorted) {
@@ -2268,10 +2365,15 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void informConfidenceListenersIfNotReorganizing() {
+        if (!confidenceChanged.isEmpty())
+            availableBalances.clear();
         if (insideReorg)
             return;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
+            // The depth isn't saved, it follows from the height the transaction appeared at.
+            if (entry.getValue() != TransactionConfidence.Listener.ChangeReason.DEPTH)
+                markJournalChanged(tx);
             tx.getConfidence().queueListeners(entry.getValue());
             queueOnTransactionConfidenceChanged(tx);
         }
@@ -2294,34 +2396,15 @@ public class Wallet extends BaseTaggableObject
             return;
         lock.lock();
         try {
-            // Store the new block hash.
+            int previousHeight = lastBlockSeenHeight;
+            // Store the new block hash. The depth of all BUILDING transactions follows from the new height.
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getTxId())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // increment the tx confidence depth twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getTxId());
-                } else {
-                    TransactionConfidence confidence = tx.getConfidence();
-                    if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
-                        // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
-                        // pending again. We could clear this data the moment a tx is seen in the block chain, but
-                        // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
-                        // pending tx has zero confidence at all, which would not be right: we expect it to be
-                        // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
-                        // but this way is backwards compatible with existing software, and the new state probably
-                        // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
-                            confidence.clearBroadcastBy();
-                        confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                    }
-                }
-            }
+            queueDepthChanges(previousHeight, block.getHeight());
+            // Coinbases mature and the coin age of all outputs grows.
+            availableBalances.clear();
+            unspentsSorted = false;
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -2338,6 +2421,113 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Tells the BUILDING transactions which crossed a depth notification threshold or the event horizon between the
+     * given heights, and those waiting for a depth, about their new depth. The others are left alone, so this doesn't
+     * depend on the number of transactions in the wallet.
+     */
+    private void queueDepthChanges(int previousHeight, int height) {
+        checkState(lock.isHeldByCurrentThread());
+        if (height > previousHeight) {
+            // Without a previous height only the new block counts, rather than the whole chain.
+            int fromHeight = previousHeight >= 0 ? previousHeight : height - 1;
+            for (int threshold : depthNotificationThresholds)
+                queueDepthChanges(fromHeight - threshold + 1, height - threshold + 1, false);
+            // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go pending again. We
+            // could clear this data the moment a tx is seen in the block chain, but in cases where the chain re-orgs,
+            // this would mean that wallets would perceive a newly pending tx has zero confidence at all, which would
+            // not be right: we expect it to be included once again. We could have a separate
+            // was-in-chain-and-now-isn't confidence type but this way is backwards compatible with existing software,
+            // and the new state probably wouldn't mean anything different to just remembering peers anyway.
+            int eventHorizon = context.getEventHorizon();
+            queueDepthChanges(fromHeight - eventHorizon, height - eventHorizon, true);
+            // Transactions which are past all thresholds have nothing more to cross.
+            int lastThreshold = Math.max(eventHorizon + 1, depthNotificationThresholds.last());
+            buildingTxnsByHeight.headMap(height - lastThreshold + 1, true).clear();
+        }
+        for (TransactionConfidence confidence : bestChainHeight.getAwaitingDepth()) {
+            Transaction tx = transactions.get(confidence.getTransactionHash());
+            if (tx != null && confidence.getConfidenceType() == ConfidenceType.BUILDING && !confidenceChanged.containsKey(tx))
+                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+        }
+    }
+
+    // Queues a depth change for the transactions which appeared after fromHeight, up to and including toHeight.
+    private void queueDepthChanges(int fromHeight, int toHeight, boolean clearBroadcastBy) {
+        Iterator<Map.Entry<Integer, Set<Transaction>>> entries =
+                buildingTxnsByHeight.subMap(fromHeight, false, toHeight, true).entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Integer, Set<Transaction>> entry = entries.next();
+            // Transactions in the new block itself were already told by receive(), which made them BUILDING.
+            if (entry.getKey() == lastBlockSeenHeight)
+                continue;
+            Iterator<Transaction> txns = entry.getValue().iterator();
+            while (txns.hasNext()) {
+                Transaction tx = txns.next();
+                TransactionConfidence confidence = tx.getConfidence();
+                if (transactions.get(tx.getTxId()) != tx || confidence.getConfidenceType() != ConfidenceType.BUILDING
+                        || confidence.getAppearedAtChainHeight() != entry.getKey()) {
+                    // It left the best chain or the wallet since.
+                    txns.remove();
+                    continue;
+                }
+                if (clearBroadcastBy)
+                    confidence.clearBroadcastBy();
+                // The block the tx appeared in already told it about the type change, which says more.
+                if (!confidenceChanged.containsKey(tx))
+                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            }
+            if (entry.getValue().isEmpty())
+                entries.remove();
+        }
+    }
+
+    private void indexBuildingTransaction(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING || confidence.getAppearedAtChainHeight() < 0)
+            return;
+        Set<Transaction> txns = buildingTxnsByHeight.get(confidence.getAppearedAtChainHeight());
+        if (txns == null) {
+            txns = new HashSet<>();
+            buildingTxnsByHeight.put(confidence.getAppearedAtChainHeight(), txns);
+        }
+        txns.add(tx);
+    }
+
+    /**
+     * <p>Sets the depths at which transactions in this wallet tell their confidence listeners, and the
+     * {@link TransactionConfidenceEventListener}s of this wallet, that their depth changed. Depth changes in between
+     * go unannounced, so that a new block doesn't have to touch every transaction in the wallet. Transactions are
+     * always told when they reach the event horizon, and a transaction waiting for a depth through
+     * {@link TransactionConfidence#getDepthFuture(int)} hears about every block until it gets there.</p>
+     *
+     * <p>The default is {@link #DEFAULT_DEPTH_NOTIFICATION_THRESHOLDS}. New thresholds apply to transactions which
+     * are not past all the previous ones yet.</p>
+     */
+    public void setDepthNotificationThresholds(Collection<Integer> depths) {
+        for (int depth : depths)
+            checkArgument(depth > 0, "Depth must be positive: %s", depth);
+        lock.lock();
+        try {
+            depthNotificationThresholds.clear();
+            depthNotificationThresholds.addAll(depths);
+            if (depthNotificationThresholds.isEmpty())
+                depthNotificationThresholds.add(1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the depths at which transactions tell their listeners about their depth, see {@link #setDepthNotificationThresholds(Collection)}. */
+    public SortedSet<Integer> getDepthNotificationThresholds() {
+        lock.lock();
+        try {
+            return new TreeSet<>(depthNotificationThresholds);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Handle when a transaction becomes newly active on the best chain, either due to receiving a new block or a
      * re-org. Places the tx into the right pool, handles coinbase transactions, handles double-spends and so on.
@@ -2477,7 +2667,7 @@ public class Wallet extends BaseTaggableObject
                 maybeMovePool(connected, "prevtx");
                 // Just because it's connected doesn't mean it's actually ours: sometimes we have total visibility.
                 if (output.isMineOrWatched(this)) {
-                    checkState(myUnspents.remove(output));
+                    checkState(removeUnspent(output));
                 }
             }
         }
@@ -2500,7 +2690,7 @@ public class Wallet extends BaseTaggableObject
                             pendingTx.getTxId(), pendingTx.getInputs().indexOf(input));
                     // The unspents map might not have it if we never saw this tx until it was included in the chain
                     // and thus becomes spent the moment we become aware of it.
-                    if (myUnspents.remove(input.getConnectedOutput()))
+                    if (removeUnspent(input.getConnectedOutput()))
                         log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2530,7 +2720,7 @@ public class Wallet extends BaseTaggableObject
                 Transaction connected = deadInput.getConnectedTransaction();
                 if (connected == null) continue;
                 if (connected.getConfidence().getConfidenceType() != ConfidenceType.DEAD && deadInput.getConnectedOutput().getSpentBy() != null && deadInput.getConnectedOutput().getSpentBy().equals(deadInput)) {
-                    checkState(myUnspents.add(deadInput.getConnectedOutput()));
+                    checkState(addUnspent(deadInput.getConnectedOutput()));
                     log.info("Added to UNSPENTS: {} in {}", deadInput.getConnectedOutput(), deadInput.getConnectedOutput().getParentTransaction().getTxId());
                 }
                 deadInput.disconnect();
@@ -2540,7 +2730,7 @@ public class Wallet extends BaseTaggableObject
             confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
-                if (myUnspents.remove(deadOutput))
+                if (removeUnspent(deadOutput))
                     log.info("XX Removed from UNSPENTS: {}", deadOutput);
                 TransactionInput connected = deadOutput.getSpentBy();
                 if (connected == null) continue;
@@ -2556,13 +2746,13 @@ public class Wallet extends BaseTaggableObject
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 maybeMovePool(input.getConnectedTransaction(), "kill");
-                myUnspents.remove(input.getConnectedOutput());
+                removeUnspent(input.getConnectedOutput());
                 log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
             } else {
                 result = input.connect(spent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
                 if (result == TransactionInput.ConnectionResult.SUCCESS) {
                     maybeMovePool(input.getConnectedTransaction(), "kill");
-                    myUnspents.remove(input.getConnectedOutput());
+                    removeUnspent(input.getConnectedOutput());
                     log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2582,6 +2772,7 @@ public class Wallet extends BaseTaggableObject
                     log.info("  {} {} <-unspent ->spent", tx.getTxId(), context);
                 }
                 spent.put(tx.getTxId(), tx);
+                markJournalChanged(tx);
             }
         } else {
             if (spent.remove(tx.getTxId()) != null) {
@@ -2589,6 +2780,7 @@ public class Wallet extends BaseTaggableObject
                     log.info("  {} {} <-spent ->unspent", tx.getTxId(), context);
                 }
                 unspent.put(tx.getTxId(), tx);
+                markJournalChanged(tx);
             }
         }
     }
@@ -2647,7 +2839,7 @@ public class Wallet extends BaseTaggableObject
                 log.info("->pending (IN_CONFLICT): {}", tx.getTxId());
                 addWalletTransaction(Pool.PENDING, tx);
                 doubleSpendPendingTxns.add(tx);
-                addTransactionsDependingOn(doubleSpendPendingTxns, getTransactions(true));
+                addTransactionsDependingOn(doubleSpendPendingTxns);
                 for (Transaction doubleSpendTx : doubleSpendPendingTxns) {
                     doubleSpendTx.getConfidence().setConfidenceType(ConfidenceType.IN_CONFLICT);
                     confidenceChanged.put(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
@@ -3064,7 +3256,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
-        transactions.put(tx.getTxId(), tx);
+        putTransaction(tx);
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getTxId(), tx) == null);
@@ -3084,12 +3276,14 @@ public class Wallet extends BaseTaggableObject
         if (pool == Pool.UNSPENT || pool == Pool.PENDING) {
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.isAvailableForSpending() && output.isMineOrWatched(this))
-                    myUnspents.add(output);
+                    addUnspent(output);
             }
         }
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
+        tx.getConfidence().setBestChainHeight(bestChainHeight);
+        indexBuildingTransaction(tx);
     }
 
     /**
@@ -3174,6 +3368,7 @@ public class Wallet extends BaseTaggableObject
             clearTransactions();
             lastBlockSeenHash = null;
             lastBlockSeenHeight = -1; // Magic value for 'never'.
+            bestChainHeight.set(lastBlockSeenHeight);
             lastBlockSeenTimeSecs = 0;
             saveLater();
             maybeQueueOnWalletChanged();
@@ -3202,12 +3397,238 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void clearTransactions() {
+        if (journalRemoved != null) {
+            journalRemoved.addAll(transactions.keySet());
+            journalChanged.clear();
+        }
         unspent.clear();
         spent.clear();
         pending.clear();
         dead.clear();
         transactions.clear();
+        spenders.clear();
+        children.clear();
+        buildingTxnsByHeight.clear();
         myUnspents.clear();
+        unspentsInSpendOrder.clear();
+        unspentValue = Coin.ZERO;
+        signableUnspents.clear();
+        signableUnspentValue = Coin.ZERO;
+        availableBalances.clear();
+    }
+
+    /** Adds the given output to {@link #myUnspents} and to the running totals. Returns false if it was there already. */
+    private boolean addUnspent(TransactionOutput output) {
+        if (!myUnspents.add(output))
+            return false;
+        unspentsInSpendOrder.add(output);
+        unspentsSorted = false;
+        boolean counted = !isDustCandidate(output);
+        if (counted)
+            unspentValue = unspentValue.add(output.getValue());
+        if (canSignFor(output.getScriptPubKey())) {
+            signableUnspents.add(output);
+            if (counted)
+                signableUnspentValue = signableUnspentValue.add(output.getValue());
+        }
+        availableBalances.clear();
+        return true;
+    }
+
+    /** Removes the given output from {@link #myUnspents} and from the running totals. Returns false if it wasn't there. */
+    private boolean removeUnspent(@Nullable TransactionOutput output) {
+        if (!myUnspents.remove(output))
+            return false;
+        unspentsInSpendOrder.remove(output);
+        boolean counted = !isDustCandidate(output);
+        if (counted)
+            unspentValue = unspentValue.subtract(output.getValue());
+        if (signableUnspents.remove(output) && counted)
+            signableUnspentValue = signableUnspentValue.subtract(output.getValue());
+        availableBalances.clear();
+        return true;
+    }
+
+    // Outputs of exactly the dust limit are left out of the spend candidates, unless asked for.
+    private static boolean isDustCandidate(TransactionOutput output) {
+        return output.getValue().value == 546L;
+    }
+
+    /** Works out which of {@link #myUnspents} we can sign for again, if keys were added or removed since. */
+    private void maybeUpdateSignableUnspents() {
+        checkState(lock.isHeldByCurrentThread());
+        if (!vKeysChanged)
+            return;
+        // Clear the flag first, so keys changing while we're at it make us do it again next time.
+        vKeysChanged = false;
+        signableUnspents.clear();
+        signableUnspentValue = Coin.ZERO;
+        for (TransactionOutput output : myUnspents) {
+            if (canSignFor(output.getScriptPubKey())) {
+                signableUnspents.add(output);
+                if (!isDustCandidate(output))
+                    signableUnspentValue = signableUnspentValue.add(output.getValue());
+            }
+        }
+        availableBalances.clear();
+    }
+
+    /** Puts {@link #unspentsInSpendOrder} in the order the {@link DefaultCoinSelector} prefers, if it changed since. */
+    private void maybeSortUnspents() {
+        checkState(lock.isHeldByCurrentThread());
+        if (unspentsSorted)
+            return;
+        // Starting from the previous order, this is close to linear.
+        ArrayList<TransactionOutput> sorted = new ArrayList<>(unspentsInSpendOrder);
+        DefaultCoinSelector.sortOutputs(sorted);
+        unspentsInSpendOrder.clear();
+        unspentsInSpendOrder.addAll(sorted);
+        unspentsSorted = true;
+    }
+
+    /** Adds the given transaction to {@link #transactions}, replacing any with the same id, and to the indexes. */
+    private void putTransaction(Transaction tx) {
+        Transaction previous = transactions.put(tx.getTxId(), tx);
+        if (previous != null)
+            updateSpenderIndexes(previous, false);
+        updateSpenderIndexes(tx, true);
+        markJournalChanged(tx);
+    }
+
+    /** Removes the transaction with the given id from {@link #transactions} and from the indexes. */
+    private void removeTransaction(Sha256Hash txId) {
+        Transaction previous = transactions.remove(txId);
+        if (previous != null) {
+            if (journalRemoved != null) {
+                // The transactions it was connected to have changed as well.
+                journalRemoved.add(txId);
+                markJournalChanged(previous);
+            }
+            updateSpenderIndexes(previous, false);
+        }
+    }
+
+    /**
+     * Records that the given transaction has to be written to the next journal record, if the wallet is journaled.
+     * Together with it go the transactions it spends from and those spending from it, as the links between them are
+     * saved on both sides.
+     */
+    private void markJournalChanged(Transaction tx) {
+        if (journalChanged == null)
+            return;
+        journalChanged.add(tx.getTxId());
+        if (!tx.isCoinBase()) {
+            for (TransactionInput input : tx.getInputs())
+                journalChanged.add(input.getOutpoint().getHash());
+        }
+        for (Transaction child : children.get(tx.getTxId()))
+            journalChanged.add(child.getTxId());
+    }
+
+    /** Records that the key chains have to be written to the next journal record, if the wallet is journaled. */
+    private void markJournalKeysChanged() {
+        vJournalKeysChanged = true;
+    }
+
+    /** Records that the given extension has to be written to the next journal record, if the wallet is journaled. */
+    private void markJournalExtensionChanged(String id) {
+        if (journalExtensionsChanged != null)
+            journalExtensionsChanged.add(id);
+    }
+
+    /** Starts, or restarts after a snapshot has been written, tracking the changes for the journal. */
+    void startJournal() {
+        checkState(lock.isHeldByCurrentThread());
+        if (journalChanged == null)
+            keyChainGroup.addEventListener(journalKeysListener, Threading.SAME_THREAD);
+        journalChanged = new HashSet<>();
+        journalRemoved = new HashSet<>();
+        journalExtensionsChanged = new HashSet<>();
+        vJournalKeysChanged = false;
+    }
+
+    /** Stops tracking the changes for the journal. */
+    void stopJournal() {
+        checkState(lock.isHeldByCurrentThread());
+        if (journalChanged != null)
+            keyChainGroup.removeEventListener(journalKeysListener);
+        journalChanged = null;
+        journalRemoved = null;
+        journalExtensionsChanged = null;
+    }
+
+    /** Returns whether the key chains changed since the previous call or {@link #startJournal()}. */
+    boolean takeJournalKeysChanged() {
+        checkState(lock.isHeldByCurrentThread());
+        boolean changed = vJournalKeysChanged;
+        // Cleared before the keys are serialized, so a change racing with that is written again next time.
+        vJournalKeysChanged = false;
+        return changed;
+    }
+
+    /** Returns the extensions added or updated since the previous call or {@link #startJournal()}. */
+    List<WalletExtension> takeJournalExtensionChanges() {
+        checkState(lock.isHeldByCurrentThread());
+        checkState(journalExtensionsChanged != null, "Not journaling");
+        List<WalletExtension> changed = new ArrayList<>(journalExtensionsChanged.size());
+        for (String id : journalExtensionsChanged) {
+            WalletExtension extension = extensions.get(id);
+            if (extension != null)
+                changed.add(extension);
+        }
+        journalExtensionsChanged.clear();
+        return changed;
+    }
+
+    /**
+     * Returns the transactions added or changed since the previous call or {@link #startJournal()}, adding the ids of
+     * the removed ones to the given collection.
+     */
+    List<WalletTransaction> takeJournalChanges(Collection<Sha256Hash> removed) {
+        checkState(lock.isHeldByCurrentThread());
+        checkState(journalChanged != null, "Not journaling");
+        List<WalletTransaction> changed = new ArrayList<>(journalChanged.size());
+        for (Sha256Hash txId : journalChanged) {
+            Pool pool = getPool(txId);
+            if (pool != null)
+                changed.add(new WalletTransaction(pool, transactions.get(txId)));
+        }
+        for (Sha256Hash txId : journalRemoved) {
+            if (!transactions.containsKey(txId))
+                removed.add(txId);
+        }
+        journalChanged.clear();
+        journalRemoved.clear();
+        return changed;
+    }
+
+    @Nullable
+    private Pool getPool(Sha256Hash txId) {
+        if (unspent.containsKey(txId))
+            return Pool.UNSPENT;
+        if (spent.containsKey(txId))
+            return Pool.SPENT;
+        if (pending.containsKey(txId))
+            return Pool.PENDING;
+        if (dead.containsKey(txId))
+            return Pool.DEAD;
+        return null;
+    }
+
+    private void updateSpenderIndexes(Transaction tx, boolean add) {
+        // Coinbases spend nothing, and would all end up under the same outpoint.
+        if (tx.isCoinBase())
+            return;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            if (add) {
+                spenders.put(outpoint, tx);
+                children.put(outpoint.getHash(), tx);
+            } else {
+                spenders.remove(outpoint, tx);
+                children.remove(outpoint.getHash(), tx);
+            }
+        }
     }
 
     /**
@@ -3258,14 +3679,14 @@ public class Wallet extends BaseTaggableObject
                             TransactionOutput output = input.getConnectedOutput();
                             if (output == null) continue;
                             if (output.isMineOrWatched(this))
-                                checkState(myUnspents.add(output));
+                                checkState(addUnspent(output));
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
-                            myUnspents.remove(output);
+                            removeUnspent(output);
 
                         i.remove();
-                        transactions.remove(tx.getTxId());
+                        removeTransaction(tx.getTxId());
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getTxId());
                     } else {
@@ -3559,6 +3980,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             this.lastBlockSeenHeight = lastBlockSeenHeight;
+            bestChainHeight.set(lastBlockSeenHeight);
         } finally {
             lock.unlock();
         }
@@ -3704,9 +4126,29 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+                maybeUpdateSignableUnspents();
+                if (availableBalanceSelector != coinSelector) {
+                    availableBalances.clear();
+                    availableBalanceSelector = coinSelector;
+                }
+                // The DefaultCoinSelector only looks at the confidence of the transactions, so we know when to
+                // forget the balance. Others might look at anything. In the middle of an operation on the wallet
+                // (when the caller holds the lock too) the confidence can change without notice.
+                boolean cacheable = coinSelector instanceof DefaultCoinSelector && vUTXOProvider == null
+                        && lock.getHoldCount() == 1;
+                Coin balance = cacheable ? availableBalances.get(balanceType) : null;
+                if (balance != null)
+                    return balance;
                 List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
                 CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
+                if (cacheable)
+                    availableBalances.put(balanceType, selection.valueGathered);
                 return selection.valueGathered;
+            } else if (vUTXOProvider == null && balanceType == BalanceType.ESTIMATED) {
+                return unspentValue;
+            } else if (vUTXOProvider == null && balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+                maybeUpdateSignableUnspents();
+                return signableUnspentValue;
             } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
                 List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
                 Coin value = Coin.ZERO;
@@ -4407,9 +4849,12 @@ public class Wallet extends BaseTaggableObject
         try {
             List<TransactionOutput> candidates;
             if (vUTXOProvider == null) {
+                maybeUpdateSignableUnspents();
+                // Coin selectors that sort the candidates the way the DefaultCoinSelector does get them in order.
+                maybeSortUnspents();
                 candidates = new ArrayList<TransactionOutput>(myUnspents.size());
-                for (TransactionOutput output : myUnspents) {
-                    if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
+                for (TransactionOutput output : unspentsInSpendOrder) {
+                    if (excludeUnsignable && !signableUnspents.contains(output)) continue;
                     Transaction transaction = checkNotNull(output.getParentTransaction());
                     if (excludeImmatureCoinbases && !transaction.isMature())
                         continue;
@@ -4710,7 +5155,7 @@ public class Wallet extends BaseTaggableObject
                             TransactionInput input = output.getSpentBy();
                             if (input != null) {
                                 if (output.isMineOrWatched(this))
-                                    checkState(myUnspents.add(output));
+                                    checkState(addUnspent(output));
                                 input.disconnect();
                             }
                         }
@@ -4741,18 +5186,14 @@ public class Wallet extends BaseTaggableObject
             // doesn't matter - the miners deleted T1 from their mempool, will resurrect T2 and put that into the
             // mempool and so T1 is still seen as a losing double spend.
 
-            // The old blocks have contributed to the depth for all the transactions in the
-            // wallet that are in blocks up to and including the chain split block.
-            // The total depth is calculated here and then subtracted from the appropriate transactions.
-            int depthToSubtract = oldBlocks.size();
-            log.info("depthToSubtract = " + depthToSubtract);
-            // Remove depthToSubtract from all transactions in the wallet except for pending.
-            subtractDepth(depthToSubtract, spent.values());
-            subtractDepth(depthToSubtract, unspent.values());
-            subtractDepth(depthToSubtract, dead.values());
-
-            // The effective last seen block is now the split point so set the lastSeenBlockHash.
+            // The effective last seen block is now the split point so set the lastSeenBlockHash. The old blocks no
+            // longer count towards the depth of the transactions in blocks up to and including the split point,
+            // which is derived from the height.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
+            setLastBlockSeenHeight(splitPoint.getHeight());
+            queueDepthChanged(spent.values());
+            queueDepthChanged(unspent.values());
+            queueDepthChanged(dead.values());
 
             // For each block in the new chain, work forwards calling receive() and notifyNewBestBlock().
             // This will pull them back out of the pending pool, or if the tx didn't appear in the old chain and
@@ -4787,14 +5228,12 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Subtract the supplied depth from the given transactions.
+     * Tells the BUILDING transactions among the given ones that their depth changed.
      */
-    private void subtractDepth(int depthToSubtract, Collection<Transaction> transactions) {
+    private void queueDepthChanged(Collection<Transaction> transactions) {
         for (Transaction tx : transactions) {
-            if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
+            if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING)
                 confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-            }
         }
     }
 
@@ -4963,6 +5402,7 @@ public class Wallet extends BaseTaggableObject
             if (extensions.containsKey(id))
                 throw new IllegalStateException("Cannot add two extensions with the same ID: " + id);
             extensions.put(id, extension);
+            markJournalExtensionChanged(id);
             saveNow();
         } finally {
             lock.unlock();
@@ -4980,6 +5420,7 @@ public class Wallet extends BaseTaggableObject
             if (previousExtension != null)
                 return previousExtension;
             extensions.put(id, extension);
+            markJournalExtensionChanged(id);
             saveNow();
             return extension;
         } finally {
@@ -4997,6 +5438,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             extensions.put(id, extension);
+            markJournalExtensionChanged(id);
             saveNow();
         } finally {
             lock.unlock();
@@ -5025,6 +5467,7 @@ public class Wallet extends BaseTaggableObject
             // This method exists partly to establish a lock ordering of wallet > extension.
             extension.deserializeWalletExtension(this, data);
             extensions.put(extension.getWalletExtensionID(), extension);
+            markJournalExtensionChanged(extension.getWalletExtensionID());
         } catch (Throwable throwable) {
             log.error("Error during extension deserialization", throwable);
             extensions.remove(extension.getWalletExtensionID());
@@ -5090,7 +5533,8 @@ public class Wallet extends BaseTaggableObject
             // Of the coins we could spend, pick some that we actually will spend.
             CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
             // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<TransactionOutput>(candidates));
+            // The selector may edit the list it's given.
+            CoinSelection selection = selector.select(valueNeeded, new ArrayList<>(candidates));
             // Can we afford this?
             if (selection.valueGathered.compareTo(valueNeeded) < 0) {
                 valueMissing = valueNeeded.subtract(selection.valueGathered);
@@ -5523,6 +5967,7 @@ public class Wallet extends BaseTaggableObject
                     keyChainGroup.mergeActiveKeyChains(newChains, keyRotationTimestamp);
                 }
             }
+            markJournalKeysChanged();
             saveNow();
         }
 
@@ -47,8 +47,11 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    // Only used with the wallet locked.
+    private final WalletJournal journal;
 
     private volatile Listener vListener;
+    private volatile boolean vJournaling;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -83,6 +86,7 @@ public class WalletFiles {
         this.savePending = new AtomicBoolean();
         this.delay = delay;
         this.delayTimeUnit = checkNotNull(delayTimeUnit);
+        this.journal = new WalletJournal(file);
 
         this.saver = new Callable<Void>() {
             @Override public Void call() throws Exception {
@@ -114,6 +118,42 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * <p>Sets whether saves append the changes since the previous save to a journal next to the wallet file, instead
+     * of writing the whole wallet each time. For large wallets this makes saving during chain sync much cheaper.</p>
+     *
+     * <p>The first save writes the wallet in full, and so does any save once the journal has grown to half the size
+     * of the wallet file, folding the journal back in. {@link Wallet#loadFromFile(File, WalletExtension...)} applies
+     * the journal, but reading the wallet file by any other means misses the changes in it. The {@link Listener} is
+     * only called when the wallet is written in full. Changes the wallet isn't told about, such as setting the memo
+     * of one of its transactions or changing an extension without passing it to
+     * {@link Wallet#addOrUpdateExtension(WalletExtension)}, only make it into the next full write. Off by default.</p>
+     */
+    public void setJournaling(boolean journaling) {
+        wallet.lock.lock();
+        try {
+            if (journaling == vJournaling)
+                return;
+            vJournaling = journaling;
+            journal.invalidate();
+            if (!journaling)
+                wallet.stopJournal();
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Returns whether saves append to a journal, see {@link #setJournaling(boolean)}. */
+    public boolean isJournaling() {
+        return vJournaling;
+    }
+
+    /** Called by the wallet when it has been saved in full, not through the journal. */
+    void onSavedToFile(File savedFile) {
+        if (savedFile.getAbsoluteFile().equals(file.getAbsoluteFile()))
+            journal.invalidate();
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
         // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
@@ -129,14 +169,28 @@ public class WalletFiles {
 
     private void saveNowInternal() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
-        File directory = file.getAbsoluteFile().getParentFile();
-        File temp = File.createTempFile("wallet", null, directory);
-        final Listener listener = vListener;
-        if (listener != null)
-            listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
-        if (listener != null)
-            listener.onAfterAutoSave(file);
+        wallet.lock.lock();
+        try {
+            if (vJournaling && !journal.needsSnapshot()) {
+                journal.append(wallet);
+                watch.stop();
+                log.info("Save to journal completed in {}", watch);
+                return;
+            }
+            File directory = file.getAbsoluteFile().getParentFile();
+            File temp = File.createTempFile("wallet", null, directory);
+            final Listener listener = vListener;
+            if (listener != null)
+                listener.onBeforeAutoSave(temp);
+            if (vJournaling)
+                journal.writeSnapshot(wallet, temp);
+            else
+                wallet.saveToFile(temp, file);
+            if (listener != null)
+                listener.onAfterAutoSave(file);
+        } finally {
+            wallet.lock.unlock();
+        }
         watch.stop();
         log.info("Save completed in {}", watch);
     }
@@ -0,0 +1,347 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An append-only log of the changes made to a wallet since it was last saved in full, kept next to the wallet
+ * file. Used by {@link WalletFiles} when {@link WalletFiles#setJournaling(boolean)} is enabled, so that a save costs
+ * in proportion to what changed rather than to the size of the wallet.</p>
+ *
+ * <p>The journal is a sequence of length delimited {@link Protos.Wallet} records. The first one only carries the id
+ * the wallet file (the snapshot) was tagged with when it was written, so a journal left behind by an older snapshot
+ * is never applied to a newer one. Each following record holds the transactions that were added or changed, the ids
+ * of those that were removed, the last seen block and the extensions that were added or updated. When the key chains
+ * changed it holds all the keys, as the chains keep counters which the keys are serialized with, and when any of it
+ * changed, the rest of the wallet: watched scripts, tags and so on. Records are applied in order, later ones replacing
+ * what earlier ones wrote.</p>
+ */
+final class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** Tag of the snapshot and of the first record of its journal. */
+    static final String ID_TAG = "org.bitcoinj.wallet.journal.id";
+    // Tag of a record holding the state of the wallet besides its transactions, keys and extensions.
+    private static final String STATE_TAG = "org.bitcoinj.wallet.journal.state";
+    // Tag of a record holding the keys of the wallet.
+    private static final String KEYS_TAG = "org.bitcoinj.wallet.journal.keys";
+    // Tag of a record removing transactions, the data being their ids one after another.
+    private static final String REMOVED_TAG = "org.bitcoinj.wallet.journal.removed";
+    private static final String TAG_PREFIX = "org.bitcoinj.wallet.journal.";
+
+    // A new snapshot is written once the journal has grown beyond this fraction of the last one, which also bounds the
+    // time spent replaying it.
+    private static final int SNAPSHOT_FRACTION = 2;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final File walletFile;
+    private final File file;
+
+    // The id of the current snapshot, or null if a snapshot has to be written before appending anything.
+    @Nullable private ByteString id;
+    // The wallet state as of the last record, to tell whether the next one has to carry it.
+    @Nullable private ByteString state;
+    private long snapshotLength;
+    private long length;
+
+    WalletJournal(File walletFile) {
+        this.walletFile = walletFile;
+        this.file = journalFile(walletFile);
+    }
+
+    /** Returns the journal file of the given wallet file. */
+    static File journalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /** Returns true if the given wallet tag is used by the journal, rather than by the application. */
+    static boolean isJournalTag(String tag) {
+        return tag.startsWith(TAG_PREFIX);
+    }
+
+    /** Returns the journal id the given wallet or record was tagged with, or null. */
+    @Nullable
+    static ByteString getId(Protos.Wallet walletProto) {
+        for (Protos.Tag tag : walletProto.getTagsList()) {
+            if (tag.getTag().equals(ID_TAG))
+                return tag.getData();
+        }
+        return null;
+    }
+
+    /** Returns true if the next save has to write the wallet in full. */
+    boolean needsSnapshot() {
+        return id == null || length > snapshotLength / SNAPSHOT_FRACTION;
+    }
+
+    /** Makes the next save write the wallet in full, e.g. because the wallet file was overwritten. */
+    void invalidate() {
+        id = null;
+    }
+
+    /**
+     * Writes the wallet in full to the given temp file, renames it to the wallet file and starts a new, empty journal
+     * for it. Must be called with the wallet locked.
+     */
+    void writeSnapshot(Wallet wallet, File temp) throws IOException {
+        checkState(wallet.lock.isHeldByCurrentThread());
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        ByteString newId = ByteString.copyFrom(bytes);
+        id = null;
+        wallet.saveToFile(temp, walletFile, newId);
+        wallet.startJournal();
+        snapshotLength = walletFile.length();
+        state = stateToProto(wallet).build().toByteString();
+
+        Protos.Wallet header = Protos.Wallet.newBuilder()
+                .setNetworkIdentifier(wallet.getNetworkParameters().getId())
+                .addTags(tag(ID_TAG, newId))
+                .build();
+        File tempJournal = File.createTempFile("journal", null, file.getAbsoluteFile().getParentFile());
+        write(header, tempJournal, false);
+        if (Utils.isWindows() && file.exists() && !file.delete())
+            throw new IOException("Failed to delete " + file + " for replacement");
+        if (!tempJournal.renameTo(file)) {
+            tempJournal.delete();
+            throw new IOException("Failed to rename " + tempJournal + " to " + file);
+        }
+        length = file.length();
+        id = newId;
+    }
+
+    /**
+     * Appends a record of the changes made since the last snapshot or record. Must be called with the wallet locked.
+     * If it fails, the next save writes a snapshot.
+     */
+    void append(Wallet wallet) throws IOException {
+        checkState(wallet.lock.isHeldByCurrentThread());
+        checkState(id != null, "No snapshot to append to");
+        ByteString snapshotId = id;
+        id = null;
+        List<Sha256Hash> removed = new ArrayList<>();
+        List<WalletTransaction> changed = wallet.takeJournalChanges(removed);
+        boolean keysChanged = wallet.takeJournalKeysChanged();
+        List<WalletExtension> extensionsChanged = wallet.takeJournalExtensionChanges();
+
+        Protos.Wallet.Builder stateBuilder = stateToProto(wallet);
+        ByteString newState = stateBuilder.build().toByteString();
+        Protos.Wallet.Builder record;
+        if (newState.equals(state)) {
+            record = Protos.Wallet.newBuilder().setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        } else {
+            record = stateBuilder.addTags(tag(STATE_TAG, ByteString.EMPTY));
+            state = newState;
+        }
+        if (keysChanged)
+            record.addAllKey(wallet.serializeKeyChainGroupToProtobuf()).addTags(tag(KEYS_TAG, ByteString.EMPTY));
+        for (WalletExtension extension : extensionsChanged)
+            record.addExtension(WalletProtobufSerializer.makeExtensionProto(extension));
+        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
+        if (lastSeenBlockHash != null) {
+            record.setLastSeenBlockHash(WalletProtobufSerializer.hashToByteString(lastSeenBlockHash));
+            record.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
+        }
+        if (wallet.getLastBlockSeenTimeSecs() > 0)
+            record.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+        for (WalletTransaction wtx : changed)
+            record.addTransaction(WalletProtobufSerializer.makeTxProto(wtx));
+        if (!removed.isEmpty()) {
+            ByteString.Output ids = ByteString.newOutput(removed.size() * Sha256Hash.LENGTH);
+            for (Sha256Hash txId : removed)
+                ids.write(txId.getBytes());
+            record.addTags(tag(REMOVED_TAG, ids.toByteString()));
+        }
+        write(record.build(), file, true);
+        length = file.length();
+        id = snapshotId;
+        log.info("Appended {} changed and {} removed transactions{} to the journal, now {} bytes", changed.size(),
+                removed.size(), keysChanged ? " and the keys" : "", length);
+    }
+
+    private Protos.Wallet.Builder stateToProto(Wallet wallet) {
+        // The last seen block changes with nearly every save, so it's written with each record instead. The keys and
+        // extensions are only written when the wallet reports them as changed.
+        return new WalletProtobufSerializer().walletSettingsToProto(wallet)
+                .clearLastSeenBlockHash()
+                .clearLastSeenBlockHeight()
+                .clearLastSeenBlockTimeSecs();
+    }
+
+    private static Protos.Tag tag(String tag, ByteString data) {
+        return Protos.Tag.newBuilder().setTag(tag).setData(data).build();
+    }
+
+    private static void write(Protos.Wallet record, File file, boolean append) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file, append);
+        try {
+            record.writeDelimitedTo(stream);
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Reads the journal of the given wallet file, or returns null if there is none. A record cut short, as left by an
+     * interrupted save, ends the journal.
+     */
+    @Nullable
+    static Replay read(File walletFile) throws IOException {
+        File file = journalFile(walletFile);
+        if (!file.exists())
+            return null;
+        InputStream input = new BufferedInputStream(new FileInputStream(file));
+        try {
+            Protos.Wallet header;
+            try {
+                header = Protos.Wallet.parseDelimitedFrom(input);
+            } catch (InvalidProtocolBufferException e) {
+                header = null;
+            }
+            ByteString id = header != null ? getId(header) : null;
+            if (id == null) {
+                log.warn("Ignoring journal {} without a header", file);
+                return null;
+            }
+            Replay replay = new Replay(id);
+            while (true) {
+                Protos.Wallet record;
+                try {
+                    record = Protos.Wallet.parseDelimitedFrom(input);
+                } catch (InvalidProtocolBufferException e) {
+                    log.warn("Journal {} ends in an incomplete record, ignoring it", file);
+                    break;
+                }
+                if (record == null)
+                    break;
+                replay.add(record);
+            }
+            log.info("Read journal with {} records", replay.records);
+            return replay;
+        } finally {
+            input.close();
+        }
+    }
+
+    /** The changes read from a journal, folded together. */
+    static final class Replay {
+        private final ByteString id;
+        // The latest version of each transaction the journal wrote, by id.
+        private final Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<>();
+        private final Set<ByteString> removed = new HashSet<>();
+        // The latest version of each extension the journal wrote, by id.
+        private final Map<String, Protos.Extension> extensions = new LinkedHashMap<>();
+        // The latest records carrying the wallet state and the keys, and the latest record.
+        @Nullable private Protos.Wallet state;
+        @Nullable private Protos.Wallet keys;
+        @Nullable private Protos.Wallet last;
+        private int records;
+
+        private Replay(ByteString id) {
+            this.id = id;
+        }
+
+        /** The id of the snapshot this journal belongs to. */
+        ByteString getId() {
+            return id;
+        }
+
+        private void add(Protos.Wallet record) {
+            for (Protos.Tag tag : record.getTagsList()) {
+                if (tag.getTag().equals(REMOVED_TAG)) {
+                    ByteString ids = tag.getData();
+                    for (int i = 0; i + Sha256Hash.LENGTH <= ids.size(); i += Sha256Hash.LENGTH) {
+                        ByteString txId = ids.substring(i, i + Sha256Hash.LENGTH);
+                        transactions.remove(txId);
+                        removed.add(txId);
+                    }
+                } else if (tag.getTag().equals(STATE_TAG)) {
+                    state = record;
+                } else if (tag.getTag().equals(KEYS_TAG)) {
+                    keys = record;
+                }
+            }
+            for (Protos.Transaction tx : record.getTransactionList())
+                transactions.put(tx.getHash(), tx);
+            for (Protos.Extension extension : record.getExtensionList())
+                extensions.put(extension.getId(), extension);
+            last = record;
+            records++;
+        }
+
+        /** Returns true if the transaction with the given id was changed or removed by the journal. */
+        boolean replaces(ByteString txId) {
+            return removed.contains(txId) || transactions.containsKey(txId);
+        }
+
+        /** The transactions added or changed by the journal. */
+        Collection<Protos.Transaction> getTransactions() {
+            return transactions.values();
+        }
+
+        /** Applies the journal to everything but the transactions of the given snapshot. */
+        Protos.Wallet apply(Protos.Wallet snapshot) {
+            if (last == null)
+                return snapshot;
+            Protos.Wallet.Builder builder = (state != null ? state : snapshot).toBuilder().clearTransaction();
+            builder.clearKey().addAllKey((keys != null ? keys : snapshot).getKeyList());
+            Map<String, Protos.Extension> mergedExtensions = new LinkedHashMap<>();
+            for (Protos.Extension extension : snapshot.getExtensionList())
+                mergedExtensions.put(extension.getId(), extension);
+            mergedExtensions.putAll(extensions);
+            builder.clearExtension().addAllExtension(mergedExtensions.values());
+            if (last.hasLastSeenBlockHash()) {
+                builder.setLastSeenBlockHash(last.getLastSeenBlockHash());
+                builder.setLastSeenBlockHeight(last.getLastSeenBlockHeight());
+            } else {
+                builder.clearLastSeenBlockHash();
+                builder.clearLastSeenBlockHeight();
+            }
+            if (last.hasLastSeenBlockTimeSecs())
+                builder.setLastSeenBlockTimeSecs(last.getLastSeenBlockTimeSecs());
+            else
+                builder.clearLastSeenBlockTimeSecs();
+            return builder.build();
+        }
+    }
+}
@@ -37,9 +37,15 @@ import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.WireFormat;
 
@@ -57,7 +63,13 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -86,12 +98,16 @@ public class WalletProtobufSerializer {
     public static final int CURRENT_WALLET_VERSION = Protos.Wallet.getDefaultInstance().getVersion();
     // 512 MB
     private static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
+    // Transactions are decoded in batches of this many on the load threads. Smaller wallets are read on the calling
+    // thread only.
+    private static final int TRANSACTION_BATCH_SIZE = 256;
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
     private boolean requireAllExtensionsKnown = false;
     private int walletWriteBufferSize = CodedOutputStream.DEFAULT_BUFFER_SIZE;
+    private int loadParallelism = Runtime.getRuntime().availableProcessors();
 
     public interface WalletFactory {
         Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup);
@@ -143,13 +159,32 @@ public class WalletProtobufSerializer {
         this.walletWriteBufferSize = walletWriteBufferSize;
     }
 
+    /**
+     * Sets the number of threads used to read a wallet. The transactions are decoded in parallel, and the key chains
+     * are built while the transactions are connected to each other. With one, the wallet is read on the calling
+     * thread only. Default is the number of available processors.
+     */
+    public void setLoadParallelism(int loadParallelism) {
+        checkArgument(loadParallelism > 0, "Parallelism must be positive: %s", loadParallelism);
+        this.loadParallelism = loadParallelism;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
      * Equivalent to {@code walletToProto(wallet).writeTo(output);}
      */
     public void writeWallet(Wallet wallet, OutputStream output) throws IOException {
-        Protos.Wallet walletProto = walletToProto(wallet);
+        writeWallet(wallet, output, null);
+    }
+
+    /** Like {@link #writeWallet(Wallet, OutputStream)}, tagging the wallet with the id of its journal if given. */
+    void writeWallet(Wallet wallet, OutputStream output, @Nullable ByteString journalId) throws IOException {
+        Protos.Wallet.Builder walletBuilder = walletStateToProto(wallet);
+        addTransactions(wallet, walletBuilder);
+        if (journalId != null)
+            walletBuilder.addTags(Protos.Tag.newBuilder().setTag(WalletJournal.ID_TAG).setData(journalId));
+        Protos.Wallet walletProto = walletBuilder.build();
         final CodedOutputStream codedOutput = CodedOutputStream.newInstance(output, this.walletWriteBufferSize);
         walletProto.writeTo(codedOutput);
         codedOutput.flush();
@@ -172,18 +207,33 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
-        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
-        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
-        if (wallet.getDescription() != null) {
-            walletBuilder.setDescription(wallet.getDescription());
-        }
+        Protos.Wallet.Builder walletBuilder = walletStateToProto(wallet);
+        addTransactions(wallet, walletBuilder);
+        return walletBuilder.build();
+    }
 
+    private static void addTransactions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
         for (WalletTransaction wtx : wallet.getWalletTransactions()) {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
+    }
 
+    /** Converts everything but the transactions of the given wallet to the protocol buffers. */
+    Protos.Wallet.Builder walletStateToProto(Wallet wallet) {
+        Protos.Wallet.Builder walletBuilder = walletSettingsToProto(wallet);
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+        populateExtensions(wallet, walletBuilder);
+        return walletBuilder;
+    }
+
+    /** Converts everything but the transactions, keys and extensions of the given wallet to the protocol buffers. */
+    Protos.Wallet.Builder walletSettingsToProto(Wallet wallet) {
+        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        if (wallet.getDescription() != null) {
+            walletBuilder.setDescription(wallet.getDescription());
+        }
 
         for (Script script : wallet.getWatchedScripts()) {
             Protos.Script protoScript =
@@ -226,8 +276,6 @@ public class WalletProtobufSerializer {
             walletBuilder.setKeyRotationTime(timeSecs);
         }
 
-        populateExtensions(wallet, walletBuilder);
-
         for (Map.Entry<String, ByteString> entry : wallet.getTags().entrySet()) {
             Protos.Tag.Builder tag = Protos.Tag.newBuilder().setTag(entry.getKey()).setData(entry.getValue());
             walletBuilder.addTags(tag);
@@ -236,20 +284,23 @@ public class WalletProtobufSerializer {
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
 
-        return walletBuilder.build();
+        return walletBuilder;
     }
 
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
-        for (WalletExtension extension : wallet.getExtensions().values()) {
-            Protos.Extension.Builder proto = Protos.Extension.newBuilder();
-            proto.setId(extension.getWalletExtensionID());
-            proto.setMandatory(extension.isWalletExtensionMandatory());
-            proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
-            walletBuilder.addExtension(proto);
-        }
+        for (WalletExtension extension : wallet.getExtensions().values())
+            walletBuilder.addExtension(makeExtensionProto(extension));
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Extension makeExtensionProto(WalletExtension extension) {
+        Protos.Extension.Builder proto = Protos.Extension.newBuilder();
+        proto.setId(extension.getWalletExtensionID());
+        proto.setMandatory(extension.isWalletExtensionMandatory());
+        proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
+        return proto.build();
+    }
+
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -430,22 +481,88 @@ public class WalletProtobufSerializer {
      * inconsistent data, a wallet extension marked as mandatory that cannot be handled and so on. You should always
      * handle {@link UnreadableWalletException} and communicate failure to the user in an appropriate manner.</p>
      *
+     * <p>The wallet is streamed rather than parsed into a {@link Protos.Wallet} first: the transactions are decoded
+     * while the rest is still being read, see {@link #setLoadParallelism(int)}.</p>
+     *
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
     public Wallet readWallet(InputStream input, HDPath accountPath, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
+        return readWallet(input, accountPath, forceReset, extensions, null);
+    }
+
+    /**
+     * Like {@link #readWallet(InputStream, HDPath, boolean, WalletExtension[])}, applying the changes in the given
+     * journal if it belongs to the wallet read.
+     */
+    Wallet readWallet(InputStream input, HDPath accountPath, boolean forceReset, @Nullable WalletExtension[] extensions,
+                      @Nullable WalletJournal.Replay journal) throws UnreadableWalletException {
+        ExecutorService executor = createLoadExecutor();
         try {
-            Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
-            if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            return readWallet(params, accountPath, extensions, walletProto, forceReset);
+            LoadTimer timer = new LoadTimer();
+            CodedInputStream codedInput = CodedInputStream.newInstance(input);
+            codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+            // Everything but the transactions is copied here, to be parsed once the stream is done. The transactions
+            // are decoded as they stream past.
+            ByteString.Output rest = ByteString.newOutput();
+            CodedOutputStream restOutput = CodedOutputStream.newInstance(rest);
+            NetworkParameters params = null;
+            List<ByteString> batch = new ArrayList<>();
+            List<Future<List<DecodedTransaction>>> decoded = new ArrayList<>();
+            int tag;
+            while ((tag = codedInput.readTag()) != 0) {
+                int field = WireFormat.getTagFieldNumber(tag);
+                boolean lengthDelimited = WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+                if (field == Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER && lengthDelimited) {
+                    // Needed to decode the transactions. It normally comes first.
+                    String paramsID = codedInput.readString();
+                    params = NetworkParameters.fromID(paramsID);
+                    if (params == null)
+                        throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+                    restOutput.writeString(field, paramsID);
+                } else if (field == Protos.Wallet.TRANSACTION_FIELD_NUMBER && lengthDelimited && !forceReset) {
+                    batch.add(codedInput.readBytes());
+                    if (batch.size() >= TRANSACTION_BATCH_SIZE && params != null) {
+                        decoded.add(executor.submit(new DecodeBatch(params, batch, null)));
+                        batch = new ArrayList<>();
+                    }
+                } else {
+                    copyField(codedInput, tag, restOutput);
+                }
+            }
+            restOutput.flush();
+            Protos.Wallet walletProto = Protos.Wallet.parseFrom(rest.toByteString());
+            // The network identifier is required, so we have the params by now.
+            checkNotNull(params);
+            if (!batch.isEmpty())
+                decoded.add(submit(decoded.isEmpty() ? null : executor, new DecodeBatch(params, batch, null)));
+            List<Future<List<DecodedTransaction>>> replayed = new ArrayList<>();
+            if (journal != null && !journal.getId().equals(WalletJournal.getId(walletProto))) {
+                log.info("Ignoring a journal that doesn't belong to the wallet");
+                journal = null;
+            }
+            if (journal != null) {
+                walletProto = journal.apply(walletProto);
+                if (!forceReset) {
+                    List<Protos.Transaction> txProtos = new ArrayList<>(journal.getTransactions());
+                    for (int i = 0; i < txProtos.size(); i += TRANSACTION_BATCH_SIZE) {
+                        List<Protos.Transaction> replayedBatch = txProtos.subList(i, Math.min(i + TRANSACTION_BATCH_SIZE, txProtos.size()));
+                        replayed.add(submit(executor, new DecodeBatch(params, null, replayedBatch)));
+                    }
+                }
+            }
+            timer.phaseDone("read");
+            return readWallet(params, accountPath, extensions, walletProto, decoded, journal, replayed, forceReset,
+                    executor, timer);
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         } catch (IllegalStateException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         } catch (IllegalArgumentException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        } finally {
+            executor.shutdownNow();
+            // Make sure the object can be re-used to read another wallet without corruption.
+            txMap.clear();
         }
     }
 
@@ -487,21 +604,79 @@ public class WalletProtobufSerializer {
     }
     public Wallet readWallet(NetworkParameters params, HDPath accountPath, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        ExecutorService executor = createLoadExecutor();
+        try {
+            LoadTimer timer = new LoadTimer();
+            List<Future<List<DecodedTransaction>>> decoded = new ArrayList<>();
+            if (!forceReset) {
+                List<Protos.Transaction> txProtos = walletProto.getTransactionList();
+                boolean parallel = txProtos.size() > TRANSACTION_BATCH_SIZE;
+                for (int i = 0; i < txProtos.size(); i += TRANSACTION_BATCH_SIZE) {
+                    List<Protos.Transaction> batch = txProtos.subList(i, Math.min(i + TRANSACTION_BATCH_SIZE, txProtos.size()));
+                    decoded.add(submit(parallel ? executor : null, new DecodeBatch(params, null, batch)));
+                }
+            }
+            return readWallet(params, accountPath, extensions, walletProto, decoded, null,
+                    Collections.<Future<List<DecodedTransaction>>>emptyList(), forceReset, executor, timer);
+        } finally {
+            executor.shutdownNow();
+            // Make sure the object can be re-used to read another wallet without corruption.
+            txMap.clear();
+        }
+    }
+
+    private Wallet readWallet(final NetworkParameters params, final HDPath accountPath,
+                              @Nullable WalletExtension[] extensions, final Protos.Wallet walletProto,
+                              List<Future<List<DecodedTransaction>>> decoded, @Nullable WalletJournal.Replay journal,
+                              List<Future<List<DecodedTransaction>>> replayed, boolean forceReset,
+                              ExecutorService executor, LoadTimer timer) throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
             throw new UnreadableWalletException.WrongNetwork();
 
-        // Read the scrypt parameters that specify how encryption and decryption is performed.
-        KeyChainGroup keyChainGroup;
-        if (walletProto.hasEncryptionParameters()) {
-            Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
-            final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(encryptionParameters);
-            keyChainGroup = KeyChainGroup.fromProtobufEncrypted(params, accountPath, walletProto.getKeyList(), keyCrypter, keyChainFactory);
-        } else {
-            keyChainGroup = KeyChainGroup.fromProtobufUnencrypted(params, accountPath, walletProto.getKeyList(), keyChainFactory);
+        // The key chains don't depend on the transactions, so for larger wallets they're built while the transactions
+        // are connected.
+        final Stopwatch keysWatch = Stopwatch.createUnstarted();
+        Future<KeyChainGroup> keyChainGroup = submit(decoded.size() > 1 ? executor : null, new Callable<KeyChainGroup>() {
+            @Override
+            public KeyChainGroup call() throws UnreadableWalletException {
+                keysWatch.start();
+                try {
+                    return readKeyChainGroup(params, accountPath, walletProto);
+                } finally {
+                    keysWatch.stop();
+                }
+            }
+        });
+
+        List<WalletTransaction> walletTransactions = new ArrayList<>();
+        if (!forceReset) {
+            // Insert all transactions into the txMap, in the order of the wallet, followed by those of the journal
+            // which replace or add to them.
+            List<Protos.Transaction> txProtos = new ArrayList<>();
+            int batches = 0;
+            for (Future<List<DecodedTransaction>> batch : Iterables.concat(decoded, replayed)) {
+                boolean fromJournal = batches++ >= decoded.size();
+                for (DecodedTransaction tx : getLoadResult(batch)) {
+                    if (journal != null && !fromJournal && journal.replaces(tx.proto.getHash()))
+                        continue;
+                    if (txMap.containsKey(tx.proto.getHash()))
+                        throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(tx.proto.getHash()));
+                    txMap.put(tx.proto.getHash(), tx.tx);
+                    txProtos.add(tx.proto);
+                }
+            }
+            timer.phaseDone("decode");
+
+            // Update transaction outputs to point to inputs that spend them
+            for (Protos.Transaction txProto : txProtos)
+                walletTransactions.add(connectTransactionOutputs(params, txProto));
+            timer.phaseDone("connect");
         }
-        Wallet wallet = factory.create(params, keyChainGroup);
+
+        Wallet wallet = factory.create(params, getLoadResult(keyChainGroup));
+        timer.phaseDone("keys");
 
         List<Script> scripts = new ArrayList<>();
         for (Protos.Script protoScript : walletProto.getWatchedScriptList()) {
@@ -527,16 +702,8 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenHeight(-1);
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
-            // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
-            }
-
-            // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+            for (WalletTransaction wtx : walletTransactions)
                 wallet.addWalletTransaction(wtx);
-            }
 
             // Update the lastBlockSeenHash.
             if (!walletProto.hasLastSeenBlockHash()) {
@@ -556,23 +723,140 @@ public class WalletProtobufSerializer {
                 wallet.setKeyRotationTime(new Date(walletProto.getKeyRotationTime() * 1000));
             }
         }
+        timer.phaseDone("wallet");
 
         loadExtensions(wallet, extensions != null ? extensions : new WalletExtension[0], walletProto);
+        timer.phaseDone("extensions");
 
         for (Protos.Tag tag : walletProto.getTagsList()) {
-            wallet.setTag(tag.getTag(), tag.getData());
+            if (!WalletJournal.isJournalTag(tag.getTag()))
+                wallet.setTag(tag.getTag(), tag.getData());
         }
 
         if (walletProto.hasVersion()) {
             wallet.setVersion(walletProto.getVersion());
         }
 
-        // Make sure the object can be re-used to read another wallet without corruption.
-        txMap.clear();
-
+        log.info("Read wallet with {} transactions: {}, key chains built in {}", walletTransactions.size(), timer,
+                keysWatch);
         return wallet;
     }
 
+    private KeyChainGroup readKeyChainGroup(NetworkParameters params, HDPath accountPath, Protos.Wallet walletProto)
+            throws UnreadableWalletException {
+        // Read the scrypt parameters that specify how encryption and decryption is performed.
+        if (walletProto.hasEncryptionParameters()) {
+            Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
+            final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(encryptionParameters);
+            return KeyChainGroup.fromProtobufEncrypted(params, accountPath, walletProto.getKeyList(), keyCrypter, keyChainFactory);
+        } else {
+            return KeyChainGroup.fromProtobufUnencrypted(params, accountPath, walletProto.getKeyList(), keyChainFactory);
+        }
+    }
+
+    private ExecutorService createLoadExecutor() {
+        return loadParallelism > 1 ? new ForkJoinPool(loadParallelism) : MoreExecutors.newDirectExecutorService();
+    }
+
+    // Runs the task on the given executor, or right away on the calling thread if there is none.
+    private static <T> Future<T> submit(@Nullable ExecutorService executor, Callable<T> task) {
+        return (executor != null ? executor : MoreExecutors.newDirectExecutorService()).submit(task);
+    }
+
+    // Copies the field with the given tag, which was just read, from the input to the output.
+    private static void copyField(CodedInputStream input, int tag, CodedOutputStream output) throws IOException {
+        int field = WireFormat.getTagFieldNumber(tag);
+        switch (WireFormat.getTagWireType(tag)) {
+            case WireFormat.WIRETYPE_VARINT:
+                output.writeUInt64(field, input.readRawVarint64());
+                break;
+            case WireFormat.WIRETYPE_FIXED64:
+                output.writeFixed64(field, input.readRawLittleEndian64());
+                break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                output.writeBytes(field, input.readBytes());
+                break;
+            case WireFormat.WIRETYPE_FIXED32:
+                output.writeFixed32(field, input.readRawLittleEndian32());
+                break;
+            default:
+                // The wallet format has no groups.
+                throw new InvalidProtocolBufferException("Unexpected wire type in field " + field);
+        }
+    }
+
+    private static <T> T getLoadResult(Future<T> future) throws UnreadableWalletException {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            Throwables.throwIfInstanceOf(cause, UnreadableWalletException.class);
+            Throwables.throwIfUnchecked(cause);
+            throw new UnreadableWalletException("Could not read wallet", cause);
+        }
+    }
+
+    private static class DecodedTransaction {
+        final Protos.Transaction proto;
+        final Transaction tx;
+
+        DecodedTransaction(Protos.Transaction proto, Transaction tx) {
+            this.proto = proto;
+            this.tx = tx;
+        }
+    }
+
+    // Parses, if still serialized, and decodes a batch of transactions. Batches are independent of each other, so
+    // they can be decoded in parallel.
+    private static class DecodeBatch implements Callable<List<DecodedTransaction>> {
+        private final NetworkParameters params;
+        @Nullable private final List<ByteString> serialized;
+        @Nullable private final List<Protos.Transaction> parsed;
+
+        DecodeBatch(NetworkParameters params, @Nullable List<ByteString> serialized,
+                    @Nullable List<Protos.Transaction> parsed) {
+            this.params = params;
+            this.serialized = serialized;
+            this.parsed = parsed;
+        }
+
+        @Override
+        public List<DecodedTransaction> call() throws UnreadableWalletException {
+            List<Protos.Transaction> protos = parsed;
+            if (protos == null) {
+                protos = new ArrayList<>(serialized.size());
+                for (ByteString bytes : serialized) {
+                    try {
+                        protos.add(Protos.Transaction.parseFrom(bytes));
+                    } catch (InvalidProtocolBufferException e) {
+                        throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+                    }
+                }
+            }
+            List<DecodedTransaction> result = new ArrayList<>(protos.size());
+            for (Protos.Transaction proto : protos)
+                result.add(new DecodedTransaction(proto, readTransaction(proto, params)));
+            return result;
+        }
+    }
+
+    // Records how long the phases of reading a wallet take, for the log.
+    private static class LoadTimer {
+        private final Stopwatch total = Stopwatch.createStarted();
+        private final Stopwatch phase = Stopwatch.createStarted();
+        private final StringBuilder phases = new StringBuilder();
+
+        void phaseDone(String name) {
+            phases.append(name).append(' ').append(phase).append(", ");
+            phase.reset().start();
+        }
+
+        @Override
+        public String toString() {
+            return phases + "total " + total;
+        }
+    }
+
     private void loadExtensions(Wallet wallet, WalletExtension[] extensionsList, Protos.Wallet walletProto) throws UnreadableWalletException {
         final Map<String, WalletExtension> extensions = new HashMap<>();
         for (WalletExtension e : extensionsList)
@@ -622,7 +906,7 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    private static Transaction readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
         tx.setVersion(txProto.getVersion());
@@ -692,9 +976,7 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getTxId().equals(protoHash))
             throw new UnreadableWalletException(String.format(Locale.US, "Transaction did not deserialize completely: %s vs %s", tx.getTxId(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
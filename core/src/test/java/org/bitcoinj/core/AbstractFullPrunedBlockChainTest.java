@@ -21,6 +21,7 @@ import com.google.common.collect.Lists;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.utils.BlockFileLoader;
@@ -36,6 +37,7 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.bitcoinj.core.Coin.FIFTY_COINS;
@@ -162,6 +164,92 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void spendOutputsCreatedInSameBlock() throws Exception {
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+
+        // Build some blocks on genesis block to create a spendable output
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        TransactionOutPoint spendableOutput = new TransactionOutPoint(PARAMS, 0, coinbase.getTxId());
+        byte[] spendableOutputScriptPubKey = coinbase.getOutputs().get(0).getScriptBytes();
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+
+        // A chain of two transactions within one block, the second spending the output of the first.
+        Block block = rollingBlock.createNextBlock(null);
+        Transaction t1 = new Transaction(PARAMS);
+        t1.addOutput(new TransactionOutput(PARAMS, t1, FIFTY_COINS, outKey));
+        t1.addSignedInput(spendableOutput, new Script(spendableOutputScriptPubKey), outKey);
+        block.addTransaction(t1);
+        Transaction t2 = new Transaction(PARAMS);
+        t2.addOutput(new TransactionOutput(PARAMS, t2, FIFTY_COINS, outKey));
+        t2.addSignedInput(t1.getOutput(0), outKey);
+        block.addTransaction(t2);
+        block.solve();
+        assertTrue(chain.add(block));
+        assertNull(store.getTransactionOutput(coinbase.getTxId(), 0));
+        assertNull(store.getTransactionOutput(t1.getTxId(), 0));
+        assertNotNull(store.getTransactionOutput(t2.getTxId(), 0));
+
+        // Spending the same output twice in one block isn't allowed.
+        Block doubleSpend = block.createNextBlock(null);
+        Transaction t3 = new Transaction(PARAMS);
+        t3.addOutput(new TransactionOutput(PARAMS, t3, FIFTY_COINS, outKey));
+        t3.addSignedInput(t2.getOutput(0), outKey);
+        doubleSpend.addTransaction(t3);
+        Transaction t4 = new Transaction(PARAMS);
+        t4.addOutput(new TransactionOutput(PARAMS, t4, Coin.COIN, outKey));
+        t4.addSignedInput(t2.getOutput(0), outKey);
+        doubleSpend.addTransaction(t4);
+        doubleSpend.solve();
+        try {
+            chain.add(doubleSpend);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertNotNull(store.getTransactionOutput(t2.getTxId(), 0));
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
+    @Test
+    public void testTransactionOutputBatches() throws Exception {
+        store = createStore(PARAMS, 10);
+        ECKey key = new ECKey();
+        Script script = ScriptBuilder.createP2PKHOutputScript(key);
+        String address = LegacyAddress.fromKey(PARAMS, key).toString();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        UTXO out0 = new UTXO(hash, 0, Coin.COIN, 1, false, script, address);
+        UTXO out1 = new UTXO(hash, 1, Coin.CENT, 1, false, script, address);
+
+        store.beginDatabaseBatchWrite();
+        store.updateUnspentTransactionOutputs(Collections.<UTXO>emptyList(), Arrays.asList(out0, out1));
+        store.commitDatabaseBatchWrite();
+        List<TransactionOutPoint> outPoints = Arrays.asList(new TransactionOutPoint(PARAMS, 1, hash),
+                new TransactionOutPoint(PARAMS, 2, hash), new TransactionOutPoint(PARAMS, 0, hash));
+        List<UTXO> outputs = store.getTransactionOutputs(outPoints);
+        assertEquals(Arrays.asList(out1, null, out0), outputs);
+        assertEquals(Coin.CENT, outputs.get(0).getValue());
+
+        store.beginDatabaseBatchWrite();
+        store.updateUnspentTransactionOutputs(Collections.singletonList(out0), Collections.<UTXO>emptyList());
+        store.commitDatabaseBatchWrite();
+        assertEquals(Arrays.asList(out1, null, null), store.getTransactionOutputs(outPoints));
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
@@ -19,6 +19,7 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
@@ -131,6 +132,31 @@ public class BitcoinSerializerTest {
         assertArrayEquals(TRANSACTION_MESSAGE_BYTES, bos.toByteArray());
     }
 
+    @Test
+    public void serializeHeader() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        MessageSerializer serializer = params.getDefaultSerializer();
+        Transaction transaction = new Transaction(params);
+        transaction.addOutput(Coin.COIN, new ECKey());
+        byte[] payload = transaction.unsafeBitcoinSerialize();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(transaction, bos);
+        byte[] header = serializer.serializeHeader(transaction, payload);
+        assertArrayEquals(Arrays.copyOf(bos.toByteArray(), header.length), header);
+        assertArrayEquals(Arrays.copyOfRange(bos.toByteArray(), header.length, bos.size()), payload);
+        // Serializing again gives the same header, whether the checksum is reused or not.
+        assertArrayEquals(header, serializer.serializeHeader(transaction, transaction.unsafeBitcoinSerialize()));
+
+        // A change to the message changes the checksum.
+        transaction.setLockTime(1);
+        payload = transaction.unsafeBitcoinSerialize();
+        bos.reset();
+        serializer.serialize("tx", payload, bos);
+        byte[] changedHeader = serializer.serializeHeader(transaction, payload);
+        assertArrayEquals(Arrays.copyOf(bos.toByteArray(), header.length), changedHeader);
+        assertFalse(Arrays.equals(header, changedHeader));
+    }
+
     /**
      * Get 1 header of the block number 1 (the first one is 0) in the chain
      */
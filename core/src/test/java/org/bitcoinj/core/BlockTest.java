@@ -108,6 +108,28 @@ public class BlockTest {
         block.verify(Block.BLOCK_HEIGHT_GENESIS, EnumSet.noneOf(Block.VerifyFlag.class));
     }
 
+    @Test
+    public void transactionsParsedOnDemand() throws Exception {
+        LazyTransactionList transactions = (LazyTransactionList) block700000.transactions;
+        // The block can be written out again without parsing any of its transactions.
+        assertArrayEquals(block700000Bytes, block700000.bitcoinSerialize());
+        for (int i = 0; i < transactions.size(); i++)
+            assertNotNull(transactions.getPayload(i));
+
+        Block parsed = TESTNET.getDefaultSerializer().makeBlock(block700000Bytes);
+        List<Transaction> parsedTransactions = parsed.getTransactions();
+        for (int i = 0; i < transactions.size(); i++) {
+            assertNull(((LazyTransactionList) parsed.transactions).getPayload(i));
+            assertEquals(parsedTransactions.get(i).getTxId(), transactions.getTxId(i));
+        }
+        assertEquals(parsedTransactions.get(1), transactions.get(1));
+        assertSame(transactions.get(1), transactions.get(1));
+        assertNull(transactions.getPayload(1));
+        assertNotNull(transactions.getPayload(2));
+        assertEquals(block700000.getMerkleRoot(), parsed.getMerkleRoot());
+        assertArrayEquals(block700000Bytes, block700000.bitcoinSerialize());
+    }
+
     @Test
     public void testBadTransactions() throws Exception {
         // Re-arrange so the coinbase transaction is not first.
@@ -68,6 +68,18 @@ public class BloomFilterTest {
         assertEquals("03ce4299050000000100008002", HEX.encode(filter.unsafeBitcoinSerialize()));
     }
 
+    @Test
+    public void insertHashesTest() {
+        BloomFilter filter = new BloomFilter(3, 0.01, 2147483649L);
+        for (String object : new String[] { "99108ad8ed9bb6274d3980bab5a85c048f0950c8",
+                "b5a2c786d9ef4658287ced5914b37a1b4aa32eee", "b9300670b4c5366e95b2699e8b18bc75e5f729c5" })
+            filter.insertHashes(BloomFilter.getHashes(HEX.decode(object), filter.getTweak(), filter.getHashFuncs() + 2));
+        assertTrue(filter.contains(HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8")));
+        assertFalse(filter.contains(HEX.decode("19108ad8ed9bb6274d3980bab5a85c048f0950c8")));
+        // Same as inserting the objects themselves, in insertSerializeTestWithTweak
+        assertEquals("03ce4299050000000100008002", HEX.encode(filter.unsafeBitcoinSerialize()));
+    }
+
     @Test
     public void walletTest() throws Exception {
         Context.propagate(new Context(MAINNET));
@@ -109,6 +109,37 @@ public class FilteredBlockAndPartialMerkleTreeTests extends TestWithPeerGroup {
         assertTrue(txns.contains(tx2.getTxId()));
     }
 
+    @Test
+    public void createFilteredBlockFromBytes() throws Exception {
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        Transaction tx1 = FakeTxBuilder.createFakeTx(UNITTEST, Coin.COIN,  key1);
+        Transaction tx2 = FakeTxBuilder.createFakeTx(UNITTEST, Coin.FIFTY_COINS, LegacyAddress.fromKey(UNITTEST, key2));
+        Transaction tx3 = FakeTxBuilder.createFakeTx(UNITTEST, Coin.CENT, new ECKey());
+        Block block = FakeTxBuilder.makeSolvedTestBlock(UNITTEST.getGenesisBlock(), LegacyAddress.fromBase58(UNITTEST, "msg2t2V2sWNd85LccoddtWysBTR8oPnkzW"), tx1, tx2, tx3);
+        Block parsed = UNITTEST.getDefaultSerializer().makeBlock(block.bitcoinSerialize());
+        BloomFilter filter = new BloomFilter(4, 0.1, 1, BloomFilter.BloomUpdate.UPDATE_ALL);
+        filter.insert(key1);
+        filter.insert(LegacyAddress.fromKey(UNITTEST, key2).getHash());
+        BloomFilter parsedFilter = new BloomFilter(4, 0.1, 1, BloomFilter.BloomUpdate.UPDATE_ALL);
+        parsedFilter.insert(key1);
+        parsedFilter.insert(LegacyAddress.fromKey(UNITTEST, key2).getHash());
+
+        // Checking the transactions straight from the block bytes matches and updates the same as checking objects.
+        FilteredBlock filteredBlock = filter.applyAndUpdate(block);
+        FilteredBlock parsedFilteredBlock = parsedFilter.applyAndUpdate(parsed);
+        assertEquals(filteredBlock, parsedFilteredBlock);
+        assertEquals(filteredBlock.getAssociatedTransactions(), parsedFilteredBlock.getAssociatedTransactions());
+        assertEquals(filter, parsedFilter);
+        List<Sha256Hash> txns = parsedFilteredBlock.getTransactionHashes();
+        assertTrue(txns.contains(tx1.getTxId()));
+        assertTrue(txns.contains(tx2.getTxId()));
+        // Only the transactions that matched were parsed.
+        LazyTransactionList transactions = (LazyTransactionList) parsed.transactions;
+        for (int i = 0; i < transactions.size(); i++)
+            assertEquals(!txns.contains(transactions.getTxId(i)), transactions.getPayload(i) != null);
+    }
+
     private Sha256Hash numAsHash(int num) {
         byte[] bits = new byte[32];
         bits[0] = (byte) num;
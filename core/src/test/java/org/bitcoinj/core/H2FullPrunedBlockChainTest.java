@@ -16,12 +16,24 @@
 
 package org.bitcoinj.core;
 
+import com.google.common.collect.Lists;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.H2FullPrunedBlockStore;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
@@ -52,4 +64,74 @@ public class H2FullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
     public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
         ((H2FullPrunedBlockStore)store).resetStore();
     }
+
+    @Test
+    public void outputsIndexedByAddressHash() throws Exception {
+        H2FullPrunedBlockStore store = (H2FullPrunedBlockStore) createStore(PARAMS, 10);
+        try {
+            ECKey key = new ECKey();
+            Sha256Hash txHash = Sha256Hash.of(new byte[] { 1 });
+            Address pubKeyHashAddress = LegacyAddress.fromKey(PARAMS, key);
+            // A script hash equal to the pubkey hash, which must not be mistaken for an output the key can spend.
+            Address scriptHashAddress = LegacyAddress.fromScriptHash(PARAMS, key.getPubKeyHash());
+            store.addUnspentTransactionOutput(new UTXO(txHash, 0, Coin.COIN, 1, false,
+                    ScriptBuilder.createOutputScript(pubKeyHashAddress), PARAMS));
+            store.addUnspentTransactionOutput(new UTXO(txHash, 1, Coin.CENT, 1, false,
+                    ScriptBuilder.createP2PKOutputScript(key), PARAMS));
+            store.addUnspentTransactionOutput(new UTXO(txHash, 2, Coin.MILLICOIN, 1, false,
+                    ScriptBuilder.createOutputScript(scriptHashAddress), PARAMS));
+
+            List<UTXO> outputs = store.getOpenTransactionOutputs(Lists.newArrayList(key));
+            assertEquals(2, outputs.size());
+            for (UTXO output : outputs)
+                assertEquals(pubKeyHashAddress.toString(), output.getAddress());
+            assertEquals(BigInteger.valueOf(Coin.COIN.add(Coin.CENT).value),
+                    store.calculateBalanceForAddress(pubKeyHashAddress));
+            assertEquals(BigInteger.valueOf(Coin.MILLICOIN.value), store.calculateBalanceForAddress(scriptHashAddress));
+            assertEquals(scriptHashAddress.toString(), store.getTransactionOutput(txHash, 2).getAddress());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void upgradesVersion3Store() throws Exception {
+        H2FullPrunedBlockStore store = (H2FullPrunedBlockStore) createStore(PARAMS, 10);
+        ECKey key = new ECKey();
+        Sha256Hash txHash = Sha256Hash.of(new byte[] { 2 });
+        Address address = LegacyAddress.fromKey(PARAMS, key);
+        store.addUnspentTransactionOutput(new UTXO(txHash, 0, Coin.COIN, 1, false,
+                ScriptBuilder.createOutputScript(address), PARAMS));
+        store.addUnspentTransactionOutput(new UTXO(txHash, 1, Coin.CENT, 1, false,
+                ScriptBuilder.createP2PKOutputScript(key), PARAMS));
+        store.close();
+
+        // Turn it back into the layout of version 03, which kept the Base58 address rather than its hash.
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:test", "sa", "sa");
+                Statement s = conn.createStatement()) {
+            s.executeUpdate("DROP INDEX openoutputs_hash_index_height_addresshash_idx");
+            s.executeUpdate("DROP INDEX openoutputs_addresshash_idx");
+            s.executeUpdate("ALTER TABLE openoutputs DROP COLUMN addresshash");
+            s.executeUpdate("ALTER TABLE openoutputs ADD COLUMN toaddress VARCHAR(74)");
+            s.executeUpdate("CREATE INDEX openoutputs_hash_index_height_toaddress_idx ON openoutputs (hash, index, height, toaddress)");
+            s.executeUpdate("CREATE INDEX openoutputs_toaddress_idx ON openoutputs (toaddress)");
+            s.executeUpdate("UPDATE openoutputs SET addresstargetable = 0, toaddress = '" + address + "'");
+            s.executeUpdate("UPDATE settings SET value = '" + Utils.HEX.encode("03".getBytes()) + "' WHERE name = 'version'");
+        }
+
+        store = new H2FullPrunedBlockStore(PARAMS, "test", "sa", "sa", 10);
+        try {
+            assertEquals(2, store.getOpenTransactionOutputs(Lists.newArrayList(key)).size());
+            assertEquals(BigInteger.valueOf(Coin.COIN.add(Coin.CENT).value), store.calculateBalanceForAddress(address));
+            assertEquals(address.toString(), store.getTransactionOutput(txHash, 1).getAddress());
+        } finally {
+            store.close();
+        }
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:test", "sa", "sa");
+                Statement s = conn.createStatement();
+                ResultSet rs = s.executeQuery("SELECT * FROM information_schema.columns"
+                        + " WHERE table_name = 'OPENOUTPUTS' AND column_name = 'TOADDRESS'")) {
+            assertFalse(rs.next());
+        }
+    }
 }
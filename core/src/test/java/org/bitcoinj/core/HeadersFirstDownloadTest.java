@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class HeadersFirstDownloadTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final long TIMEOUT_MILLIS = 30 * 1000;
+
+    private BlockChain chain;
+    private List<Block> headers;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Utils.setMockClock();
+        Context context = new Context(UNITTEST);
+        chain = new BlockChain(context, new MemoryBlockStore(UNITTEST));
+        // Three windows worth of headers on top of the genesis block.
+        headers = new ArrayList<>();
+        Block prev = UNITTEST.getGenesisBlock();
+        for (int i = 0; i < 3 * HeadersFirstDownload.WINDOW_SIZE; i++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev);
+            headers.add(prev.cloneAsHeader());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Utils.resetMocking();
+    }
+
+    @Test
+    public void spreadsWindowsOverPeers() throws Exception {
+        FakePeer p1 = new FakePeer(1), p2 = new FakePeer(2), p3 = new FakePeer(3);
+        HeadersFirstDownload download = start(p1, p2, p3);
+
+        // Each peer has the fewest windows in flight in turn, so each gets one of them.
+        Set<Sha256Hash> requested = new HashSet<>();
+        for (FakePeer peer : Arrays.asList(p1, p2, p3)) {
+            assertEquals(1, peer.requests.size());
+            assertWindow(peer.requests.get(0));
+            requested.addAll(peer.requests.get(0));
+        }
+        assertEquals(hashes(0, headers.size()), requested);
+        assertTrue(download.isRunning());
+    }
+
+    @Test
+    public void requestsStalledWindowsElsewhere() throws Exception {
+        FakePeer p1 = new FakePeer(1), p2 = new FakePeer(2);
+        headers = headers.subList(0, 2 * HeadersFirstDownload.WINDOW_SIZE);
+        HeadersFirstDownload download = start(p1, p2);
+        assertEquals(1, p1.requests.size());
+        assertEquals(1, p2.requests.size());
+        List<Sha256Hash> first = p1.requests.get(0), second = p2.requests.get(0);
+        assertNotEquals(first, second);
+
+        // Nothing happens before the timeout.
+        Utils.rollMockClock((int) (TIMEOUT_MILLIS / 1000) - 1);
+        download.checkStalls(TIMEOUT_MILLIS);
+        assertEquals(1, p1.requests.size());
+        assertEquals(1, p2.requests.size());
+
+        // Then both windows stalled, and each goes to the peer that didn't have it yet.
+        Utils.rollMockClock(2);
+        download.checkStalls(TIMEOUT_MILLIS);
+        assertEquals(2, p1.requests.size());
+        assertEquals(2, p2.requests.size());
+        assertEquals(second, p1.requests.get(1));
+        assertEquals(first, p2.requests.get(1));
+        assertTrue(download.isRunning());
+    }
+
+    @Test
+    public void requestsWindowsOfDisconnectedPeerElsewhere() throws Exception {
+        FakePeer p1 = new FakePeer(1), p2 = new FakePeer(2);
+        headers = headers.subList(0, 2 * HeadersFirstDownload.WINDOW_SIZE);
+        HeadersFirstDownload download = start(p1, p2);
+        assertEquals(1, p1.requests.size());
+        assertEquals(1, p2.requests.size());
+        List<Sha256Hash> lost = p2.requests.get(0);
+
+        download.removePeer(p2);
+        assertEquals(2, p1.requests.size());
+        assertEquals(lost, p1.requests.get(1));
+        assertEquals(1, p2.requests.size());
+        assertEquals(p1, download.getBlockingPeer());
+        assertTrue(download.isRunning());
+
+        // Losing the download peer ends the download, the next download peer starts a new one.
+        download.removePeer(p1);
+        assertFalse(download.isRunning());
+        assertEquals(0, p1.chainDownloadsStarted);
+    }
+
+    // Starts a download from the first peer and all given peers, and answers the headers request.
+    private HeadersFirstDownload start(FakePeer downloadPeer, FakePeer... otherPeers) {
+        HeadersFirstDownload download = new HeadersFirstDownload(chain, downloadPeer, 0);
+        download.start(Arrays.<Peer>asList(otherPeers));
+        assertNotNull(downloadPeer.headersFuture);
+        downloadPeer.headersFuture.set(headers);
+        return download;
+    }
+
+    // Checks that the given request is for one whole window of consecutive blocks.
+    private void assertWindow(List<Sha256Hash> request) {
+        assertEquals(HeadersFirstDownload.WINDOW_SIZE, request.size());
+        int start = headers.indexOf(findHeader(request.get(0)));
+        assertEquals(0, start % HeadersFirstDownload.WINDOW_SIZE);
+        assertEquals(new ArrayList<>(hashes(start, start + HeadersFirstDownload.WINDOW_SIZE)), request);
+    }
+
+    private Block findHeader(Sha256Hash hash) {
+        for (Block header : headers)
+            if (header.getHash().equals(hash))
+                return header;
+        throw new AssertionError("Unknown block " + hash);
+    }
+
+    private Set<Sha256Hash> hashes(int start, int end) {
+        Set<Sha256Hash> hashes = new LinkedHashSet<>();
+        for (Block header : headers.subList(start, end))
+            hashes.add(header.getHash());
+        return hashes;
+    }
+
+    // A peer that records what is requested from it, without answering.
+    private class FakePeer extends Peer {
+        final List<List<Sha256Hash>> requests = new ArrayList<>();
+        SettableFuture<List<Block>> headersFuture;
+        int chainDownloadsStarted;
+
+        FakePeer(int id) throws Exception {
+            super(UNITTEST, new VersionMessage(UNITTEST, 0),
+                    new PeerAddress(UNITTEST, InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) id })), chain);
+        }
+
+        @Override
+        public long getBestHeight() {
+            return headers.size();
+        }
+
+        @Override
+        public int getPeerBlockHeightDifference() {
+            return headers.size();
+        }
+
+        @Override
+        public ListenableFuture<List<Block>> getBlockHeaders(BlockLocator locator, Sha256Hash stopHash) {
+            headersFuture = SettableFuture.create();
+            return headersFuture;
+        }
+
+        @Override
+        public List<ListenableFuture<Block>> getBlocks(List<Sha256Hash> blockHashes) {
+            requests.add(new ArrayList<>(blockHashes));
+            List<ListenableFuture<Block>> futures = new ArrayList<>(blockHashes.size());
+            for (int i = 0; i < blockHashes.size(); i++)
+                futures.add(SettableFuture.<Block>create());
+            return futures;
+        }
+
+        @Override
+        public void startBlockChainDownload() {
+            chainDownloadsStarted++;
+        }
+
+        @Override
+        void invokeOnChainDownloadStarted(int blocksLeft) {
+        }
+    }
+}
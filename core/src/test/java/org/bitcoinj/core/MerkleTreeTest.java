@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MerkleTreeTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    @Test
+    public void rootMatchesPairwiseHashing() {
+        for (int count = 1; count <= 33; count++)
+            assertRoot(count, 1);
+    }
+
+    @Test
+    public void rootOnSeveralThreads() {
+        // Wide enough for the first levels to be spread over threads, and odd so that the last leaf gets paired with
+        // itself.
+        assertRoot(5001, 4);
+    }
+
+    @Test
+    public void partialMerkleTreeFromTree() throws Exception {
+        List<Sha256Hash> leaves = leaves(4099);
+        MerkleTree tree = MerkleTree.build(leaves, 4);
+        assertEquals(pairwiseRoot(leaves), tree.getRoot());
+        assertEquals(leaves.get(7), tree.getHash(0, 7));
+
+        // Several branches can be cut from the same tree.
+        int[][] matches = { {}, {0}, {4098}, {1, 2, 3000}, {4097, 4098} };
+        for (int[] match : matches) {
+            byte[] bits = new byte[(leaves.size() + 7) / 8];
+            List<Sha256Hash> expected = new ArrayList<>();
+            for (int i : match) {
+                Utils.setBitLE(bits, i);
+                expected.add(leaves.get(i));
+            }
+            PartialMerkleTree pmt = PartialMerkleTree.buildFromTree(UNITTEST, bits, tree);
+            assertEquals(PartialMerkleTree.buildFromLeaves(UNITTEST, bits, leaves), pmt);
+            List<Sha256Hash> matched = new ArrayList<>();
+            assertEquals(tree.getRoot(), pmt.getTxnHashAndMerkleRoot(matched));
+            assertEquals(expected, matched);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noLeaves() {
+        MerkleTree.calculateRoot(new byte[0], 0);
+    }
+
+    private void assertRoot(int count, int parallelism) {
+        List<Sha256Hash> leaves = leaves(count);
+        byte[] bytes = new byte[count * Sha256Hash.LENGTH];
+        for (int i = 0; i < count; i++)
+            MerkleTree.putReversed(leaves.get(i), bytes, i * Sha256Hash.LENGTH);
+        Sha256Hash expected = pairwiseRoot(leaves);
+        assertEquals(expected, MerkleTree.calculateRoot(bytes, count, parallelism));
+        assertEquals(expected, MerkleTree.build(leaves, parallelism).getRoot());
+    }
+
+    private static List<Sha256Hash> leaves(int count) {
+        List<Sha256Hash> leaves = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            leaves.add(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }));
+        return leaves;
+    }
+
+    // The straightforward way, one level at a time.
+    private static Sha256Hash pairwiseRoot(List<Sha256Hash> leaves) {
+        List<Sha256Hash> level = leaves;
+        while (level.size() > 1) {
+            List<Sha256Hash> next = new ArrayList<>();
+            for (int left = 0; left < level.size(); left += 2) {
+                int right = Math.min(left + 1, level.size() - 1);
+                next.add(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(level.get(left).getReversedBytes(),
+                        level.get(right).getReversedBytes())));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+}
@@ -18,8 +18,13 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
 import org.junit.Test;
 
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
 public class MessageTest {
     private static final NetworkParameters UNITTEST = UnitTestParams.get();
 
@@ -60,4 +65,24 @@ public class MessageTest {
             readByteArray();
         }
     }
+
+    @Test
+    public void cachesChecksumOfRetainedPayloadOnly() throws Exception {
+        byte[] bytes = FakeTxBuilder.createFakeTx(UNITTEST).bitcoinSerialize();
+        Transaction tx = UNITTEST.getSerializer(true).makeTransaction(bytes);
+        byte[] payload = tx.unsafeBitcoinSerialize();
+        byte[] checksum = tx.getChecksum(payload);
+        assertArrayEquals(Arrays.copyOf(Sha256Hash.hashTwice(payload), 4), checksum);
+        assertSame(checksum, tx.getChecksum(payload));
+        // Any other array is hashed, but not remembered.
+        byte[] copy = payload.clone();
+        assertArrayEquals(checksum, tx.getChecksum(copy));
+        assertNotSame(checksum, tx.getChecksum(copy));
+        assertSame(checksum, tx.getChecksum(payload));
+
+        // Modifying the message drops the payload, and the checksum with it.
+        tx.addOutput(Coin.COIN, new ECKey());
+        payload = tx.unsafeBitcoinSerialize();
+        assertArrayEquals(Arrays.copyOf(Sha256Hash.hashTwice(payload), 4), tx.getChecksum(payload));
+    }
 }
@@ -346,6 +346,44 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertNull(message == null ? "" : message.toString(), message);
     }
 
+    @Test
+    public void headersFirstDownload() throws Exception {
+        peerGroup.setHeadersFirstDownload(true);
+        peerGroup.start();
+        remoteVersionMessage.bestHeight = 3;
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+
+        Block b1 = FakeTxBuilder.createFakeBlock(blockStore, BLOCK_HEIGHT_GENESIS).block;
+        Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1);
+        Block b3 = FakeTxBuilder.makeSolvedTestBlock(b2);
+
+        // The download starts with the headers.
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {});
+        peerGroup.startBlockChainDownloadFromPeer(peerOf(p1));
+        GetHeadersMessage getheaders = (GetHeadersMessage) outbound(p1);
+        assertEquals(Sha256Hash.ZERO_HASH, getheaders.getStopHash());
+        inbound(p1, new HeadersMessage(UNITTEST, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+
+        // Then the blocks are requested, which fit in a single window.
+        GetDataMessage getdata = (GetDataMessage) outbound(p1);
+        assertEquals(3, getdata.getItems().size());
+        assertNull(outbound(p2));
+
+        // They arrive out of order, but are added to the chain in order.
+        inbound(p1, b3);
+        inbound(p1, b2);
+        pingAndWait(p1);
+        assertEquals(0, blockChain.getBestChainHeight());
+        inbound(p1, b1);
+        pingAndWait(p1);
+        assertEquals(3, blockChain.getBestChainHeight());
+
+        // Once done, the regular chain download takes over to follow the chain.
+        GetBlocksMessage getblocks = (GetBlocksMessage) outbound(p1);
+        assertEquals(b3.getHash(), getblocks.getLocator().getHashes().get(0));
+    }
+
     @Test
     public void transactionConfidence() throws Exception {
         // Checks that we correctly count how many peers broadcast a transaction, so we can establish some measure of
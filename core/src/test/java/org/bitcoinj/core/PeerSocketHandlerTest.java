@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.net.StreamWriteTarget;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PeerSocketHandlerTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    private MessageSerializer serializer;
+    private byte[] blockBytes;
+    private Block block;
+    private TestHandler handler;
+    private List<Boolean> pauses;
+    private ArrayDeque<Runnable> tasks;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(MAINNET);
+        serializer = MAINNET.getDefaultSerializer();
+        blockBytes = ByteStreams.toByteArray(getClass().getResourceAsStream("block227835.dat"));
+        block = serializer.makeBlock(blockBytes);
+        handler = new TestHandler();
+        pauses = new ArrayList<>();
+        handler.setWriteTarget(new StreamWriteTarget() {
+            @Override
+            public ListenableFuture<?> writeBytes(byte[] message) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public ListenableFuture<Void> writeBuffers(ByteBuffer... buffers) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void closeConnection() {
+                fail();
+            }
+
+            @Override
+            public void setReadPaused(boolean paused) {
+                pauses.add(paused);
+            }
+        });
+        tasks = new ArrayDeque<>();
+        handler.setMessageExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+    }
+
+    @Test
+    public void processesMessagesOnExecutor() throws Exception {
+        handler.setMaxPendingMessageBytes(blockBytes.length);
+
+        feed(handler, pingBlockPing());
+        // Nothing is processed on the network thread, and reading paused once the block was waiting.
+        assertTrue(handler.messages.isEmpty());
+        assertEquals(1, tasks.size());
+        assertEquals(1, pauses.size());
+        assertTrue(pauses.get(0));
+
+        runTasks();
+        assertPingBlockPing();
+        assertEquals(2, pauses.size());
+        assertFalse(pauses.get(1));
+    }
+
+    @Test
+    public void doesNotStreamBlocksOnNetworkThreadWhileExecutorSet() throws Exception {
+        StreamingBlockParser.Listener listener = new StreamingBlockParser.Listener() {
+            @Override
+            public void onBlockHeader(Block header, long transactionCount) {
+                fail();
+            }
+
+            @Override
+            public void onTransaction(Block header, Transaction tx, int index) {
+                fail();
+            }
+
+            @Override
+            public void onBlockComplete(Block header) {
+                fail();
+            }
+        };
+        handler.setStreamingBlockListener(listener);
+
+        feed(handler, pingBlockPing());
+        assertTrue(handler.messages.isEmpty());
+
+        // The block is queued whole, between the pings.
+        runTasks();
+        assertPingBlockPing();
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty())
+            tasks.poll().run();
+    }
+
+    private void assertPingBlockPing() {
+        assertEquals(3, handler.messages.size());
+        assertEquals(1, ((Ping) handler.messages.get(0)).getNonce());
+        assertEquals(block, handler.messages.get(1));
+        assertEquals(2, ((Ping) handler.messages.get(2)).getNonce());
+    }
+
+    private byte[] pingBlockPing() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(new Ping(1), out);
+        serializer.serialize("block", blockBytes, out);
+        serializer.serialize(new Ping(2), out);
+        return out.toByteArray();
+    }
+
+    private static void feed(PeerSocketHandler handler, byte[] stream) {
+        // Feed the stream through a small buffer, the way ConnectionHandler does.
+        ByteBuffer buff = ByteBuffer.allocate(1024);
+        int offset = 0;
+        while (offset < stream.length || buff.position() > 0) {
+            int length = Math.min(buff.remaining(), stream.length - offset);
+            buff.put(stream, offset, length);
+            offset += length;
+            buff.flip();
+            int consumed = handler.receiveBytes(buff);
+            assertNotEquals(-1, consumed);
+            assertEquals(consumed, buff.position());
+            buff.compact();
+            if (length == 0 && consumed == 0)
+                break;
+        }
+    }
+
+    private static class TestHandler extends PeerSocketHandler {
+        final List<Message> messages = new ArrayList<>();
+
+        TestHandler() {
+            super(MAINNET, new InetSocketAddress("127.0.0.1", 2000));
+        }
+
+        @Override
+        protected void processMessage(Message m) {
+            messages.add(m);
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+    }
+}
@@ -431,6 +431,90 @@ public class PeerTest extends TestWithNetworkConnections {
         assertEquals(b, b2);
     }
 
+    @Test
+    public void streamBlocks() throws Exception {
+        connect();
+        // Records the blocks that reached the peer as whole messages.
+        final List<Sha256Hash> wholeBlocks = new ArrayList<>();
+        peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, new PreMessageReceivedEventListener() {
+            @Override
+            public Message onPreMessageReceived(Peer peer, Message m) {
+                if (m instanceof Block)
+                    wholeBlocks.add(m.getHash());
+                return m;
+            }
+        });
+
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        Block b2 = makeLargeBlock(b1);
+        Block b3 = makeLargeBlock(b2);
+        Block b4 = makeSolvedTestBlock(b3);
+
+        // Stream two blocks, but ask for the large one in between as a whole.
+        RecordingBlockListener listener2 = new RecordingBlockListener();
+        RecordingBlockListener listener4 = new RecordingBlockListener();
+        Future<Block> future2 = peer.getBlock(b2.getHash(), listener2);
+        Future<Block> future3 = peer.getBlock(b3.getHash());
+        Future<Block> future4 = peer.getBlock(b4.getHash(), listener4);
+        for (int i = 0; i < 3; i++)
+            assertTrue(outbound(writeTarget) instanceof GetDataMessage);
+        inbound(writeTarget, b3);
+        inbound(writeTarget, b2);
+        inbound(writeTarget, b4);
+
+        // The large block asked for as a whole arrives whole, although a block was to be streamed.
+        assertEquals(b3, future3.get());
+        // The large block is streamed, so it never reaches the peer as a whole.
+        assertEquals(b2.getHash(), future2.get().getHash());
+        listener2.assertReceived(b2);
+        // The small one is received as usual and handed to the listener from there.
+        assertEquals(b4.getHash(), future4.get().getHash());
+        listener4.assertReceived(b4);
+        assertEquals(Arrays.asList(b3.getHash(), b4.getHash()), wholeBlocks);
+    }
+
+    private Block makeLargeBlock(Block prev) throws Exception {
+        Block block = makeSolvedTestBlock(prev);
+        Transaction t = new Transaction(UNITTEST);
+        t.addInput(prev.getTransactions().get(0).getOutput(0));
+        // Larger than the read buffer of the connection.
+        t.addOutput(new TransactionOutput(UNITTEST, t, Coin.ZERO, new byte[300000]));
+        block.addTransaction(t);
+        block.solve();
+        return block;
+    }
+
+    private static class RecordingBlockListener implements StreamingBlockParser.Listener {
+        Block header;
+        final List<Sha256Hash> txIds = new ArrayList<>();
+        boolean complete;
+
+        @Override
+        public void onBlockHeader(Block header, long transactionCount) {
+            this.header = header;
+        }
+
+        @Override
+        public void onTransaction(Block header, Transaction tx, int index) {
+            assertEquals(txIds.size(), index);
+            txIds.add(tx.getTxId());
+        }
+
+        @Override
+        public void onBlockComplete(Block header) {
+            complete = true;
+        }
+
+        void assertReceived(Block block) {
+            assertEquals(block.getHash(), header.getHash());
+            List<Sha256Hash> expected = new ArrayList<>();
+            for (Transaction tx : block.getTransactions())
+                expected.add(tx.getTxId());
+            assertEquals(expected, txIds);
+            assertTrue(complete);
+        }
+    }
+
     @Test
     public void fastCatchup() throws Exception {
         connect();
@@ -0,0 +1,247 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.io.ByteStreams;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StreamingBlockParserTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    private MessageSerializer serializer;
+    private byte[] blockBytes;
+    private Block block;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(MAINNET);
+        serializer = MAINNET.getDefaultSerializer();
+        blockBytes = ByteStreams.toByteArray(getClass().getResourceAsStream("block227835.dat"));
+        block = serializer.makeBlock(blockBytes);
+    }
+
+    private static class RecordingListener implements StreamingBlockParser.Listener {
+        Block header;
+        long transactionCount;
+        final List<Transaction> transactions = new ArrayList<>();
+        boolean complete;
+
+        @Override
+        public void onBlockHeader(Block header, long transactionCount) {
+            this.header = header;
+            this.transactionCount = transactionCount;
+        }
+
+        @Override
+        public void onTransaction(Block header, Transaction tx, int index) {
+            assertEquals(transactions.size(), index);
+            transactions.add(tx);
+        }
+
+        @Override
+        public void onBlockComplete(Block header) {
+            complete = true;
+        }
+    }
+
+    private byte[] packet(byte[] payload) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize("block", payload, out);
+        return out.toByteArray();
+    }
+
+    private StreamingBlockParser parser(byte[] packet, StreamingBlockParser.Listener listener) throws Exception {
+        ByteBuffer in = ByteBuffer.wrap(packet);
+        serializer.seekPastMagicBytes(in);
+        return serializer.makeStreamingBlockParser(serializer.deserializeHeader(in), listener);
+    }
+
+    private void feed(StreamingBlockParser parser, byte[] packet, int chunkSize) throws Exception {
+        int offset = 4 + BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH;
+        while (offset < packet.length) {
+            ByteBuffer chunk = ByteBuffer.wrap(packet, offset, Math.min(chunkSize, packet.length - offset));
+            offset += parser.feed(chunk);
+        }
+    }
+
+    private void assertMatchesBlock(RecordingListener listener) {
+        assertTrue(listener.complete);
+        assertEquals(block.getHash(), listener.header.getHash());
+        assertEquals(block.getTransactions().size(), listener.transactionCount);
+        assertEquals(block.getTransactions().size(), listener.transactions.size());
+        for (int i = 0; i < listener.transactions.size(); i++)
+            assertEquals(block.getTransactions().get(i).getTxId(), listener.transactions.get(i).getTxId());
+    }
+
+    @Test
+    public void streamInChunks() throws Exception {
+        byte[] packet = packet(blockBytes);
+        for (int chunkSize : new int[] { 1, 7, 100, 4096, packet.length }) {
+            RecordingListener listener = new RecordingListener();
+            StreamingBlockParser parser = parser(packet, listener);
+            feed(parser, packet, chunkSize);
+            assertTrue(parser.isComplete());
+            assertEquals(0, parser.getBytesRemaining());
+            assertMatchesBlock(listener);
+        }
+    }
+
+    @Test
+    public void badMerkleRoot() throws Exception {
+        byte[] payload = blockBytes.clone();
+        payload[36] ^= 1; // First byte of the merkle root
+        byte[] packet = packet(payload);
+        RecordingListener listener = new RecordingListener();
+        try {
+            feed(parser(packet, listener), packet, 1000);
+            fail();
+        } catch (VerificationException e) {
+            assertFalse(e instanceof ProtocolException);
+        }
+        assertEquals(block.getTransactions().size(), listener.transactions.size());
+        assertFalse(listener.complete);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void badChecksum() throws Exception {
+        byte[] packet = packet(blockBytes);
+        packet[packet.length - 1] ^= 1; // Last byte of the lock time of the last transaction
+        feed(parser(packet, new RecordingListener()), packet, 1000);
+    }
+
+    @Test
+    public void collectsBlockWithoutListener() throws Exception {
+        byte[] packet = packet(blockBytes);
+        ByteBuffer in = ByteBuffer.wrap(packet);
+        serializer.seekPastMagicBytes(in);
+        StreamingBlockParser parser = new StreamingBlockParser(serializer, serializer.deserializeHeader(in),
+                new StreamingBlockParser.ListenerSelector() {
+                    @Override
+                    public StreamingBlockParser.Listener select(Block header) {
+                        assertEquals(block.getHash(), header.getHash());
+                        return null;
+                    }
+                });
+        feed(parser, packet, 1000);
+        assertTrue(parser.isComplete());
+        assertArrayEquals(blockBytes, parser.getCollectedPayload());
+    }
+
+    @Test
+    public void merkleRootOfAnyNumberOfTransactions() throws Exception {
+        Transaction coinbase = block.getTransactions().get(0);
+        for (int count = 1; count <= 17; count++) {
+            Block expected = new Block(MAINNET, Block.BLOCK_VERSION_GENESIS);
+            StreamingBlockParser.MerkleRootAccumulator accumulator = new StreamingBlockParser.MerkleRootAccumulator();
+            for (int i = 0; i < count; i++) {
+                Transaction tx = new Transaction(MAINNET, coinbase.bitcoinSerialize());
+                tx.getInput(0).setSequenceNumber(i);
+                expected.addTransaction(tx, false);
+                accumulator.add(Sha256Hash.hashTwice(tx.bitcoinSerialize()));
+            }
+            assertEquals(expected.getMerkleRoot(), accumulator.getRoot());
+        }
+    }
+
+    @Test
+    public void peerSocketHandlerStreamsLargeBlocks() throws Exception {
+        final List<Message> messages = new ArrayList<>();
+        PeerSocketHandler handler = new PeerSocketHandler(MAINNET, new InetSocketAddress("127.0.0.1", 2000)) {
+            @Override
+            protected void processMessage(Message m) {
+                messages.add(m);
+            }
+
+            @Override
+            public void connectionClosed() {
+            }
+
+            @Override
+            public void connectionOpened() {
+            }
+        };
+        RecordingListener listener = new RecordingListener();
+        handler.setStreamingBlockListener(listener);
+
+        feed(handler, pingBlockPing());
+
+        assertMatchesBlock(listener);
+        assertEquals(2, messages.size());
+        assertEquals(1, ((Ping) messages.get(0)).getNonce());
+        assertEquals(2, ((Ping) messages.get(1)).getNonce());
+    }
+
+    @Test
+    public void peerSocketHandlerCollectsLargeMessages() throws Exception {
+        final List<Message> messages = new ArrayList<>();
+        PeerSocketHandler handler = new PeerSocketHandler(MAINNET, new InetSocketAddress("127.0.0.1", 2000)) {
+            @Override
+            protected void processMessage(Message m) {
+                messages.add(m);
+            }
+
+            @Override
+            public void connectionClosed() {
+            }
+
+            @Override
+            public void connectionOpened() {
+            }
+        };
+
+        feed(handler, pingBlockPing());
+
+        assertEquals(3, messages.size());
+        assertEquals(1, ((Ping) messages.get(0)).getNonce());
+        assertEquals(block, messages.get(1));
+        assertEquals(2, ((Ping) messages.get(2)).getNonce());
+    }
+
+    private byte[] pingBlockPing() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(new Ping(1), out);
+        out.write(packet(blockBytes));
+        serializer.serialize(new Ping(2), out);
+        return out.toByteArray();
+    }
+
+    private static void feed(PeerSocketHandler handler, byte[] stream) {
+        // Feed the stream through a small buffer, the way ConnectionHandler does.
+        ByteBuffer buff = ByteBuffer.allocate(1024);
+        int offset = 0;
+        while (offset < stream.length || buff.position() > 0) {
+            int length = Math.min(buff.remaining(), stream.length - offset);
+            buff.put(stream, offset, length);
+            offset += length;
+            buff.flip();
+            int consumed = handler.receiveBytes(buff);
+            assertNotEquals(-1, consumed);
+            assertEquals(consumed, buff.position());
+            buff.compact();
+            if (length == 0 && consumed == 0)
+                break;
+        }
+    }
+}
@@ -336,6 +336,84 @@ public class TransactionTest {
         }
     }
 
+    /**
+     * Ensure that the precomputed parts of hashForSignatureWitness() are dropped when the transaction is modified.
+     */
+    @Test
+    public void testHashForSignatureWitnessAfterModification() {
+        final Transaction tx = new Transaction(UNITTEST);
+        tx.addInput(Sha256Hash.of(new byte[] { 1 }), 0, new Script(new byte[0]));
+        tx.addInput(Sha256Hash.of(new byte[] { 2 }), 1, new Script(new byte[0]));
+        tx.addOutput(Coin.COIN, ADDRESS);
+        Script scriptCode = ScriptBuilder.createOutputScript(ADDRESS);
+        Sha256Hash before = tx.hashForSignatureWitness(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false);
+        // Signing an input changes its script only, which must not affect the hash of other inputs.
+        tx.getInput(1).setScriptSig(new ScriptBuilder().data(new byte[71]).build());
+        assertEquals(before, tx.hashForSignatureWitness(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false));
+
+        List<Runnable> modifications = new ArrayList<>();
+        modifications.add(new Runnable() {
+            public void run() { tx.getInput(1).setSequenceNumber(0); }
+        });
+        modifications.add(new Runnable() {
+            public void run() { tx.getOutput(0).setValue(Coin.CENT); }
+        });
+        modifications.add(new Runnable() {
+            public void run() { tx.getInput(1).getOutpoint().setIndex(5); }
+        });
+        modifications.add(new Runnable() {
+            public void run() { tx.addOutput(Coin.COIN, ADDRESS); }
+        });
+        modifications.add(new Runnable() {
+            public void run() { tx.addInput(Sha256Hash.of(new byte[] { 3 }), 2, new Script(new byte[0])); }
+        });
+        for (Runnable modification : modifications) {
+            Sha256Hash cached = tx.hashForSignatureWitness(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false);
+            modification.run();
+            Sha256Hash hash = tx.hashForSignatureWitness(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false);
+            assertNotEquals(cached, hash);
+            Transaction copy = UNITTEST.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+            assertEquals(copy.hashForSignatureWitness(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false), hash);
+        }
+    }
+
+    /**
+     * Ensure that verifying the inputs of a transaction computes the shared parts of the signature hash only once.
+     */
+    @Test
+    public void testCorrectlySpendsReusesPrecomputedSigHash() {
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(UNITTEST, key));
+        Transaction tx = new Transaction(UNITTEST);
+        tx.addOutput(Coin.COIN, ADDRESS);
+        for (int i = 0; i < 10; i++)
+            tx.addInput(Sha256Hash.of(new byte[] { (byte) i }), i, new Script(new byte[0]));
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            Sha256Hash hash = tx.hashForSignatureWitness(i, scriptPubKey, Coin.COIN, Transaction.SigHash.ALL, false);
+            TransactionSignature signature = new TransactionSignature(key.sign(hash), Transaction.SigHash.ALL, false,
+                    true);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signature, key));
+        }
+        tx.invalidateSigHashPrecomputedData();
+        assertFalse(tx.isSigHashDataPrecomputed());
+
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, Coin.COIN, Script.ALL_VERIFY_FLAGS);
+        // The transaction itself was verified, not a copy of it, so the other inputs can use what was computed.
+        assertTrue(tx.isSigHashDataPrecomputed());
+        for (int i = 1; i < tx.getInputs().size(); i++)
+            tx.getInput(i).getScriptSig().correctlySpends(tx, i, scriptPubKey, Coin.COIN, Script.ALL_VERIFY_FLAGS);
+
+        // A changed outpoint must show up in the signature hash, so the signature no longer verifies.
+        tx.getInput(3).getOutpoint().setIndex(42);
+        assertFalse(tx.isSigHashDataPrecomputed());
+        try {
+            tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, Coin.COIN, Script.ALL_VERIFY_FLAGS);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
     @Test
     public void parseTransactionWithHugeDeclaredInputsSize() throws Exception {
         Transaction tx = new HugeDeclaredSizeTransaction(UNITTEST, true, false, false);
@@ -17,17 +17,23 @@
 
 package org.bitcoinj.core;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptOpCodes;
 import org.junit.Test;
 
 public class UTXOTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
 
     @Test
     public void testJavaSerialization() throws Exception {
@@ -43,4 +49,31 @@ public class UTXOTest {
         assertEquals(utxo.isCoinbase(), utxoCopy.isCoinbase());
         assertEquals(utxo.getScript(), utxoCopy.getScript());
     }
+
+    @Test
+    public void testAddressDerivedFromScript() throws Exception {
+        ECKey key = new ECKey();
+        Script[] scripts = {
+                ScriptBuilder.createP2PKOutputScript(key),
+                ScriptBuilder.createP2PKHOutputScript(key),
+                ScriptBuilder.createP2SHOutputScript(new byte[20])
+        };
+        for (Script script : scripts) {
+            UTXO utxo = new UTXO(Sha256Hash.of(new byte[]{1,2,3}), 1, Coin.COIN, 10, false, script, MAINNET);
+            assertEquals(script.getScriptType(), utxo.getScriptType());
+            assertEquals(script.getToAddress(MAINNET, true).toString(), utxo.getAddress());
+            assertArrayEquals(script.getToAddress(MAINNET, true).getHash(), utxo.getAddressHash());
+
+            // Without network parameters there is no address, but the hash is still known.
+            UTXO withoutParams = new UTXO(utxo.getHash(), 1, Coin.COIN, 10, false, script);
+            assertEquals("", withoutParams.getAddress());
+            assertArrayEquals(utxo.getAddressHash(), withoutParams.getAddressHash());
+        }
+
+        Script opReturn = new ScriptBuilder().op(ScriptOpCodes.OP_RETURN).data(new byte[]{1}).build();
+        UTXO utxo = new UTXO(Sha256Hash.of(new byte[]{1,2,3}), 1, Coin.COIN, 10, false, opReturn, MAINNET);
+        assertNull(utxo.getAddressHash());
+        assertNull(utxo.getScriptType());
+        assertEquals("", utxo.getAddress());
+    }
 }
@@ -16,12 +16,14 @@
 
 package org.bitcoinj.crypto;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.math.BigInteger;
+import java.util.List;
 
 import org.bitcoinj.core.Utils;
 import org.bitcoinj.crypto.HDKeyDerivation.PublicDeriveMode;
@@ -101,6 +103,30 @@ public class HDKeyDerivationTest {
         assertFalse(fromPublicWithInversion.isEncrypted());
     }
 
+    @Test
+    public void testDeriveChildKeysFromPublic() {
+        DeterministicKey parent = new DeterministicKey(ImmutableList.<ChildNumber> of(), new byte[32], BigInteger.TEN,
+                null);
+        for (int parallelism : new int[] { 1, 4 }) {
+            List<DeterministicKey> keys = HDKeyDerivation.deriveChildKeysFromPublic(parent, 5, 600, parallelism);
+            assertEquals(600, keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                DeterministicKey expected = HDKeyDerivation.deriveChildKey(parent, new ChildNumber(5 + i, false));
+                DeterministicKey key = keys.get(i);
+                assertEquals(expected.getPath(), key.getPath());
+                assertArrayEquals(expected.getChainCode(), key.getChainCode());
+                assertEquals(expected.getPublicKeyAsHex(), key.getPublicKeyAsHex());
+                assertEquals(parent, key.getParent());
+            }
+        }
+
+        DeterministicKey fromPublic = HDKeyDerivation.deriveChildKeysFromPublic(parent.dropPrivateBytes(),
+                CHILD_NUMBER.num(), 1).get(0);
+        assertEquals(EXPECTED_CHILD_CHAIN_CODE, Utils.HEX.encode(fromPublic.getChainCode()));
+        assertEquals(EXPECTED_CHILD_PUBLIC_KEY, fromPublic.getPublicKeyAsHex());
+        assertTrue(fromPublic.isPubKeyOnly());
+    }
+
     @Test
     public void testDeriveFromEncryptedParent() {
         DeterministicKey parent = new DeterministicKey(ImmutableList.<ChildNumber> of(), new byte[32], BigInteger.TEN,
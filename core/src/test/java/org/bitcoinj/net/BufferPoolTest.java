@@ -0,0 +1,75 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    @Test
+    public void buffersAreCutFromSlabs() {
+        BufferPool pool = new BufferPool(16, 4, 8);
+        ByteBuffer[] buffers = new ByteBuffer[5];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire();
+            assertTrue(buffers[i].isDirect());
+            assertEquals(16, buffers[i].capacity());
+            assertEquals(0, buffers[i].position());
+            assertEquals(16, buffers[i].limit());
+            while (buffers[i].hasRemaining())
+                buffers[i].put((byte) i);
+        }
+        // The fifth buffer needed a second slab, which has three buffers left.
+        assertEquals(3, pool.getFreeBufferCount());
+        // None of the buffers overlap.
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i].flip();
+            while (buffers[i].hasRemaining())
+                assertEquals(i, buffers[i].get());
+        }
+    }
+
+    @Test
+    public void releasedBuffersAreReused() {
+        BufferPool pool = new BufferPool(16, 1, 8);
+        ByteBuffer buffer = pool.acquire();
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        assertEquals(1, pool.getFreeBufferCount());
+        ByteBuffer again = pool.acquire();
+        assertSame(buffer, again);
+        // It comes back cleared.
+        assertEquals(0, again.position());
+        assertEquals(16, again.limit());
+    }
+
+    @Test
+    public void keepsAtMostMaxFreeBuffers() {
+        BufferPool pool = new BufferPool(16, 1, 2);
+        ByteBuffer[] buffers = { pool.acquire(), pool.acquire(), pool.acquire() };
+        assertEquals(0, pool.getFreeBufferCount());
+        for (ByteBuffer buffer : buffers)
+            pool.release(buffer);
+        assertEquals(2, pool.getFreeBufferCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsForeignBuffers() {
+        new BufferPool(16, 1, 2).release(ByteBuffer.allocate(16));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.core.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class ConnectionHandlerTest {
+    private ServerSocketChannel server;
+    private SocketChannel remote;
+    private SocketChannel channel;
+    private Selector selector;
+    private SelectionKey key;
+    private TestConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+        remote = server.accept();
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        key = channel.register(selector, SelectionKey.OP_READ);
+        connection = new TestConnection();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        selector.close();
+        channel.close();
+        remote.close();
+        server.close();
+    }
+
+    @Test
+    public void releasesReadBufferOnClose() throws Exception {
+        ConnectionHandler handler = new ConnectionHandler(connection, key, new HashSet<ConnectionHandler>());
+        int free = BufferPool.DEFAULT.getFreeBufferCount();
+        handler.closeConnection();
+        assertTrue(connection.closed);
+        assertEquals(free + 1, BufferPool.DEFAULT.getFreeBufferCount());
+        // Closing again doesn't hand the buffer back twice.
+        handler.closeConnection();
+        assertEquals(free + 1, BufferPool.DEFAULT.getFreeBufferCount());
+    }
+
+    @Test
+    public void keepsReadBufferUntilReadEnds() throws Exception {
+        ConnectionHandler handler = new ConnectionHandler(connection, key, new HashSet<ConnectionHandler>());
+        key.attach(handler);
+        // The connection closes itself while it's handed the bytes read, which must not release the buffer they are in.
+        connection.closeOnReceive = true;
+        remote.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        assertEquals(1, selector.select(5000));
+        int free = BufferPool.DEFAULT.getFreeBufferCount();
+        ConnectionHandler.handleKey(key);
+        assertEquals(3, connection.bytesReceived);
+        assertTrue(connection.closed);
+        assertEquals(free, connection.freeBuffersAfterClose);
+        assertEquals(free + 1, BufferPool.DEFAULT.getFreeBufferCount());
+    }
+
+    @Test
+    public void writesEmptyPayloadMessageOnceSocketDrains() throws Exception {
+        ConnectionHandler handler = new ConnectionHandler(connection, key, new HashSet<ConnectionHandler>());
+        // Back the socket up, the remote end isn't reading.
+        long filled = 0;
+        int written;
+        while ((written = channel.write(ByteBuffer.allocate(64 * 1024))) > 0)
+            filled += written;
+
+        // A message without payload, like verack, is a header and an empty buffer.
+        ListenableFuture<Void> future = handler.writeBuffers(ByteBuffer.wrap(new byte[24]), ByteBuffer.allocate(0));
+        handler.tryWriteBytes();
+        assertFalse(future.isDone());
+
+        // Once the remote end drains the socket, the header goes out after everything written before it.
+        remote.configureBlocking(false);
+        ByteBuffer readBuff = ByteBuffer.allocate(64 * 1024);
+        long read = 0;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (read < filled + 24 && System.currentTimeMillis() < deadline) {
+            readBuff.clear();
+            read += remote.read(readBuff);
+            handler.tryWriteBytes();
+        }
+        assertTrue(future.isDone());
+        assertEquals(filled + 24, read);
+    }
+
+    private static class TestConnection implements StreamConnection {
+        private MessageWriteTarget writeTarget;
+        private boolean closeOnReceive;
+        private boolean closed;
+        private int bytesReceived;
+        private int freeBuffersAfterClose = -1;
+
+        @Override
+        public void connectionClosed() {
+            closed = true;
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            int length = buff.remaining();
+            buff.position(buff.limit());
+            bytesReceived += length;
+            if (closeOnReceive) {
+                writeTarget.closeConnection();
+                freeBuffersAfterClose = BufferPool.DEFAULT.getFreeBufferCount();
+            }
+            return length;
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return Message.MAX_SIZE;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScriptStackTest {
+    private static final byte[] A = {1}, B = {2}, C = {3}, D = {4};
+
+    @Test
+    public void pushPopPeekRemove() {
+        ScriptStack stack = new ScriptStack(1);
+        stack.push(A);
+        stack.push(B);
+        stack.push(C);
+        stack.push(D);
+        assertEquals(4, stack.size());
+        assertSame(D, stack.peek());
+        assertSame(A, stack.peek(3));
+        assertSame(B, stack.remove(2));
+        assertEquals(Arrays.asList(A, C, D), stack.toList());
+        assertSame(D, stack.pop());
+        assertSame(C, stack.pop());
+        assertSame(A, stack.pop());
+        assertTrue(stack.isEmpty());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void popEmpty() {
+        new ScriptStack().pop();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void peekTooDeep() {
+        ScriptStack stack = new ScriptStack(Arrays.asList(A, B));
+        stack.peek(2);
+    }
+
+    @Test
+    public void snapshotIsCopyOnWrite() {
+        ScriptStack stack = new ScriptStack(Arrays.asList(A, B, C));
+        ScriptStack snapshot = stack.snapshot();
+
+        // Changes to either are not seen by the other.
+        assertSame(C, stack.pop());
+        stack.push(D);
+        assertEquals(Arrays.asList(A, B, C), snapshot.toList());
+        snapshot.remove(2);
+        snapshot.push(D);
+        assertEquals(Arrays.asList(A, B, D), stack.toList());
+        assertEquals(Arrays.asList(B, C, D), snapshot.toList());
+
+        ScriptStack second = stack.snapshot();
+        stack.clear();
+        assertTrue(stack.isEmpty());
+        assertEquals(Arrays.asList(A, B, D), second.toList());
+    }
+
+    @Test
+    public void conditionStack() {
+        ConditionStack conditions = new ConditionStack();
+        assertTrue(conditions.isEmpty());
+        assertTrue(conditions.allTrue());
+        conditions.push(true);
+        conditions.push(false);
+        assertFalse(conditions.allTrue());
+        conditions.push(true);
+        conditions.toggleTop(); // Within a false branch, this doesn't matter.
+        assertFalse(conditions.allTrue());
+        conditions.pop();
+        conditions.toggleTop();
+        assertTrue(conditions.allTrue());
+        conditions.toggleTop();
+        assertFalse(conditions.allTrue());
+        conditions.pop();
+        assertTrue(conditions.allTrue());
+        conditions.pop();
+        assertTrue(conditions.isEmpty());
+    }
+}
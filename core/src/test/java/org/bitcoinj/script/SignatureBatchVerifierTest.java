@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class SignatureBatchVerifierTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private final ECKey key = new ECKey();
+    private final Script p2pkh = ScriptBuilder.createP2PKHOutputScript(key);
+    private final Script p2pk = ScriptBuilder.createP2PKOutputScript(key);
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void verifiesAndAttributesFailures() {
+        // Two valid P2PKH inputs, and a P2PK input signed with the wrong key.
+        Transaction good = spendingTransaction(2);
+        sign(good, 0, key, p2pkh, true);
+        sign(good, 1, key, p2pkh, true);
+        Transaction bad = spendingTransaction(1);
+        sign(bad, 0, new ECKey(), p2pk, false);
+
+        List<SignatureBatchVerifier.Request> requests = new ArrayList<>();
+        requests.add(SignatureBatchVerifier.Request.forInput(good, 0, p2pkh, Coin.ZERO));
+        requests.add(SignatureBatchVerifier.Request.forInput(good, 1, p2pkh, Coin.ZERO));
+        requests.add(SignatureBatchVerifier.Request.forInput(bad, 0, p2pk, Coin.ZERO));
+        // The same input again, which must not be verified twice.
+        requests.add(SignatureBatchVerifier.Request.forInput(good, 1, p2pkh, Coin.ZERO));
+        SignatureBatchVerifier.Result result = new SignatureBatchVerifier(1).verify(requests, executor);
+
+        assertEquals(3, result.size());
+        assertEquals(1, result.getFailures().size());
+        SignatureBatchVerifier.Request failure = result.getFailures().get(0);
+        assertSame(bad, failure.getTransaction());
+        assertEquals(0, failure.getInputIndex());
+        SignatureBatchVerifier.SignatureCheck check = failure.getCheck();
+        assertEquals(Boolean.FALSE, result.get(check.getHash(), check.getPubKey(), check.getSigBytes()));
+        check = requests.get(0).getCheck();
+        assertEquals(Boolean.TRUE, result.get(check.getHash(), check.getPubKey(), check.getSigBytes()));
+
+        // The scripts agree with the result.
+        good.getInput(0).getScriptSig().correctlySpends(good, 0, p2pkh, Coin.ZERO, Script.ALL_VERIFY_FLAGS, result);
+        good.getInput(1).getScriptSig().correctlySpends(good, 1, p2pkh, Coin.ZERO, Script.ALL_VERIFY_FLAGS, result);
+        try {
+            bad.getInput(0).getScriptSig().correctlySpends(bad, 0, p2pk, Coin.ZERO, Script.ALL_VERIFY_FLAGS, result);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void usesSignaturesVerifiedBefore() {
+        SignatureCache originalCache = Script.getSignatureCache();
+        SignatureCache cache = new SignatureCache();
+        Script.setSignatureCache(cache);
+        try {
+            // Verified when it was announced, then again in a block.
+            Transaction tx = spendingTransaction(1);
+            sign(tx, 0, key, p2pkh, true);
+            tx.getInput(0).getScriptSig().correctlySpends(tx, 0, p2pkh, Coin.ZERO, Script.ALL_VERIFY_FLAGS);
+            assertEquals(1, cache.size());
+
+            SignatureBatchVerifier.Request request = SignatureBatchVerifier.Request.forInput(tx, 0, p2pkh, Coin.ZERO);
+            SignatureBatchVerifier.Result result = new SignatureBatchVerifier().verify(
+                    Collections.singletonList(request), executor);
+            assertEquals(1, cache.getHits());
+            SignatureBatchVerifier.SignatureCheck check = request.getCheck();
+            assertEquals(Boolean.TRUE, result.get(check.getHash(), check.getPubKey(), check.getSigBytes()));
+        } finally {
+            Script.setSignatureCache(originalCache);
+        }
+    }
+
+    @Test
+    public void skipsNonStandardSpends() {
+        Transaction tx = spendingTransaction(1);
+        tx.getInput(0).setScriptSig(new ScriptBuilder().smallNum(1).build());
+        assertNull(SignatureBatchVerifier.Request.forInput(tx, 0, p2pkh, Coin.ZERO));
+        assertNull(SignatureBatchVerifier.Request.forInput(tx, 0, new ScriptBuilder().smallNum(1).build(), Coin.ZERO));
+
+        SignatureBatchVerifier.Result result = new SignatureBatchVerifier().verify(
+                Collections.<SignatureBatchVerifier.Request>emptyList(), executor);
+        assertEquals(0, result.size());
+        assertTrue(result.getFailures().isEmpty());
+    }
+
+    private static Transaction spendingTransaction(int inputs) {
+        Transaction tx = new Transaction(PARAMS);
+        for (int i = 0; i < inputs; i++)
+            tx.addInput(Sha256Hash.of(new byte[] { (byte) i }), i, new Script(new byte[0]));
+        tx.addOutput(Coin.COIN, new ECKey());
+        return tx;
+    }
+
+    private static void sign(Transaction tx, int index, ECKey key, Script scriptPubKey, boolean withPubKey) {
+        TransactionSignature sig = tx.calculateSignature(index, key, scriptPubKey, SigHash.ALL, false);
+        tx.getInput(index).setScriptSig(withPubKey ? ScriptBuilder.createInputScript(sig, key)
+                : ScriptBuilder.createInputScript(sig));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final byte[] PUB_KEY = {2, 1}, SIG = {3, 1};
+
+    private SignatureCache originalCache;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        originalCache = Script.getSignatureCache();
+    }
+
+    @After
+    public void tearDown() {
+        Script.setSignatureCache(originalCache);
+        ECKey.FAKE_SIGNATURES = false;
+    }
+
+    @Test
+    public void hitsAndMisses() {
+        SignatureCache cache = new SignatureCache();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        assertFalse(cache.contains(hash, PUB_KEY, SIG));
+        cache.add(hash, PUB_KEY, SIG);
+        assertTrue(cache.contains(hash, PUB_KEY, SIG));
+        // Any part of the triple makes a different signature, also when the boundary between them is moved.
+        assertFalse(cache.contains(Sha256Hash.of(new byte[] { 2 }), PUB_KEY, SIG));
+        assertFalse(cache.contains(hash, new byte[] { 2 }, new byte[] { 1, 3, 1 }));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.size());
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsOldest() {
+        // The smallest possible cache, which holds one signature per segment.
+        SignatureCache cache = new SignatureCache(SignatureCache.ENTRY_SIZE * 16);
+        for (int i = 0; i < 1000; i++)
+            cache.add(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }), PUB_KEY, SIG);
+        assertEquals(16, cache.size());
+        Sha256Hash last = Sha256Hash.of(new byte[] { (byte) 999, (byte) (999 >> 8) });
+        assertTrue(cache.contains(last, PUB_KEY, SIG));
+        assertFalse(cache.contains(Sha256Hash.of(new byte[] { 0, 0 }), PUB_KEY, SIG));
+    }
+
+    @Test
+    public void fakeSignaturesAreNotCached() {
+        SignatureCache cache = new SignatureCache();
+        ECKey.FAKE_SIGNATURES = true;
+        cache.add(Sha256Hash.of(new byte[] { 1 }), PUB_KEY, SIG);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void contextSetsUpTheCache() {
+        long size = SignatureCache.ENTRY_SIZE * 1024;
+        new Context(PARAMS, Context.DEFAULT_EVENT_HORIZON, Transaction.DEFAULT_TX_FEE, true, size);
+        SignatureCache cache = Script.getSignatureCache();
+        assertEquals(size, cache.getMaxSize());
+        // A context which wants the same size keeps the cache.
+        Context context = new Context(PARAMS, Context.DEFAULT_EVENT_HORIZON, Transaction.DEFAULT_TX_FEE, true, size);
+        assertEquals(size, context.getSignatureCacheSize());
+        assertSame(cache, Script.getSignatureCache());
+
+        new Context(PARAMS, Context.DEFAULT_EVENT_HORIZON, Transaction.DEFAULT_TX_FEE, true, 0);
+        assertNull(Script.getSignatureCache());
+        // Contexts that don't ask for a size leave the cache alone.
+        context = new Context(PARAMS);
+        assertNull(Script.getSignatureCache());
+        assertEquals(0, context.getSignatureCacheSize());
+        new Context(PARAMS, Context.DEFAULT_EVENT_HORIZON, Transaction.DEFAULT_TX_FEE, true, size);
+        cache = Script.getSignatureCache();
+        new Context(PARAMS, Context.DEFAULT_EVENT_HORIZON, Transaction.DEFAULT_TX_FEE, true);
+        assertSame(cache, Script.getSignatureCache());
+    }
+
+    @Test
+    public void scriptsShareTheCache() {
+        SignatureCache cache = new SignatureCache();
+        Script.setSignatureCache(cache);
+
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createP2PKHOutputScript(key);
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(Sha256Hash.of(new byte[] { 1 }), 0, new Script(new byte[0]));
+        tx.addOutput(Coin.COIN, new ECKey());
+        TransactionSignature sig = tx.calculateSignature(0, key, scriptPubKey, SigHash.ALL, false);
+        Script scriptSig = ScriptBuilder.createInputScript(sig, key);
+        tx.getInput(0).setScriptSig(scriptSig);
+
+        // The first time the signature is verified and added, the second time it is found.
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, Coin.ZERO, Script.ALL_VERIFY_FLAGS);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, Coin.ZERO, Script.ALL_VERIFY_FLAGS);
+        assertEquals(1, cache.getHits());
+
+        // Invalid signatures are never added.
+        TransactionSignature wrongSig = tx.calculateSignature(0, new ECKey(), scriptPubKey, SigHash.ALL, false);
+        Script wrongScriptSig = ScriptBuilder.createInputScript(wrongSig, key);
+        tx.getInput(0).setScriptSig(wrongScriptSig);
+        try {
+            wrongScriptSig.correctlySpends(tx, 0, scriptPubKey, Coin.ZERO, Script.ALL_VERIFY_FLAGS);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+        assertEquals(1, cache.size());
+    }
+}
@@ -22,8 +22,11 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertNull;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.bitcoinj.core.Address;
@@ -43,12 +46,15 @@ import com.google.common.base.Stopwatch;
 public class SPVBlockStoreTest {
     private static final NetworkParameters UNITTEST = UnitTestParams.get();
     private File blockStoreFile;
+    private File indexFile;
 
     @Before
     public void setup() throws Exception {
         blockStoreFile = File.createTempFile("spvblockstore", null);
         blockStoreFile.delete();
         blockStoreFile.deleteOnExit();
+        indexFile = new File(blockStoreFile.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX);
+        indexFile.deleteOnExit();
     }
 
     @Test
@@ -148,6 +154,81 @@ public class SPVBlockStoreTest {
         store.close();
     }
 
+    @Test
+    public void wrapAround() throws Exception {
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        List<StoredBlock> blocks = buildChain(store, 3 * capacity + 5);
+        store.close();
+
+        // Reopen so that lookups are not served by the block cache.
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        assertWrappedAround(store, blocks, capacity);
+        blocks.addAll(buildChain(store, capacity / 2 + 1).subList(1, capacity / 2 + 1));
+        store.close();
+
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        assertWrappedAround(store, blocks, capacity);
+        store.close();
+    }
+
+    @Test
+    public void missingIndexIsRebuilt() throws Exception {
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        List<StoredBlock> blocks = buildChain(store, capacity + 3);
+        store.close();
+
+        // Stores created before the index existed don't have an index file.
+        assertTrue(indexFile.delete());
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        assertWrappedAround(store, blocks, capacity);
+        store.close();
+        assertEquals(SPVBlockStore.getIndexFileSize(capacity), indexFile.length());
+    }
+
+    @Test
+    public void uncleanIndexIsRebuilt() throws Exception {
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        List<StoredBlock> blocks = buildChain(store, capacity + 3);
+        store.close();
+
+        // Simulate a crash: the index is still flagged as open and lost all of its slots.
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        raf.seek(4);
+        raf.writeInt(1);
+        raf.write(new byte[(int) raf.length() - 8]);
+        raf.close();
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        assertWrappedAround(store, blocks, capacity);
+        store.close();
+    }
+
+    private List<StoredBlock> buildChain(SPVBlockStore store, int length) throws Exception {
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        List<StoredBlock> blocks = new ArrayList<>();
+        StoredBlock block = store.getChainHead();
+        blocks.add(block);
+        for (int i = 1; i < length; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            store.setChainHead(block);
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    private void assertWrappedAround(SPVBlockStore store, List<StoredBlock> blocks, int capacity) throws Exception {
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock block = blocks.get(i);
+            if (i < blocks.size() - capacity)
+                assertNull(store.get(block.getHeader().getHash()));
+            else
+                assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+    }
+
     @Test
     public void clear() throws Exception {
         SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile);
@@ -328,6 +328,34 @@ public class WalletProtobufSerializerTest {
         return new WalletProtobufSerializer().readWallet(input);
     }
 
+    @Test
+    public void parallelLoad() throws Exception {
+        // Enough transactions for several batches, and a spend connecting them.
+        for (int i = 0; i < 600; i++)
+            myWallet.receivePending(createFakeTx(UNITTEST, CENT, myAddress), null);
+        myWallet.allowSpendingUnconfirmedTransactions();
+        Transaction send = myWallet.createSend(LegacyAddress.fromKey(UNITTEST, new ECKey()), COIN);
+        myWallet.commitTx(send);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+
+        for (int parallelism : new int[] { 1, 4 }) {
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            serializer.setLoadParallelism(parallelism);
+            Wallet streamed = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+            Wallet parsed = serializer.readWallet(UNITTEST, null,
+                    WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(output.toByteArray())));
+            for (Wallet wallet : new Wallet[] { streamed, parsed }) {
+                assertEquals(601, wallet.getTransactions(true).size());
+                assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED),
+                        wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+                Transaction sendCopy = wallet.getTransaction(send.getTxId());
+                for (TransactionInput input : sendCopy.getInputs())
+                    assertSame(sendCopy, input.getConnectedOutput().getSpentBy().getParentTransaction());
+            }
+        }
+    }
+
     @Test
     public void testRoundTripNormalWallet() throws Exception {
         Wallet wallet1 = roundTrip(myWallet);
@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HeaderWindowTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final int SIZE = 20;
+
+    private BlockStore blockStore;
+    private List<StoredBlock> chain;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(UNITTEST);
+        blockStore = new MemoryBlockStore(UNITTEST);
+        chain = new ArrayList<>();
+        chain.add(blockStore.getChainHead());
+        extend(chain, 3 * SIZE);
+    }
+
+    private void extend(List<StoredBlock> blocks, int count) throws BlockStoreException {
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        StoredBlock block = blocks.get(blocks.size() - 1);
+        for (int i = 0; i < count; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            blockStore.put(block);
+            blocks.add(block);
+        }
+    }
+
+    private StoredBlock head() {
+        return chain.get(chain.size() - 1);
+    }
+
+    @Test
+    public void testSize() {
+        HeaderWindow instance = new HeaderWindow(UNITTEST);
+        assertTrue(instance.size() >= UNITTEST.getInterval() + HeaderWindow.MEDIAN_TIME_SPAN);
+        assertTrue(instance.size() >= 144 + 3 + HeaderWindow.MEDIAN_TIME_SPAN);
+    }
+
+    @Test
+    public void testInitialize() throws BlockStoreException {
+        HeaderWindow instance = new HeaderWindow(SIZE);
+        instance.initialize(blockStore, head());
+        for (int height = 0; height < chain.size(); height++) {
+            StoredBlock block = chain.get(height);
+            if (height > head().getHeight() - SIZE) {
+                assertEquals(block, instance.get(height));
+                assertEquals(block, instance.get(block.getHeader().getHash()));
+            } else {
+                assertNull(instance.get(height));
+                assertNull(instance.get(block.getHeader().getHash()));
+            }
+        }
+    }
+
+    @Test
+    public void testAncestorsAndMedianTime() throws BlockStoreException {
+        HeaderWindow instance = new HeaderWindow(SIZE);
+        instance.initialize(blockStore, head());
+        // Ancestors both within the window and beyond it, which must be read from the block store.
+        for (int height = 0; height <= head().getHeight(); height++)
+            assertEquals(chain.get(height), instance.getAncestor(head(), height, blockStore));
+        for (StoredBlock block : chain)
+            assertEquals(AbstractBlockChain.getMedianTimestampOfRecentBlocks(block, blockStore),
+                    instance.getMedianTimestampOfRecentBlocks(block, blockStore));
+    }
+
+    @Test
+    public void testSetHead() throws BlockStoreException {
+        HeaderWindow instance = new HeaderWindow(SIZE);
+        instance.initialize(blockStore, chain.get(SIZE));
+
+        // Extending the chain moves the window.
+        for (int height = SIZE + 1; height < chain.size(); height++)
+            assertTrue(instance.setHead(chain.get(height)));
+        assertEquals(head(), instance.get(head().getHeight()));
+        assertNull(instance.get(head().getHeight() - SIZE));
+
+        // Rolling back within the window truncates it.
+        StoredBlock rollback = chain.get(head().getHeight() - 5);
+        assertTrue(instance.setHead(rollback));
+        assertNull(instance.get(rollback.getHeight() + 1));
+        assertNull(instance.get(chain.get(rollback.getHeight() + 1).getHeader().getHash()));
+        assertEquals(rollback, instance.get(rollback.getHeight()));
+
+        // A block of a fork can't be added.
+        List<StoredBlock> fork = new ArrayList<>(chain.subList(0, rollback.getHeight()));
+        extend(fork, 2);
+        assertFalse(instance.setHead(fork.get(fork.size() - 1)));
+        instance.initialize(blockStore, fork.get(fork.size() - 1));
+        assertEquals(fork.get(fork.size() - 1), instance.get(fork.size() - 1));
+        assertEquals(chain.get(rollback.getHeight() - 1), instance.get(rollback.getHeight() - 1));
+    }
+}
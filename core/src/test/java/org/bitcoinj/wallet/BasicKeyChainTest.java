@@ -103,6 +103,36 @@ public class BasicKeyChainTest {
         assertFalse(chain.removeKey(key));
     }
 
+    @Test
+    public void findKeysAfterRemovals() {
+        List<ECKey> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            keys.add(new ECKey());
+        chain.importKeys(keys);
+        // Removing keys shifts the ones colliding with them, which must still be found.
+        for (int i = 0; i < keys.size(); i += 3)
+            assertTrue(chain.removeKey(keys.get(i)));
+        for (int i = 0; i < keys.size(); i++) {
+            ECKey key = keys.get(i);
+            byte[] hash = key.getPubKeyHash();
+            byte[] pubKey = key.getPubKey();
+            if (i % 3 == 0) {
+                assertNull(chain.findKeyFromPubHash(hash));
+                assertNull(chain.findKeyFromPubKey(pubKey));
+            } else {
+                assertEquals(key, chain.findKeyFromPubHash(hash));
+                assertEquals(key, chain.findKeyFromPubKey(pubKey));
+                // Looking up a slice of a bigger array.
+                byte[] script = new byte[hash.length + 4];
+                System.arraycopy(hash, 0, script, 3, hash.length);
+                assertEquals(key, chain.findKeyFromPubHash(script, 3, hash.length));
+                assertNull(chain.findKeyFromPubHash(script, 2, hash.length));
+            }
+        }
+        assertEquals(66, chain.numKeys());
+        assertEquals(66, chain.getKeys().size());
+    }
+
     @Test
     public void getKey() {
         ECKey key1 = chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
@@ -261,6 +291,36 @@ public class BasicKeyChainTest {
         assertFalse(filter.contains(key3.getPubKey()));
     }
 
+    @Test
+    public void bloomAfterChanges() throws Exception {
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        ECKey key3 = new ECKey();
+        chain.importKeys(key1, key2);
+        BloomFilter filter = chain.getFilter(6, 0.001, 100);
+        assertFalse(filter.contains(key3.getPubKey()));
+        chain.importKeys(key3);
+        filter = chain.getFilter(6, 0.001, 100);
+        BloomFilter expected = new BloomFilter(6, 0.001, 100);
+        for (ECKey key : new ECKey[] { key1, key2, key3 })
+            expected.insert(key);
+        assertEquals(expected, filter);
+
+        chain.removeKey(key2);
+        filter = chain.getFilter(6, 0.001, 100);
+        expected = new BloomFilter(6, 0.001, 100);
+        expected.insert(key1);
+        expected.insert(key3);
+        assertEquals(expected, filter);
+
+        // Other parameters build a new filter.
+        filter = chain.getFilter(4, 0.0001, 200);
+        expected = new BloomFilter(4, 0.0001, 200);
+        expected.insert(key1);
+        expected.insert(key3);
+        assertEquals(expected, filter);
+    }
+
     @Test
     public void keysBeforeAndAfter() throws Exception {
         Utils.setMockClock();
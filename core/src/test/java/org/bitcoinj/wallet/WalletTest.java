@@ -26,6 +26,7 @@ import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.script.ScriptChunk;
 import org.bitcoinj.script.ScriptPattern;
+import org.bitcoinj.signers.LocalTransactionSigner;
 import org.bitcoinj.signers.TransactionSigner;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.MemoryBlockStore;
@@ -44,6 +45,7 @@ import org.easymock.EasyMock;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
 
 import org.bitcoinj.wallet.KeyChain.KeyPurpose;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
@@ -55,6 +57,8 @@ import org.slf4j.LoggerFactory;
 import org.bouncycastle.crypto.params.KeyParameter;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.SecureRandom;
@@ -1209,7 +1213,7 @@ public class WalletTest extends TestWithWallet {
         wallet.commitTx(send2);
         Set<Transaction> txns = new HashSet<>();
         txns.add(send1);
-        wallet.addTransactionsDependingOn(txns, wallet.getTransactions(true));
+        wallet.addTransactionsDependingOn(txns);
         assertEquals(3, txns.size());
         assertTrue(txns.contains(send1));
         assertTrue(txns.contains(send1b));
@@ -1631,6 +1635,25 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.isPendingTransactionRelevant(t1));
     }
 
+    @Test
+    public void watchedBalanceBecomesSpendableWithTheKey() throws Exception {
+        ECKey key = new ECKey();
+        Address watchedAddress = LegacyAddress.fromKey(UNITTEST, key);
+        wallet.addWatchedAddress(watchedAddress);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, CENT, watchedAddress);
+        assertEquals(CENT, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+
+        wallet.importKey(key);
+        assertEquals(CENT, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(CENT, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        wallet.removeKey(key);
+        assertEquals(ZERO, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(CENT, wallet.getBalance(BalanceType.ESTIMATED));
+    }
+
     @Test(expected = InsufficientMoneyException.class)
     public void watchingScriptsConfirmed() throws Exception {
         Address watchedAddress = LegacyAddress.fromKey(UNITTEST, new ECKey());
@@ -1833,6 +1856,98 @@ public class WalletTest extends TestWithWallet {
         assertNull(results[1]);
     }
 
+    @Test
+    public void autosaveJournaled() throws Exception {
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        File journal = new File(f.getPath() + ".journal");
+        // A delay long enough for only the explicit saves to happen.
+        WalletFiles files = wallet.autosaveToFile(f, 1, TimeUnit.HOURS, null);
+        files.setJournaling(true);
+        ECKey key = wallet.freshReceiveKey();  // Saved in full.
+        assertTrue(journal.exists());
+
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0), key);
+        files.saveNow();
+        Transaction send = wallet.createSend(OTHER_ADDRESS, COIN);
+        wallet.commitTx(send);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, send);
+        wallet.setTag("tag", ByteString.copyFromUtf8("data"));
+        files.saveNow();
+        assertJournaledWalletLoads(f);
+
+        // Removals are journaled as well.
+        wallet.reset();
+        files.saveNow();
+        assertEquals(0, Wallet.loadFromFile(f).getTransactions(true).size());
+
+        // A wallet file saved by other means doesn't get the journal applied to it.
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, COIN, key);
+        wallet.saveToFile(f);
+        assertTrue(journal.exists());
+        assertJournaledWalletLoads(f);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, COIN, key);
+        files.saveNow();
+        assertJournaledWalletLoads(f);
+        wallet.shutdownAutosaveAndWait();
+    }
+
+    @Test
+    public void autosaveJournaledKeysAndExtensions() throws Exception {
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        File journal = new File(f.getPath() + ".journal");
+        WalletFiles files = wallet.autosaveToFile(f, 1, TimeUnit.HOURS, null);
+        files.setJournaling(true);
+        wallet.freshReceiveKey();  // Saved in full.
+
+        // Records only carry the keys and extensions once they changed.
+        wallet.setTag("tag", ByteString.copyFromUtf8("data"));
+        Protos.Wallet record = lastJournalRecord(journal);
+        assertEquals(0, record.getKeyCount());
+        assertEquals(0, record.getExtensionCount());
+        wallet.addExtension(new FooWalletExtension("foo", false));
+        record = lastJournalRecord(journal);
+        assertEquals(0, record.getKeyCount());
+        assertEquals(1, record.getExtensionCount());
+        ECKey imported = new ECKey();
+        wallet.importKey(imported);
+        record = lastJournalRecord(journal);
+        assertNotEquals(0, record.getKeyCount());
+        assertEquals(0, record.getExtensionCount());
+
+        Wallet loaded = Wallet.loadFromFile(f, new FooWalletExtension("foo", false));
+        assertTrue(loaded.hasKey(imported));
+        assertEquals(wallet.getIssuedReceiveKeys(), loaded.getIssuedReceiveKeys());
+        assertEquals(wallet.getTags(), loaded.getTags());
+        assertTrue(loaded.getExtensions().containsKey("foo"));
+        wallet.shutdownAutosaveAndWait();
+    }
+
+    private static Protos.Wallet lastJournalRecord(File journal) throws Exception {
+        Protos.Wallet record = null;
+        try (InputStream input = new FileInputStream(journal)) {
+            Protos.Wallet next;
+            while ((next = Protos.Wallet.parseDelimitedFrom(input)) != null)
+                record = next;
+        }
+        return record;
+    }
+
+    private void assertJournaledWalletLoads(File f) throws Exception {
+        Wallet loaded = Wallet.loadFromFile(f);
+        assertEquals(walletTransactionPools(wallet), walletTransactionPools(loaded));
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        assertEquals(wallet.getIssuedReceiveKeys(), loaded.getIssuedReceiveKeys());
+        assertEquals(wallet.getTags(), loaded.getTags());
+    }
+
+    private static Map<Sha256Hash, Pool> walletTransactionPools(Wallet wallet) {
+        Map<Sha256Hash, Pool> pools = new HashMap<>();
+        for (WalletTransaction wtx : wallet.getWalletTransactions())
+            pools.put(wtx.getTransaction().getTxId(), wtx.getPool());
+        return pools;
+    }
+
     @Test
     public void spendOutputFromPendingTransaction() throws Exception {
         // We'll set up a wallet that receives a coin, then sends a coin of lesser value and keeps the change.
@@ -1972,6 +2087,74 @@ public class WalletTest extends TestWithWallet {
         }
     }
 
+    @Test
+    public void keySession() throws Exception {
+        Utils.setMockClock();
+        Wallet encryptedWallet = Wallet.createDeterministic(UNITTEST, Script.ScriptType.P2PKH);
+        encryptedWallet.encrypt(PASSWORD1);
+        try {
+            encryptedWallet.openKeySession(WRONG_PASSWORD, 1, 10, TimeUnit.MINUTES);
+            fail();
+        } catch (Wallet.BadWalletEncryptionKeyException e) {
+            // Expected.
+        }
+
+        KeySession session = encryptedWallet.openKeySession(PASSWORD1, 1, 10, TimeUnit.MINUTES);
+        for (int i = 0; i < 9; i++) {
+            assertTrue(encryptedWallet.checkAESKey(session.getAesKey()));
+            Utils.rollMockClock(50);
+        }
+        assertEquals(9, session.getUses());
+        assertEquals(8, session.getDerivationsAvoided());
+        // The session reached its maximum lifetime, even though it was in use.
+        Utils.rollMockClock(150);
+        assertFalse(session.isOpen());
+        try {
+            session.getAesKey();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+
+        session = encryptedWallet.openKeySession(PASSWORD1, 1, 10, TimeUnit.MINUTES);
+        Utils.rollMockClock(60);
+        assertFalse(session.isOpen());
+
+        session = encryptedWallet.openKeySession(PASSWORD1, 1, 10, TimeUnit.MINUTES);
+        encryptedWallet.decrypt(session.getAesKey());
+        assertFalse(encryptedWallet.isEncrypted());
+        session.close();
+        assertFalse(session.isOpen());
+        Utils.resetMocking();
+    }
+
+    @Test
+    public void signManyInputsInParallel() throws Exception {
+        // Half of the coins are sent to the same key, which only has to be decrypted once.
+        for (int i = 0; i < 40; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT,
+                    i % 2 == 0 ? myAddress : wallet.freshReceiveAddress());
+        wallet.encrypt(PASSWORD1);
+        KeyParameter aesKey = wallet.getKeyCrypter().deriveKey(PASSWORD1);
+        LocalTransactionSigner signer = (LocalTransactionSigner) wallet.getTransactionSigners().get(0);
+
+        signer.setParallelism(4);
+        SendRequest req = SendRequest.emptyWallet(UNITTEST, OTHER_ADDRESS.toString());
+        req.aesKey = aesKey;
+        wallet.completeTx(req);
+        Transaction parallel = req.tx;
+        assertEquals(40, parallel.getInputs().size());
+        for (TransactionInput input : parallel.getInputs())
+            input.verify();
+
+        // Signing one input after the other gives the same transaction.
+        signer.setParallelism(1);
+        req = SendRequest.emptyWallet(UNITTEST, OTHER_ADDRESS.toString());
+        req.aesKey = aesKey;
+        wallet.completeTx(req);
+        assertArrayEquals(req.tx.bitcoinSerialize(), parallel.bitcoinSerialize());
+    }
+
     @Test
     public void changePasswordTest() {
         Wallet encryptedWallet = Wallet.createDeterministic(UNITTEST, Script.ScriptType.P2PKH);
@@ -3483,6 +3666,49 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.isConsistent());
     }
 
+    @Test
+    public void doubleSpendsAreForgottenOnReset() throws Exception {
+        Transaction tx0 = createFakeTx(UNITTEST);
+        Transaction tx1 = new Transaction(UNITTEST);
+        tx1.addInput(tx0.getOutput(0));
+        tx1.addOutput(COIN, myAddress);
+        wallet.receivePending(tx1, null);
+
+        // tx2 only double spends tx1.
+        Transaction tx2 = new Transaction(UNITTEST);
+        tx2.addInput(tx0.getOutput(0));
+        tx2.addOutput(COIN, OTHER_ADDRESS);
+        assertTrue(wallet.isTransactionRelevant(tx2));
+        wallet.reset();
+        assertFalse(wallet.isTransactionRelevant(tx2));
+    }
+
+    @Test
+    public void depthFollowsChainHeight() throws Exception {
+        wallet.setDepthNotificationThresholds(ImmutableList.of(3));
+        final List<Integer> notifiedDepths = new ArrayList<>();
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, new TransactionConfidenceEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                notifiedDepths.add(tx.getConfidence().getDepthInBlocks());
+            }
+        });
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        ListenableFuture<TransactionConfidence> future = tx.getConfidence().getDepthFuture(5, Threading.SAME_THREAD);
+        Threading.waitForUserCode();
+        notifiedDepths.clear();
+
+        for (int i = 0; i < 6; i++) {
+            FakeTxBuilder.BlockPair block = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS);
+            wallet.notifyNewBestBlock(block.storedBlock);
+            assertEquals(i + 2, tx.getConfidence().getDepthInBlocks());
+        }
+        Threading.waitForUserCode();
+        // Told on every block until the future was done, then only at the threshold.
+        assertTrue(future.isDone());
+        assertEquals(ImmutableList.of(2, 3, 4, 5), notifiedDepths);
+    }
+
     @Test
     public void overridingDeadTxTest() throws Exception {
         Transaction tx0 = createFakeTx(UNITTEST);